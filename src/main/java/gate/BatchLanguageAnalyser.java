@@ -0,0 +1,41 @@
+/*
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ *
+ */
+
+package gate;
+
+import gate.creole.ExecutionException;
+
+import java.util.List;
+
+/**
+ * A {@link LanguageAnalyser} that can also process several documents in one
+ * go, for PRs that work more efficiently that way (for instance because each
+ * call has a fixed cost, such as a request to a remote service or a batch of
+ * work for a GPU). When the batch size of a
+ * {@link gate.creole.SerialAnalyserController} or
+ * {@link gate.creole.ConditionalSerialAnalyserController} is more than one,
+ * the controller calls {@link #executeBatch(List)} with up to that many
+ * documents from its corpus instead of running the PR over each of them in
+ * turn; the PR must give the same results either way.
+ * <p>
+ * The corpus of the PR is set when {@link #executeBatch(List)} is called, but
+ * its document is not.
+ */
+public interface BatchLanguageAnalyser extends LanguageAnalyser {
+
+  /**
+   * Process the given documents, in the order given.
+   */
+  public void executeBatch(List<Document> documents)
+    throws ExecutionException;
+}
@@ -45,6 +45,7 @@ public class DataStoreRegister extends HashSet<DataStore> {
 
     // filesystem
     names.put("gate.persist.SerialDataStore", "SerialDataStore: file-based storage using Java serialisation");
+    names.put("gate.persist.LogStructuredDataStore", "LogStructuredDataStore: file-based storage in a few append-only segment files");
 
     names.put("gate.persist.LuceneDataStoreImpl", "Lucene Based Searchable DataStore");
     
@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ *
+ */
+
+package gate;
+
+import gate.creole.ResourceInstantiationException;
+
+/**
+ * A stream of documents to process, for input that cannot be held in a
+ * {@link Corpus} because it is too big, or its size is unknown, or it has no
+ * end. A corpus controller runs over a source with
+ * {@link gate.creole.SerialAnalyserController#execute(DocumentSource)}: it
+ * pulls one document at a time with {@link #next()} and hands each document
+ * back with {@link #release(Document)} as soon as it has been processed, so
+ * only the documents in flight need to be in memory. Since documents are
+ * only taken when the controller is ready for them, a source fed by another
+ * thread can hold back that thread when it gets ahead (see
+ * {@link gate.corpora.QueueDocumentSource}).
+ */
+public interface DocumentSource {
+
+  /**
+   * Get the next document, waiting for one if none is available yet.
+   *
+   * @return the document, or null once the source has come to its end
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ResourceInstantiationException if the document could not be
+   *           created
+   */
+  public Document next()
+    throws InterruptedException, ResourceInstantiationException;
+
+  /**
+   * Hand back a document obtained from {@link #next()} once it has been
+   * processed, or once processing it has failed. The source can pass the
+   * document on or delete it.
+   */
+  public void release(Document document);
+
+  /**
+   * Stop producing documents. Calls to {@link #next()} return null from then
+   * on.
+   */
+  public void close();
+}
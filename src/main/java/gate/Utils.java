@@ -393,6 +393,10 @@ public class Utils {
       return sourceAnnotationSet.getContained(
         containingAnnotation.getStartNode().getOffset(),
         containingAnnotation.getEndNode().getOffset());
+    } else if(sourceAnnotationSet instanceof AnnotationSetImpl) {
+      return ((AnnotationSetImpl)sourceAnnotationSet).getContained(targetType,
+        containingAnnotation.getStartNode().getOffset(),
+        containingAnnotation.getEndNode().getOffset());
     } else {
       return sourceAnnotationSet.getContained(
         containingAnnotation.getStartNode().getOffset(),
@@ -445,6 +449,10 @@ public class Utils {
       return sourceAnnotationSet.getContained(
         containingAnnotationSet.firstNode().getOffset(),
         containingAnnotationSet.lastNode().getOffset());
+    } else if(sourceAnnotationSet instanceof AnnotationSetImpl) {
+      return ((AnnotationSetImpl)sourceAnnotationSet).getContained(targetType,
+        containingAnnotationSet.firstNode().getOffset(),
+        containingAnnotationSet.lastNode().getOffset());
     } else {
       return sourceAnnotationSet.getContained(
         containingAnnotationSet.firstNode().getOffset(),
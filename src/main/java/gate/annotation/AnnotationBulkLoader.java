@@ -0,0 +1,223 @@
+/*
+ *  AnnotationBulkLoader.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.Arrays;
+
+import gate.AnnotationSet;
+import gate.FeatureMap;
+import gate.util.InvalidOffsetException;
+
+/**
+ * Collects annotations to be added to an annotation set and adds them all at
+ * once, for readers that create many annotations in one go (e.g. when a
+ * document is loaded from GATE XML). Adding annotations one at a time updates
+ * every index of the set and fires an event for each of them; when the set is
+ * an {@link AnnotationSetImpl}, {@link #load()} instead creates the nodes for
+ * all the offsets at once and fills the offset indices in a single pass in
+ * offset order. The other indices are left to be built the next time they
+ * are needed, and events are only fired, once everything has been added, if
+ * the set has listeners.
+ * <p>
+ * The annotations end up with the same ids as if they had been added one at
+ * a time in the order they were given to the loader: annotations without an
+ * id take the next id of the document, and annotations with an id make sure
+ * the document won't hand that id out again. Loading is quickest when the
+ * annotations are given in order of their start offsets, although any order
+ * is accepted.
+ */
+public class AnnotationBulkLoader {
+
+  private final AnnotationSet set;
+
+  private Integer[] ids = new Integer[16];
+
+  private long[] starts = new long[16];
+
+  private long[] ends = new long[16];
+
+  private String[] types = new String[16];
+
+  private FeatureMap[] features = new FeatureMap[16];
+
+  private int size = 0;
+
+  /** Have the annotations been given in order of their start offsets? */
+  private boolean sorted = true;
+
+  /** Create a loader adding annotations to the given set. */
+  public AnnotationBulkLoader(AnnotationSet set) {
+    this.set = set;
+  }
+
+  /**
+   * Queue an annotation with the given id, or with the next id of the
+   * document if the id is null.
+   *
+   * @throws InvalidOffsetException if the offsets are not valid for the
+   *           current content of the document
+   */
+  public void add(Integer id, long start, long end, String type,
+          FeatureMap features) throws InvalidOffsetException {
+    long length = set.getDocument().getContent().size().longValue();
+    if(start < 0 || start > end || end > length)
+      throw new InvalidOffsetException("Offsets [" + start + ":" + end
+              + "] not valid for this document of size " + length);
+    if(size == starts.length) {
+      int capacity = size * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+      types = Arrays.copyOf(types, capacity);
+      this.features = Arrays.copyOf(this.features, capacity);
+    }
+    if(size > 0 && start < starts[size - 1]) sorted = false;
+    ids[size] = id;
+    starts[size] = start;
+    ends[size] = end;
+    types[size] = type;
+    this.features[size] = features;
+    size++;
+  } // add(id, start, end, type, features)
+
+  /** Queue an annotation that will take the next id of the document. */
+  public void add(long start, long end, String type, FeatureMap features)
+          throws InvalidOffsetException {
+    add(null, start, end, type, features);
+  } // add(start, end, type, features)
+
+  /** The number of queued annotations. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Add the queued annotations to the set, and empty the loader so that it
+   * can be reused.
+   *
+   * @throws InvalidOffsetException if the document has been edited since the
+   *           annotations were queued so that their offsets are no longer
+   *           valid. Nothing is added in that case.
+   */
+  public void load() throws InvalidOffsetException {
+    if(size == 0) return;
+    try {
+      if(set instanceof AnnotationSetImpl) {
+        ((AnnotationSetImpl)set).bulkAdd(this);
+      } else {
+        for(int i = 0; i < size; i++) {
+          if(ids[i] == null) {
+            set.add(starts[i], ends[i], types[i], features[i]);
+          } else {
+            set.add(ids[i], starts[i], ends[i], types[i], features[i]);
+          }
+        }
+      }
+    } finally {
+      clear();
+    }
+  } // load()
+
+  /** Discard the queued annotations. */
+  public void clear() {
+    Arrays.fill(ids, 0, size, null);
+    Arrays.fill(types, 0, size, null);
+    Arrays.fill(features, 0, size, null);
+    size = 0;
+    sorted = true;
+  } // clear()
+
+  /*
+   * Accessors for AnnotationSetImpl
+   */
+
+  Integer id(int i) {
+    return ids[i];
+  }
+
+  void setId(int i, Integer id) {
+    ids[i] = id;
+  }
+
+  long start(int i) {
+    return starts[i];
+  }
+
+  long end(int i) {
+    return ends[i];
+  }
+
+  String type(int i) {
+    return types[i];
+  }
+
+  FeatureMap features(int i) {
+    return features[i];
+  }
+
+  /**
+   * The positions of the queued annotations in order of their start offsets,
+   * keeping the order they were queued in for equal offsets.
+   */
+  int[] inStartOrder() {
+    int[] order = new int[size];
+    if(sorted) {
+      for(int i = 0; i < size; i++) order[i] = i;
+      return order;
+    }
+    // sort (start, position) pairs packed into longs, which keeps the
+    // sort stable without boxing
+    long[] keyed = new long[size];
+    int[] ranks = rank(starts, size);
+    for(int i = 0; i < size; i++) {
+      keyed[i] = ((long)ranks[i] << 32) | i;
+    }
+    Arrays.sort(keyed);
+    for(int i = 0; i < size; i++) order[i] = (int)keyed[i];
+    return order;
+  } // inStartOrder()
+
+  /**
+   * The rank of each of the first count values among the distinct values, so
+   * that offsets of any size can be packed into half a long.
+   */
+  private static int[] rank(long[] values, int count) {
+    long[] distinct = distinct(values, count);
+    int[] ranks = new int[count];
+    for(int i = 0; i < count; i++) {
+      ranks[i] = Arrays.binarySearch(distinct, values[i]);
+    }
+    return ranks;
+  } // rank(values, count)
+
+  /** The distinct values among the first count values, in increasing order. */
+  static long[] distinct(long[] values, int count) {
+    long[] sortedValues = Arrays.copyOf(values, count);
+    Arrays.sort(sortedValues);
+    int distinct = 0;
+    for(int i = 0; i < count; i++) {
+      if(distinct == 0 || sortedValues[i] != sortedValues[distinct - 1])
+        sortedValues[distinct++] = sortedValues[i];
+    }
+    return Arrays.copyOf(sortedValues, distinct);
+  } // distinct(values, count)
+
+  /** The distinct start and end offsets, in increasing order. */
+  long[] offsets() {
+    long[] all = Arrays.copyOf(starts, size * 2);
+    System.arraycopy(ends, 0, all, size, size);
+    return distinct(all, size * 2);
+  } // offsets()
+}
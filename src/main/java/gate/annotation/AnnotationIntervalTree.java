@@ -0,0 +1,290 @@
+/*
+ *  AnnotationIntervalTree.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.Collection;
+
+import gate.Annotation;
+
+/**
+ * An augmented interval tree over the annotations of a set, used to answer
+ * overlap, covering and contained queries without having to scan back over
+ * all the nodes that the longest annotation in the set could span.
+ * <p>
+ * The tree is a treap keyed on the start offset (ties broken on annotation
+ * id) where every entry also records the maximum and minimum end offset found
+ * in its subtree. These two values allow whole subtrees to be skipped when
+ * they can not contain an answer, so the queries cost O(log n + k) in the
+ * expected case, regardless of how long the annotations are.
+ * <p>
+ * The offsets of an annotation are copied into the tree when the annotation
+ * is added. The tree therefore has to be rebuilt (or simply discarded) when
+ * the offsets of the nodes change, as happens when the document is edited.
+ */
+class AnnotationIntervalTree {
+
+  /** A single annotation stored in the tree. */
+  private static final class Entry {
+    final Annotation annotation;
+
+    final long start;
+
+    final long end;
+
+    final int priority;
+
+    Entry left;
+
+    Entry right;
+
+    /** The largest end offset in the subtree rooted here */
+    long maxEnd;
+
+    /** The smallest end offset in the subtree rooted here */
+    long minEnd;
+
+    Entry(Annotation annotation, int priority) {
+      this.annotation = annotation;
+      this.start = annotation.getStartNode().getOffset().longValue();
+      this.end = annotation.getEndNode().getOffset().longValue();
+      this.priority = priority;
+      this.maxEnd = end;
+      this.minEnd = end;
+    }
+  }
+
+  private Entry root = null;
+
+  private int size = 0;
+
+  /** State of the pseudo random generator used for the treap priorities */
+  private int seed = 0x2545F491;
+
+  /** Construction of an empty tree. */
+  AnnotationIntervalTree() {
+  }
+
+  /** Construction of a tree holding all the given annotations. */
+  AnnotationIntervalTree(Collection<Annotation> annotations) {
+    for(Annotation a : annotations) {
+      add(a);
+    }
+  }
+
+  /** The number of annotations in the tree. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Add an annotation to the tree. The annotation must not already be present
+   * in the tree.
+   */
+  void add(Annotation a) {
+    root = insert(root, new Entry(a, nextPriority()));
+    size++;
+  }
+
+  /**
+   * Remove an annotation from the tree. The offsets of the annotation must be
+   * the same as when it was added.
+   *
+   * @return <tt>true</tt> if the annotation was found and removed.
+   */
+  boolean remove(Annotation a) {
+    int oldSize = size;
+    root = delete(root, a.getStartNode().getOffset().longValue(), a.getId());
+    return size != oldSize;
+  }
+
+  /**
+   * Collect the annotations that either start before <tt>startOffset</tt> and
+   * end strictly after it, or start at or after <tt>startOffset</tt> but
+   * strictly before <tt>endOffset</tt>.
+   *
+   * @param type if not null only annotations of this type are collected
+   */
+  void getOverlapping(long startOffset, long endOffset, String type,
+          Collection<Annotation> result) {
+    crossing(root, startOffset, type, result);
+    startingWithin(root, startOffset, endOffset, Long.MAX_VALUE, type, result);
+  }
+
+  /**
+   * Collect the annotations that start at or before <tt>startOffset</tt> and
+   * end at or after <tt>endOffset</tt>.
+   *
+   * @param type if not null only annotations of this type are collected
+   */
+  void getCovering(long startOffset, long endOffset, String type,
+          Collection<Annotation> result) {
+    covering(root, startOffset, endOffset, type, result);
+  }
+
+  /**
+   * Collect the annotations that start at or after <tt>startOffset</tt> but
+   * strictly before <tt>endOffset</tt> and end at or before
+   * <tt>endOffset</tt>.
+   *
+   * @param type if not null only annotations of this type are collected
+   */
+  void getContained(long startOffset, long endOffset, String type,
+          Collection<Annotation> result) {
+    startingWithin(root, startOffset, endOffset, endOffset, type, result);
+  }
+
+  /**
+   * Annotations starting strictly before the offset and ending strictly after
+   * it.
+   */
+  private static void crossing(Entry e, long offset, String type,
+          Collection<Annotation> result) {
+    while(e != null && e.maxEnd > offset) {
+      crossing(e.left, offset, type, result);
+      if(e.start >= offset) return;
+      if(e.end > offset) collect(e, type, result);
+      e = e.right;
+    }
+  }
+
+  /**
+   * Annotations starting in [from, to) and ending no later than maxEnd.
+   */
+  private static void startingWithin(Entry e, long from, long to, long maxEnd,
+          String type, Collection<Annotation> result) {
+    while(e != null && e.minEnd <= maxEnd) {
+      if(e.start < from) {
+        e = e.right;
+        continue;
+      }
+      if(e.start >= to) {
+        e = e.left;
+        continue;
+      }
+      startingWithin(e.left, from, to, maxEnd, type, result);
+      if(e.end <= maxEnd) collect(e, type, result);
+      e = e.right;
+    }
+  }
+
+  /** Annotations starting at or before start and ending at or after end. */
+  private static void covering(Entry e, long start, long end, String type,
+          Collection<Annotation> result) {
+    while(e != null && e.maxEnd >= end) {
+      if(e.start > start) {
+        e = e.left;
+        continue;
+      }
+      covering(e.left, start, end, type, result);
+      if(e.end >= end) collect(e, type, result);
+      e = e.right;
+    }
+  }
+
+  private static void collect(Entry e, String type,
+          Collection<Annotation> result) {
+    if(type == null || type.equals(e.annotation.getType()))
+      result.add(e.annotation);
+  }
+
+  private static int compare(long start, Integer id, Entry e) {
+    if(start < e.start) return -1;
+    if(start > e.start) return 1;
+    return id.compareTo(e.annotation.getId());
+  }
+
+  private Entry insert(Entry t, Entry e) {
+    if(t == null) return e;
+    if(compare(e.start, e.annotation.getId(), t) < 0) {
+      t.left = insert(t.left, e);
+      if(t.left.priority > t.priority) return rotateRight(t);
+    } else {
+      t.right = insert(t.right, e);
+      if(t.right.priority > t.priority) return rotateLeft(t);
+    }
+    update(t);
+    return t;
+  }
+
+  private Entry delete(Entry t, long start, Integer id) {
+    if(t == null) return null;
+    int cmp = compare(start, id, t);
+    if(cmp < 0) {
+      t.left = delete(t.left, start, id);
+    } else if(cmp > 0) {
+      t.right = delete(t.right, start, id);
+    } else {
+      size--;
+      return merge(t.left, t.right);
+    }
+    update(t);
+    return t;
+  }
+
+  private static Entry merge(Entry a, Entry b) {
+    if(a == null) return b;
+    if(b == null) return a;
+    if(a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      update(a);
+      return a;
+    }
+    b.left = merge(a, b.left);
+    update(b);
+    return b;
+  }
+
+  private static Entry rotateRight(Entry t) {
+    Entry l = t.left;
+    t.left = l.right;
+    l.right = t;
+    update(t);
+    update(l);
+    return l;
+  }
+
+  private static Entry rotateLeft(Entry t) {
+    Entry r = t.right;
+    t.right = r.left;
+    r.left = t;
+    update(t);
+    update(r);
+    return r;
+  }
+
+  /** Recompute the augmented values of an entry from its children. */
+  private static void update(Entry e) {
+    long max = e.end;
+    long min = e.end;
+    if(e.left != null) {
+      if(e.left.maxEnd > max) max = e.left.maxEnd;
+      if(e.left.minEnd < min) min = e.left.minEnd;
+    }
+    if(e.right != null) {
+      if(e.right.maxEnd > max) max = e.right.maxEnd;
+      if(e.right.minEnd < min) min = e.right.minEnd;
+    }
+    e.maxEnd = max;
+    e.minEnd = min;
+  }
+
+  private int nextPriority() {
+    // xorshift, we only need the priorities to be well spread
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    return seed;
+  }
+}
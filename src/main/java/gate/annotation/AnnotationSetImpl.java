@@ -36,6 +36,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -63,7 +64,6 @@ import gate.event.GateEvent;
 import gate.event.GateListener;
 import gate.relations.RelationSet;
 import gate.util.InvalidOffsetException;
-import gate.util.RBTreeMap;
 
 /**
  * Implementation of AnnotationSet. Has a number of indices, all bar one of
@@ -81,7 +81,12 @@ import gate.util.RBTreeMap;
  * indexing; construction of these is triggered by indexByStart(), or by calling
  * a get method that selects on offset. The type index is triggered by
  * indexByType(), or calling a get method that selects on type. The id index is
- * always present.
+ * always present. On top of the positional indices an interval index is built
+ * the first time one of the range queries (overlapping, covering or contained)
+ * is made, so that these do not depend on the length of the longest
+ * annotation in the set. Range queries restricted to a type use a separate
+ * interval index per type, also built on demand, so that they do not touch
+ * the annotations of other types.
  * <P>
  * NOTE: equality and hashCode of this implementation is exclusively based on the annotations
  * which appear in the set (if any). The document the set comes from, the name of the set or
@@ -99,8 +104,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
   DocumentImpl doc;
   /** Maps annotation ids (Integers) to Annotations */
   transient protected HashMap<Integer, Annotation> annotsById;
-  /** Maps offsets (Longs) to nodes */
-  transient RBTreeMap<Long,Node> nodesByOffset = null;
+  /** Maps offsets to nodes */
+  transient NodeOffsetIndex nodesByOffset = null;
   /**
    * This field is used temporarily during serialisation to store all the
    * annotations that need to be saved. At all other times, this will be null;
@@ -117,8 +122,9 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
   private transient Vector<GateListener> gateListeners;
 
   /**
-   * A caching value that greatly improves the performance of get
-   * methods that have a defined beginning and end. By tracking the
+   * A caching value that improves the performance of get methods that
+   * have a defined beginning and end when the interval index can not be
+   * used (i.e. while the document is being edited). By tracking the
    * maximum length that an annotation can be, we know the maximum
    * amount of nodes outside of a specified range that must be checked
    * to see if an annotation starting at one of those nodes crosses into
@@ -131,6 +137,46 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
    * needs to.
    */
   protected transient Long longestAnnot = 0l;
+
+  /**
+   * Interval index used to answer the overlap, covering and contained
+   * queries. It is only built when one of those queries is made on a set that
+   * has the start offset index, is kept up to date by add and remove, and is
+   * discarded whenever the document is edited as it holds copies of the
+   * offsets.
+   */
+  transient AnnotationIntervalTree intervalIndex = null;
+
+  /**
+   * Interval indices holding the annotations of a single type, so that typed
+   * range queries do not have to skip over the annotations of all the other
+   * types. The index for a type is built the first time a typed range query
+   * asks for it and, like the untyped one, is kept up to date by add and
+   * remove and discarded when the document is edited.
+   */
+  transient Map<String, AnnotationIntervalTree> intervalIndexByType = null;
+
+  /**
+   * Set while {@link #edit(Long, Long, DocumentContent)} is moving nodes
+   * around; the interval index can not be trusted (or rebuilt) until the edit
+   * has finished so the range queries fall back to scanning the nodes.
+   */
+  private transient boolean editInProgress = false;
+
+  /**
+   * Indices from feature values to annotations, by annotation type, used to
+   * answer {@link #get(String, FeatureMap)}. Only built when feature value
+   * indexing is switched on (see {@link #setFeatureValueIndex(boolean)}) and
+   * a query is made for the type.
+   */
+  transient Map<String, FeatureValueIndex> featureIndexByType = null;
+
+  /**
+   * The number of times this set has been modified. The results of queries
+   * on this set compare it with the value it had when they were created to
+   * know whether further queries on them can still be answered by this set.
+   */
+  transient int modCount = 0;
   
   protected RelationSet relations = null;
 
@@ -154,15 +200,15 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
   } // construction from document and name
 
   /** Construction from an existing AnnotationSet */
-  @SuppressWarnings("unchecked")
   public AnnotationSetImpl(AnnotationSet c) throws ClassCastException {
     this(c.getDocument(), c.getName());
     // the original annotationset is of the same implementation
     if(c instanceof AnnotationSetImpl) {
       AnnotationSetImpl theC = (AnnotationSetImpl)c;
+      theC.materialise();
       annotsById.putAll(theC.annotsById);
       if(theC.annotsByStartNode != null) {
-        annotsByStartNode = new HashMap<Integer, Object>(Gate.HASH_STH_SIZE);
+        annotsByStartNode = newStartNodeIndex(theC.annotsByStartNode.size());
         annotsByStartNode.putAll(theC.annotsByStartNode);
       }
       if(theC.annotsByType != null) {
@@ -170,8 +216,9 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
         annotsByType.putAll(theC.annotsByType);
       }
       if(theC.nodesByOffset != null) {
-        nodesByOffset = (RBTreeMap<Long,Node>)theC.nodesByOffset.clone();
+        nodesByOffset = theC.nodesByOffset.copy();
       }
+      longestAnnot = theC.longestAnnot;
     }
     // the implementation is not the default one
     // let's add the annotations one by one
@@ -188,13 +235,18 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     // while nullifying the indexes does clear the set it doesn't fire the
     // appropriate events so use the Iterator based clear implementation in
     // AbstractSet.clear() first and then reset the indexes
+    disposeFeatureIndices();
     super.clear();
     
     //reset all the indexes to be sure everything has been cleared correctly
     annotsById = new HashMap<Integer, Annotation>();
+    modCount++;
     nodesByOffset = null;
     annotsByStartNode = null;
     annotsByType = null;
+    intervalIndex = null;
+    intervalIndexByType = null;
+    featureIndexByType = null;
     longestAnnot = 0l;
   }
 
@@ -226,6 +278,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
 
       // what if lastNext is null
       if(lastNext == null) return;
+      modCount++;
 
       // remove from type index
       removeFromTypeIndex(lastNext);
@@ -251,6 +304,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     Annotation a = (Annotation)o;
     boolean wasPresent = removeFromIdIndex(a);
     if(wasPresent) {
+      modCount++;
       removeFromTypeIndex(a);
       removeFromOffsetIndex(a);
     }
@@ -271,14 +325,36 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     if(annotsByType != null) {
       AnnotationSet sameType = annotsByType.get(a.getType());
       if(sameType != null) sameType.remove(a);
-      if(sameType != null && sameType.isEmpty()) // none left of this type
+      if(featureIndexByType != null) {
+        FeatureValueIndex index = featureIndexByType.get(a.getType());
+        if(index != null) index.remove(a);
+      }
+      if(sameType != null && sameType.isEmpty()) { // none left of this type
         annotsByType.remove(a.getType());
+        if(featureIndexByType != null) {
+          FeatureValueIndex dropped = featureIndexByType.remove(a.getType());
+          if(dropped != null) dropped.dispose();
+        }
+      }
     }
   } // removeFromTypeIndex(a)
 
+  /**
+   * Drop the feature value indices, so that they stop listening to the
+   * annotations.
+   */
+  protected void disposeFeatureIndices() {
+    if(featureIndexByType == null) return;
+    for(FeatureValueIndex index : featureIndexByType.values())
+      index.dispose();
+    featureIndexByType = null;
+  } // disposeFeatureIndices()
+
   /** Remove from the offset indices. */
   protected void removeFromOffsetIndex(Annotation a) {
 
+    removeFromIntervalIndex(a);
+
     if (nodesByOffset != null) {
       // if there is a nodesByOffset map then we need to make sure it is
       // correctly updated and redundant nodes removed, otherwise methods that
@@ -359,7 +435,9 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
   @Override
   public AnnotationSet get() {
     if (annotsById.isEmpty()) return emptyAS();
-    return new ImmutableAnnotationSetImpl(doc, annotsById.values());
+    return new AnnotationSetView(this,
+            new ArrayList<Annotation>(annotsById.values()), null,
+            AnnotationSetView.ALL, 0, 0);
   } // get()
 
   /**
@@ -372,8 +450,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     if(annotsByType == null) indexByType();
     AnnotationSet byType = annotsByType.get(type);
     if (byType==null)return emptyAS();
-    // convert the mutable AS into an immutable one
-    return byType.get();
+    return new AnnotationSetView(this, new ArrayList<Annotation>(byType),
+            type, AnnotationSetView.ALL, 0, 0);
   } // get(type)
 
   /**
@@ -397,7 +475,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       }
     } // while
     if(annotations.isEmpty()) return emptyAS();
-    return new ImmutableAnnotationSetImpl(doc, annotations);
+    return new AnnotationSetView(this, annotations);
   } // get(types)
 
   /**
@@ -428,10 +506,14 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
    */
   @Override
   public AnnotationSet get(String type, FeatureMap constraints) {
-    if(annotsByType == null) indexByType();
-    AnnotationSet typeSet = get(type);
-    if(typeSet == null) return null;
-    Iterator<Annotation> iter = typeSet.iterator();
+    Collection<Annotation> candidates = null;
+    if(canIndexFeatures() && constraints != null && !constraints.isEmpty())
+      candidates = getFeatureIndexCandidates(type, constraints);
+    if(candidates == null) {
+      candidates = get(type);
+      if(candidates == null) return null;
+    }
+    Iterator<Annotation> iter = candidates.iterator();
     List<Annotation> annotationsToAdd = new ArrayList<Annotation>();
     while(iter.hasNext()) {
       Annotation a = iter.next();
@@ -443,9 +525,30 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       if(a.getFeatures().subsumes(constraints)) annotationsToAdd.add(a);
     } // while
     if(annotationsToAdd.isEmpty()) return emptyAS();
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
+    return new AnnotationSetView(this, annotationsToAdd);
   } // get(type, constraints)
 
+  /**
+   * Use the feature value index to find the annotations of the given type
+   * that could satisfy the constraints: those having the value of the most
+   * selective constraint. Returns null if none of the constraints can be
+   * looked up in the index (i.e. they all have null values).
+   */
+  private Collection<Annotation> getFeatureIndexCandidates(String type,
+          FeatureMap constraints) {
+    FeatureValueIndex index = getFeatureIndex(type);
+    if(index == null) return Collections.emptyList();
+    Collection<Annotation> best = null;
+    for(Map.Entry<Object, Object> constraint : constraints.entrySet()) {
+      if(constraint.getValue() == null) continue;
+      Collection<Annotation> matching =
+              index.get(constraint.getKey(), constraint.getValue());
+      if(best == null || matching.size() < best.size()) best = matching;
+      if(best.isEmpty()) break;
+    }
+    return best;
+  } // getFeatureIndexCandidates(type, constraints)
+
   /** Select annotations by type and feature names */
   @Override
   public AnnotationSet get(String type, Set<? extends Object> featureNames) {
@@ -471,7 +574,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
         annotationsToAdd.add(a);
     } // while
     if(annotationsToAdd.isEmpty()) return emptyAS();
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
+    return new AnnotationSetView(this, annotationsToAdd);
   } // get(type, featureNames)
 
   /**
@@ -485,7 +588,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     if(annotsByStartNode == null) indexByStartOffset();
     // find the next node at or after offset; get the annots starting
     // there
-    Node nextNode = nodesByOffset.getNextOf(offset);
+    Node nextNode = nodesByOffset.getNextOf(offset.longValue());
     if(nextNode == null) // no nodes at or beyond this offset
       return emptyAS();
     Collection<Annotation> annotationsToAdd = getAnnotsByStartNode(nextNode
@@ -497,7 +600,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       if (nextNode==null) return emptyAS();
       annotationsToAdd = getAnnotsByStartNode(nextNode.getId());
     }
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
+    return new AnnotationSetView(this,
+            new ArrayList<Annotation>(annotationsToAdd));
   }
 
   
@@ -508,7 +612,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
    * at the given offset then an empty annotation set is returned.
    * 
    * @param offset The starting offset for which to return annotations 
-   * @return a ImmutableAnnotationSetImpl containing all annotations starting at the given
+   * @return an immutable annotation set containing all annotations starting at the given
    *   offset (possibly empty).
    */
   public AnnotationSet getStartingAt(long offset) {
@@ -517,7 +621,10 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     if(node == null) { // no nodes at or beyond this offset
       return emptyAS();
     }
-    return new ImmutableAnnotationSetImpl(doc, getAnnotsByStartNode(node.getId()));
+    Collection<Annotation> annotationsToAdd = getAnnotsByStartNode(node.getId());
+    if(annotationsToAdd == null) return emptyAS();
+    return new AnnotationSetView(this,
+            new ArrayList<Annotation>(annotationsToAdd));
   }
   
   /**
@@ -588,7 +695,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
         } // while
       } // if
     } // if
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
+    if(annotationsToAdd == null) return emptyAS();
+    return new AnnotationSetView(this, annotationsToAdd);
   } // getStrict(startOfset, endOffset)
 
   /**
@@ -610,13 +718,21 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     Node currentNode;
     Annotation currentAnnot;
     boolean checkType = StringUtils.isNotBlank(neededType);
+    AnnotationIntervalTree intervals = checkType
+            ? getIntervalIndex(neededType)
+            : getIntervalIndex();
+    if(intervals != null) {
+      intervals.getOverlapping(startOffset, endOffset, null, annotationsToAdd);
+      return rangeResult(annotationsToAdd, neededType,
+              AnnotationSetView.OVERLAPPING, startOffset, endOffset);
+    }
     // find all the annots that start strictly before the start offset
     // and end
     // strictly after it
     Long searchStart = (startOffset - longestAnnot);
     if (searchStart < 0) searchStart = 0l;
     //nodesIter = nodesByOffset.headMap(startOffset).values().iterator();
-    nodesIter = nodesByOffset.subMap(searchStart, startOffset).values().iterator();
+    nodesIter = nodesByOffset.values(searchStart, startOffset).iterator();
     while(nodesIter.hasNext()) {
       currentNode = nodesIter.next();
       Collection<Annotation> objFromPoint = getAnnotsByStartNode(currentNode
@@ -635,8 +751,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     }
     // find all the annots that start at or after the start offset but
     // before the end offset
-    nodesIter = nodesByOffset.subMap(startOffset, endOffset).values()
-            .iterator();
+    nodesIter = nodesByOffset.values(startOffset, endOffset).iterator();
     while(nodesIter.hasNext()) {
       currentNode = nodesIter.next();
       Collection<Annotation> objFromPoint = getAnnotsByStartNode(currentNode
@@ -655,7 +770,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
         } // while
       }
     }
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
+    return rangeResult(annotationsToAdd, neededType,
+            AnnotationSetView.OVERLAPPING, startOffset, endOffset);
   } // get(type, startOfset, endOffset)
 
   /**
@@ -677,17 +793,20 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     if(endOffset < startOffset) return emptyAS();
     //ensure index
     if(annotsByStartNode == null) indexByStartOffset();
-    //if the requested range is longer than the longest annotation in this set, 
-    //then there can be no annotations covering the range
-    // so we return an empty set.
-    if(endOffset - startOffset > longestAnnot) return emptyAS();
-    
     List<Annotation> annotationsToAdd = new ArrayList<Annotation>();
     Iterator<Node> nodesIter;
     Iterator<Annotation> annotsIter;
     Node currentNode;
     Annotation currentAnnot;
     boolean checkType = StringUtils.isNotBlank(neededType);
+    AnnotationIntervalTree intervals = checkType
+            ? getIntervalIndex(neededType)
+            : getIntervalIndex();
+    if(intervals != null) {
+      intervals.getCovering(startOffset, endOffset, null, annotationsToAdd);
+      return rangeResult(annotationsToAdd, neededType,
+              AnnotationSetView.COVERING, startOffset, endOffset);
+    }
     // find all the annots with startNode <= startOffset.  Need the + 1 because
     // headMap returns strictly less than.
     // the length of the longest annot from the endOffset since we know that nothing
@@ -695,7 +814,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     Long searchStart = ((endOffset - 1) - longestAnnot);
     if (searchStart < 0) searchStart = 0l;
     //nodesIter = nodesByOffset.headMap(startOffset + 1).values().iterator();
-    nodesIter = nodesByOffset.subMap(searchStart, startOffset + 1).values().iterator();
+    nodesIter = nodesByOffset.values(searchStart, startOffset + 1).iterator();
 
     while(nodesIter.hasNext()) {
       currentNode = nodesIter.next();
@@ -713,7 +832,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
           annotationsToAdd.add(currentAnnot);
       } // while
     }
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
+    return rangeResult(annotationsToAdd, neededType,
+            AnnotationSetView.COVERING, startOffset, endOffset);
   } // get(type, startOfset, endOffset)
 
   /** Select annotations by type, features and offset */
@@ -734,6 +854,21 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
    */
   @Override
   public AnnotationSet getContained(Long startOffset, Long endOffset) {
+    return getContained(null, startOffset, endOffset);
+  } // getContained(startOfset, endOffset)
+
+  /**
+   * Select annotations of the given type contained within an interval, i.e.
+   * those annotations whose start position is >= <code>startOffset</code>
+   * and whose end position is &lt;= <code>endOffset</code>. This gives the
+   * same result as <code>getContained(startOffset, endOffset).get(type)</code>
+   * but only looks at the annotations of the requested type.
+   *
+   * @param neededType Type of annotation to return. If empty, all
+   *          annotation types will be returned.
+   */
+  public AnnotationSet getContained(String neededType, Long startOffset,
+          Long endOffset) {
     // the result will include all the annotations that either:
     // start at a position between the start and end before the end
     // offsets
@@ -742,14 +877,23 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     //ensure index
     if(annotsByStartNode == null) indexByStartOffset();
     List<Annotation> annotationsToAdd = null;
+    boolean checkType = StringUtils.isNotBlank(neededType);
+    AnnotationIntervalTree intervals = checkType
+            ? getIntervalIndex(neededType)
+            : getIntervalIndex();
+    if(intervals != null) {
+      annotationsToAdd = new ArrayList<Annotation>();
+      intervals.getContained(startOffset, endOffset, null, annotationsToAdd);
+      return rangeResult(annotationsToAdd, neededType,
+              AnnotationSetView.CONTAINED, startOffset, endOffset);
+    }
     Iterator<Node> nodesIter;
     Node currentNode;
     Iterator<Annotation> annotIter;
     // find all the annots that start at or after the start offset but
     // strictly
     // before the end offset
-    nodesIter = nodesByOffset.subMap(startOffset, endOffset).values()
-            .iterator();
+    nodesIter = nodesByOffset.values(startOffset, endOffset).iterator();
     while(nodesIter.hasNext()) {
       currentNode = nodesIter.next();
       Collection<Annotation> objFromPoint = getAnnotsByStartNode(currentNode
@@ -760,31 +904,41 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       annotIter = objFromPoint.iterator();
       while(annotIter.hasNext()) {
         Annotation annot = annotIter.next();
+        if(checkType && !annot.getType().equals(neededType)) continue;
         if(annot.getEndNode().getOffset().compareTo(endOffset) <= 0) {
           if(annotationsToAdd == null) annotationsToAdd = new ArrayList<Annotation>();
           annotationsToAdd.add(annot);
         }
       }
     }
-    return new ImmutableAnnotationSetImpl(doc, annotationsToAdd);
-  } // get(startOfset, endOffset)
+    if(annotationsToAdd == null) return emptyAS();
+    return rangeResult(annotationsToAdd, neededType,
+            AnnotationSetView.CONTAINED, startOffset, endOffset);
+  } // getContained(type, startOfset, endOffset)
+
+  /**
+   * Wrap the result of a range query in a view that remembers the query, so
+   * that further queries on the result can be answered by this set.
+   */
+  private AnnotationSet rangeResult(List<Annotation> annotations,
+          String neededType, int kind, long startOffset, long endOffset) {
+    return new AnnotationSetView(this, annotations,
+            StringUtils.isNotBlank(neededType) ? neededType : null, kind,
+            startOffset, endOffset);
+  }
 
   /** Get the node with the smallest offset */
   @Override
   public Node firstNode() {
     indexByStartOffset();
-    if(nodesByOffset.isEmpty())
-      return null;
-    else return nodesByOffset.get(nodesByOffset.firstKey());
+    return nodesByOffset.firstNode();
   } // firstNode
 
   /** Get the node with the largest offset */
   @Override
   public Node lastNode() {
     indexByStartOffset();
-    if(nodesByOffset.isEmpty())
-      return null;
-    else return nodesByOffset.get(nodesByOffset.lastKey());
+    return nodesByOffset.lastNode();
   } // lastNode
 
   /**
@@ -799,6 +953,89 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
 
   protected static AnnotationFactory annFactory;
 
+  /**
+   * Whether the positional indices of new annotation sets should use the
+   * primitive array based implementations instead of the default tree and
+   * hash maps. Initialised from the
+   * <tt>gate.annotation.AnnotationSetImpl.primitiveNodeIndex</tt> system
+   * property.
+   */
+  private static boolean primitiveNodeIndex =
+          Boolean.getBoolean("gate.annotation.AnnotationSetImpl.primitiveNodeIndex");
+
+  /**
+   * Select the implementation used for the positional indices (nodes by
+   * offset and annotations by start node) of annotation sets. By default
+   * these are a {@link gate.util.RBTreeMap} of boxed offsets and a
+   * {@link HashMap} keyed on node ids; the primitive implementation keeps
+   * the offsets in sorted <tt>long[]</tt> blocks and the node ids in an
+   * <tt>int[]</tt> keyed hash table, which allocates far fewer objects on
+   * large documents. Only indices created after this call are affected.
+   */
+  public static void setPrimitiveNodeIndex(boolean primitive) {
+    primitiveNodeIndex = primitive;
+  }
+
+  /**
+   * Are the positional indices of new annotation sets using the primitive
+   * implementation?
+   */
+  public static boolean isPrimitiveNodeIndex() {
+    return primitiveNodeIndex;
+  }
+
+  /**
+   * Whether annotation sets should build feature value indices to answer
+   * {@link #get(String, FeatureMap)}. Initialised from the
+   * <tt>gate.annotation.AnnotationSetImpl.featureValueIndex</tt> system
+   * property.
+   */
+  private static boolean featureValueIndex =
+          Boolean.getBoolean("gate.annotation.AnnotationSetImpl.featureValueIndex");
+
+  /**
+   * Switch the feature value indices on or off. When they are on, the first
+   * {@link #get(String, FeatureMap)} query for a type builds a hash index
+   * from feature values to the annotations of that type, so that later
+   * queries only look at the annotations having the constrained values
+   * rather than at every annotation of the type. The index is kept up to date
+   * as annotations are added and removed and as their features change, which
+   * means every annotation of an indexed type gets an annotation listener.
+   * Sets that have already built indices keep using them.
+   */
+  public static void setFeatureValueIndex(boolean index) {
+    featureValueIndex = index;
+  }
+
+  /** Are feature value indices built for new queries? */
+  public static boolean isFeatureValueIndex() {
+    return featureValueIndex;
+  }
+
+  /**
+   * Can this set build feature value indices? The index registers itself as
+   * a listener on the annotations, which is only worthwhile for sets that
+   * will tell it when annotations are removed again.
+   */
+  boolean canIndexFeatures() {
+    return featureValueIndex || featureIndexByType != null;
+  }
+
+  /** Create an empty nodes by offset index of the selected kind. */
+  private static NodeOffsetIndex newNodeOffsetIndex() {
+    return primitiveNodeIndex
+            ? new PrimitiveNodeOffsetIndex()
+            : new RBTreeNodeOffsetIndex();
+  }
+
+  /** Create an empty annotations by start node index of the selected kind. */
+  private static Map<Integer, Object> newStartNodeIndex(int expectedSize) {
+    return primitiveNodeIndex
+            ? new IntKeyedHashMap<Object>(expectedSize)
+            : new HashMap<Integer, Object>(Math.max(expectedSize,
+                    Gate.HASH_STH_SIZE));
+  }
+
   /**
    * Set the annotation factory used to create annotation objects. The default
    * factory is {@link DefaultAnnotationFactory}.
@@ -833,7 +1070,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
   @Override
   public boolean add(Annotation a) throws ClassCastException {
     Annotation oldValue = annotsById.put(a.getId(), a);
-    
+    modCount++;
+
     if (oldValue != null) {
     	if (annotsByType != null) removeFromTypeIndex(oldValue);
     	if (annotsByStartNode != null) removeFromOffsetIndex(oldValue);
@@ -841,6 +1079,7 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     
     if(annotsByType != null) addToTypeIndex(a);
     if(annotsByStartNode != null) addToStartOffsetIndex(a);
+    addToIntervalIndex(a);
     AnnotationSetEvent evt = new AnnotationSetEvent(this,
             AnnotationSetEvent.ANNOTATION_ADDED, doc, a);
     fireAnnotationAdded(evt);
@@ -965,6 +1204,97 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     }
   } // add(id, start, end, type, features)
 
+  /**
+   * Add the annotations queued in a bulk loader. The result is the same as
+   * adding them one at a time with {@link #add(Long, Long, String, FeatureMap)}
+   * and {@link #add(Integer, Long, Long, String, FeatureMap)}, except that
+   * the nodes for all the offsets are created together, the offset indices are
+   * filled in offset order, the interval and type indices are only built when
+   * next needed, and the added events are fired at the end (if anything
+   * listens for them). Annotations of the set that have the same id as a
+   * queued one are removed first.
+   */
+  void bulkAdd(AnnotationBulkLoader records) throws InvalidOffsetException {
+    int count = records.size();
+    long length = doc.getContent().size().longValue();
+    for(int i = 0; i < count; i++) {
+      if(records.end(i) > length)
+        throw new InvalidOffsetException("Offsets [" + records.start(i) + ":"
+                + records.end(i) + "] not valid for this document of size "
+                + length);
+    }
+    if(annFactory.getClass() != DefaultAnnotationFactory.class) {
+      // only the factory knows what annotations it makes, so let it add them
+      for(int i = 0; i < count; i++) {
+        Long start = records.start(i), end = records.end(i);
+        if(records.id(i) == null) {
+          add(start, end, records.type(i), records.features(i));
+        } else {
+          add(records.id(i), start, end, records.type(i), records.features(i));
+        }
+      }
+      return;
+    }
+
+    // give out the ids in the order the annotations were queued
+    for(int i = 0; i < count; i++) {
+      Integer id = records.id(i);
+      if(id == null) {
+        records.setId(i, doc.getNextAnnotationId());
+      } else {
+        Annotation old = annotsById.get(id);
+        if(old != null) remove(old);
+        if(id >= doc.peakAtNextAnnotationId()) doc.setNextAnnotationId(id + 1);
+      }
+    }
+
+    // one node per offset, reusing the nodes the set already has
+    indexByStartOffset();
+    long[] offsets = records.offsets();
+    Node[] nodes = new Node[offsets.length];
+    for(int i = 0; i < offsets.length; i++) {
+      nodes[i] = nodesByOffset.get(offsets[i]);
+      if(nodes[i] == null)
+        nodes[i] = new NodeImpl(doc.getNextNodeId(), Long.valueOf(offsets[i]));
+    }
+
+    Annotation[] added = new Annotation[count];
+    boolean duplicates = false;
+    for(int i = 0; i < count; i++) {
+      Node start = nodes[Arrays.binarySearch(offsets, records.start(i))];
+      Node end = nodes[Arrays.binarySearch(offsets, records.end(i))];
+      added[i] = new AnnotationImpl(records.id(i), start, end, records.type(i),
+              records.features(i));
+      // a later annotation with the same id replaces an earlier one
+      if(annotsById.put(added[i].getId(), added[i]) != null) duplicates = true;
+    }
+    modCount++;
+
+    int[] order = records.inStartOrder();
+    for(int i : order) {
+      Annotation a = added[i];
+      if(duplicates && annotsById.get(a.getId()) != a) {
+        added[i] = null;
+        continue;
+      }
+      addToStartOffsetIndex(a);
+      addToTypeIndex(a);
+    }
+    // cheaper to rebuild in one go than to update
+    intervalIndex = null;
+    intervalIndexByType = null;
+
+    if(annotationSetListeners != null || gateListeners != null) {
+      for(int i : order) {
+        if(added[i] == null) continue;
+        AnnotationSetEvent evt = new AnnotationSetEvent(this,
+                AnnotationSetEvent.ANNOTATION_ADDED, doc, added[i]);
+        fireAnnotationAdded(evt);
+        fireGateEvent(evt);
+      }
+    }
+  } // bulkAdd(records)
+
   /** Construct the positional index. */
   protected void indexByType() {
     if(annotsByType != null) return;
@@ -977,13 +1307,90 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
   /** Construct the positional indices for annotation start */
   protected void indexByStartOffset() {
     if(annotsByStartNode != null) return;
-    if(nodesByOffset == null) nodesByOffset = new RBTreeMap<Long,Node>();
-    annotsByStartNode = new HashMap<Integer, Object>(annotsById.size());
+    if(nodesByOffset == null) nodesByOffset = newNodeOffsetIndex();
+    annotsByStartNode = newStartNodeIndex(annotsById.size());
     Iterator<Annotation> annotIter = annotsById.values().iterator();
     while(annotIter.hasNext())
       addToStartOffsetIndex(annotIter.next());
   } // indexByStartOffset()
 
+  /**
+   * Get the interval index, building it if required. Returns null while the
+   * document is being edited, in which case the caller should fall back to
+   * scanning the start offset index.
+   */
+  AnnotationIntervalTree getIntervalIndex() {
+    if(editInProgress) return null;
+    if(annotsByStartNode == null) indexByStartOffset();
+    if(intervalIndex == null)
+      intervalIndex = new AnnotationIntervalTree(annotsById.values());
+    return intervalIndex;
+  } // getIntervalIndex()
+
+  /**
+   * Get the interval index for the annotations of one type, building it if
+   * required. Returns null while the document is being edited, in which case
+   * the caller should fall back to scanning the start offset index.
+   */
+  AnnotationIntervalTree getIntervalIndex(String type) {
+    if(editInProgress) return null;
+    if(annotsByStartNode == null) indexByStartOffset();
+    if(intervalIndexByType == null)
+      intervalIndexByType = new HashMap<String, AnnotationIntervalTree>();
+    AnnotationIntervalTree intervals = intervalIndexByType.get(type);
+    if(intervals == null) {
+      if(annotsByType == null) indexByType();
+      AnnotationSet sameType = annotsByType.get(type);
+      intervals = sameType == null
+              ? new AnnotationIntervalTree()
+              : new AnnotationIntervalTree(sameType);
+      intervalIndexByType.put(type, intervals);
+    }
+    return intervals;
+  } // getIntervalIndex(type)
+
+  /**
+   * Add an annotation to the interval indices that have been built. Does
+   * nothing if there are none.
+   */
+  void addToIntervalIndex(Annotation a) {
+    if(intervalIndex != null) intervalIndex.add(a);
+    if(intervalIndexByType != null) {
+      AnnotationIntervalTree sameType = intervalIndexByType.get(a.getType());
+      if(sameType != null) sameType.add(a);
+    }
+  } // addToIntervalIndex(a)
+
+  /** Remove an annotation from the interval indices that have been built. */
+  void removeFromIntervalIndex(Annotation a) {
+    if(intervalIndex != null) intervalIndex.remove(a);
+    if(intervalIndexByType != null) {
+      AnnotationIntervalTree sameType = intervalIndexByType.get(a.getType());
+      if(sameType != null) {
+        sameType.remove(a);
+        if(sameType.size() == 0) intervalIndexByType.remove(a.getType());
+      }
+    }
+  } // removeFromIntervalIndex(a)
+
+  /**
+   * Get the feature value index for the annotations of one type, building it
+   * if required. Returns null if there are no annotations of the type.
+   */
+  FeatureValueIndex getFeatureIndex(String type) {
+    if(annotsByType == null) indexByType();
+    AnnotationSet sameType = annotsByType.get(type);
+    if(sameType == null) return null;
+    if(featureIndexByType == null)
+      featureIndexByType = new HashMap<String, FeatureValueIndex>();
+    FeatureValueIndex index = featureIndexByType.get(type);
+    if(index == null) {
+      index = new FeatureValueIndex(sameType);
+      featureIndexByType.put(type, index);
+    }
+    return index;
+  } // getFeatureIndex(type)
+
   /**
    * Add an annotation to the type index. Does nothing if the index doesn't
    * exist.
@@ -997,6 +1404,10 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       annotsByType.put(type, sameType);
     }
     sameType.add(a);
+    if(featureIndexByType != null) {
+      FeatureValueIndex index = featureIndexByType.get(type);
+      if(index != null) index.add(a);
+    }
   } // addToTypeIndex(a)
 
   /**
@@ -1076,125 +1487,197 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
    * and that checks the offsets before calling this method.
    */
   public void edit(Long start, Long end, DocumentContent replacement) {
-    // make sure we have the indices computed
-    indexByStartOffset();
-    if(end.compareTo(start) > 0) {
-      // get the nodes that need to be processed (the nodes internal to
-      // the
-      // removed section plus the marginal ones
-      List<Node> affectedNodes = new ArrayList<Node>(nodesByOffset.subMap(start,
-              end.longValue() + 1).values());
-      // if we have more than 1 node we need to delete all apart from
-      // the first
-      // and move the annotations so that they refer to the one we keep
-      // (the
-      // first)
-      NodeImpl firstNode = null;
-      if(!affectedNodes.isEmpty()) {
-        firstNode = (NodeImpl)affectedNodes.get(0);
-        List<Annotation> startingAnnotations = new ArrayList<Annotation>();
-        List<Annotation> endingAnnotations = new ArrayList<Annotation>();
-        // now we need to find all the annotations
-        // ending in the zone
-        List<Node> beforeNodes = new ArrayList<Node>(nodesByOffset.subMap(0L,
-                end.longValue() + 1).values());
-        Iterator<Node> beforeNodesIter = beforeNodes.iterator();
-        while(beforeNodesIter.hasNext()) {
-          Node currentNode = beforeNodesIter.next();
-          Collection<Annotation> annotations = getAnnotsByStartNode(currentNode.getId());
-          if(annotations == null) continue;
-          // iterates on the annotations in this set
-          Iterator<Annotation> localIterator = annotations.iterator();
-          while(localIterator.hasNext()) {
-            Annotation annotation = localIterator.next();
-            long offsetEndAnnotation = annotation.getEndNode().getOffset()
-                    .longValue();
-            // we are interested only in the annotations ending
-            // inside the zone
-            if(offsetEndAnnotation >= start.longValue()
-                    && offsetEndAnnotation <= end.longValue())
-              endingAnnotations.add(annotation);
-          }
+    long rlen = // length of the replacement value
+    ((replacement == null) ? 0 : replacement.size().longValue());
+    edit(new long[] {start.longValue()}, new long[] {end.longValue()},
+            new long[] {rlen});
+  } // edit(start,end,replacement)
+
+  /**
+   * Propagate a batch of document content changes to this AnnotationSet. This
+   * has the same effect as calling {@link #edit(Long, Long, DocumentContent)}
+   * for each edit, starting with the last one, but the nodes after the edits
+   * are only moved once for the whole batch.
+   * <p>
+   * The edits must be sorted by start offset, all the offsets refer to the
+   * content before any of the edits is made, and each edit must end strictly
+   * before the next one starts. Like the single edit version, this method is
+   * only public so that DocumentImpl can call it, and it does not check the
+   * offsets.
+   *
+   * @param starts the start offsets of the replaced ranges
+   * @param ends the end offsets of the replaced ranges
+   * @param replacementLengths the lengths of the texts replacing them
+   */
+  public void edit(long[] starts, long[] ends, long[] replacementLengths) {
+    if(starts.length == 0) return;
+    // the interval index holds copies of the offsets which are about to
+    // change so we throw it away and let the next range query rebuild it
+    intervalIndex = null;
+    intervalIndexByType = null;
+    modCount++;
+    editInProgress = true;
+    try {
+      // make sure we have the indices computed
+      indexByStartOffset();
+      // merging the nodes inside a replaced range only involves nodes up
+      // to the end of the range, so going backwards no edit sees the
+      // effects of the others
+      for(int i = starts.length - 1; i >= 0; i--) {
+        if(ends[i] > starts[i]) mergeNodes(starts[i], ends[i]);
+      }
+      moveNodes(starts, ends, replacementLengths);
+    } finally {
+      editInProgress = false;
+    }
+  } // edit(starts,ends,replacementLengths)
+
+  /**
+   * Removes the nodes inside a replaced range, apart from the first one which
+   * is moved to the start of the range, and makes the annotations starting or
+   * ending there use that node instead. Annotations that become empty are
+   * removed.
+   */
+  private void mergeNodes(long startOffset, long endOffset) {
+    Long start = startOffset;
+    Long end = endOffset;
+    // get the nodes that need to be processed (the nodes internal to
+    // the
+    // removed section plus the marginal ones
+    List<Node> affectedNodes = new ArrayList<Node>(nodesByOffset.values(start,
+            end.longValue() + 1));
+    // if we have more than 1 node we need to delete all apart from
+    // the first
+    // and move the annotations so that they refer to the one we keep
+    // (the
+    // first)
+    NodeImpl firstNode = null;
+    if(!affectedNodes.isEmpty()) {
+      firstNode = (NodeImpl)affectedNodes.get(0);
+      List<Annotation> startingAnnotations = new ArrayList<Annotation>();
+      List<Annotation> endingAnnotations = new ArrayList<Annotation>();
+      // now we need to find all the annotations
+      // ending in the zone (none of those can start before the longest
+      // annotation does)
+      long searchStart = Math.max(0, startOffset - longestAnnot);
+      List<Node> beforeNodes = new ArrayList<Node>(nodesByOffset.values(
+              searchStart, end.longValue() + 1));
+      Iterator<Node> beforeNodesIter = beforeNodes.iterator();
+      while(beforeNodesIter.hasNext()) {
+        Node currentNode = beforeNodesIter.next();
+        Collection<Annotation> annotations = getAnnotsByStartNode(currentNode.getId());
+        if(annotations == null) continue;
+        // iterates on the annotations in this set
+        Iterator<Annotation> localIterator = annotations.iterator();
+        while(localIterator.hasNext()) {
+          Annotation annotation = localIterator.next();
+          long offsetEndAnnotation = annotation.getEndNode().getOffset()
+                  .longValue();
+          // we are interested only in the annotations ending
+          // inside the zone
+          if(offsetEndAnnotation >= start.longValue()
+                  && offsetEndAnnotation <= end.longValue())
+            endingAnnotations.add(annotation);
         }
-        for(int i = 1; i < affectedNodes.size(); i++) {
-          Node aNode = affectedNodes.get(i);
-          Collection<Annotation> annSet = getAnnotsByStartNode(aNode.getId());
-          if(annSet != null) {
-            startingAnnotations.addAll(annSet);
-          }
-          // remove the node
-          // nodesByOffset.remove(aNode.getOffset());
-          // annotsByStartNode.remove(aNode);
+      }
+      for(int i = 1; i < affectedNodes.size(); i++) {
+        Node aNode = affectedNodes.get(i);
+        Collection<Annotation> annSet = getAnnotsByStartNode(aNode.getId());
+        if(annSet != null) {
+          startingAnnotations.addAll(annSet);
         }
-        // modify the annotations so they point to the saved node
-        Iterator<Annotation> annIter = startingAnnotations.iterator();
-        while(annIter.hasNext()) {
-          AnnotationImpl anAnnot = (AnnotationImpl)annIter.next();
-          anAnnot.start = firstNode;
-          // remove the modified annotation if it has just become
-          // zero-length
-          if(anAnnot.start == anAnnot.end) {
-            remove(anAnnot);
-          } else {
-            addToStartOffsetIndex(anAnnot);
-          }
+        // remove the node
+        // nodesByOffset.remove(aNode.getOffset());
+        // annotsByStartNode.remove(aNode);
+      }
+      // modify the annotations so they point to the saved node
+      Iterator<Annotation> annIter = startingAnnotations.iterator();
+      while(annIter.hasNext()) {
+        AnnotationImpl anAnnot = (AnnotationImpl)annIter.next();
+        anAnnot.start = firstNode;
+        // remove the modified annotation if it has just become
+        // zero-length
+        if(anAnnot.start == anAnnot.end) {
+          remove(anAnnot);
+        } else {
+          addToStartOffsetIndex(anAnnot);
         }
-        annIter = endingAnnotations.iterator();
-        while(annIter.hasNext()) {
-          AnnotationImpl anAnnot = (AnnotationImpl)annIter.next();
-          anAnnot.end = firstNode;
-          // remove the modified annotation if it has just become
-          // zero-length
-          if(anAnnot.start == anAnnot.end) {
-            remove(anAnnot);
-          }
+      }
+      annIter = endingAnnotations.iterator();
+      while(annIter.hasNext()) {
+        AnnotationImpl anAnnot = (AnnotationImpl)annIter.next();
+        anAnnot.end = firstNode;
+        // remove the modified annotation if it has just become
+        // zero-length
+        if(anAnnot.start == anAnnot.end) {
+          remove(anAnnot);
         }
-        // remove the unused nodes inside the area
-        for(int i = 1; i < affectedNodes.size(); i++) {
-          Node aNode = affectedNodes.get(i);
-          nodesByOffset.remove(aNode.getOffset());
-          annotsByStartNode.remove(aNode.getId());
+      }
+      // remove the unused nodes inside the area
+      for(int i = 1; i < affectedNodes.size(); i++) {
+        Node aNode = affectedNodes.get(i);
+        nodesByOffset.remove(aNode.getOffset());
+        annotsByStartNode.remove(aNode.getId());
+      }
+      // repair the first node
+      // remove from offset index
+      nodesByOffset.remove(firstNode.getOffset());
+      // change the offset for the saved node
+      firstNode.setOffset(start);
+      // add back to the offset index
+      nodesByOffset.put(firstNode.getOffset(), firstNode);
+      // the annotations starting on the saved node have grown if it moved
+      // back, and the later edits rely on the longest annotation to find
+      // those ending in their ranges
+      Collection<Annotation> growing = getAnnotsByStartNode(firstNode.getId());
+      if(growing != null) {
+        for(Annotation annotation : growing) {
+          long annotLength = annotation.getEndNode().getOffset() - start;
+          if(annotLength > longestAnnot) longestAnnot = annotLength;
         }
-        // repair the first node
-        // remove from offset index
-        nodesByOffset.remove(firstNode.getOffset());
-        // change the offset for the saved node
-        firstNode.setOffset(start);
-        // add back to the offset index
-        nodesByOffset.put(firstNode.getOffset(), firstNode);
       }
     }
-    // now handle the insert and/or update the rest of the nodes'
-    // position
+  } // mergeNodes(start,end)
+
+  /**
+   * Moves the nodes after each of the replaced ranges (and the one at its
+   * start) to their offsets in the edited content, in a single pass over the
+   * nodes. The ranges must already have been merged.
+   */
+  private void moveNodes(long[] starts, long[] ends, long[] lengths) {
     // get the user selected behaviour (defaults to append)
     boolean shouldPrepend = Gate.getUserConfig().getBoolean(
             GateConstants.DOCEDIT_INSERT_PREPEND).booleanValue();
-    long s = start.longValue(), e = end.longValue();
-    long rlen = // length of the replacement value
-    ((replacement == null) ? 0 : replacement.size().longValue());
     // update the offsets and the index by offset for the rest of the
     // nodes
-    List<Node> nodesAfterReplacement = new ArrayList<Node>(nodesByOffset.tailMap(start)
-            .values());
+    List<Node> nodesAfterReplacement = new ArrayList<Node>(nodesByOffset.valuesFrom(starts[0]));
     // remove from the index by offset
     Iterator<Node> nodesAfterReplacementIter = nodesAfterReplacement.iterator();
     while(nodesAfterReplacementIter.hasNext()) {
       NodeImpl n = (NodeImpl)nodesAfterReplacementIter.next();
       nodesByOffset.remove(n.getOffset());
     }
-    // change the offsets
+    // change the offsets, accumulating the change in length made by the
+    // edits before each node
+    int nextEdit = 0;
+    long shift = 0;
     nodesAfterReplacementIter = nodesAfterReplacement.iterator();
     while(nodesAfterReplacementIter.hasNext()) {
       NodeImpl n = (NodeImpl)nodesAfterReplacementIter.next();
       long oldOffset = n.getOffset().longValue();
-      // by default we move all nodes back
-      long newOffset = oldOffset - (e - s) + rlen;
+      while(nextEdit < starts.length && starts[nextEdit] < oldOffset) {
+        // by default we move all nodes back
+        shift += lengths[nextEdit] - (ends[nextEdit] - starts[nextEdit]);
+        nextEdit++;
+      }
+      long newOffset = oldOffset + shift;
       // for the first node we need behave differently
-      if(oldOffset == s) {
-        // the first offset never moves back
-        if(newOffset < s) newOffset = s;
-        // if we're prepending we don't move forward
-        if(shouldPrepend) newOffset = s;
+      if(nextEdit < starts.length && starts[nextEdit] == oldOffset) {
+        // the first offset never moves back, and if we're prepending we
+        // don't move forward
+        long change =
+                lengths[nextEdit] - (ends[nextEdit] - starts[nextEdit]);
+        if(change > 0 && !shouldPrepend) newOffset += change;
       }
       n.setOffset(newOffset);
     }
@@ -1204,13 +1687,13 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       NodeImpl n = (NodeImpl)nodesAfterReplacementIter.next();
       nodesByOffset.put(n.getOffset(), n);
     }
-    // //rebuild the indices with the new offsets
-    // nodesByOffset = null;
-    // annotsByStartNode = null;
-    // annotsByEndNode = null;
-    // indexByStartOffset();
-    // indexByEndOffset();
-  } // edit(start,end,replacement)
+    // annotations spanning an insertion have grown, so the longest
+    // annotation may be longer than it was
+    for(int i = 0; i < starts.length; i++) {
+      long change = lengths[i] - (ends[i] - starts[i]);
+      if(change > 0) longestAnnot += change;
+    }
+  } // moveNodes(starts,ends,lengths)
 
   /** Get the name of this set. */
   @Override
@@ -1403,8 +1886,8 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
       annotsByType = new HashMap<String, AnnotationSet>(Gate.HASH_STH_SIZE);
     }
     if(isIndexedByStartNode) {
-      nodesByOffset = new RBTreeMap<Long,Node>();
-      annotsByStartNode = new HashMap<Integer, Object>(annotations.length);
+      nodesByOffset = newNodeOffsetIndex();
+      annotsByStartNode = newStartNodeIndex(annotations.length);
     }
     // add all the annotations one by one
     for(int i = 0; i < annotations.length; i++) {
@@ -1424,6 +1907,14 @@ public class AnnotationSetImpl extends AbstractSet<Annotation> implements
     return relations;
   }
   
+  /**
+   * Make sure that {@link #annotsById} holds all the annotations of this set.
+   * This is always the case for normal sets; the views returned by queries
+   * only fill it in when it is first needed.
+   */
+  void materialise() {
+  }
+
   // utility method that replaces the former static singleton member ImmutableAnnotationSet(null,null).
   // We should not give back annotation sets which have a null document, so instead we return
   // as an empty annotation set one that does not have annotations, but points to the same document
@@ -0,0 +1,363 @@
+/*
+ *  AnnotationSetView.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.FeatureMap;
+import gate.Node;
+import gate.event.AnnotationSetEvent;
+
+/**
+ * The read-only result of a query on an {@link AnnotationSetImpl}. The
+ * annotations selected by the query are held in a plain list; the map by id
+ * and the indices that a normal annotation set keeps are only built if a
+ * method that needs them (e.g. <tt>contains</tt> or <tt>get(Integer)</tt>) is
+ * called. Iterating over the result, or asking for its size, never builds
+ * them.
+ * <p>
+ * The view also remembers the query that produced it. As long as neither the
+ * view nor the set it came from has been modified, type and offset queries
+ * made on the view (for example <tt>as.get("Token").get(start, end)</tt>) are
+ * translated into a single query on the original set and answered from its
+ * indices, rather than by indexing the view.
+ */
+class AnnotationSetView extends ImmutableAnnotationSetImpl {
+
+  private static final long serialVersionUID = -4166301539123893735L;
+
+  /** The view was produced by a query that can't be combined with others */
+  static final int OTHER = 0;
+
+  /** The view holds all the annotations (of the type, if any) */
+  static final int ALL = 1;
+
+  /** The view holds the annotations overlapping [start, end) */
+  static final int OVERLAPPING = 2;
+
+  /** The view holds the annotations covering [start, end] */
+  static final int COVERING = 3;
+
+  /** The view holds the annotations contained in [start, end] */
+  static final int CONTAINED = 4;
+
+  /** The set that was queried */
+  private final transient AnnotationSetImpl parent;
+
+  /** The modification count of the parent when the query was made */
+  private final transient int parentModCount;
+
+  /** The type the query selected, or null if it selected all types */
+  private final transient String type;
+
+  /** The kind of query that produced this view */
+  private final transient int kind;
+
+  private final transient long start;
+
+  private final transient long end;
+
+  /** The annotations selected by the query */
+  private transient List<Annotation> results;
+
+  /** Has the map by id been populated from the results? */
+  private transient boolean materialised = false;
+
+  /**
+   * Construct a view over the result of a query on the parent set.
+   *
+   * @param parent the set that was queried
+   * @param results the selected annotations, which must be distinct; the
+   *          view takes ownership of the list
+   * @param type the type the query selected, or null
+   * @param kind one of the query kind constants of this class
+   */
+  AnnotationSetView(AnnotationSetImpl parent, List<Annotation> results,
+          String type, int kind, long start, long end) {
+    super(parent.getDocument(), null);
+    this.parent = parent;
+    this.parentModCount = parent.modCount;
+    this.results = results;
+    this.type = type;
+    this.kind = kind;
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Construct a view over the result of a query on the parent set which can
+   * not be combined with further queries.
+   */
+  AnnotationSetView(AnnotationSetImpl parent, List<Annotation> results) {
+    this(parent, results, null, OTHER, 0, 0);
+  }
+
+  /**
+   * Populate the map by id from the results, so that the methods inherited
+   * from {@link AnnotationSetImpl} can be used.
+   */
+  @Override
+  void materialise() {
+    if(materialised) return;
+    for(Annotation a : results) {
+      annotsById.put(a.getId(), a);
+    }
+    materialised = true;
+  }
+
+  /**
+   * Can queries on this view still be answered by the parent set? This is
+   * only the case if the parent has not changed since the view was created
+   * and nothing has been removed from the view.
+   */
+  private boolean canDelegate() {
+    return kind != OTHER && modCount == 0 && parent.modCount == parentModCount;
+  }
+
+  /**
+   * The type to use when a further query for the given type is made on this
+   * view. Returns null if all types are wanted, and throws away the query (by
+   * returning the empty string) if the types are incompatible.
+   */
+  private String combineType(String neededType) {
+    if(StringUtils.isBlank(neededType)) return type;
+    if(type == null || type.equals(neededType)) return neededType;
+    return "";
+  }
+
+  @Override
+  public int size() {
+    return materialised ? super.size() : results.size();
+  }
+
+  @Override
+  public Iterator<Annotation> iterator() {
+    if(materialised) return super.iterator();
+    return new Iterator<Annotation>() {
+      private final Iterator<Annotation> iter = results.iterator();
+
+      private Annotation lastNext = null;
+
+      @Override
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      @Override
+      public Annotation next() {
+        return (lastNext = iter.next());
+      }
+
+      @Override
+      public void remove() {
+        // the results list is owned by this view so we can remove from it
+        // directly, in the same way the iterator of a normal set would
+        iter.remove();
+        modCount++;
+        fireAnnotationRemoved(new AnnotationSetEvent(AnnotationSetView.this,
+                AnnotationSetEvent.ANNOTATION_REMOVED, getDocument(), lastNext));
+      }
+    };
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if(!(o instanceof Annotation)) return false;
+    materialise();
+    Annotation a = annotsById.get(((Annotation)o).getId());
+    return a != null && a.equals(o);
+  }
+
+  @Override
+  public Annotation get(Integer id) {
+    materialise();
+    return super.get(id);
+  }
+
+  @Override
+  public AnnotationSet get() {
+    if(materialised) return super.get();
+    if(results.isEmpty()) return emptyAS();
+    return new AnnotationSetView(this, new ArrayList<Annotation>(results));
+  }
+
+  @Override
+  public AnnotationSet get(String neededType) {
+    if(canDelegate() && StringUtils.isNotBlank(neededType)) {
+      String combined = combineType(neededType);
+      if(combined.isEmpty()) return emptyAS();
+      switch(kind){
+        case ALL:
+          return parent.get(combined);
+        case OVERLAPPING:
+          return parent.get(combined, start, end);
+        case COVERING:
+          return parent.getCovering(combined, start, end);
+        case CONTAINED:
+          return parent.getContained(combined, start, end);
+      }
+    }
+    materialise();
+    return super.get(neededType);
+  }
+
+  @Override
+  public AnnotationSet get(String neededType, FeatureMap constraints) {
+    if(canDelegate() && kind == ALL && StringUtils.isNotBlank(neededType)) {
+      // lets the parent use its feature value index, if it has one
+      String combined = combineType(neededType);
+      if(combined.isEmpty()) return emptyAS();
+      return parent.get(combined, constraints);
+    }
+    return super.get(neededType, constraints);
+  }
+
+  @Override
+  public AnnotationSet get(Set<String> types) throws ClassCastException {
+    materialise();
+    return super.get(types);
+  }
+
+  @Override
+  public AnnotationSet get(String neededType,
+          Set<? extends Object> featureNames) {
+    materialise();
+    return super.get(neededType, featureNames);
+  }
+
+  @Override
+  public AnnotationSet get(Long offset) {
+    materialise();
+    return super.get(offset);
+  }
+
+  @Override
+  public AnnotationSet getStartingAt(long offset) {
+    materialise();
+    return super.getStartingAt(offset);
+  }
+
+  @Override
+  public List<Annotation> inDocumentOrder() {
+    materialise();
+    return super.inDocumentOrder();
+  }
+
+  @Override
+  public AnnotationSet getStrict(Long startOffset, Long endOffset) {
+    materialise();
+    return super.getStrict(startOffset, endOffset);
+  }
+
+  @Override
+  public AnnotationSet get(String neededType, Long startOffset,
+          Long endOffset) {
+    if(canDelegate() && kind == ALL) {
+      String combined = combineType(neededType);
+      if(combined != null && combined.isEmpty()) return emptyAS();
+      return parent.get(combined, startOffset, endOffset);
+    }
+    materialise();
+    return super.get(neededType, startOffset, endOffset);
+  }
+
+  @Override
+  public AnnotationSet getCovering(String neededType, Long startOffset,
+          Long endOffset) {
+    if(canDelegate() && kind == ALL) {
+      String combined = combineType(neededType);
+      if(combined != null && combined.isEmpty()) return emptyAS();
+      return parent.getCovering(combined, startOffset, endOffset);
+    }
+    materialise();
+    return super.getCovering(neededType, startOffset, endOffset);
+  }
+
+  @Override
+  public AnnotationSet getContained(String neededType, Long startOffset,
+          Long endOffset) {
+    if(canDelegate() && (kind == ALL || kind == CONTAINED)) {
+      String combined = combineType(neededType);
+      if(combined != null && combined.isEmpty()) return emptyAS();
+      if(kind == ALL)
+        return parent.getContained(combined, startOffset, endOffset);
+      // contained in both ranges is contained in their intersection
+      return parent.getContained(combined, Math.max(start, startOffset),
+              Math.min(end, endOffset));
+    }
+    materialise();
+    return super.getContained(neededType, startOffset, endOffset);
+  }
+
+  @Override
+  public AnnotationSet get(String neededType, FeatureMap constraints,
+          Long offset) {
+    materialise();
+    return super.get(neededType, constraints, offset);
+  }
+
+  @Override
+  public Node firstNode() {
+    materialise();
+    return super.firstNode();
+  }
+
+  @Override
+  public Node lastNode() {
+    materialise();
+    return super.lastNode();
+  }
+
+  @Override
+  public Node nextNode(Node node) {
+    materialise();
+    return super.nextNode(node);
+  }
+
+  @Override
+  public Set<String> getAllTypes() {
+    materialise();
+    return super.getAllTypes();
+  }
+
+  @Override
+  protected void indexByType() {
+    materialise();
+    super.indexByType();
+  }
+
+  @Override
+  protected void indexByStartOffset() {
+    materialise();
+    super.indexByStartOffset();
+  }
+
+  /**
+   * Views are saved as plain immutable sets as there is no point in
+   * serialising the query or the parent set.
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    materialise();
+    return new ImmutableAnnotationSetImpl(getDocument(), annotsById.values());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ *  FeatureValueIndex.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import gate.Annotation;
+import gate.event.AnnotationEvent;
+import gate.event.AnnotationListener;
+
+/**
+ * An index from feature values to the annotations of a single type that have
+ * them, used by {@link AnnotationSetImpl#get(String, gate.FeatureMap)} to
+ * answer equality constraints without checking every annotation of the type.
+ * A separate table is built for each feature name the first time a query
+ * constrains it.
+ * <p>
+ * The index listens to the annotations it holds so that it can move them when
+ * their features change; the annotation set tells it about annotations that
+ * are added or removed.
+ */
+class FeatureValueIndex implements AnnotationListener {
+
+  /** The annotations of the type, shared with the type index of the set */
+  private final Collection<Annotation> annotations;
+
+  /** For each indexed feature name, the annotations by value and id */
+  private final Map<Object, Map<Object, Map<Integer, Annotation>>> byValue =
+          new HashMap<Object, Map<Object, Map<Integer, Annotation>>>();
+
+  /**
+   * For each indexed feature name, the value each annotation was indexed
+   * under, so that it can be found again when the value changes.
+   */
+  private final Map<Object, Map<Annotation, Object>> indexedValues =
+          new HashMap<Object, Map<Annotation, Object>>();
+
+  /**
+   * Create an index for the given annotations. The collection is not copied
+   * but read again each time a new feature name is indexed, so it has to be
+   * kept up to date by the caller.
+   */
+  FeatureValueIndex(Collection<Annotation> annotations) {
+    this.annotations = annotations;
+    for(Annotation a : annotations) {
+      a.addAnnotationListener(this);
+    }
+  }
+
+  /**
+   * The annotations whose value for the given feature is equal to the given
+   * (non null) value. The returned collection must not be modified.
+   */
+  Collection<Annotation> get(Object name, Object value) {
+    Map<Object, Map<Integer, Annotation>> values = byValue.get(name);
+    if(values == null) values = indexFeature(name);
+    Map<Integer, Annotation> matching = values.get(value);
+    if(matching == null) return Collections.emptyList();
+    return matching.values();
+  }
+
+  /** Build the table for a feature name that has not been queried before. */
+  private Map<Object, Map<Integer, Annotation>> indexFeature(Object name) {
+    Map<Object, Map<Integer, Annotation>> values =
+            new HashMap<Object, Map<Integer, Annotation>>();
+    byValue.put(name, values);
+    indexedValues.put(name, new IdentityHashMap<Annotation, Object>());
+    for(Annotation a : annotations) {
+      index(name, a);
+    }
+    return values;
+  }
+
+  /** Index an annotation under its current value for the feature name. */
+  private void index(Object name, Annotation a) {
+    Object value = a.getFeatures() == null ? null : a.getFeatures().get(name);
+    if(value == null) return;
+    Map<Integer, Annotation> matching = byValue.get(name).get(value);
+    if(matching == null) {
+      matching = new HashMap<Integer, Annotation>();
+      byValue.get(name).put(value, matching);
+    }
+    matching.put(a.getId(), a);
+    indexedValues.get(name).put(a, value);
+  }
+
+  /** Remove an annotation from the table for a feature name. */
+  private void unindex(Object name, Annotation a) {
+    Object value = indexedValues.get(name).remove(a);
+    if(value == null) return;
+    Map<Object, Map<Integer, Annotation>> values = byValue.get(name);
+    Map<Integer, Annotation> matching = values.get(value);
+    matching.remove(a.getId());
+    if(matching.isEmpty()) values.remove(value);
+  }
+
+  /** Called by the set when an annotation of the type is added. */
+  void add(Annotation a) {
+    a.addAnnotationListener(this);
+    for(Object name : byValue.keySet()) {
+      index(name, a);
+    }
+  }
+
+  /** Called by the set when an annotation of the type is removed. */
+  void remove(Annotation a) {
+    a.removeAnnotationListener(this);
+    for(Object name : byValue.keySet()) {
+      unindex(name, a);
+    }
+  }
+
+  /** Stop listening to all the annotations, when the index is dropped. */
+  void dispose() {
+    for(Annotation a : annotations) {
+      a.removeAnnotationListener(this);
+    }
+  }
+
+  /** Re-index an annotation whose features have changed. */
+  @Override
+  public void annotationUpdated(AnnotationEvent e) {
+    if(e.getType() != AnnotationEvent.FEATURES_UPDATED) return;
+    Annotation a = (Annotation)e.getSource();
+    for(Object name : byValue.keySet()) {
+      unindex(name, a);
+      index(name, a);
+    }
+  }
+}
@@ -31,6 +31,15 @@ public class ImmutableAnnotationSetImpl extends AnnotationSetImpl {
     }
   }
 
+  /**
+   * Immutable sets never build feature value indices, as nothing would ever
+   * remove the listeners those put on the annotations.
+   */
+  @Override
+  boolean canIndexFeatures() {
+    return false;
+  }
+
   /*****************************************************************************
    * The following methods throw an exception as they try to modify the state of
    * the object
@@ -56,6 +65,11 @@ public class ImmutableAnnotationSetImpl extends AnnotationSetImpl {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  void bulkAdd(AnnotationBulkLoader records) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public boolean removeAll(Collection<?> arg0) {
     throw new UnsupportedOperationException();
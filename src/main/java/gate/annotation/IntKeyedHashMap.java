@@ -0,0 +1,183 @@
+/*
+ *  IntKeyedHashMap.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An open addressing hash map with the keys stored in an <tt>int[]</tt>,
+ * used in place of a {@link java.util.HashMap} for the start node index of
+ * annotation sets when the primitive node index is selected. Unlike
+ * {@link java.util.HashMap} no entry object is allocated per mapping. Null
+ * keys and null values are not supported, and the entry set iterator does not
+ * support removal.
+ */
+class IntKeyedHashMap<V> extends AbstractMap<Integer, V> {
+
+  /** The keys, only meaningful where the value is not null */
+  private int[] keys;
+
+  /** The values, null marks a free slot */
+  private Object[] values;
+
+  private int size = 0;
+
+  IntKeyedHashMap(int expectedSize) {
+    int capacity = 4;
+    while(capacity * 3 < expectedSize * 4)
+      capacity <<= 1;
+    keys = new int[capacity];
+    values = new Object[capacity];
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** The slot holding the key, or the free slot where it should go. */
+  private int slot(int key) {
+    int mask = values.length - 1;
+    int i = hash(key) & mask;
+    while(values[i] != null && keys[i] != key)
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V get(Object key) {
+    if(!(key instanceof Integer)) return null;
+    return (V)values[slot(((Integer)key).intValue())];
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V put(Integer key, V value) {
+    if(value == null) throw new NullPointerException("Null values not supported");
+    int i = slot(key.intValue());
+    Object old = values[i];
+    keys[i] = key.intValue();
+    values[i] = value;
+    if(old == null && ++size * 4 > values.length * 3) resize();
+    return (V)old;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V remove(Object key) {
+    if(!(key instanceof Integer)) return null;
+    int i = slot(((Integer)key).intValue());
+    Object old = values[i];
+    if(old == null) return null;
+    values[i] = null;
+    size--;
+    // shift back the entries of the same probe sequence that follow
+    int mask = values.length - 1;
+    int j = (i + 1) & mask;
+    while(values[j] != null) {
+      int home = hash(keys[j]) & mask;
+      // can the entry at j be moved to the hole at i?
+      if(((j - home) & mask) >= ((j - i) & mask)) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        values[j] = null;
+        i = j;
+      }
+      j = (j + 1) & mask;
+    }
+    return (V)old;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void resize() {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    for(int i = 0; i < oldValues.length; i++) {
+      if(oldValues[i] != null) {
+        int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<Integer, V>> entrySet() {
+    return new AbstractSet<Map.Entry<Integer, V>>() {
+      @Override
+      public Iterator<Map.Entry<Integer, V>> iterator() {
+        return new Iterator<Map.Entry<Integer, V>>() {
+          private int next = advance(0);
+
+          private int advance(int i) {
+            while(i < values.length && values[i] == null)
+              i++;
+            return i;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return next < values.length;
+          }
+
+          @SuppressWarnings("unchecked")
+          @Override
+          public Map.Entry<Integer, V> next() {
+            if(next >= values.length) throw new NoSuchElementException();
+            Map.Entry<Integer, V> entry =
+                    new SimpleImmutableEntry<Integer, V>(keys[next],
+                            (V)values[next]);
+            next = advance(next + 1);
+            return entry;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ *  NodeOffsetIndex.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.Collection;
+
+import gate.Node;
+
+/**
+ * The index from offsets to nodes used by {@link AnnotationSetImpl}. There is
+ * at most one node per offset. The collections returned by the range methods
+ * are in increasing offset order and must not be modified; they are not
+ * guaranteed to reflect later changes to the index.
+ */
+interface NodeOffsetIndex {
+
+  /** The node at exactly the given offset, or null. */
+  public Node get(long offset);
+
+  /**
+   * The node at the given offset or, if there isn't one, the node with the
+   * smallest offset greater than it. Returns null if there is no such node.
+   */
+  public Node getNextOf(long offset);
+
+  /** Store the node for the given offset, replacing any previous one. */
+  public void put(long offset, Node node);
+
+  /** Remove the node at the given offset, returning it (or null). */
+  public Node remove(long offset);
+
+  public boolean isEmpty();
+
+  /** The node with the smallest offset, or null if the index is empty. */
+  public Node firstNode();
+
+  /** The node with the largest offset, or null if the index is empty. */
+  public Node lastNode();
+
+  /** All the nodes. */
+  public Collection<Node> values();
+
+  /** The nodes with offsets in [from, to). */
+  public Collection<Node> values(long from, long to);
+
+  /** The nodes with offsets greater than or equal to from. */
+  public Collection<Node> valuesFrom(long from);
+
+  /** A copy of this index, of the same implementation. */
+  public NodeOffsetIndex copy();
+}
@@ -0,0 +1,262 @@
+/*
+ *  PrimitiveNodeOffsetIndex.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import gate.Node;
+
+/**
+ * A {@link NodeOffsetIndex} that keeps the offsets in primitive
+ * <tt>long[]</tt> columns rather than in a tree of boxed keys. This is a two
+ * level sorted-array B-tree: the nodes live in blocks of up to
+ * {@link #BLOCK_SIZE} sorted entries, and the first offset of every block is
+ * kept in a separate sorted array that is binary searched to find the block
+ * for an offset. The only objects allocated per node are therefore the nodes
+ * themselves, which the annotations already hold on to.
+ */
+class PrimitiveNodeOffsetIndex implements NodeOffsetIndex {
+
+  /** The maximum number of entries in a block */
+  static final int BLOCK_SIZE = 128;
+
+  /** The first offset of each block */
+  private long[] firstKeys;
+
+  /** The offsets stored in each block, sorted */
+  private long[][] keys;
+
+  /** The nodes stored in each block, parallel to keys */
+  private Node[][] values;
+
+  /** The number of entries used in each block */
+  private int[] counts;
+
+  /** The number of blocks in use */
+  private int blockCount = 0;
+
+  PrimitiveNodeOffsetIndex() {
+    firstKeys = new long[4];
+    keys = new long[4][];
+    values = new Node[4][];
+    counts = new int[4];
+  }
+
+  private PrimitiveNodeOffsetIndex(PrimitiveNodeOffsetIndex other) {
+    int length = Math.max(4, other.blockCount);
+    firstKeys = Arrays.copyOf(other.firstKeys, length);
+    counts = Arrays.copyOf(other.counts, length);
+    keys = new long[length][];
+    values = new Node[length][];
+    for(int b = 0; b < other.blockCount; b++) {
+      keys[b] = other.keys[b].clone();
+      values[b] = other.values[b].clone();
+    }
+    blockCount = other.blockCount;
+  }
+
+  /**
+   * The index of the last block whose first offset is less than or equal to
+   * the given offset, or -1 if the offset comes before all the blocks.
+   */
+  private int findBlock(long offset) {
+    int low = 0;
+    int high = blockCount - 1;
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+      if(firstKeys[mid] <= offset)
+        low = mid + 1;
+      else high = mid - 1;
+    }
+    return high;
+  }
+
+  @Override
+  public Node get(long offset) {
+    int b = findBlock(offset);
+    if(b < 0) return null;
+    int i = Arrays.binarySearch(keys[b], 0, counts[b], offset);
+    return i >= 0 ? values[b][i] : null;
+  }
+
+  @Override
+  public Node getNextOf(long offset) {
+    if(blockCount == 0) return null;
+    int b = findBlock(offset);
+    if(b < 0) return values[0][0];
+    int i = Arrays.binarySearch(keys[b], 0, counts[b], offset);
+    if(i >= 0) return values[b][i];
+    i = -i - 1;
+    if(i < counts[b]) return values[b][i];
+    return b + 1 < blockCount ? values[b + 1][0] : null;
+  }
+
+  @Override
+  public void put(long offset, Node node) {
+    if(blockCount == 0) {
+      insertBlock(0, new long[BLOCK_SIZE], new Node[BLOCK_SIZE], 0);
+    }
+    int b = findBlock(offset);
+    if(b < 0) b = 0;
+    int i = Arrays.binarySearch(keys[b], 0, counts[b], offset);
+    if(i >= 0) {
+      values[b][i] = node;
+      return;
+    }
+    if(counts[b] == BLOCK_SIZE) {
+      // split the full block in two halves and retry in the right one
+      int half = BLOCK_SIZE / 2;
+      long[] newKeys = new long[BLOCK_SIZE];
+      Node[] newValues = new Node[BLOCK_SIZE];
+      System.arraycopy(keys[b], half, newKeys, 0, BLOCK_SIZE - half);
+      System.arraycopy(values[b], half, newValues, 0, BLOCK_SIZE - half);
+      Arrays.fill(values[b], half, BLOCK_SIZE, null);
+      counts[b] = half;
+      insertBlock(b + 1, newKeys, newValues, BLOCK_SIZE - half);
+      if(offset >= firstKeys[b + 1]) b++;
+      i = Arrays.binarySearch(keys[b], 0, counts[b], offset);
+    }
+    i = -i - 1;
+    int count = counts[b];
+    System.arraycopy(keys[b], i, keys[b], i + 1, count - i);
+    System.arraycopy(values[b], i, values[b], i + 1, count - i);
+    keys[b][i] = offset;
+    values[b][i] = node;
+    counts[b] = count + 1;
+    firstKeys[b] = keys[b][0];
+  }
+
+  @Override
+  public Node remove(long offset) {
+    int b = findBlock(offset);
+    if(b < 0) return null;
+    int i = Arrays.binarySearch(keys[b], 0, counts[b], offset);
+    if(i < 0) return null;
+    Node removed = values[b][i];
+    int count = counts[b] - 1;
+    System.arraycopy(keys[b], i + 1, keys[b], i, count - i);
+    System.arraycopy(values[b], i + 1, values[b], i, count - i);
+    values[b][count] = null;
+    counts[b] = count;
+    if(count == 0) {
+      removeBlock(b);
+    } else {
+      firstKeys[b] = keys[b][0];
+      // merge sparse neighbours so that blocks stay reasonably full
+      if(b + 1 < blockCount && count + counts[b + 1] <= BLOCK_SIZE / 2) {
+        System.arraycopy(keys[b + 1], 0, keys[b], count, counts[b + 1]);
+        System.arraycopy(values[b + 1], 0, values[b], count, counts[b + 1]);
+        counts[b] += counts[b + 1];
+        removeBlock(b + 1);
+      }
+    }
+    return removed;
+  }
+
+  private void insertBlock(int b, long[] blockKeys, Node[] blockValues,
+          int count) {
+    if(blockCount == firstKeys.length) {
+      int length = blockCount * 2;
+      firstKeys = Arrays.copyOf(firstKeys, length);
+      counts = Arrays.copyOf(counts, length);
+      keys = Arrays.copyOf(keys, length);
+      values = Arrays.copyOf(values, length);
+    }
+    int moved = blockCount - b;
+    System.arraycopy(firstKeys, b, firstKeys, b + 1, moved);
+    System.arraycopy(counts, b, counts, b + 1, moved);
+    System.arraycopy(keys, b, keys, b + 1, moved);
+    System.arraycopy(values, b, values, b + 1, moved);
+    keys[b] = blockKeys;
+    values[b] = blockValues;
+    counts[b] = count;
+    firstKeys[b] = count > 0 ? blockKeys[0] : 0;
+    blockCount++;
+  }
+
+  private void removeBlock(int b) {
+    int moved = blockCount - b - 1;
+    System.arraycopy(firstKeys, b + 1, firstKeys, b, moved);
+    System.arraycopy(counts, b + 1, counts, b, moved);
+    System.arraycopy(keys, b + 1, keys, b, moved);
+    System.arraycopy(values, b + 1, values, b, moved);
+    blockCount--;
+    keys[blockCount] = null;
+    values[blockCount] = null;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return blockCount == 0;
+  }
+
+  @Override
+  public Node firstNode() {
+    return blockCount == 0 ? null : values[0][0];
+  }
+
+  @Override
+  public Node lastNode() {
+    if(blockCount == 0) return null;
+    return values[blockCount - 1][counts[blockCount - 1] - 1];
+  }
+
+  @Override
+  public Collection<Node> values() {
+    return collect(Long.MIN_VALUE, Long.MAX_VALUE, true);
+  }
+
+  @Override
+  public Collection<Node> values(long from, long to) {
+    return collect(from, to, false);
+  }
+
+  @Override
+  public Collection<Node> valuesFrom(long from) {
+    return collect(from, Long.MAX_VALUE, true);
+  }
+
+  /**
+   * Copy out the nodes with offsets from <tt>from</tt> up to (but excluding)
+   * <tt>to</tt>, or up to the end of the index if toEnd is set.
+   */
+  private List<Node> collect(long from, long to, boolean toEnd) {
+    List<Node> result = new ArrayList<Node>();
+    if(blockCount == 0 || (!toEnd && to <= from)) return result;
+    int b = findBlock(from);
+    int i = 0;
+    if(b < 0) {
+      b = 0;
+    } else {
+      i = Arrays.binarySearch(keys[b], 0, counts[b], from);
+      if(i < 0) i = -i - 1;
+    }
+    for(; b < blockCount; b++, i = 0) {
+      for(; i < counts[b]; i++) {
+        if(!toEnd && keys[b][i] >= to) return result;
+        result.add(values[b][i]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public NodeOffsetIndex copy() {
+    return new PrimitiveNodeOffsetIndex(this);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *  RBTreeNodeOffsetIndex.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import gate.Node;
+import gate.util.RBTreeMap;
+
+/**
+ * The default {@link NodeOffsetIndex}, a {@link RBTreeMap} from boxed offsets
+ * to nodes.
+ */
+class RBTreeNodeOffsetIndex implements NodeOffsetIndex {
+
+  private final RBTreeMap<Long, Node> nodesByOffset;
+
+  RBTreeNodeOffsetIndex() {
+    nodesByOffset = new RBTreeMap<Long, Node>();
+  }
+
+  @SuppressWarnings("unchecked")
+  private RBTreeNodeOffsetIndex(RBTreeNodeOffsetIndex other) {
+    nodesByOffset = (RBTreeMap<Long, Node>)other.nodesByOffset.clone();
+  }
+
+  @Override
+  public Node get(long offset) {
+    return nodesByOffset.get(offset);
+  }
+
+  @Override
+  public Node getNextOf(long offset) {
+    return nodesByOffset.getNextOf(offset);
+  }
+
+  @Override
+  public void put(long offset, Node node) {
+    nodesByOffset.put(offset, node);
+  }
+
+  @Override
+  public Node remove(long offset) {
+    return nodesByOffset.remove(offset);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return nodesByOffset.isEmpty();
+  }
+
+  @Override
+  public Node firstNode() {
+    if(nodesByOffset.isEmpty()) return null;
+    return nodesByOffset.get(nodesByOffset.firstKey());
+  }
+
+  @Override
+  public Node lastNode() {
+    if(nodesByOffset.isEmpty()) return null;
+    return nodesByOffset.get(nodesByOffset.lastKey());
+  }
+
+  @Override
+  public Collection<Node> values() {
+    return nodesByOffset.values();
+  }
+
+  @Override
+  public Collection<Node> values(long from, long to) {
+    if(to <= from) return Collections.emptyList();
+    return nodesByOffset.subMap(from, to).values();
+  }
+
+  @Override
+  public Collection<Node> valuesFrom(long from) {
+    return nodesByOffset.tailMap(from).values();
+  }
+
+  @Override
+  public NodeOffsetIndex copy() {
+    return new RBTreeNodeOffsetIndex(this);
+  }
+}
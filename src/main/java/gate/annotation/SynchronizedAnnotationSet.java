@@ -0,0 +1,382 @@
+/*
+ *  SynchronizedAnnotationSet.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.annotation;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.FeatureMap;
+import gate.Node;
+import gate.event.AnnotationSetListener;
+import gate.event.GateListener;
+import gate.relations.RelationSet;
+import gate.util.InvalidOffsetException;
+
+import java.io.ObjectStreamException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An annotation set that can be used from several threads at once, returned
+ * by a {@link gate.corpora.DocumentImpl} while several PRs are working on it
+ * at the same time (see
+ * {@link gate.corpora.DocumentImpl#setSynchronizedAnnotationSets(boolean)}).
+ * Every call is passed on to the underlying set while holding a lock shared
+ * by that set and all the sets obtained from it through the <code>get</code>
+ * methods, which are wrapped in the same way.
+ * <p>
+ * As with the collections returned by
+ * {@link java.util.Collections#synchronizedSet(Set)}, iterating over a set
+ * is not protected by the lock. This is safe as long as no other thread
+ * changes the annotations being iterated over, which the PRs ensure by
+ * declaring what they read and write.
+ */
+public class SynchronizedAnnotationSet implements AnnotationSet {
+
+  private static final long serialVersionUID = -1862715487040317284L;
+
+  private final AnnotationSet set;
+
+  private final Object mutex;
+
+  /** Wrap a set, using the set itself as the lock. */
+  public SynchronizedAnnotationSet(AnnotationSet set) {
+    this(set, set);
+  }
+
+  SynchronizedAnnotationSet(AnnotationSet set, Object mutex) {
+    this.set = set;
+    this.mutex = mutex;
+  }
+
+  /** The set this one passes calls on to. */
+  public AnnotationSet getUnderlyingSet() {
+    return set;
+  }
+
+  /** Wrap a set obtained from this one with the same lock. */
+  private AnnotationSet wrap(AnnotationSet result) {
+    return result == null ? null
+        : new SynchronizedAnnotationSet(result, mutex);
+  }
+
+  @Override
+  public Integer add(Node start, Node end, String type,
+          FeatureMap features) {
+    synchronized(mutex) {
+      return set.add(start, end, type, features);
+    }
+  }
+
+  @Override
+  public Integer add(Long start, Long end, String type, FeatureMap features)
+          throws InvalidOffsetException {
+    synchronized(mutex) {
+      return set.add(start, end, type, features);
+    }
+  }
+
+  @Override
+  public void add(Integer id, Long start, Long end, String type,
+          FeatureMap features) throws InvalidOffsetException {
+    synchronized(mutex) {
+      set.add(id, start, end, type, features);
+    }
+  }
+
+  @Override
+  public boolean add(Annotation a) {
+    synchronized(mutex) {
+      return set.add(a);
+    }
+  }
+
+  @Override
+  public Iterator<Annotation> iterator() {
+    // must be synchronized on by the caller if needed
+    return set.iterator();
+  }
+
+  @Override
+  public int size() {
+    synchronized(mutex) {
+      return set.size();
+    }
+  }
+
+  @Override
+  public boolean isEmpty() {
+    synchronized(mutex) {
+      return set.isEmpty();
+    }
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    synchronized(mutex) {
+      return set.contains(o);
+    }
+  }
+
+  @Override
+  public Object[] toArray() {
+    synchronized(mutex) {
+      return set.toArray();
+    }
+  }
+
+  @Override
+  public <T> T[] toArray(T[] a) {
+    synchronized(mutex) {
+      return set.toArray(a);
+    }
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    synchronized(mutex) {
+      return set.remove(o);
+    }
+  }
+
+  @Override
+  public boolean containsAll(Collection<?> c) {
+    synchronized(mutex) {
+      return set.containsAll(c);
+    }
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends Annotation> c) {
+    synchronized(mutex) {
+      return set.addAll(c);
+    }
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    synchronized(mutex) {
+      return set.retainAll(c);
+    }
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    synchronized(mutex) {
+      return set.removeAll(c);
+    }
+  }
+
+  @Override
+  public void clear() {
+    synchronized(mutex) {
+      set.clear();
+    }
+  }
+
+  @Override
+  public Annotation get(Integer id) {
+    synchronized(mutex) {
+      return set.get(id);
+    }
+  }
+
+  @Override
+  public AnnotationSet get() {
+    synchronized(mutex) {
+      return wrap(set.get());
+    }
+  }
+
+  @Override
+  public AnnotationSet get(String type) {
+    synchronized(mutex) {
+      return wrap(set.get(type));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(Set<String> types) {
+    synchronized(mutex) {
+      return wrap(set.get(types));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(String type, FeatureMap constraints) {
+    synchronized(mutex) {
+      return wrap(set.get(type, constraints));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(String type, Set<? extends Object> featureNames) {
+    synchronized(mutex) {
+      return wrap(set.get(type, featureNames));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(String type, FeatureMap constraints, Long offset) {
+    synchronized(mutex) {
+      return wrap(set.get(type, constraints, offset));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(Long offset) {
+    synchronized(mutex) {
+      return wrap(set.get(offset));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(Long startOffset, Long endOffset) {
+    synchronized(mutex) {
+      return wrap(set.get(startOffset, endOffset));
+    }
+  }
+
+  @Override
+  public AnnotationSet get(String type, Long startOffset, Long endOffset) {
+    synchronized(mutex) {
+      return wrap(set.get(type, startOffset, endOffset));
+    }
+  }
+
+  @Override
+  public AnnotationSet getCovering(String neededType, Long startOffset,
+          Long endOffset) {
+    synchronized(mutex) {
+      return wrap(set.getCovering(neededType, startOffset, endOffset));
+    }
+  }
+
+  @Override
+  public AnnotationSet getContained(Long startOffset, Long endOffset) {
+    synchronized(mutex) {
+      return wrap(set.getContained(startOffset, endOffset));
+    }
+  }
+
+  @Override
+  public List<Annotation> inDocumentOrder() {
+    synchronized(mutex) {
+      return set.inDocumentOrder();
+    }
+  }
+
+  @Override
+  public Node firstNode() {
+    synchronized(mutex) {
+      return set.firstNode();
+    }
+  }
+
+  @Override
+  public Node lastNode() {
+    synchronized(mutex) {
+      return set.lastNode();
+    }
+  }
+
+  @Override
+  public Node nextNode(Node node) {
+    synchronized(mutex) {
+      return set.nextNode(node);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return set.getName();
+  }
+
+  @Override
+  public Set<String> getAllTypes() {
+    synchronized(mutex) {
+      return set.getAllTypes();
+    }
+  }
+
+  @Override
+  public Document getDocument() {
+    return set.getDocument();
+  }
+
+  @Override
+  public RelationSet getRelations() {
+    synchronized(mutex) {
+      return set.getRelations();
+    }
+  }
+
+  @Override
+  public void addAnnotationSetListener(AnnotationSetListener l) {
+    synchronized(mutex) {
+      set.addAnnotationSetListener(l);
+    }
+  }
+
+  @Override
+  public void removeAnnotationSetListener(AnnotationSetListener l) {
+    synchronized(mutex) {
+      set.removeAnnotationSetListener(l);
+    }
+  }
+
+  @Override
+  public void addGateListener(GateListener l) {
+    synchronized(mutex) {
+      set.addGateListener(l);
+    }
+  }
+
+  @Override
+  public void removeGateListener(GateListener l) {
+    synchronized(mutex) {
+      set.removeGateListener(l);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(o == this) return true;
+    synchronized(mutex) {
+      return set.equals(o);
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    synchronized(mutex) {
+      return set.hashCode();
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized(mutex) {
+      return set.toString();
+    }
+  }
+
+  /** Serialise the underlying set itself. */
+  private Object writeReplace() throws ObjectStreamException {
+    return set;
+  }
+}
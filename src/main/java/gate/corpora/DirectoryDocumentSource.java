@@ -0,0 +1,140 @@
+/*
+ *  DirectoryDocumentSource.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.corpora;
+
+import gate.Document;
+import gate.DocumentSource;
+import gate.Factory;
+import gate.creole.ResourceInstantiationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link DocumentSource} that creates a document from each file in a
+ * directory, one at a time as the controller asks for them, so that
+ * directories of any size can be processed without loading them into a
+ * corpus. The files are taken in the order the file system lists them, and
+ * the documents are deleted once processed, so the PRs should store the
+ * results they want to keep. A file that cannot be made into a document is
+ * logged and skipped, and can be found with {@link #getSkippedFiles()}.
+ */
+public class DirectoryDocumentSource implements DocumentSource {
+
+  private static final Logger log =
+      Logger.getLogger(DirectoryDocumentSource.class);
+
+  private final File directory;
+
+  private final String encoding;
+
+  private DirectoryStream<Path> stream;
+
+  private Iterator<Path> files;
+
+  private boolean closed = false;
+
+  private final List<File> skippedFiles = new ArrayList<File>();
+
+  /**
+   * @param directory the directory to read
+   * @param encoding the encoding of the files, or null to use the default
+   */
+  public DirectoryDocumentSource(File directory, String encoding) {
+    this.directory = directory;
+    this.encoding = encoding;
+  }
+
+  @Override
+  public synchronized Document next() throws ResourceInstantiationException {
+    if(closed) return null;
+    try {
+      if(stream == null) {
+        stream = Files.newDirectoryStream(directory.toPath());
+        files = stream.iterator();
+      }
+      while(files.hasNext()) {
+        Path file = files.next();
+        if(!Files.isRegularFile(file)) continue;
+        try {
+          return createDocument(file.toFile());
+        } catch(ResourceInstantiationException e) {
+          // carry on with the rest of the directory
+          log.warn("Skipping " + file + ", which could not be read", e);
+          skippedFiles.add(file.toFile());
+        }
+      }
+    } catch(DirectoryIteratorException e) {
+      throw new ResourceInstantiationException("Could not list " + directory,
+          e.getCause());
+    } catch(IOException e) {
+      throw new ResourceInstantiationException("Could not list " + directory,
+          e);
+    }
+    close();
+    return null;
+  }
+
+  /**
+   * Create the document for a file of the directory.
+   *
+   * @throws ResourceInstantiationException if the file cannot be read, in
+   *           which case it is skipped
+   */
+  protected Document createDocument(File file)
+    throws ResourceInstantiationException {
+    try {
+      return encoding == null
+          ? Factory.newDocument(file.toURI().toURL())
+          : Factory.newDocument(file.toURI().toURL(), encoding);
+    } catch(MalformedURLException e) {
+      throw new ResourceInstantiationException(e);
+    }
+  }
+
+  /** The files that could not be read so far. */
+  public synchronized List<File> getSkippedFiles() {
+    return new ArrayList<File>(skippedFiles);
+  }
+
+  @Override
+  public void release(Document document) {
+    Factory.deleteResource(document);
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if(stream != null) {
+      try {
+        stream.close();
+      } catch(IOException e) {
+        // nothing more will be read anyway
+      }
+      stream = null;
+      files = null;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import gate.util.InvalidOffsetException;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.zip.GZIPInputStream;
@@ -106,17 +107,35 @@ public class DocumentContentImpl implements DocumentContent
     originalContent = content;
   } // Contruction from URL and offsets
 
-  /** Propagate changes to the document content. */
-  void edit(Long start, Long end, DocumentContent replacement)
+  /** Propagate changes to the document content. The first edit moves the
+    * text into a {@link Rope} so that further edits don't copy all of it.
+    * The rope is kept from then on; the String form of the text is only
+    * built when it is next asked for as a whole, and is cached until the
+    * next edit.
+    */
+  synchronized void edit(Long start, Long end, DocumentContent replacement)
   {
     int s = start.intValue(), e = end.intValue();
-    String repl = replacement == null ? "" :
-      ((DocumentContentImpl) replacement).content;
-    StringBuffer newContent = new StringBuffer(content);
-    newContent.replace(s, e, repl);
-    content = newContent.toString();
+    String repl;
+    if(replacement == null)
+      repl = "";
+    else if(replacement instanceof DocumentContentImpl)
+      repl = ((DocumentContentImpl) replacement).text();
+    else
+      repl = replacement.toString();
+    if(rope == null) rope = Rope.valueOf(content);
+    rope = rope.replace(s, e, repl);
+    content = null;
   } // edit(start,end,replacement)
 
+  /** The text as a String, built from the rope if there have been edits
+    * since it was last asked for.
+    */
+  synchronized String text() {
+    if(content == null) content = rope.toString();
+    return content;
+  } // text()
+
   @Override
   public DocumentContent getContent(Long start, Long end)
     throws InvalidOffsetException
@@ -125,9 +144,7 @@ public class DocumentContentImpl implements DocumentContent
       throw new InvalidOffsetException("Invalid offset range "+start+" to "+end+
               " for document content of length "+this.size());
 
-    return new DocumentContentImpl(
-      content.substring(start.intValue(), end.intValue())
-    );
+    return new DocumentContentImpl(substring(start.intValue(), end.intValue()));
   } // getContent(start, end)
 
   /** Returns the String representing the content in case of a textual document.
@@ -135,7 +152,7 @@ public class DocumentContentImpl implements DocumentContent
     */
   @Override
   public String toString(){
-    return content;
+    return text();
   }
 
   /** The size of this content (e.g. character length for textual
@@ -143,16 +160,28 @@ public class DocumentContentImpl implements DocumentContent
     */
   @Override
   public Long size() {
-    return Long.valueOf(content.length());
+    return Long.valueOf(length());
   } // size()
 
+  /** Part of the text, without flattening the rope */
+  synchronized String substring(int start, int end) {
+    return (content == null)
+      ? rope.substring(start, end)
+      : content.substring(start, end);
+  } // substring(start, end)
+
+  /** The length of the text, without flattening the rope */
+  synchronized int length() {
+    return (content == null) ? rope.length() : content.length();
+  } // length()
+
   /** Check that an offset is valid */
   boolean isValidOffset(Long offset) {
     if(offset == null)
       return false;
 
     long o = offset.longValue();
-    long len = content.length();
+    long len = length();
     if(o > len || o < 0)
       return false;
 
@@ -175,7 +204,7 @@ public class DocumentContentImpl implements DocumentContent
     if (!(other instanceof DocumentContentImpl)) return false;
 
     DocumentContentImpl docImpl = (DocumentContentImpl) other;
-    return content.equals(docImpl.toString());
+    return text().equals(docImpl.toString());
   } // equals
 
   /** Calculate the hash value for the object. */
@@ -183,10 +212,14 @@ public class DocumentContentImpl implements DocumentContent
   public int hashCode(){ return toString().hashCode(); }
 
   /** Just for now - later we have to cater for different types of
-    * content.
+    * content. Null if the content has been edited since it was last
+    * needed as a String, in which case only the rope holds it.
     */
   String content;
 
+  /** The content, once it has been edited at least once. */
+  private transient Rope rope;
+
   /**
    * For preserving the original content of the document.
    * The edit command didn't affect on the original content.
@@ -205,6 +238,16 @@ public class DocumentContentImpl implements DocumentContent
   public DocumentContentImpl(String s)
     { content = s; originalContent = content; }
 
+  /** For content that has been edited since it was loaded. */
+  public DocumentContentImpl(String s, String originalContent)
+    { content = s; this.originalContent = originalContent; }
+
+  /** Flattens the rope so that the content is always saved as a String. */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    text();
+    out.defaultWriteObject();
+  } // writeObject
+
   /** Freeze the serialization UID. */
   static final long serialVersionUID = -1426940535575467461L;
 } // class DocumentContentImpl
@@ -28,6 +28,7 @@ import gate.Node;
 import gate.Resource;
 import gate.TextualDocument;
 import gate.annotation.AnnotationSetImpl;
+import gate.annotation.SynchronizedAnnotationSet;
 import gate.creole.AbstractLanguageResource;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
@@ -42,6 +43,7 @@ import gate.event.DocumentListener;
 import gate.event.StatusListener;
 import gate.util.DocumentFormatException;
 import gate.util.Err;
+import gate.util.Files;
 import gate.util.GateRuntimeException;
 import gate.util.InvalidOffsetException;
 import gate.util.OptionsMap;
@@ -49,14 +51,17 @@ import gate.util.Out;
 import gate.util.SimpleFeatureMapImpl;
 import gate.util.Strings;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -232,6 +237,36 @@ public class DocumentImpl extends AbstractLanguageResource implements
 
   } // default construction
 
+  /**
+   * Is namespace information held as annotation features written out as
+   * namespace prefixes and URIs in the XML? Taken from the user config when
+   * the document is created.
+   */
+  public boolean getSerializeNamespaceInfo() {
+    return serializeNamespaceInfo;
+  }
+
+  /** The feature holding the namespace URI of namespaced elements. */
+  public String getNamespaceURIFeature() {
+    return namespaceURIFeature;
+  }
+
+  /** The feature holding the namespace prefix of namespaced elements. */
+  public String getNamespacePrefixFeature() {
+    return namespacePrefixFeature;
+  }
+
+  /**
+   * Set how namespace information held as annotation features is written
+   * out in the XML, overriding the settings of the user config.
+   */
+  public void setNamespaceInfo(boolean serializeNamespaceInfo,
+          String namespaceURIFeature, String namespacePrefixFeature) {
+    this.serializeNamespaceInfo = serializeNamespaceInfo;
+    this.namespaceURIFeature = namespaceURIFeature;
+    this.namespacePrefixFeature = namespacePrefixFeature;
+  }
+
   /** Cover unpredictable Features creation */
   @Override
   public FeatureMap getFeatures() {
@@ -241,6 +276,52 @@ public class DocumentImpl extends AbstractLanguageResource implements
     return features;
   }
 
+  /**
+   * Source files of at least this many bytes are memory mapped rather than
+   * read into memory. Initialised from the
+   * <tt>gate.corpora.DocumentImpl.mappedContentThreshold</tt> system
+   * property; by default no files are mapped.
+   */
+  private static long mappedContentThreshold =
+          Long.getLong("gate.corpora.DocumentImpl.mappedContentThreshold",
+                  Long.MAX_VALUE);
+
+  /**
+   * Set the size, in bytes, from which local source files are memory mapped
+   * and decoded on demand by a {@link MappedDocumentContentImpl} instead of
+   * being read into a String when the document is created. This keeps very
+   * large documents that are only ever sliced out of the heap, but the whole
+   * text is still read in as soon as anything asks for it as a String, which
+   * includes unpacking the markup of most formats, so it is mostly useful
+   * for documents created with <tt>markupAware</tt> set to false. Pass
+   * {@link Long#MAX_VALUE} to stop mapping files.
+   */
+  public static void setMappedContentThreshold(long bytes) {
+    mappedContentThreshold = bytes;
+  }
+
+  /** The size from which local source files are memory mapped. */
+  public static long getMappedContentThreshold() {
+    return mappedContentThreshold;
+  }
+
+  /**
+   * The source file, if the source URL is a local file that is large enough
+   * to be memory mapped, or null.
+   */
+  private File mappableSourceFile() {
+    if(mappedContentThreshold == Long.MAX_VALUE
+            || !"file".equals(sourceUrl.getProtocol())) return null;
+    try {
+      File file = Files.fileFromURL(sourceUrl);
+      if(file.isFile() && file.length() >= mappedContentThreshold)
+        return file;
+    } catch(IllegalArgumentException e) {
+      // not a plain file, so read it through the URL
+    }
+    return null;
+  }
+
   /** Initialise this resource, and return it. */
   @Override
   public Resource init() throws ResourceInstantiationException {
@@ -252,8 +333,14 @@ public class DocumentImpl extends AbstractLanguageResource implements
       getFeatures().put("gate.SourceURL", "created from String");
     } else {
       try {
-        content = new DocumentContentImpl(sourceUrl, getEncoding(),
-                sourceUrlStartOffset, sourceUrlEndOffset);
+        File sourceFile = mappableSourceFile();
+        if(sourceFile != null) {
+          content = new MappedDocumentContentImpl(sourceFile, getEncoding(),
+                  sourceUrlStartOffset, sourceUrlEndOffset);
+        } else {
+          content = new DocumentContentImpl(sourceUrl, getEncoding(),
+                  sourceUrlStartOffset, sourceUrlEndOffset);
+        }
         getFeatures().put("gate.SourceURL", sourceUrl.toExternalForm());
       } catch(IOException e) {
         throw new ResourceInstantiationException("DocumentImpl.init: " + e);
@@ -684,13 +771,23 @@ public class DocumentImpl extends AbstractLanguageResource implements
    */
   @Override
   public AnnotationSet getAnnotations() {
+    if(synchronizedAnnotationSets) {
+      synchronized(this) {
+        return synchronizedSet(defaultAnnotations());
+      }
+    }
+    return defaultAnnotations();
+  } // getAnnotations()
+
+  /** The default set, created if it doesn't exist yet. */
+  private AnnotationSet defaultAnnotations() {
     if(defaultAnnots == null) {
       defaultAnnots = new AnnotationSetImpl(this,"");
       fireAnnotationSetAdded(new DocumentEvent(this,
               DocumentEvent.ANNOTATION_SET_ADDED, ""));
     }// if
     return defaultAnnots;
-  } // getAnnotations()
+  } // defaultAnnotations()
 
   /**
    * Get a named set of annotations. Creates a new set if one with this name
@@ -700,6 +797,16 @@ public class DocumentImpl extends AbstractLanguageResource implements
   @Override
   public AnnotationSet getAnnotations(String name) {
     if(name == null || "".equals(name)) return getAnnotations();
+    if(synchronizedAnnotationSets) {
+      synchronized(this) {
+        return synchronizedSet(namedAnnotations(name));
+      }
+    }
+    return namedAnnotations(name);
+  } // getAnnotations(name)
+
+  /** A named set, created if it doesn't exist yet. */
+  private AnnotationSet namedAnnotations(String name) {
     if(namedAnnotSets == null) {
       namedAnnotSets = new HashMap<String, AnnotationSet>();
     }
@@ -712,7 +819,41 @@ public class DocumentImpl extends AbstractLanguageResource implements
       fireAnnotationSetAdded(evt);
     }
     return namedSet;
-  } // getAnnotations(name)
+  } // namedAnnotations(name)
+
+  /**
+   * The wrapper used while the sets are synchronized, made the first time
+   * it is needed. The caller must hold the lock on this document.
+   */
+  private AnnotationSet synchronizedSet(AnnotationSet set) {
+    if(synchronizedSets == null)
+      synchronizedSets = new IdentityHashMap<AnnotationSet, AnnotationSet>();
+    AnnotationSet wrapper = synchronizedSets.get(set);
+    if(wrapper == null) {
+      wrapper = new SynchronizedAnnotationSet(set);
+      synchronizedSets.put(set, wrapper);
+    }
+    return wrapper;
+  } // synchronizedSet(set)
+
+  /**
+   * Make {@link #getAnnotations()}, {@link #getAnnotations(String)} and
+   * {@link #getNamedAnnotationSets()} return sets that can be used from
+   * several threads at the same time, while several PRs are working on this
+   * document at once. The annotation and node ids are handed out safely
+   * whether or not this is switched on.
+   *
+   * @see SynchronizedAnnotationSet
+   */
+  public synchronized void setSynchronizedAnnotationSets(
+          boolean synchronizedSets) {
+    this.synchronizedAnnotationSets = synchronizedSets;
+    if(!synchronizedSets) this.synchronizedSets = null;
+  }
+
+  public boolean isSynchronizedAnnotationSets() {
+    return synchronizedAnnotationSets;
+  }
 
   /**
    * Make the document markup-aware. This will trigger the creation of a
@@ -2083,10 +2224,24 @@ public class DocumentImpl extends AbstractLanguageResource implements
 
   /**
    * Returns a map (possibly empty) with the named annotation sets. It returns <code>null</code>
-   * if no named annotaton set exists.
+   * if no named annotaton set exists. While the sets are synchronized (see
+   * {@link #setSynchronizedAnnotationSets(boolean)}) this is a read-only copy
+   * holding the synchronized sets.
    */
   @Override
   public Map<String, AnnotationSet> getNamedAnnotationSets() {
+    if(synchronizedAnnotationSets) {
+      synchronized(this) {
+        Map<String, AnnotationSet> sets = new HashMap<String, AnnotationSet>();
+        if(namedAnnotSets != null) {
+          for(Map.Entry<String, AnnotationSet> entry : namedAnnotSets
+                  .entrySet()) {
+            sets.put(entry.getKey(), synchronizedSet(entry.getValue()));
+          }
+        }
+        return Collections.unmodifiableMap(sets);
+      }
+    }
     if (namedAnnotSets == null) {
       namedAnnotSets = new HashMap<String, AnnotationSet>();
     }
@@ -2113,6 +2268,9 @@ public class DocumentImpl extends AbstractLanguageResource implements
     if(namedAnnotSets != null) {
       AnnotationSet removed = namedAnnotSets.remove(name);
       if(removed != null) {
+        synchronized(this) {
+          if(synchronizedSets != null) synchronizedSets.remove(removed);
+        }
         fireAnnotationSetRemoved(new DocumentEvent(this,
                 DocumentEvent.ANNOTATION_SET_REMOVED, name));
       }
@@ -2138,6 +2296,102 @@ public class DocumentImpl extends AbstractLanguageResource implements
             start, end));
   } // edit(start,end,replacement)
 
+  /**
+   * Propagate a batch of edit changes to the document content and
+   * annotations. All the offsets refer to the content before any of the
+   * edits, and the ranges must not overlap. The result is the same as calling
+   * {@link #edit(Long, Long, DocumentContent)} for each edit in turn, starting
+   * with the one nearest the end of the document, except that edits that
+   * touch (one ends where the next starts) are made as a single edit. The
+   * annotations are only moved once for the whole batch, so this is much
+   * faster than separate calls when making many small edits to a long
+   * document.
+   *
+   * @param starts the start offsets of the ranges to replace
+   * @param ends the end offsets of the ranges to replace
+   * @param replacements the new content for each range, null to delete it
+   */
+  public void edit(long[] starts, long[] ends,
+          DocumentContent[] replacements) throws InvalidOffsetException {
+    if(starts.length != ends.length || starts.length != replacements.length)
+      throw new IllegalArgumentException(
+              "There must be as many start and end offsets as replacements");
+    // sort the edits by offset (insertions before the ranges starting at the
+    // same offset) checking that they are valid
+    Integer[] order = new Integer[starts.length];
+    for(int i = 0; i < starts.length; i++) {
+      if(!isValidOffsetRange(starts[i], ends[i]))
+        throw new InvalidOffsetException("Offsets: " + starts[i] + "/"
+                + ends[i]);
+      order[i] = i;
+    }
+    final long[] editStarts = starts;
+    final long[] editEnds = ends;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if(editStarts[a] != editStarts[b])
+          return editStarts[a] < editStarts[b] ? -1 : 1;
+        if(editEnds[a] != editEnds[b]) return editEnds[a] < editEnds[b] ? -1 : 1;
+        return 0;
+      }
+    });
+    // combine the edits that touch
+    List<long[]> ranges = new ArrayList<long[]>();
+    List<DocumentContent> texts = new ArrayList<DocumentContent>();
+    for(int i : order) {
+      int last = ranges.size() - 1;
+      if(last >= 0 && starts[i] < ranges.get(last)[1])
+        throw new InvalidOffsetException("Edit " + starts[i] + "/" + ends[i]
+                + " overlaps edit " + ranges.get(last)[0] + "/"
+                + ranges.get(last)[1]);
+      if(last >= 0 && starts[i] == ranges.get(last)[1]) {
+        ranges.get(last)[1] = ends[i];
+        String text = (texts.get(last) == null ? "" : texts.get(last)
+                .toString())
+                + (replacements[i] == null ? "" : replacements[i].toString());
+        texts.set(last, new DocumentContentImpl(text));
+      } else {
+        ranges.add(new long[] {starts[i], ends[i]});
+        texts.add(replacements[i]);
+      }
+    }
+    long[] rangeStarts = new long[ranges.size()];
+    long[] rangeEnds = new long[ranges.size()];
+    long[] lengths = new long[ranges.size()];
+    for(int i = 0; i < ranges.size(); i++) {
+      rangeStarts[i] = ranges.get(i)[0];
+      rangeEnds[i] = ranges.get(i)[1];
+      lengths[i] = texts.get(i) == null ? 0 : texts.get(i).size().longValue();
+    }
+    // content we can't edit in place gets the edits one at a time, as the
+    // single edit would do
+    if(content != null && !(content instanceof DocumentContentImpl)) {
+      for(int i = rangeStarts.length - 1; i >= 0; i--)
+        edit(rangeStarts[i], rangeEnds[i], texts.get(i));
+      return;
+    }
+    // edit the content from the end, so that the offsets of the edits still
+    // to be made stay the same
+    if(content != null) {
+      for(int i = rangeStarts.length - 1; i >= 0; i--)
+        ((DocumentContentImpl)content).edit(rangeStarts[i], rangeEnds[i],
+                texts.get(i));
+    }
+    if(defaultAnnots != null)
+      ((AnnotationSetImpl)defaultAnnots).edit(rangeStarts, rangeEnds, lengths);
+    if(namedAnnotSets != null) {
+      Iterator<AnnotationSet> iter = namedAnnotSets.values().iterator();
+      while(iter.hasNext())
+        ((AnnotationSetImpl)iter.next()).edit(rangeStarts, rangeEnds, lengths);
+    }
+    // let the listeners know, in the order the edits were made
+    for(int i = rangeStarts.length - 1; i >= 0; i--) {
+      fireContentEdited(new DocumentEvent(this, DocumentEvent.CONTENT_EDITED,
+              rangeStarts[i], rangeEnds[i]));
+    }
+  } // edit(starts,ends,replacements)
+
   /**
    * Check that an offset is valid, i.e. it is non-null, greater than or equal
    * to 0 and less than the size of the document content.
@@ -2159,22 +2413,22 @@ public class DocumentImpl extends AbstractLanguageResource implements
   } // isValidOffsetRange(start,end)
 
   /** Sets the nextAnnotationId */
-  public void setNextAnnotationId(int aNextAnnotationId) {
+  public synchronized void setNextAnnotationId(int aNextAnnotationId) {
     nextAnnotationId = aNextAnnotationId;
   }// setNextAnnotationId();
 
   /** Generate and return the next annotation ID */
-  public Integer getNextAnnotationId() {
+  public synchronized Integer getNextAnnotationId() {
     return nextAnnotationId++;
   } // getNextAnnotationId
   
   /** look at the next annotation ID without incrementing it */
-  public Integer peakAtNextAnnotationId() {
+  public synchronized Integer peakAtNextAnnotationId() {
     return nextAnnotationId;
   }
 
   /** Generate and return the next node ID */
-  public Integer getNextNodeId() {
+  public synchronized Integer getNextNodeId() {
     return nextNodeId++;
   }
 
@@ -2288,6 +2542,12 @@ public class DocumentImpl extends AbstractLanguageResource implements
   /** Named sets of annotations */
   protected Map<String, AnnotationSet> namedAnnotSets;
 
+  /** Are the annotation sets being used from several threads? */
+  private transient volatile boolean synchronizedAnnotationSets = false;
+
+  /** The synchronized wrapper of each set, while they are synchronized */
+  private transient Map<AnnotationSet, AnnotationSet> synchronizedSets;
+
   /**
    * A property of the document that will be set when the user wants to create
    * the document from a string, as opposed to from a URL.
@@ -23,6 +23,7 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.TextualDocument;
+import gate.annotation.AnnotationBulkLoader;
 import gate.event.StatusListener;
 import gate.relations.Relation;
 import gate.relations.RelationSet;
@@ -382,19 +383,14 @@ public class DocumentStaxUtils {
       collectedAnnots.add(annObj);
     }
 
-    // now process all found annotations.to add to the set
+    // now process all found annotations.to add to the set, in one go
+    AnnotationBulkLoader loader = new AnnotationBulkLoader(annotationSet);
     Iterator<AnnotationObject> collectedAnnotsIt = collectedAnnots.iterator();
     while(collectedAnnotsIt.hasNext()) {
       AnnotationObject annObj = collectedAnnotsIt.next();
       try {
-        if(annObj.getId() != null) {
-          annotationSet.add(annObj.getId(), annObj.getStart(), annObj.getEnd(),
-                  annObj.getElemName(), annObj.getFM());
-        }
-        else {
-          annotationSet.add(annObj.getStart(), annObj.getEnd(), annObj
-                  .getElemName(), annObj.getFM());
-        }
+        loader.add(annObj.getId(), annObj.getStart(), annObj.getEnd(),
+                annObj.getElemName(), annObj.getFM());
       }
       catch(InvalidOffsetException ioe) {
         // really shouldn't happen, but could if we're not using an id
@@ -403,6 +399,13 @@ public class DocumentStaxUtils {
                 + annObj, ioe);
       }
     }
+    try {
+      loader.load();
+    }
+    catch(InvalidOffsetException ioe) {
+      throw new XMLStreamException("Invalid offset when creating annotations",
+              ioe);
+    }
     return requireAnnotationIds;
   }
   
@@ -847,25 +850,34 @@ public class DocumentStaxUtils {
     }
 
     // finished reading, add the annotations to the set
+    AnnotationBulkLoader loader = new AnnotationBulkLoader(as);
     AnnotationObject a = null;
     try {
       // first the ones that specify an ID
       Iterator<AnnotationObject> it = collectedIdentifiedAnnots.iterator();
       while(it.hasNext()) {
         a = it.next();
-        as.add(a.getId(), a.getStart(), a.getEnd(), a.getElemName(), a.getFM());
+        loader.add(a.getId(), a.getStart(), a.getEnd(), a.getElemName(),
+                a.getFM());
       }
       // next the ones that don't
       it = collectedNonIdentifiedAnnots.iterator();
       while(it.hasNext()) {
         a = it.next();
-        as.add(a.getStart(), a.getEnd(), a.getElemName(), a.getFM());
+        loader.add(a.getStart(), a.getEnd(), a.getElemName(), a.getFM());
       }
     }
     catch(InvalidOffsetException ioe) {
       throw new XMLStreamException("Invalid offset when creating annotation "
               + a, ioe);
     }
+    try {
+      loader.load();
+    }
+    catch(InvalidOffsetException ioe) {
+      throw new XMLStreamException("Invalid offset when creating annotations",
+              ioe);
+    }
   }
 
   /**
@@ -0,0 +1,324 @@
+/*
+ *  MappedDocumentContentImpl.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.corpora;
+
+import gate.DocumentContent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The content of a document read from a memory mapped file. Rather than
+ * decoding the whole file into a String, the file is decoded once when the
+ * content is created to find its length and to record, every
+ * {@link #CHUNK_SIZE} characters or so, the byte offset at which the next
+ * character starts. Parts of the text are then decoded on demand from the
+ * closest such checkpoint, and the last few decoded chunks are kept, so
+ * slicing the content (e.g. with {@link #getContent(Long, Long)}) only ever
+ * holds the parts of the text that are used.
+ * <p>
+ * Anything that needs the text as a whole (<tt>toString()</tt>,
+ * <tt>equals()</tt>, editing the content, serialisation) reads it into
+ * memory, after which this behaves exactly like a {@link DocumentContentImpl}.
+ * <p>
+ * The file must be smaller than 2GB and its encoding must not carry state
+ * from one character to the next (as e.g. ISO-2022-JP does), since decoding
+ * restarts at the checkpoints. Malformed input is replaced, as it is when
+ * the content is read through a reader.
+ */
+public class MappedDocumentContentImpl extends DocumentContentImpl {
+
+  private static final long serialVersionUID = 2536380935932659124L;
+
+  /** The (approximate) number of characters between two checkpoints */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  /** The number of decoded chunks that are kept */
+  private static final int CACHED_CHUNKS = 16;
+
+  /** The mapped file */
+  private transient ByteBuffer bytes;
+
+  private transient Charset charset;
+
+  /**
+   * The character offset in the file of each checkpoint, followed by the
+   * number of characters in the file.
+   */
+  private transient int[] checkpointChars;
+
+  /** The byte offset in the file of each checkpoint and of the end */
+  private transient int[] checkpointBytes;
+
+  /** The number of checkpoints */
+  private transient int checkpoints;
+
+  /** The offset in the file's text of the first character of the content */
+  private transient int offset;
+
+  /** The length of the content, as long as it hasn't been read in */
+  private transient int length;
+
+  /** Recently decoded chunks by index */
+  private transient Map<Integer, String> chunks;
+
+  /**
+   * Has the text been read into memory? Once it has, the methods of
+   * {@link DocumentContentImpl} take over.
+   */
+  private transient boolean loaded = false;
+
+  /**
+   * Map the given file and index it.
+   *
+   * @param file the file holding the text
+   * @param encoding the encoding of the file, or null or empty for the
+   *          platform default
+   * @param start the offset of the first character of the file to include,
+   *          or null for the whole file
+   * @param end the offset after the last character to include, or null for
+   *          the whole file
+   */
+  public MappedDocumentContentImpl(File file, String encoding, Long start,
+          Long end) throws IOException {
+    super(null);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if(channel.size() > Integer.MAX_VALUE)
+        throw new IOException("Can't map " + file + " as it is larger than "
+                + Integer.MAX_VALUE + " bytes");
+      // the mapping stays valid once the file is closed
+      MappedByteBuffer mapped =
+              channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      bytes = mapped;
+    } finally {
+      raf.close();
+    }
+
+    charset = (encoding == null || encoding.equals(""))
+            ? Charset.defaultCharset()
+            : Charset.forName(encoding);
+    stripByteOrderMark();
+    index();
+
+    int total = checkpointChars[checkpoints];
+    long s = 0, e = total;
+    if(start != null && end != null) {
+      s = Math.min(start.longValue(), total);
+      e = Math.max(s, Math.min(end.longValue(), total));
+    }
+    offset = (int)s;
+    length = (int)(e - s);
+    chunks = new LinkedHashMap<Integer, String>(CACHED_CHUNKS, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+        return size() > CACHED_CHUNKS;
+      }
+    };
+  } // MappedDocumentContentImpl(file, encoding, start, end)
+
+  /**
+   * Skip a byte order mark at the start of a Unicode file. For UTF-16 this
+   * also fixes the byte order, as a decoder started at a checkpoint would not
+   * see the mark.
+   */
+  private void stripByteOrderMark() {
+    String name = charset.name();
+    int b0 = bytes.limit() > 0 ? bytes.get(0) & 0xff : -1;
+    int b1 = bytes.limit() > 1 ? bytes.get(1) & 0xff : -1;
+    int b2 = bytes.limit() > 2 ? bytes.get(2) & 0xff : -1;
+    if(name.equals("UTF-8")) {
+      if(b0 == 0xef && b1 == 0xbb && b2 == 0xbf) skip(3);
+    } else if(name.startsWith("UTF-16")) {
+      if(b0 == 0xfe && b1 == 0xff) {
+        if(!name.equals("UTF-16LE")) {
+          charset = Charset.forName("UTF-16BE");
+          skip(2);
+        }
+      } else if(b0 == 0xff && b1 == 0xfe) {
+        if(!name.equals("UTF-16BE")) {
+          charset = Charset.forName("UTF-16LE");
+          skip(2);
+        }
+      } else if(name.equals("UTF-16")) {
+        // no mark means big endian
+        charset = Charset.forName("UTF-16BE");
+      }
+    }
+  } // stripByteOrderMark()
+
+  private void skip(int count) {
+    bytes.position(count);
+    bytes = bytes.slice();
+  } // skip(count)
+
+  private CharsetDecoder newDecoder() {
+    return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  } // newDecoder()
+
+  /** Decode the whole file once, recording the checkpoints. */
+  private void index() throws IOException {
+    checkpointChars = new int[16];
+    checkpointBytes = new int[16];
+    checkpoints = 0;
+    CharsetDecoder decoder = newDecoder();
+    ByteBuffer in = bytes.duplicate();
+    CharBuffer out = CharBuffer.allocate(CHUNK_SIZE);
+    int chars = 0;
+    boolean flushing = false;
+    CoderResult result;
+    do {
+      int chunkStart = in.position();
+      if(flushing) {
+        result = decoder.flush(out);
+      } else {
+        result = decoder.decode(in, out, true);
+        if(result.isUnderflow()) {
+          flushing = true;
+          result = decoder.flush(out);
+        }
+      }
+      if(result.isError()) result.throwException();
+      if(out.position() > 0) {
+        addCheckpoint(chars, chunkStart);
+        chars += out.position();
+      }
+      out.clear();
+    } while(!(flushing && result.isUnderflow()));
+    // the end of the file closes the last chunk
+    addCheckpoint(chars, in.position());
+    checkpoints--;
+  } // index()
+
+  private void addCheckpoint(int chars, int byteOffset) {
+    if(checkpoints == checkpointChars.length) {
+      checkpointChars = Arrays.copyOf(checkpointChars, checkpoints * 2);
+      checkpointBytes = Arrays.copyOf(checkpointBytes, checkpoints * 2);
+    }
+    checkpointChars[checkpoints] = chars;
+    checkpointBytes[checkpoints] = byteOffset;
+    checkpoints++;
+  } // addCheckpoint(chars, byteOffset)
+
+  /** The text of a chunk, decoding it if it isn't cached. */
+  private String chunk(int index) throws CharacterCodingException {
+    String text = chunks.get(index);
+    if(text == null) {
+      ByteBuffer in = bytes.duplicate();
+      in.limit(checkpointBytes[index + 1]);
+      in.position(checkpointBytes[index]);
+      CharBuffer out = CharBuffer.allocate(checkpointChars[index + 1]
+              - checkpointChars[index]);
+      CharsetDecoder decoder = newDecoder();
+      CoderResult result = decoder.decode(in, out, true);
+      if(result.isUnderflow()) result = decoder.flush(out);
+      if(result.isError()) result.throwException();
+      out.flip();
+      text = out.toString();
+      chunks.put(index, text);
+    }
+    return text;
+  } // chunk(index)
+
+  /** Decode the characters from start to end of the file's text. */
+  private String decode(int start, int end) {
+    StringBuilder text = new StringBuilder(end - start);
+    int index = Arrays.binarySearch(checkpointChars, 0, checkpoints, start);
+    if(index < 0) index = -index - 2;
+    try {
+      while(start < end) {
+        String chunk = chunk(index);
+        int chunkStart = checkpointChars[index];
+        int chunkEnd = Math.min(end, checkpointChars[index + 1]);
+        text.append(chunk, start - chunkStart, chunkEnd - chunkStart);
+        start = chunkEnd;
+        index++;
+      }
+    } catch(CharacterCodingException e) {
+      // can't happen as errors are replaced
+      throw new IllegalStateException(e);
+    }
+    return text.toString();
+  } // decode(start, end)
+
+  /** Reads the text into memory, after which it can be edited. */
+  @Override
+  synchronized String text() {
+    if(!loaded) {
+      content = decode(offset, offset + length);
+      loaded = true;
+      chunks.clear();
+    }
+    return super.text();
+  } // text()
+
+  @Override
+  synchronized void edit(Long start, Long end, DocumentContent replacement) {
+    text();
+    super.edit(start, end, replacement);
+  } // edit(start, end, replacement)
+
+  @Override
+  synchronized String substring(int start, int end) {
+    if(loaded) return super.substring(start, end);
+    if(start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException("Invalid range " + start + " to "
+              + end + " for text of length " + length);
+    return decode(offset + start, offset + end);
+  } // substring(start, end)
+
+  @Override
+  synchronized int length() {
+    return loaded ? super.length() : length;
+  } // length()
+
+  /**
+   * The text of the file (between the offsets this content was created with),
+   * which is decoded again each time it is asked for.
+   */
+  @Override
+  public synchronized String getOriginalContent() {
+    return decode(offset, offset + length);
+  } // getOriginalContent()
+
+  /**
+   * Mapped content is saved as a plain {@link DocumentContentImpl}, as the
+   * file may not be there when it is read back.
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    DocumentContentImpl saved = new DocumentContentImpl(text());
+    saved.originalContent = getOriginalContent();
+    return saved;
+  } // writeReplace()
+} // class MappedDocumentContentImpl
@@ -0,0 +1,166 @@
+/*
+ *  QueueDocumentSource.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.corpora;
+
+import gate.Document;
+import gate.DocumentSource;
+import gate.Factory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DocumentSource} fed by other threads through a queue of limited
+ * capacity. Producers add documents with {@link #put(Document)}, which waits
+ * while the queue is full so that they cannot get ahead of the controller by
+ * more than the capacity, or with {@link #offer(Document, long, TimeUnit)},
+ * and call {@link #finish()} once there are no more documents to come.
+ * <p>
+ * Processed documents are passed to the listener given when creating the
+ * source, or deleted if there is none.
+ */
+public class QueueDocumentSource implements DocumentSource {
+
+  /** Told about each document once it has been processed. */
+  public static interface ProcessedListener {
+    public void documentProcessed(Document document);
+  }
+
+  private final Deque<Document> queue = new ArrayDeque<Document>();
+
+  private final int capacity;
+
+  private final ProcessedListener listener;
+
+  /** Set once no more documents will be added */
+  private boolean finished = false;
+
+  /** Set once the consumer no longer wants documents */
+  private boolean closed = false;
+
+  /**
+   * Create a source whose documents are deleted once processed.
+   *
+   * @param capacity the number of documents that can be waiting
+   */
+  public QueueDocumentSource(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * Create a source whose documents are handed to a listener once
+   * processed.
+   *
+   * @param capacity the number of documents that can be waiting
+   * @param listener told about each processed document, or null to delete
+   *          them
+   */
+  public QueueDocumentSource(int capacity, ProcessedListener listener) {
+    if(capacity < 1)
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    this.capacity = capacity;
+    this.listener = listener;
+  }
+
+  /**
+   * Add a document, waiting for room if the queue is full.
+   *
+   * @throws IllegalStateException if the source has been finished or closed
+   */
+  public void put(Document document)
+    throws InterruptedException {
+    offer(document, -1, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Add a document, waiting at most the given time for room if the queue is
+   * full.
+   *
+   * @param timeout how long to wait, or a negative value to wait as long as
+   *          it takes
+   * @return true if the document was added, false if there was no room in
+   *         time
+   * @throws IllegalStateException if the source has been finished or closed
+   */
+  public synchronized boolean offer(Document document, long timeout,
+    TimeUnit unit) throws InterruptedException {
+    long deadline = timeout < 0 ? Long.MAX_VALUE
+        : System.currentTimeMillis() + unit.toMillis(timeout);
+    while(true) {
+      if(finished) throw new IllegalStateException("The source is finished");
+      if(closed) throw new IllegalStateException("The source is closed");
+      if(queue.size() < capacity) break;
+      long wait = deadline - System.currentTimeMillis();
+      if(wait <= 0) return false;
+      wait(deadline == Long.MAX_VALUE ? 0 : wait);
+    }
+    queue.add(document);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Signal that no more documents will be added. The documents already in
+   * the queue are still processed.
+   */
+  public synchronized void finish() {
+    finished = true;
+    notifyAll();
+  }
+
+  /** The number of documents waiting to be processed. */
+  public synchronized int size() {
+    return queue.size();
+  }
+
+  @Override
+  public synchronized Document next() throws InterruptedException {
+    while(queue.isEmpty() && !finished && !closed) {
+      wait();
+    }
+    if(closed || queue.isEmpty()) return null;
+    Document document = queue.removeFirst();
+    notifyAll();
+    return document;
+  }
+
+  @Override
+  public void release(Document document) {
+    if(listener == null) {
+      Factory.deleteResource(document);
+    } else {
+      listener.documentProcessed(document);
+    }
+  }
+
+  /**
+   * Stop taking documents. The documents still in the queue are deleted and
+   * producers waiting for room fail.
+   */
+  @Override
+  public void close() {
+    Document[] left;
+    synchronized(this) {
+      closed = true;
+      left = queue.toArray(new Document[queue.size()]);
+      queue.clear();
+      notifyAll();
+    }
+    for(Document document : left) {
+      Factory.deleteResource(document);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Rope.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.corpora;
+
+/**
+ * An immutable sequence of characters held as a height balanced (AVL) tree
+ * of short strings, used by {@link DocumentContentImpl} while a document is
+ * being edited. Replacing a range creates O(log n) new tree nodes and leaves
+ * the rest of the text where it is, instead of copying the whole content as
+ * a String based edit would.
+ */
+final class Rope {
+
+  /** The maximum length of the strings held in the leaves */
+  static final int MAX_LEAF = 1024;
+
+  static final Rope EMPTY = new Rope("");
+
+  /** The text of a leaf, null for inner nodes */
+  private final String leaf;
+
+  private final Rope left;
+
+  private final Rope right;
+
+  private final int length;
+
+  /** The height of the tree, 0 for leaves */
+  private final int height;
+
+  private Rope(String leaf) {
+    this.leaf = leaf;
+    this.left = null;
+    this.right = null;
+    this.length = leaf.length();
+    this.height = 0;
+  }
+
+  private Rope(Rope left, Rope right) {
+    this.leaf = null;
+    this.left = left;
+    this.right = right;
+    this.length = left.length + right.length;
+    this.height = Math.max(left.height, right.height) + 1;
+  }
+
+  /** Build a balanced rope holding the given text. */
+  static Rope valueOf(String text) {
+    if(text.length() == 0) return EMPTY;
+    return build(text, 0, text.length());
+  }
+
+  private static Rope build(String text, int start, int end) {
+    if(end - start <= MAX_LEAF) return new Rope(text.substring(start, end));
+    int middle = (start + end) >>> 1;
+    return new Rope(build(text, start, middle), build(text, middle, end));
+  }
+
+  int length() {
+    return length;
+  }
+
+  char charAt(int index) {
+    Rope node = this;
+    while(node.leaf == null) {
+      if(index < node.left.length) {
+        node = node.left;
+      } else {
+        index -= node.left.length;
+        node = node.right;
+      }
+    }
+    return node.leaf.charAt(index);
+  }
+
+  /**
+   * A rope holding this text with the characters from start (inclusive) to
+   * end (exclusive) replaced by the given text.
+   */
+  Rope replace(int start, int end, String replacement) {
+    if(start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException("Invalid range " + start + " to "
+              + end + " for text of length " + length);
+    Rope[] tail = split(end);
+    Rope head = tail[0].split(start)[0];
+    return concat(concat(head, valueOf(replacement)), tail[1]);
+  }
+
+  /** The characters from start (inclusive) to end (exclusive) */
+  String substring(int start, int end) {
+    if(start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException("Invalid range " + start + " to "
+              + end + " for text of length " + length);
+    StringBuilder text = new StringBuilder(end - start);
+    append(text, start, end);
+    return text.toString();
+  }
+
+  private void append(StringBuilder text, int start, int end) {
+    if(start >= end) return;
+    if(leaf != null) {
+      text.append(leaf, start, end);
+      return;
+    }
+    int leftLength = left.length;
+    if(start < leftLength) left.append(text, start, Math.min(end, leftLength));
+    if(end > leftLength)
+      right.append(text, Math.max(0, start - leftLength), end - leftLength);
+  }
+
+  @Override
+  public String toString() {
+    return substring(0, length);
+  }
+
+  /** Split the rope in two at the given index. */
+  private Rope[] split(int index) {
+    if(index == 0) return new Rope[] {EMPTY, this};
+    if(index == length) return new Rope[] {this, EMPTY};
+    if(leaf != null) {
+      return new Rope[] {new Rope(leaf.substring(0, index)),
+          new Rope(leaf.substring(index))};
+    }
+    if(index <= left.length) {
+      Rope[] parts = left.split(index);
+      return new Rope[] {parts[0], concat(parts[1], right)};
+    }
+    Rope[] parts = right.split(index - left.length);
+    return new Rope[] {concat(left, parts[0]), parts[1]};
+  }
+
+  /** Join two ropes, keeping the result balanced. */
+  static Rope concat(Rope a, Rope b) {
+    if(a.length == 0) return b;
+    if(b.length == 0) return a;
+    // merge short leaves so that small edits don't fragment the text
+    if(a.leaf != null && b.leaf != null && a.length + b.length <= MAX_LEAF)
+      return new Rope(a.leaf.concat(b.leaf));
+    return join(a, b);
+  }
+
+  /**
+   * Join two trees whose heights may differ, descending into the taller one
+   * until the heights match and rebalancing on the way back up.
+   */
+  private static Rope join(Rope a, Rope b) {
+    if(a.height > b.height + 1) return balance(a.left, join(a.right, b));
+    if(b.height > a.height + 1) return balance(join(a, b.left), b.right);
+    return new Rope(a, b);
+  }
+
+  /** Make a node from two subtrees whose heights differ by at most two. */
+  private static Rope balance(Rope l, Rope r) {
+    if(l.height > r.height + 1) {
+      if(l.left.height >= l.right.height)
+        return new Rope(l.left, new Rope(l.right, r));
+      return new Rope(new Rope(l.left, l.right.left), new Rope(l.right.right,
+              r));
+    }
+    if(r.height > l.height + 1) {
+      if(r.right.height >= r.left.height)
+        return new Rope(new Rope(l, r.left), r.right);
+      return new Rope(new Rope(l, r.left.left), new Rope(r.left.right,
+              r.right));
+    }
+    return new Rope(l, r);
+  }
+}
@@ -23,6 +23,7 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.GateConstants;
+import gate.LanguageResource;
 import gate.Resource;
 import gate.creole.AbstractLanguageResource;
 import gate.creole.CustomDuplication;
@@ -41,6 +42,7 @@ import gate.event.CreoleListener;
 import gate.event.DatastoreEvent;
 import gate.event.DatastoreListener;
 import gate.persist.PersistenceException;
+import gate.persist.SerialDataStore;
 import gate.util.Err;
 import gate.util.GateRuntimeException;
 import gate.util.MethodNotImplementedException;
@@ -52,10 +54,21 @@ import java.io.ObjectInputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 // The initial design was to implement this on the basis of a WeakValueHashMap.
 // However this creates problems, because the user might e.g., add a transient
@@ -91,6 +104,48 @@ public class SerialCorpusImpl extends AbstractLanguageResource
 
   protected transient List<Document> changedDocs = null;
 
+  /**
+   * The number of documents after the one being loaded to read ahead, or 0
+   * not to read ahead
+   */
+  protected transient int readAheadDocuments = 0;
+
+  /** The memory, in bytes, that documents read ahead may take up */
+  protected transient long readAheadBudget = 0;
+
+  /** Reads documents ahead, if reading ahead */
+  protected transient ExecutorService readAheadExecutor = null;
+
+  /** The documents being read ahead, in the order they were asked for */
+  protected transient Map<DocumentData, Future<LanguageResource>> readAheads =
+      null;
+
+  /** The estimated sizes of the documents read ahead that have been read */
+  protected transient Map<DocumentData, Long> readAheadSizes = null;
+
+  /**
+   * The memory, in bytes, that documents kept after being unloaded may
+   * take up, or 0 not to keep them
+   */
+  protected transient long cacheBudget = 0;
+
+  /**
+   * The documents kept after being unloaded, least recently used first
+   */
+  protected transient LinkedHashMap<DocumentData, CachedDocument> cache = null;
+
+  /** The entries of the documents kept, by document */
+  protected transient Map<Document, DocumentData> cachedDocuments = null;
+
+  /** The memory, in bytes, estimated to be taken up by the cache */
+  protected transient long cacheSize = 0;
+
+  protected transient long cacheHits = 0;
+
+  protected transient long cacheMisses = 0;
+
+  protected transient long cacheEvictions = 0;
+
   public SerialCorpusImpl() {
   }
 
@@ -217,7 +272,11 @@ public class SerialCorpusImpl extends AbstractLanguageResource
   }
 
   /**
-   * Unloads a document from memory.
+   * Unloads a document from memory. If the data store writes in the
+   * background (see {@link SerialDataStore#setWriteBehind(int, int)}), the
+   * document may not have been written when this returns, but getting it
+   * again gets the version saved here; use {@link #flush()} to wait for it
+   * to be written.
    * 
    * @param index the index of the document to be unloaded.
    * @param sync should the document be sync'ed (i.e. saved) before
@@ -252,7 +311,9 @@ public class SerialCorpusImpl extends AbstractLanguageResource
     }
     // 3. remove the document from the memory
     // do this, only if the saving has succeeded
-    documents.set(index, null);
+    Document doc = documents.set(index, null);
+    // a saved document can be kept, as it is the same as the stored one
+    if(sync && cacheBudget > 0) cache(docDataList.get(index), doc);
   }
 
   /**
@@ -294,6 +355,329 @@ public class SerialCorpusImpl extends AbstractLanguageResource
     unloadDocument(index, true);
   }
 
+  /**
+   * Wait until the documents saved so far have been written, if the data
+   * store writes in the background.
+   * 
+   * @throws PersistenceException if a document could not be written
+   */
+  public void flush() throws PersistenceException {
+    if(dataStore instanceof SerialDataStore)
+      ((SerialDataStore)dataStore).flush();
+  }
+
+  /**
+   * Read documents ahead: whenever a document has to be loaded from the
+   * data store, the documents after it that are not loaded start to be
+   * read in the background, so that when they are got in turn they are
+   * ready, or nearly. No more are read ahead while those being read,
+   * and not yet got, are estimated to take up more than the memory
+   * budget, those not read yet being taken to be the size of those that
+   * have been or, before any have, of the document loaded. Documents
+   * that are removed, or skipped over when later ones are loaded, stop
+   * being read ahead. This only has an effect if the corpus is in a
+   * {@link SerialDataStore}.
+   * 
+   * @param documents the number of documents to read ahead, or 0 not to
+   *          read ahead, as by default
+   * @param memoryBudget the memory, in bytes, that the documents read
+   *          ahead may take up, as estimated by
+   *          {@link #estimateSize(Document)}
+   */
+  public void setReadAhead(int documents, long memoryBudget) {
+    if(documents < 0)
+      throw new IllegalArgumentException("Invalid number of documents "
+              + documents);
+    cancelReadAheads();
+    if(documents == 0 && readAheadExecutor != null) {
+      readAheadExecutor.shutdown();
+      readAheadExecutor = null;
+    }
+    this.readAheadDocuments = documents;
+    this.readAheadBudget = memoryBudget;
+  }
+
+  /** The number of documents read ahead, 0 if not reading ahead. */
+  public int getReadAheadDocuments() {
+    return readAheadDocuments;
+  }
+
+  /** The memory, in bytes, that documents read ahead may take up. */
+  public long getReadAheadBudget() {
+    return readAheadBudget;
+  }
+
+  /**
+   * Start reading ahead the documents after the one at the given index,
+   * which has just been loaded, and stop reading any others.
+   */
+  protected void readAhead(int index, Document loaded) {
+    if(!(dataStore instanceof SerialDataStore)) return;
+    SerialDataStore sds = (SerialDataStore)dataStore;
+    if(readAheads == null) {
+      readAheads = new LinkedHashMap<DocumentData, Future<LanguageResource>>();
+      readAheadSizes = new HashMap<DocumentData, Long>();
+    }
+    if(readAheadExecutor == null) {
+      // a daemon thread, so we don't block GATE from exiting if this
+      // corpus is never unloaded
+      ThreadFactory threadFactory = new ThreadFactory() {
+        private ThreadFactory dtf = Executors.defaultThreadFactory();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = dtf.newThread(r);
+          t.setDaemon(true);
+          return t;
+        }
+      };
+      readAheadExecutor = Executors.newSingleThreadExecutor(threadFactory);
+    }
+    int end = Math.min(index + readAheadDocuments, docDataList.size() - 1);
+    Set<DocumentData> window = new HashSet<DocumentData>(
+            docDataList.subList(index + 1, end + 1));
+
+    // the document wanted now is handed over by the data store as it is
+    // loaded, the ones skipped over are no longer wanted, and the ones the
+    // data store cancelled, having been saved since, are read again
+    readAheads.remove(docDataList.get(index));
+    long read = 0;
+    int readCount = 0;
+    int unread = 0;
+    Iterator<Map.Entry<DocumentData, Future<LanguageResource>>> iter =
+        readAheads.entrySet().iterator();
+    while(iter.hasNext()) {
+      Map.Entry<DocumentData, Future<LanguageResource>> entry = iter.next();
+      if(entry.getValue().isCancelled()) {
+        iter.remove();
+      }
+      else if(!window.contains(entry.getKey())) {
+        sds.cancelReadAhead(entry.getKey().getClassType(), entry.getKey()
+                .getPersistentID());
+        iter.remove();
+      }
+      else if(entry.getValue().isDone()) {
+        // estimated once, as the annotations are counted each time
+        Long size = readAheadSizes.get(entry.getKey());
+        if(size == null) {
+          size = estimateSize(entry.getValue());
+          readAheadSizes.put(entry.getKey(), size);
+        }
+        read += size;
+        readCount++;
+      }
+      else {
+        unread++;
+      }
+    }
+    readAheadSizes.keySet().retainAll(readAheads.keySet());
+
+    // the documents not read yet are taken to be the size of those read,
+    // or, before any have been, of the one just loaded
+    long mean = readCount == 0 ? estimateSize(loaded) : read / readCount;
+    long used = read + unread * mean;
+    for(int i = index + 1; i <= end && used < readAheadBudget; i++) {
+      DocumentData docData = docDataList.get(i);
+      if(documents.get(i) != null || docData.getPersistentID() == null
+              || readAheads.containsKey(docData)
+              || (cache != null && cache.containsKey(docData))) continue;
+      Future<LanguageResource> readAhead =
+          sds.readAhead(docData.getClassType(), docData.getPersistentID(),
+                  readAheadExecutor);
+      readAheads.put(docData, readAhead);
+      used += mean;
+    }
+  }
+
+  /** Stop reading a document ahead, if it is being read ahead. */
+  protected void cancelReadAhead(DocumentData docData) {
+    if(readAheads == null || readAheads.remove(docData) == null) return;
+    readAheadSizes.remove(docData);
+    if(dataStore instanceof SerialDataStore)
+      ((SerialDataStore)dataStore).cancelReadAhead(docData.getClassType(),
+              docData.getPersistentID());
+  }
+
+  /** Stop reading documents ahead. */
+  protected void cancelReadAheads() {
+    if(readAheads == null) return;
+    for(DocumentData docData : new ArrayList<DocumentData>(readAheads
+            .keySet()))
+      cancelReadAhead(docData);
+  }
+
+  /** The estimated size of a document read ahead, 0 if it failed. */
+  private static long estimateSize(Future<LanguageResource> readAhead) {
+    try {
+      LanguageResource lr = readAhead.get();
+      return lr instanceof Document ? estimateSize((Document)lr) : 0;
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    catch(ExecutionException e) {
+      return 0;
+    }
+  }
+
+  /** The memory estimated to be taken up by each annotation, in bytes */
+  public static final long ANNOTATION_SIZE_ESTIMATE = 256;
+
+  /**
+   * Estimate the memory, in bytes, that a document takes up, from the
+   * length of its content and the number of its annotations.
+   */
+  public static long estimateSize(Document doc) {
+    long size = 0;
+    if(doc.getContent() != null) size += 2 * doc.getContent().size();
+    long annotations = doc.getAnnotations().size();
+    if(doc.getAnnotationSetNames() != null) {
+      for(String name : doc.getAnnotationSetNames())
+        annotations += doc.getAnnotations(name).size();
+    }
+    return size + annotations * ANNOTATION_SIZE_ESTIMATE;
+  }
+
+  /**
+   * Keep documents in memory after they are unloaded and saved, so that
+   * getting them again does not load them from the data store. When the
+   * documents kept are estimated, by {@link #estimateSize(Document)}, to
+   * take up more than the memory budget, the least recently used ones are
+   * dropped: deleted, after being saved if they have been
+   * {@link Document#isModified() modified} since. Documents unloaded
+   * without being saved are not kept, so that their changes are lost as
+   * before. The corpus owns the documents it keeps, so a document should
+   * not be used after it is unloaded, unless it is got again, nor deleted
+   * while {@link #isDocumentCached(Document) it is kept}.
+   * 
+   * @param memoryBudget the memory, in bytes, that the documents kept may
+   *          take up, or 0 not to keep them, as by default
+   */
+  public void setCacheBudget(long memoryBudget) {
+    if(memoryBudget < 0)
+      throw new IllegalArgumentException("Invalid memory budget "
+              + memoryBudget);
+    this.cacheBudget = memoryBudget;
+    evict();
+  }
+
+  /** The memory, in bytes, that documents kept may take up. */
+  public long getCacheBudget() {
+    return cacheBudget;
+  }
+
+  /** The memory, in bytes, estimated to be taken up by documents kept. */
+  public long getCacheSize() {
+    return cacheSize;
+  }
+
+  /** The number of documents got that had been kept in memory. */
+  public long getCacheHits() {
+    return cacheHits;
+  }
+
+  /**
+   * The number of documents got that had to be loaded from the data store
+   * while documents were being kept.
+   */
+  public long getCacheMisses() {
+    return cacheMisses;
+  }
+
+  /** The number of documents dropped to keep within the memory budget. */
+  public long getCacheEvictions() {
+    return cacheEvictions;
+  }
+
+  /**
+   * Is a document unloaded from this corpus being kept in memory? If so,
+   * the corpus deletes it when it is dropped, so it should not be deleted
+   * once unloaded as it otherwise would be.
+   */
+  public boolean isDocumentCached(Document doc) {
+    return cachedDocuments != null && cachedDocuments.containsKey(doc);
+  }
+
+  /** A document kept in memory, with its estimated size */
+  protected static class CachedDocument {
+    final Document document;
+
+    final long size;
+
+    CachedDocument(Document document, long size) {
+      this.document = document;
+      this.size = size;
+    }
+  }
+
+  /** Keep a document that has been unloaded, if it fits. */
+  protected void cache(DocumentData docData, Document doc) {
+    if(doc == null || docData.getPersistentID() == null) return;
+    long size = estimateSize(doc);
+    if(size > cacheBudget) return;
+    if(cache == null) {
+      cache = new LinkedHashMap<DocumentData, CachedDocument>(16, 0.75f, true);
+      cachedDocuments = new IdentityHashMap<Document, DocumentData>();
+    }
+    uncache(docData);
+    cache.put(docData, new CachedDocument(doc, size));
+    cachedDocuments.put(doc, docData);
+    cacheSize += size;
+    evict();
+  }
+
+  /** Stop keeping a document, returning it if it was kept. */
+  protected Document uncache(DocumentData docData) {
+    CachedDocument cached = cache == null ? null : cache.remove(docData);
+    if(cached == null) return null;
+    cachedDocuments.remove(cached.document);
+    cacheSize -= cached.size;
+    return cached.document;
+  }
+
+  /** Drop the least recently used documents until they fit the budget. */
+  protected void evict() {
+    if(cache == null) return;
+    Iterator<Map.Entry<DocumentData, CachedDocument>> iter =
+        cache.entrySet().iterator();
+    while(cacheSize > cacheBudget && iter.hasNext()) {
+      CachedDocument cached = iter.next().getValue();
+      iter.remove();
+      cachedDocuments.remove(cached.document);
+      cacheSize -= cached.size;
+      cacheEvictions++;
+      drop(cached.document);
+      // dropping it may have changed the cache
+      iter = cache.entrySet().iterator();
+    }
+  }
+
+  /** Drop a document no longer kept, saving it first if it has changed. */
+  private void drop(Document doc) {
+    if(doc.isModified()) {
+      try {
+        this.getDataStore().sync(doc);
+      }
+      catch(PersistenceException ex) {
+        throw new GateRuntimeException("Error dropping document from corpus "
+                + "because document sync failed: " + ex.getMessage(), ex);
+      }
+    }
+    Factory.deleteResource(doc);
+  }
+
+  /** Drop all the documents kept. */
+  protected void clearCache() {
+    if(cache == null) return;
+    List<CachedDocument> dropped = new ArrayList<CachedDocument>(cache.values());
+    cache.clear();
+    cachedDocuments.clear();
+    cacheSize = 0;
+    for(CachedDocument cached : dropped)
+      drop(cached.document);
+  }
+
   /**
    * This method returns true when the document is already loaded in
    * memory
@@ -323,6 +707,13 @@ public class SerialCorpusImpl extends AbstractLanguageResource
   public void cleanup() {
     if(DEBUG) Out.prln("serial corpus cleanup called");
     if(corpusListeners != null) corpusListeners = null;
+    setReadAhead(0, 0);
+    try {
+      clearCache();
+    }
+    catch(GateRuntimeException e) {
+      e.printStackTrace(Err.getPrintWriter());
+    }
     if(documents != null) documents.clear();
     docDataList.clear();
     Gate.getCreoleRegister().removeCreoleListener(this);
@@ -470,6 +861,11 @@ public class SerialCorpusImpl extends AbstractLanguageResource
     if(res instanceof Document) {
       Document doc = (Document)res;
       if(DEBUG) Out.prln("resource Unloaded called ");
+      // stop keeping it, if it is being deleted by someone else
+      if(cachedDocuments != null) {
+        DocumentData docData = cachedDocuments.get(doc);
+        if(docData != null) uncache(docData);
+      }
       // remove from the corpus too, if a transient one
       if(doc.getDataStore() != this.getDataStore()) {
         this.remove(doc);
@@ -544,6 +940,8 @@ public class SerialCorpusImpl extends AbstractLanguageResource
           // instead of calling remove() which tries to load the
           // document
           // remove it from the documents and docDataList
+          cancelReadAhead(docData);
+          uncache(docData);
           documentRemoved(docDataList.get(i).persistentID
                   .toString());
           docDataList.remove(i);
@@ -700,6 +1098,8 @@ public class SerialCorpusImpl extends AbstractLanguageResource
       // document wasn't loaded
       String docName = docDataList.get(index).getDocumentName();
       Object docPersistentID = getDocumentPersistentID(index);
+      cancelReadAhead(docDataList.get(index));
+      uncache(docDataList.get(index));
       docDataList.remove(index);
       // Document oldDoc = (Document) documents.remove(index);
       documents.remove(index);
@@ -787,6 +1187,8 @@ public class SerialCorpusImpl extends AbstractLanguageResource
 
   @Override
   public void clear() {
+    cancelReadAheads();
+    clearCache();
     documents.clear();
     docDataList.clear();
   }
@@ -820,6 +1222,18 @@ public class SerialCorpusImpl extends AbstractLanguageResource
     if(DEBUG)
       Out.prln("SerialCorpusImpl: get(): index " + index + "result: " + res);
 
+    // it may have been kept since it was unloaded
+    if(res == null && cacheBudget > 0) {
+      res = uncache(docDataList.get(index));
+      if(res != null) {
+        cacheHits++;
+        documents.set(index, res);
+      }
+      else {
+        cacheMisses++;
+      }
+    }
+
     // if the document is null, then I must get it from the DS
     if(res == null) {
       FeatureMap parameters = Factory.newFeatureMap();
@@ -835,6 +1249,7 @@ public class SerialCorpusImpl extends AbstractLanguageResource
 
         // finally replace the doc with the instantiated version
         documents.set(index, lr);
+        if(readAheadDocuments > 0) readAhead(index, lr);
       }
       catch(ResourceInstantiationException ex) {
         Err.prln("Error reading document inside a serialised corpus.");
@@ -881,6 +1296,8 @@ public class SerialCorpusImpl extends AbstractLanguageResource
     Document res = isDocumentLoaded(index) ? get(index) : null;
     Object docLRID = docDataList.get(index).persistentID;
     if(docLRID != null) documentRemoved(docLRID.toString());
+    cancelReadAhead(docDataList.get(index));
+    uncache(docDataList.get(index));
     docDataList.remove(index);
     documents.remove(index);
     fireDocumentRemoved(new CorpusEvent(SerialCorpusImpl.this, res, index,
@@ -0,0 +1,116 @@
+/*
+ *  CancellationToken.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Executable;
+
+/**
+ * Tells the PRs working on a document whether they should give up on it, for
+ * controllers that limit the time spent on each document (see
+ * {@link ConcurrentRealtimeCorpusController}). When a token is cancelled the
+ * controller has already called {@link Executable#interrupt()} on the
+ * pipeline and interrupted the thread running it; PRs that loop for a long
+ * time without checking their own interrupted flag can call
+ * {@link #checkCancelled()} from time to time instead.
+ * <p>
+ * The token for the document being processed by the current thread is
+ * returned by {@link #current()}; threads that are not processing a document
+ * under a time limit get a token that is never cancelled.
+ */
+public class CancellationToken {
+
+  private static final ThreadLocal<CancellationToken> current =
+      new ThreadLocal<CancellationToken>();
+
+  /** The token used when there is no time limit */
+  private static final CancellationToken NONE =
+      new CancellationToken(null, null, -1);
+
+  private final Executable executable;
+
+  private final Thread thread;
+
+  private final long deadline;
+
+  private boolean cancelled = false;
+
+  private boolean finished = false;
+
+  /**
+   * Create a token for running an executable on the given thread.
+   *
+   * @param timeout the time allowed, in milliseconds, or -1 for no limit
+   */
+  CancellationToken(Executable executable, Thread thread, long timeout) {
+    this.executable = executable;
+    this.thread = thread;
+    this.deadline = timeout < 0 ? Long.MAX_VALUE
+        : System.currentTimeMillis() + timeout;
+  }
+
+  /** The token for the document the current thread is processing. */
+  public static CancellationToken current() {
+    CancellationToken token = current.get();
+    return token == null ? NONE : token;
+  }
+
+  static void setCurrent(CancellationToken token) {
+    if(token == null)
+      current.remove();
+    else current.set(token);
+  }
+
+  /** Has the processing of the document been cancelled? */
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Throw an exception if the processing of the document has been cancelled.
+   */
+  public void checkCancelled() throws ExecutionInterruptedException {
+    if(isCancelled())
+      throw new ExecutionInterruptedException(
+          "The processing of the document has been cancelled");
+  }
+
+  /**
+   * The time left, in milliseconds, before the processing is cancelled, or
+   * {@link Long#MAX_VALUE} if there is no limit.
+   */
+  public long getRemainingTime() {
+    if(deadline == Long.MAX_VALUE) return Long.MAX_VALUE;
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  /**
+   * Cancel the processing, unless it has already finished, interrupting the
+   * executable and its thread.
+   *
+   * @return true if the processing was cancelled by this call
+   */
+  synchronized boolean cancel() {
+    if(cancelled || finished) return false;
+    cancelled = true;
+    if(executable != null) executable.interrupt();
+    if(thread != null) thread.interrupt();
+    return true;
+  }
+
+  /** Mark the processing as finished, so that it can't be cancelled. */
+  synchronized void finish() {
+    finished = true;
+  }
+}
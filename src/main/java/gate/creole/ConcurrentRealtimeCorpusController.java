@@ -0,0 +1,207 @@
+/*
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ *
+ */
+
+package gate.creole;
+
+import gate.Document;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A corpus pipeline that, like the {@link RealtimeCorpusController}, limits
+ * the time spent on each document and by default carries on with the next
+ * document when one fails, but that processes several documents at once
+ * (as a {@link ParallelCorpusController}) and never stops threads forcibly.
+ * <p>
+ * When the time for a document runs out, its {@link CancellationToken} is
+ * cancelled: the copy of the pipeline working on it is interrupted through
+ * {@link gate.Executable#interrupt()} and its thread is interrupted, and the
+ * document is given up as soon as the running PR notices. PRs that do not
+ * check their interrupted flag can check
+ * {@link CancellationToken#current()} instead. Stopping is cooperative, so a
+ * PR that does neither keeps its thread until it finishes; the other threads
+ * carry on with the remaining documents in the meantime.
+ * <p>
+ * The time limits are enforced by a single timer thread shared by all the
+ * documents, so no thread is needed per document.
+ */
+@CreoleResource(name = "Concurrent Real-Time Corpus Pipeline",
+    comment = "A corpus pipeline that runs copies of its PRs over several "
+        + "documents at once and limits the run time on each document.",
+    icon = "application-realtime",
+    helpURL = "http://gate.ac.uk/userguide/sec:creole-model:applications")
+public class ConcurrentRealtimeCorpusController
+    extends ParallelCorpusController {
+
+  private static final long serialVersionUID = 2318716436090145214L;
+
+  /**
+   * Shared logger object.
+   */
+  private static final Logger logger = Logger.getLogger(
+          ConcurrentRealtimeCorpusController.class);
+
+  /** The timer thread that cancels documents that run out of time */
+  protected transient ScheduledThreadPoolExecutor deadlines;
+
+  /**
+   * The timeout in milliseconds before execution on a document is
+   * cancelled.
+   */
+  protected Long timeout;
+
+  /**
+   * If true, errors on a document (including timeouts) are logged and the
+   * next document is processed.
+   */
+  protected boolean suppressExceptions = true;
+
+  /**
+   * Gets the timeout in milliseconds before execution on a document is
+   * cancelled.
+   */
+  public Long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Sets the timeout in milliseconds before execution on a document is
+   * cancelled, or -1 for no limit.
+   * @param timeout in milliseconds before execution is cancelled
+   */
+  @CreoleParameter(defaultValue = "60000",
+      comment = "Timeout in milliseconds before execution on a document is cancelled, or -1 for no limit")
+  public void setTimeout(Long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * If true, suppresses all exceptions. If false, passes all exceptions,
+   * including exceptions indicating a timeout, on to the caller.
+   */
+  @Optional
+  @CreoleParameter(defaultValue = "true",
+    comment = "Should all exceptions be suppressed and just a message be written to standard logger.info?")
+  public void setSuppressExceptions(Boolean yesno) {
+    suppressExceptions = yesno == null || yesno.booleanValue();
+  }
+
+  public Boolean getSuppressExceptions() {
+    return suppressExceptions;
+  }
+
+  /** The timer used to cancel documents, created when first needed. */
+  protected synchronized ScheduledThreadPoolExecutor deadlines() {
+    if(deadlines == null) {
+      // a daemon thread, so we don't block GATE from exiting if this
+      // controller has not been properly disposed of
+      deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        private ThreadFactory dtf = Executors.defaultThreadFactory();
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = dtf.newThread(r);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      deadlines.setRemoveOnCancelPolicy(true);
+    }
+    return deadlines;
+  }
+
+  @Override
+  public void cleanup() {
+    synchronized(this) {
+      if(deadlines != null) deadlines.shutdownNow();
+      deadlines = null;
+    }
+    super.cleanup();
+  }
+
+  /**
+   * Run a worker over its document under the time limit, dealing with
+   * timeouts and errors as set by suppressExceptions.
+   */
+  @Override
+  protected void runWorker(SerialAnalyserController worker,
+      final Document doc) throws ExecutionException {
+    long limit = timeout == null ? -1 : timeout.longValue();
+    final CancellationToken token =
+        new CancellationToken(worker, Thread.currentThread(), limit);
+    ScheduledFuture<?> deadline = null;
+    if(limit >= 0) {
+      deadline = deadlines().schedule(new Runnable() {
+        @Override
+        public void run() {
+          if(token.cancel())
+            logger.info("Execution timeout on document " + doc.getName()
+                + ", cancelling it...");
+        }
+      }, limit, TimeUnit.MILLISECONDS);
+    }
+    CancellationToken.setCurrent(token);
+    Throwable thrown = null;
+    try {
+      worker.execute();
+    } catch(Throwable t) {
+      thrown = t;
+    } finally {
+      token.finish();
+      if(deadline != null) deadline.cancel(false);
+      CancellationToken.setCurrent(null);
+      // clear an interrupt that was meant for this document only
+      if(token.isCancelled()) Thread.interrupted();
+    }
+
+    if(thrown == null) return;
+    if(isInterrupted()) {
+      // the whole run has been interrupted, not just this document
+      if(thrown instanceof ExecutionException) throw (ExecutionException)thrown;
+      throw new ExecutionException(thrown);
+    }
+    if(suppressExceptions) {
+      if(token.isCancelled()) {
+        logger.info("Execution on document " + doc.getName()
+            + " has been stopped after " + limit + "ms");
+      } else {
+        logger.info("Execution on document " + doc.getName()
+            + " has caused an error (ignored):\n=========================",
+            thrown);
+        logger.info("=========================\nError ignored...\n");
+      }
+      return;
+    }
+    if(token.isCancelled())
+      throw new ExecutionException("Execution timeout occurred on document "
+          + doc.getName(), thrown);
+    if(thrown instanceof Error) {
+      throw (Error)thrown;
+    }
+    else if(thrown instanceof RuntimeException) {
+      throw (RuntimeException)thrown;
+    }
+    else if(thrown instanceof ExecutionException) {
+      throw (ExecutionException)thrown;
+    }
+    throw new ExecutionException(thrown);
+  }
+}
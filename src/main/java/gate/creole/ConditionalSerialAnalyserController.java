@@ -15,9 +15,11 @@
 
 package gate.creole;
 
+import gate.BatchLanguageAnalyser;
 import gate.Controller;
 import gate.CorpusController;
 import gate.Document;
+import gate.DocumentSource;
 import gate.Factory;
 import gate.Gate;
 import gate.LanguageAnalyser;
@@ -56,6 +58,11 @@ import java.util.List;
  * are processed in sequence and CorpusAwarePRs are notified
  * before the processing of the documents and after all documents
  * have been processed or an abnormal termination occurred.
+ * <p>
+ * As with the {@link SerialAnalyserController}, the documents are processed
+ * in batches if the batch size is more than one and some of the PRs are
+ * {@link BatchLanguageAnalyser}s. A batch PR is only given the documents of
+ * the batch for which its running strategy says it should run.
  * 
  */
 @CreoleResource(name = "Conditional Corpus Pipeline",
@@ -175,14 +182,22 @@ public class ConditionalSerialAnalyserController
   @Override
   protected void executeImpl() throws ExecutionException{
     interrupted = false;
-    if(corpus == null) throw new ExecutionException(
+    if(corpus == null && documentSource == null) throw new ExecutionException(
       "(ConditionalSerialAnalyserController) \"" + getName() + "\":\n" +
       "The corpus supplied for execution was null!");
     
-    benchmarkFeatures.put(Benchmark.CORPUS_NAME_FEATURE, corpus.getName());
+    if(corpus != null)
+      benchmarkFeatures.put(Benchmark.CORPUS_NAME_FEATURE, corpus.getName());
     
     
-    if(document == null){
+    if(document == null && documentSource != null) {
+      // running as a top-level controller over a stream of documents
+      executeSource(documentSource, corpus);
+    }else if(document == null && isBatching(batchSize)) {
+      // running as a top-level controller with batch PRs -> execute over the
+      // documents in batches, skipping those a PR should not run over
+      executeBatches(corpus, batchSize);
+    }else if(document == null){
       //running as a top-level controller -> execute over all documents in 
       //sequence
       // iterate through the documents in the corpus
@@ -263,7 +278,7 @@ public class ConditionalSerialAnalyserController
                             getBenchmarkId()), this, benchmarkFeatures);
             
             // close the previously unloaded Doc
-            Factory.deleteResource(doc);
+            deleteUnloaded(corpus, doc);
           }
         }
         finally {
@@ -371,6 +386,52 @@ public class ConditionalSerialAnalyserController
 //    }
   }
 
+  /**
+   * The source of the documents being processed by
+   * {@link #execute(DocumentSource)}
+   */
+  protected transient DocumentSource documentSource;
+
+  /**
+   * Run the PRs over each document of a source rather than over the corpus,
+   * until the source comes to its end. Only one document is loaded at a
+   * time: each is handed back to the source as soon as it has been processed,
+   * or once processing it has failed, in which case the run stops. The
+   * source is not closed. The PRs are given the corpus of this controller,
+   * which may be null.
+   */
+  public void execute(DocumentSource source) throws ExecutionException {
+    if(document != null)
+      throw new ExecutionException("(ConditionalSerialAnalyserController) \""
+        + getName() + "\":\n" + "A document source cannot be used when "
+        + "running over a single document!");
+    documentSource = source;
+    try {
+      execute();
+    }
+    finally {
+      documentSource = null;
+    }
+  }
+
+  /**
+   * The number of documents given to each {@link BatchLanguageAnalyser} at a
+   * time
+   */
+  protected Integer batchSize = 1;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The number of documents given at a time to "
+      + "PRs that can process several documents in one go", defaultValue = "1")
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
   /**
    * Overidden from {@link SerialController} to only allow
    * {@link LanguageAnalyser}s as components.
@@ -135,6 +135,15 @@ public class ConditionalSerialController extends SerialController
     while(stratIter.hasNext()) strategiesList.add(stratIter.next());
   }
 
+  /**
+   * Should the PR at the given index be run over the document it has been
+   * given, according to its running strategy?
+   */
+  @Override
+  protected boolean shouldRun(int componentIndex) {
+    return strategiesList.get(componentIndex).shouldRun();
+  }
+
   /**
    * Executes a {@link ProcessingResource}.
    */
@@ -164,10 +173,11 @@ public class ConditionalSerialController extends SerialController
 
     try {
       //run the thing
-      if(strategiesList.get(componentIndex).shouldRun()) {
+      if(shouldRun(componentIndex)) {
         benchmarkFeatures.put(Benchmark.PR_NAME_FEATURE, currentPR.getName());
 
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         // run the thing
         Benchmark.executeWithBenchmarking(currentPR,
                 Benchmark.createBenchmarkId(Benchmark.PR_PREFIX + currentPR.getName(),
@@ -176,6 +186,7 @@ public class ConditionalSerialController extends SerialController
         benchmarkFeatures.remove(Benchmark.PR_NAME_FEATURE);
 
         // calculate the time taken by the PR
+        recordPrLatency(currentPR, System.nanoTime() - startNanos);
         long timeTakenByThePR = System.currentTimeMillis() - startTime;
         Long time = prTimeMap.get(currentPR.getName());
         if(time == null) {
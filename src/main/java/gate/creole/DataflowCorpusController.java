@@ -0,0 +1,342 @@
+/*
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ *
+ */
+
+package gate.creole;
+
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.corpora.DocumentImpl;
+import gate.creole.metadata.AnnotationAccess;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A corpus pipeline that runs PRs which do not depend on each other over the
+ * same document at the same time. The PRs declare which annotations they read
+ * and write with {@link AnnotationAccess}; a PR has to wait for an earlier PR
+ * if either writes annotations the other reads or writes, and PRs that don't
+ * declare anything wait for all the earlier PRs and are waited for by all the
+ * later ones. The results are therefore the same as when running the PRs in
+ * sequence, provided the declarations are right.
+ * <p>
+ * While the PRs are running, the document hands out annotation sets that can
+ * be used from several threads (see
+ * {@link DocumentImpl#setSynchronizedAnnotationSets(boolean)}); documents of
+ * other types are processed by running the PRs in sequence. The PRs
+ * themselves need not be thread safe, as each of them only ever works on one
+ * document at a time. Documents are processed one after the other, as by a
+ * {@link SerialAnalyserController}, and an error in a PR stops the run once
+ * the PRs already started have finished.
+ */
+@CreoleResource(name = "Dataflow Corpus Pipeline",
+    comment = "A corpus pipeline that runs independent PRs over each "
+        + "document at the same time.",
+    helpURL = "http://gate.ac.uk/userguide/sec:developer:apps")
+public class DataflowCorpusController extends SerialAnalyserController {
+
+  private static final long serialVersionUID = 6208326516702340185L;
+
+  /** An annotation set and type, either of which may be any. */
+  static class Access {
+    /** The set name, "" for the default set, or null for any set */
+    final String set;
+
+    /** The type, or null for any type */
+    final String type;
+
+    Access(String set, String type) {
+      this.set = set;
+      this.type = type;
+    }
+
+    boolean overlaps(Access other) {
+      return (set == null || other.set == null || set.equals(other.set))
+          && (type == null || other.type == null || type.equals(other.type));
+    }
+  }
+
+  /** What a PR reads and writes. */
+  static class Accesses {
+    final List<Access> reads = new ArrayList<Access>();
+
+    final List<Access> writes = new ArrayList<Access>();
+
+    /** Must one of these PRs wait for the other? */
+    boolean conflicts(Accesses other) {
+      return overlap(writes, other.reads) || overlap(writes, other.writes)
+          || overlap(reads, other.writes);
+    }
+
+    private static boolean overlap(List<Access> some, List<Access> others) {
+      for(Access access : some) {
+        for(Access other : others) {
+          if(access.overlaps(other)) return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** The number of threads running PRs */
+  protected Integer threadCount;
+
+  /** The threads running the PRs, created when first needed */
+  protected transient ExecutorService threads;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The number of PRs run at the same time. "
+      + "Defaults to the number of processors.")
+  public void setThreadCount(Integer threadCount) {
+    this.threadCount = threadCount;
+  }
+
+  public Integer getThreadCount() {
+    return threadCount;
+  }
+
+  /** The threads used to run the PRs. */
+  protected synchronized ExecutorService threads() {
+    if(threads == null) {
+      int count = threadCount == null || threadCount.intValue() <= 0
+          ? Runtime.getRuntime().availableProcessors()
+          : threadCount.intValue();
+      // daemon threads, so we don't block GATE from exiting if this
+      // controller has not been properly disposed of
+      threads = Executors.newFixedThreadPool(count, new ThreadFactory() {
+        private ThreadFactory dtf = Executors.defaultThreadFactory();
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = dtf.newThread(r);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return threads;
+  }
+
+  @Override
+  public void cleanup() {
+    synchronized(this) {
+      if(threads != null) threads.shutdownNow();
+      threads = null;
+    }
+    super.cleanup();
+  }
+
+  /**
+   * Work out what a PR reads and writes, using the current values of its
+   * runtime parameters.
+   */
+  protected static Accesses accesses(ProcessingResource pr)
+      throws ExecutionException {
+    Accesses accesses = new Accesses();
+    AnnotationAccess declared =
+        pr.getClass().getAnnotation(AnnotationAccess.class);
+    if(declared == null) {
+      // could do anything
+      accesses.reads.add(new Access(null, null));
+      accesses.writes.add(new Access(null, null));
+      return accesses;
+    }
+    for(String spec : declared.reads()) {
+      accesses.reads.add(parse(pr, spec));
+    }
+    for(String spec : declared.writes()) {
+      accesses.writes.add(parse(pr, spec));
+    }
+    return accesses;
+  }
+
+  /** Parse an access declared as <code>set:Type</code>. */
+  private static Access parse(ProcessingResource pr, String spec)
+      throws ExecutionException {
+    String set = spec;
+    String type = null;
+    int colon = spec.lastIndexOf(':');
+    if(colon >= 0) {
+      set = spec.substring(0, colon);
+      type = spec.substring(colon + 1);
+      if(type.equals("*")) type = null;
+    }
+    if(set.equals("*")) {
+      set = null;
+    } else if(set.startsWith("${") && set.endsWith("}")) {
+      String parameter = set.substring(2, set.length() - 1);
+      try {
+        Object value = pr.getParameterValue(parameter);
+        set = value == null ? "" : value.toString();
+      } catch(ResourceInstantiationException e) {
+        throw new ExecutionException("Could not get the value of "
+            + parameter + " declared by " + pr.getName(), e);
+      }
+    }
+    return new Access(set, type);
+  }
+
+  /**
+   * Run the PRs over the current document, starting each one as soon as the
+   * PRs it depends on have finished.
+   */
+  @Override
+  protected void executePRs() throws ExecutionException {
+    if(!concurrent(0, prList.size())) {
+      super.executePRs();
+      return;
+    }
+    checkParameters();
+    interrupted = false;
+    runComponents(0, prList.size());
+    fireStatusChanged("Finished running " + getName());
+  }
+
+  /**
+   * Run some of the PRs over the current document, starting each one as soon
+   * as the PRs it depends on have finished. This is also used for the PRs
+   * between two batch PRs when processing the corpus in batches.
+   */
+  @Override
+  protected void runComponents(int from, int to) throws ExecutionException {
+    if(!concurrent(from, to)) {
+      super.runComponents(from, to);
+      return;
+    }
+
+    // the PRs each one waits for, counting from the first one to run
+    int count = to - from;
+    List<List<Integer>> dependencies = new ArrayList<List<Integer>>();
+    List<Accesses> accesses = new ArrayList<Accesses>();
+    for(int j = 0; j < count; j++) {
+      Accesses prAccesses = accesses(prList.get(from + j));
+      List<Integer> waitFor = new ArrayList<Integer>();
+      for(int i = 0; i < j; i++) {
+        if(prAccesses.conflicts(accesses.get(i))) waitFor.add(i);
+      }
+      accesses.add(prAccesses);
+      dependencies.add(waitFor);
+    }
+
+    DocumentImpl document =
+        (DocumentImpl)((LanguageAnalyser)prList.get(from)).getDocument();
+    boolean wasSynchronized = document.isSynchronizedAnnotationSets();
+    document.setSynchronizedAnnotationSets(true);
+    Throwable thrown;
+    try {
+      thrown = runConcurrently(from, dependencies);
+    } finally {
+      document.setSynchronizedAnnotationSets(wasSynchronized);
+    }
+    if(thrown instanceof ExecutionException) {
+      throw (ExecutionException)thrown;
+    }
+    else if(thrown instanceof RuntimeException) {
+      throw (RuntimeException)thrown;
+    }
+    else if(thrown instanceof Error) {
+      throw (Error)thrown;
+    }
+    else if(thrown != null) {
+      throw new ExecutionException(thrown);
+    }
+  }
+
+  /**
+   * Are there PRs to run at the same time, over a document that can hand out
+   * synchronized annotation sets?
+   */
+  private boolean concurrent(int from, int to) {
+    return to - from >= 2
+        && ((LanguageAnalyser)prList.get(from)).getDocument()
+            instanceof DocumentImpl;
+  }
+
+  /**
+   * Start each PR once those it depends on have finished, and wait for them
+   * all.
+   *
+   * @param from the index of the first PR
+   * @param dependencies the PRs each one waits for, counting from the first
+   * @return the error of the first PR that failed, or null
+   */
+  private Throwable runConcurrently(int from,
+      List<List<Integer>> dependencies) {
+    int count = dependencies.size();
+    ExecutorService executor = threads();
+    final String benchmarkId = getBenchmarkId();
+    List<CompletableFuture<Void>> finished =
+        new ArrayList<CompletableFuture<Void>>(count);
+    Throwable thrown = null;
+    try {
+      for(int j = 0; j < count; j++) {
+        final int index = from + j;
+        // each PR reports with its own copy of the features
+        final Map<Object, Object> features =
+            new HashMap<Object, Object>(benchmarkFeatures);
+        Runnable run = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if(isInterrupted()) {
+                throw new ExecutionInterruptedException("The execution of the "
+                  + getName() + " application has been abruptly interrupted!");
+              }
+              runComponent(index, benchmarkId, features);
+            } catch(ExecutionException e) {
+              throw new CompletionException(e);
+            }
+          }
+        };
+        List<Integer> waitFor = dependencies.get(j);
+        if(waitFor.isEmpty()) {
+          finished.add(CompletableFuture.runAsync(run, executor));
+        } else {
+          CompletableFuture<?>[] before =
+              new CompletableFuture<?>[waitFor.size()];
+          for(int k = 0; k < before.length; k++) {
+            before[k] = finished.get(waitFor.get(k));
+          }
+          finished.add(CompletableFuture.allOf(before).thenRunAsync(run,
+              executor));
+        }
+      }
+    } catch(RuntimeException e) {
+      thrown = e;
+    }
+
+    // wait for everything that was started, keeping the error of the first
+    // PR that failed (the PRs waiting for it fail with the same one)
+    for(CompletableFuture<Void> future : finished) {
+      try {
+        future.join();
+      } catch(CompletionException e) {
+        if(thrown == null) thrown = e.getCause();
+      } catch(RuntimeException e) {
+        if(thrown == null) thrown = e;
+      }
+    }
+    return thrown;
+  }
+}
@@ -0,0 +1,421 @@
+/*
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ *
+ */
+
+package gate.creole;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.util.Benchmark;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A corpus pipeline that processes several documents of its corpus at the
+ * same time. The first time it runs it makes copies of its PRs, using
+ * {@link Factory#duplicate(gate.Resource)}, so that it has one pipeline per
+ * thread (the first of which uses the PRs of this controller itself). Each
+ * thread then repeatedly takes the next unprocessed document of the corpus,
+ * runs its pipeline over it and, if the document was not loaded before,
+ * unloads and deletes it, exactly as a {@link SerialAnalyserController}
+ * would.
+ * <p>
+ * As with the serial controller, an error on any document stops the run: the
+ * other threads finish the document they are working on and the error is then
+ * thrown from {@link #execute()}. The order in which the documents are
+ * processed is not defined. The copies are kept between runs and have the
+ * runtime parameters of the PRs of this controller copied to them before each
+ * run; they are rebuilt if the PRs or the number of threads change.
+ * <p>
+ * The PRs must not share any state that is not safe to use from several
+ * threads, other than what they share with copies made by duplication (e.g.
+ * resources that implement {@link CustomDuplication} by sharing themselves).
+ * When this controller is run as part of another corpus pipeline (i.e. with
+ * its document set) it runs its PRs over that one document only, like a
+ * serial controller, and it also behaves like a serial controller when run
+ * over a {@link gate.DocumentSource}. Processing a corpus in batches (see
+ * {@link #setBatchSize(Integer)}) is not supported, and neither is recording
+ * the progress of runs in a journal (see
+ * {@link #setJournalURL(java.net.URL)}), so the maximum number of attempts is
+ * not used either.
+ */
+@CreoleResource(name = "Parallel Corpus Pipeline",
+    comment = "A corpus pipeline that runs copies of its PRs over several "
+        + "documents at once.",
+    helpURL = "http://gate.ac.uk/userguide/sec:developer:apps")
+public class ParallelCorpusController extends SerialAnalyserController {
+
+  private static final long serialVersionUID = 4215347263478032907L;
+
+  /** The number of documents processed at the same time */
+  protected Integer threadCount;
+
+  /**
+   * The pipelines run by the threads, the first one holding the PRs of this
+   * controller and the others copies of them. Empty until the first run.
+   */
+  protected transient List<SerialAnalyserController> workers =
+      new ArrayList<SerialAnalyserController>();
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The number of documents processed at the same "
+      + "time. Defaults to the number of processors.")
+  public void setThreadCount(Integer threadCount) {
+    this.threadCount = threadCount;
+  }
+
+  public Integer getThreadCount() {
+    return threadCount;
+  }
+
+  /** The number of threads to use for the next run. */
+  protected int actualThreadCount() {
+    if(threadCount == null || threadCount.intValue() <= 0)
+      return Runtime.getRuntime().availableProcessors();
+    return threadCount.intValue();
+  }
+
+  /**
+   * Make sure there is one pipeline per thread, holding copies of the current
+   * PRs with the current runtime parameters.
+   */
+  protected void prepareWorkers() throws ExecutionException {
+    int count = actualThreadCount();
+    if(workers.size() != count || !workers.get(0).getPRs().equals(prList)) {
+      disposeWorkers();
+      try {
+        FeatureMap features = Factory.newFeatureMap();
+        Gate.setHiddenAttribute(features, true);
+        SerialAnalyserController first =
+            (SerialAnalyserController)Factory.createResource(
+                SerialAnalyserController.class.getName(),
+                Factory.newFeatureMap(), features, getName() + " worker 1");
+        first.setPRs(prList);
+        workers.add(first);
+        for(int i = 1; i < count; i++) {
+          SerialAnalyserController copy =
+              (SerialAnalyserController)Factory.duplicate(first);
+          copy.setName(getName() + " worker " + (i + 1));
+          workers.add(copy);
+        }
+      } catch(ResourceInstantiationException e) {
+        disposeWorkers();
+        throw new ExecutionException("Could not copy the PRs of "
+            + getName(), e);
+      }
+    } else {
+      // the copies have the runtime parameters the PRs had when they were
+      // made, so bring them up to date
+      for(int i = 1; i < workers.size(); i++) {
+        List<ProcessingResource> copies = workers.get(i).getPRs();
+        for(int j = 0; j < prList.size(); j++) {
+          copyRuntimeParameters(prList.get(j), copies.get(j));
+        }
+      }
+    }
+    // the workers record the latencies of the PRs as ours, so that they can
+    // be watched while the corpus is processed
+    for(SerialAnalyserController worker : workers) {
+      worker.prLatencyMap = prLatencyMap;
+    }
+  }
+
+  /**
+   * Copy the runtime parameter values, other than the document and corpus,
+   * from a PR to its copy.
+   */
+  protected static void copyRuntimeParameters(ProcessingResource from,
+      ProcessingResource to) throws ExecutionException {
+    ResourceData rData = Gate.getCreoleRegister().get(from.getClass().getName());
+    if(rData == null) return;
+    try {
+      for(List<Parameter> disjunction : rData.getParameterList()
+          .getRuntimeParameters()) {
+        for(Parameter parameter : disjunction) {
+          String name = parameter.getName();
+          if(name.equals("corpus") || name.equals("document")) continue;
+          to.setParameterValue(name, from.getParameterValue(name));
+        }
+      }
+    } catch(ResourceInstantiationException e) {
+      throw new ExecutionException("Could not copy the runtime parameters of "
+          + from.getName(), e);
+    }
+  }
+
+  /**
+   * Delete the copies of the PRs. The PRs of this controller are left alone.
+   */
+  protected void disposeWorkers() {
+    for(int i = 0; i < workers.size(); i++) {
+      SerialAnalyserController worker = workers.get(i);
+      if(i == 0) {
+        // this one holds our own PRs, which must not be deleted with it
+        worker.setPRs(new ArrayList<ProcessingResource>());
+      }
+      Factory.deleteResource(worker);
+    }
+    workers.clear();
+  }
+
+  @Override
+  public void cleanup() {
+    disposeWorkers();
+    super.cleanup();
+  }
+
+  @Override
+  public synchronized void interrupt() {
+    super.interrupt();
+    for(SerialAnalyserController worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  /** Run the copies of the PRs over the documents of the corpus. */
+  @Override
+  protected void executeImpl() throws ExecutionException {
+    if(document != null || documentSource != null) {
+      // running as part of another pipeline, so only process its document,
+      // or over a document source, which is processed in sequence
+      super.executeImpl();
+      return;
+    }
+    interrupted = false;
+    if(corpus == null)
+      throw new ExecutionException("(ParallelCorpusController) \"" + getName()
+        + "\":\n" + "The corpus supplied for execution was null!");
+    if(isBatching(batchSize))
+      throw new ExecutionException("(ParallelCorpusController) \"" + getName()
+        + "\":\n" + "Processing the corpus in batches is not supported!");
+    if(journalURL != null)
+      throw new ExecutionException("(ParallelCorpusController) \"" + getName()
+        + "\":\n" + "Journalling the progress of runs is not supported!");
+    checkParameters();
+    prepareWorkers();
+    resetPrTimeMap();
+    benchmarkFeatures.put(Benchmark.CORPUS_NAME_FEATURE, corpus.getName());
+
+    final int size = corpus.size();
+    final AtomicInteger nextDocument = new AtomicInteger();
+    final Throwable[] firstError = new Throwable[1];
+    List<Thread> threads = new ArrayList<Thread>();
+    for(final SerialAnalyserController worker : workers) {
+      worker.interrupted = false;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          int i;
+          while((i = nextDocument.getAndIncrement()) < size) {
+            synchronized(firstError) {
+              if(firstError[0] != null) return;
+            }
+            try {
+              processDocument(worker, i, size);
+            } catch(Throwable t) {
+              synchronized(firstError) {
+                if(firstError[0] == null) firstError[0] = t;
+              }
+              return;
+            }
+          }
+        }
+      }, worker.getName());
+      threads.add(thread);
+      thread.start();
+    }
+
+    boolean interruptedWhileWaiting = false;
+    for(Thread thread : threads) {
+      while(thread.isAlive()) {
+        try {
+          thread.join();
+        } catch(InterruptedException e) {
+          // stop the workers but keep waiting for them, so that no PR is
+          // still running when we return
+          interruptedWhileWaiting = true;
+          interrupt();
+        }
+      }
+    }
+    if(interruptedWhileWaiting) Thread.currentThread().interrupt();
+
+    benchmarkFeatures.remove(Benchmark.CORPUS_NAME_FEATURE);
+
+    Throwable thrown = firstError[0];
+    if(thrown == null) return;
+    if(thrown instanceof Error) {
+      throw (Error)thrown;
+    }
+    else if(thrown instanceof RuntimeException) {
+      throw (RuntimeException)thrown;
+    }
+    else if(thrown instanceof ExecutionException) {
+      throw (ExecutionException)thrown;
+    }
+    else {
+      // we have a checked exception that isn't one executeImpl can
+      // throw. This shouldn't be possible, but just in case...
+      throw new UndeclaredThrowableException(thrown);
+    }
+  }
+
+  /**
+   * Run a worker pipeline over one document of the corpus, loading it first
+   * and unloading it afterwards if it wasn't loaded before. Access to the
+   * corpus and the creole register is serialised as neither is thread safe.
+   */
+  protected void processDocument(SerialAnalyserController worker, int index,
+      int size) throws ExecutionException {
+    if(isInterrupted()) {
+      throw new ExecutionInterruptedException("The execution of the "
+        + getName() + " application has been abruptly interrupted!");
+    }
+    // the features of this controller are shared, so report against a copy
+    Map<Object, Object> features =
+        new HashMap<Object, Object>(benchmarkFeatures);
+    boolean docWasLoaded;
+    Document doc;
+    long documentLoadingStartTime = Benchmark.startPoint();
+    synchronized(corpus) {
+      docWasLoaded = corpus.isDocumentLoaded(index);
+      doc = corpus.get(index);
+    }
+    String benchmarkId = Benchmark.createBenchmarkId("doc_" + doc.getName(),
+        getBenchmarkId());
+    features.put(Benchmark.DOCUMENT_NAME_FEATURE, doc.getName());
+    Benchmark.checkPoint(documentLoadingStartTime,
+        Benchmark.createBenchmarkId(Benchmark.DOCUMENT_LOADED, benchmarkId),
+        this, features);
+
+    worker.setBenchmarkId(benchmarkId);
+    worker.setCorpus(corpus);
+    worker.setDocument(doc);
+    boolean succeeded = false;
+    try {
+      runWorker(worker, doc);
+      succeeded = true;
+    }
+    finally {
+      if(!succeeded) {
+        log.error("Document '" + doc.getName() + "' was document "
+            + (index + 1) + " of " + size + " in the '" + corpus.getName()
+            + "' corpus.");
+      }
+      worker.setDocument(null);
+      worker.setCorpus(null);
+      addPrTimes(worker);
+    }
+
+    if(!docWasLoaded) {
+      long documentSavingStartTime = Benchmark.startPoint();
+      synchronized(corpus) {
+        // trigger saving
+        corpus.unloadDocument(doc);
+        deleteUnloaded(corpus, doc);
+      }
+      Benchmark.checkPoint(documentSavingStartTime,
+          Benchmark.createBenchmarkId(Benchmark.DOCUMENT_SAVED, benchmarkId),
+          this, features);
+    }
+  }
+
+  /**
+   * Add the time the PRs of a worker took over its last document to the
+   * totals of this controller.
+   */
+  protected void addPrTimes(SerialAnalyserController worker) {
+    synchronized(prTimeMap) {
+      for(Map.Entry<String, Long> entry : worker.getPrTimeMap().entrySet()) {
+        Long time = prTimeMap.get(entry.getKey());
+        prTimeMap.put(entry.getKey(), time == null ? entry.getValue()
+            : time + entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Run a worker pipeline, which already has its document and corpus set.
+   * If this returns normally the document is treated as processed, and
+   * unloaded if it was not loaded before.
+   */
+  protected void runWorker(SerialAnalyserController worker, Document doc)
+      throws ExecutionException {
+    // the worker logs any error against the document itself
+    worker.execute();
+  }
+
+  /**
+   * Overridden to also make the copies of the PRs, so that the copies of
+   * controller aware PRs are told about the start of the run as well.
+   */
+  @Override
+  public void invokeControllerExecutionStarted() throws ExecutionException {
+    super.invokeControllerExecutionStarted();
+    if(document != null) return;
+    prepareWorkers();
+    for(int i = 1; i < workers.size(); i++) {
+      SerialAnalyserController worker = workers.get(i);
+      worker.setCorpus(corpus);
+      worker.invokeControllerExecutionStarted();
+      worker.setCorpus(null);
+    }
+  }
+
+  @Override
+  public void invokeControllerExecutionFinished() throws ExecutionException {
+    super.invokeControllerExecutionFinished();
+    if(document != null) return;
+    for(int i = 1; i < workers.size(); i++) {
+      SerialAnalyserController worker = workers.get(i);
+      worker.setCorpus(corpus);
+      worker.invokeControllerExecutionFinished();
+      worker.setCorpus(null);
+    }
+  }
+
+  @Override
+  public void invokeControllerExecutionAborted(Throwable thrown)
+      throws ExecutionException {
+    super.invokeControllerExecutionAborted(thrown);
+    if(document != null) return;
+    for(int i = 1; i < workers.size(); i++) {
+      SerialAnalyserController worker = workers.get(i);
+      worker.setCorpus(corpus);
+      worker.invokeControllerExecutionAborted(thrown);
+      worker.setCorpus(null);
+    }
+  }
+
+  /**
+   * Copies of this controller start without copies of the PRs; they make
+   * their own when they are first run.
+   */
+  private void readObject(java.io.ObjectInputStream in)
+      throws java.io.IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    workers = new ArrayList<SerialAnalyserController>();
+  }
+}
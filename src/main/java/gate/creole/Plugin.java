@@ -1124,6 +1124,21 @@ public abstract class Plugin {
       return resourceClass.getName();
     }
 
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + resourceClass.hashCode();
+    }
+
+    /**
+     * Components are only the same if they are for the same class, as the
+     * classes of one package all share the same base URL.
+     */
+    @Override
+    public boolean equals(Object obj) {
+      return super.equals(obj)
+          && resourceClass.equals(((Component)obj).resourceClass);
+    }
+
     @Override
     public Document getCreoleXML() throws Exception, JDOMException {
       Document doc = new Document();
@@ -0,0 +1,282 @@
+/*
+ *  ProgressJournal.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Controller;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.Resource;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An append-only record of the progress of a run over a corpus, so that a
+ * run that stopped part way through can be resumed without processing the
+ * documents it had finished again. Each line records that a document, named
+ * by its persistent ID (or by its name if it has none), was completed, failed
+ * or given up on, together with the fingerprint of the application that
+ * processed it. Only the lines with the fingerprint given when opening the
+ * journal count, so changing the PRs or their parameters starts the work
+ * afresh.
+ * <p>
+ * Each line is flushed as soon as it is written, so the journal survives the
+ * process being killed; a line cut short by a crash is removed when the
+ * journal is opened again.
+ */
+public class ProgressJournal {
+
+  private static final String COMPLETED = "DONE";
+
+  private static final String FAILED = "FAILED";
+
+  private static final String DEAD = "DEAD";
+
+  private final File file;
+
+  private final String fingerprint;
+
+  private final Set<String> completed = new HashSet<String>();
+
+  private final Map<String, Integer> failures = new HashMap<String, Integer>();
+
+  private final Set<String> deadLetters = new LinkedHashSet<String>();
+
+  private Writer out;
+
+  /**
+   * Open a journal, reading the progress already recorded in it if the file
+   * exists.
+   *
+   * @param file the file holding the journal
+   * @param fingerprint the fingerprint of the application being run, as
+   *          given by {@link #fingerprint(Controller)}
+   */
+  public ProgressJournal(File file, String fingerprint) throws IOException {
+    this.file = file;
+    this.fingerprint = fingerprint;
+    if(file.exists()) {
+      truncateIncompleteLine();
+      read();
+    }
+    out = new OutputStreamWriter(new FileOutputStream(file, true),
+        StandardCharsets.UTF_8);
+  }
+
+  /** Remove what was written of a line cut short by a crash. */
+  private void truncateIncompleteLine() throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length();
+      while(length > 0) {
+        raf.seek(length - 1);
+        if(raf.read() == '\n') break;
+        length--;
+      }
+      if(length < raf.length()) raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void read() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while((line = in.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if(fields.length < 3 || !fields[1].equals(fingerprint)) continue;
+        String id = unescape(fields[2]);
+        if(fields[0].equals(COMPLETED)) {
+          completed.add(id);
+          failures.remove(id);
+        } else if(fields[0].equals(FAILED) && fields.length == 4) {
+          Integer count = failures.get(id);
+          failures.put(id, count == null ? 1 : count + 1);
+        } else if(fields[0].equals(DEAD)) {
+          deadLetters.add(id);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /** Has the document been processed successfully? */
+  public synchronized boolean isCompleted(String id) {
+    return completed.contains(id);
+  }
+
+  /** Has the document been given up on? */
+  public synchronized boolean isDeadLettered(String id) {
+    return deadLetters.contains(id);
+  }
+
+  /** The number of times processing the document has failed. */
+  public synchronized int getFailureCount(String id) {
+    Integer count = failures.get(id);
+    return count == null ? 0 : count;
+  }
+
+  /** The documents given up on, in the order they were given up on. */
+  public synchronized Set<String> getDeadLetters() {
+    return Collections.unmodifiableSet(new LinkedHashSet<String>(deadLetters));
+  }
+
+  /** Record that a document has been processed successfully. */
+  public synchronized void completed(String id) throws IOException {
+    write(COMPLETED, id, null);
+    completed.add(id);
+    failures.remove(id);
+  }
+
+  /**
+   * Record that processing a document has failed.
+   *
+   * @return the number of times it has failed so far
+   */
+  public synchronized int failed(String id, Throwable error)
+    throws IOException {
+    write(FAILED, id, String.valueOf(error));
+    int count = getFailureCount(id) + 1;
+    failures.put(id, count);
+    return count;
+  }
+
+  /** Record that a document has been given up on. */
+  public synchronized void deadLettered(String id) throws IOException {
+    write(DEAD, id, null);
+    deadLetters.add(id);
+  }
+
+  private void write(String kind, String id, String message)
+    throws IOException {
+    if(out == null) throw new IOException("The journal has been closed");
+    StringBuilder line = new StringBuilder(kind).append('\t')
+        .append(fingerprint).append('\t').append(escape(id));
+    if(message != null) line.append('\t').append(escape(message));
+    out.write(line.append('\n').toString());
+    out.flush();
+  }
+
+  public synchronized void close() throws IOException {
+    if(out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  /** Escape the characters that separate fields and lines. */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\t", "\\t")
+        .replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static String unescape(String value) {
+    if(value.indexOf('\\') < 0) return value;
+    StringBuilder result = new StringBuilder();
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c == '\\' && i + 1 < value.length()) {
+        c = value.charAt(++i);
+        if(c == 't') c = '\t';
+        else if(c == 'n') c = '\n';
+        else if(c == 'r') c = '\r';
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  /**
+   * A fingerprint of the PRs of a controller, taken from their classes,
+   * names and parameter values (other than the document and corpus), and
+   * those of the PRs of any controllers they contain, in order.
+   */
+  public static String fingerprint(Controller controller)
+    throws ResourceInstantiationException {
+    StringBuilder description = new StringBuilder();
+    describe(controller, description);
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+          description.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for(byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+            .append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch(NoSuchAlgorithmException e) {
+      // every Java platform has SHA-1
+      throw new ResourceInstantiationException(e);
+    }
+  }
+
+  private static void describe(Controller controller,
+    StringBuilder description) throws ResourceInstantiationException {
+    for(ProcessingResource pr : controller.getPRs()) {
+      description.append(pr.getClass().getName()).append('\n')
+          .append(pr.getName()).append('\n');
+      FeatureMap parameters = AbstractResource.getInitParameterValues(pr);
+      parameters.putAll(AbstractProcessingResource.getRuntimeParameterValues(pr));
+      if(pr instanceof LanguageAnalyser) {
+        parameters.remove("document");
+        parameters.remove("corpus");
+      }
+      // in a fixed order, and with resources by name as they have no
+      // meaningful string form
+      Map<String, String> sorted = new TreeMap<String, String>();
+      for(Map.Entry<Object, Object> parameter : parameters.entrySet()) {
+        Object value = parameter.getValue();
+        sorted.put(String.valueOf(parameter.getKey()),
+            value instanceof Resource ? ((Resource)value).getName()
+                : String.valueOf(value));
+      }
+      description.append(sorted).append('\n');
+      if(pr instanceof Controller) {
+        description.append("{\n");
+        describe((Controller)pr, description);
+        description.append("}\n");
+      }
+    }
+  }
+}
@@ -17,7 +17,6 @@ package gate.creole;
 
 import gate.Document;
 import gate.Executable;
-import gate.Factory;
 import gate.LanguageAnalyser;
 import gate.Resource;
 import gate.creole.metadata.CreoleParameter;
@@ -42,7 +41,10 @@ import org.apache.log4j.Logger;
  * A custom GATE controller that interrupts the execution over a document when a
  * specified amount of time has elapsed. It also ignores all errors/exceptions 
  * that may occur during execution and simply carries on with the next document
- * when that happens.
+ * when that happens. Processing a corpus in batches (see
+ * {@link #setBatchSize(Integer)}) is not supported, nor are journalled runs
+ * (see {@link #setJournalURL(java.net.URL)}): as every error is ignored,
+ * there would be nothing to retry.
  */
 @CreoleResource(name = "Real-Time Corpus Pipeline",
     comment = "A serial controller for PR pipelines over corpora which "
@@ -244,6 +246,15 @@ public class RealtimeCorpusController extends SerialAnalyserController {
   public void executeImpl() throws ExecutionException{
     interrupted = false;
     String haveTimeout = null;
+    if(documentSource != null) throw new ExecutionException(
+      "(RealtimeCorpusController) \"" + getName() + "\":\n" +
+      "Running over a document source is not supported!");
+    if(isBatching(batchSize)) throw new ExecutionException(
+      "(RealtimeCorpusController) \"" + getName() + "\":\n" +
+      "Processing the corpus in batches is not supported!");
+    if(journalURL != null) throw new ExecutionException(
+      "(RealtimeCorpusController) \"" + getName() + "\":\n" +
+      "Journalling the progress of runs is not supported!");
     if(corpus == null) throw new ExecutionException(
       "(SerialAnalyserController) \"" + getName() + "\":\n" +
       "The corpus supplied for execution was null!");
@@ -384,7 +395,7 @@ public class RealtimeCorpusController extends SerialAnalyserController {
         //trigger saving
         getCorpus().unloadDocument(doc);
         //close the previously unloaded Doc
-        Factory.deleteResource(doc);
+        deleteUnloaded(getCorpus(), doc);
       }
       if(!suppressExceptions && haveTimeout != null) {
         throw new ExecutionException("Execution timeout occurred");
@@ -15,23 +15,28 @@
 
 package gate.creole;
 
+import gate.BatchLanguageAnalyser;
 import gate.Controller;
 import gate.CorpusController;
 import gate.Document;
-import gate.Factory;
+import gate.DocumentSource;
 import gate.Gate;
 import gate.LanguageAnalyser;
 import gate.ProcessingResource;
+import gate.corpora.SerialCorpusImpl;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
 import gate.event.CreoleEvent;
+import gate.persist.PersistenceException;
 import gate.util.Benchmark;
 import gate.util.GateRuntimeException;
 import gate.util.Out;
 
+import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -52,6 +57,16 @@ import java.util.List;
  * are processed in sequence and CorpusAwarePRs are notified
  * before the processing of the documents and after all documents
  * have been processed or an abnormal termination occurred.
+ * <p>
+ * If the batch size is more than one and some of the PRs are
+ * {@link BatchLanguageAnalyser}s, the documents are processed in batches of
+ * that size instead: batch PRs are given all the documents of the batch at
+ * once, after the PRs before them have processed the whole batch.
+ * <p>
+ * If a journal is set, the progress of the run is recorded in it (see
+ * {@link ProgressJournal}) and documents that it records as done are skipped,
+ * so that a run that stopped can be resumed. Documents that fail are tried
+ * again up to a limit and then given up on, rather than stopping the run.
  * 
  */
 @CreoleResource(name = "Corpus Pipeline",
@@ -170,17 +185,28 @@ public class SerialAnalyserController extends SerialController
   @Override
   protected void executeImpl() throws ExecutionException {
     interrupted = false;
-    if(corpus == null)
+    if(corpus == null && documentSource == null)
       throw new ExecutionException("(SerialAnalyserController) \"" + getName()
         + "\":\n" + "The corpus supplied for execution was null!");
 
-    benchmarkFeatures.put(Benchmark.CORPUS_NAME_FEATURE, corpus.getName());
+    if(corpus != null)
+      benchmarkFeatures.put(Benchmark.CORPUS_NAME_FEATURE, corpus.getName());
 
     // reset the prTimeMap that keeps track of the time
     // taken by each PR to process the entire corpus
     super.resetPrTimeMap();
     
-    if(document == null){
+    if(document == null && documentSource != null) {
+      // running as a top-level controller over a stream of documents
+      executeSource(documentSource, corpus);
+    }else if(document == null && journalURL != null) {
+      // running as a top-level controller, keeping a journal of the progress
+      executeJournalled();
+    }else if(document == null && isBatching(batchSize)) {
+      // running as a top-level controller with batch PRs -> execute over the
+      // documents in batches
+      executeBatches(corpus, batchSize);
+    }else if(document == null){
       //running as a top-level controller -> execute over all documents in 
       //sequence
       // iterate through the documents in the corpus
@@ -220,7 +246,7 @@ public class SerialAnalyserController extends SerialController
               Out.pr("SerialAnalyserController processing doc=" + doc.getName()
                 + "...");
   
-            super.executeImpl();
+            executePRs();
             if(DEBUG) Out.prln("done.");
           }
           catch (Throwable throwable) {
@@ -261,7 +287,7 @@ public class SerialAnalyserController extends SerialController
                             getBenchmarkId()), this, benchmarkFeatures);
             
             // close the previoulsy unloaded Doc
-            Factory.deleteResource(doc);
+            deleteUnloaded(corpus, doc);
           }
         }
         finally {
@@ -283,7 +309,7 @@ public class SerialAnalyserController extends SerialController
           Out.pr("SerialAnalyserController processing doc=" + document.getName()
             + "...");
 
-        super.executeImpl();
+        executePRs();
         if(DEBUG) Out.prln("done.");
       }
       catch (Throwable throwable) {
@@ -321,6 +347,262 @@ public class SerialAnalyserController extends SerialController
     benchmarkFeatures.remove(Benchmark.CORPUS_NAME_FEATURE);
   }
 
+
+  /**
+   * The source of the documents being processed by
+   * {@link #execute(DocumentSource)}
+   */
+  protected transient DocumentSource documentSource;
+
+  /**
+   * Run the PRs over each document of a source rather than over the corpus,
+   * until the source comes to its end. Only one document is loaded at a
+   * time: each is handed back to the source as soon as it has been processed,
+   * or once processing it has failed, in which case the run stops. The
+   * source is not closed. The PRs are given the corpus of this controller,
+   * which may be null.
+   */
+  public void execute(DocumentSource source) throws ExecutionException {
+    if(document != null)
+      throw new ExecutionException("(SerialAnalyserController) \"" + getName()
+        + "\":\n" + "A document source cannot be used when running over a "
+        + "single document!");
+    documentSource = source;
+    try {
+      execute();
+    }
+    finally {
+      documentSource = null;
+    }
+  }
+
+  /** The journal recording the progress of runs over the corpus */
+  protected URL journalURL;
+
+  /** The number of times a document is tried when using a journal */
+  protected Integer maxAttempts = 3;
+
+  /**
+   * The number of saved documents recorded in the journal at a time. The
+   * journal must only record a document once it has been written, which
+   * means waiting for a data store that writes behind, so this is done at
+   * each checkpoint rather than after every document. The more documents
+   * between checkpoints, the more are processed again after a crash.
+   */
+  protected int journalCheckpointInterval = 32;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "A file in which to record the progress of "
+      + "runs, so that they can be resumed")
+  public void setJournalURL(URL journalURL) {
+    this.journalURL = journalURL;
+  }
+
+  public URL getJournalURL() {
+    return journalURL;
+  }
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The number of times a document is tried "
+      + "before giving up on it, when using a journal", defaultValue = "3")
+  public void setMaxAttempts(Integer maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  public Integer getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Run the PRs over the documents of the corpus that the journal does not
+   * record as processed by the same PRs, recording each document that is
+   * completed. A document that fails is tried again, up to
+   * <code>maxAttempts</code> times over all the runs; it is then given up on
+   * and listed as such in the journal. The changes made by a failed attempt
+   * are discarded if the document was not loaded, otherwise the next attempt
+   * starts from the document as the failed one left it. Documents are named
+   * in the journal by their persistent ID if they have one, or by their name
+   * otherwise, which should then be unique in the corpus. Documents that are
+   * saved are recorded in groups, once they have all been written (see
+   * {@link #journalCheckpointInterval}).
+   */
+  protected void executeJournalled() throws ExecutionException {
+    ProgressJournal journal;
+    try {
+      journal = new ProgressJournal(gate.util.Files.fileFromURL(journalURL),
+              ProgressJournal.fingerprint(this));
+    }
+    catch(IOException e) {
+      throw new ExecutionException("Could not open the journal "
+        + journalURL, e);
+    }
+    catch(ResourceInstantiationException e) {
+      throw new ExecutionException(e);
+    }
+    int attempts = maxAttempts == null ? 1 : Math.max(1, maxAttempts);
+    // saved, but maybe not yet written, so not yet in the journal
+    List<String> unwritten = new ArrayList<String>();
+    try {
+      for(int i = 0; i < corpus.size(); i++) {
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException("The execution of the "
+            + getName() + " application has been abruptly interrupted!");
+        }
+        String id = journalId(i);
+        boolean saved = false;
+        while(!saved && !journal.isCompleted(id)
+            && !journal.isDeadLettered(id)) {
+          boolean docWasLoaded = corpus.isDocumentLoaded(i);
+          long documentLoadingStartTime = Benchmark.startPoint();
+          Document doc = null;
+          String savedBenchmarkId = getBenchmarkId();
+          Exception failure = null;
+          try {
+            // a document that cannot be loaded counts as a failed attempt
+            doc = corpus.get(i);
+            setBenchmarkId(Benchmark.createBenchmarkId("doc_" + doc.getName(),
+                    getBenchmarkId()));
+            benchmarkFeatures.put(Benchmark.DOCUMENT_NAME_FEATURE,
+                    doc.getName());
+            Benchmark.checkPoint(documentLoadingStartTime,
+                    Benchmark.createBenchmarkId(Benchmark.DOCUMENT_LOADED,
+                            getBenchmarkId()), this, benchmarkFeatures);
+            for(int j = 0; j < prList.size(); j++) {
+              ((LanguageAnalyser)prList.get(j)).setDocument(doc);
+              ((LanguageAnalyser)prList.get(j)).setCorpus(corpus);
+            }
+            executePRs();
+            if(!docWasLoaded) {
+              long documentSavingStartTime = Benchmark.startPoint();
+              // trigger saving
+              corpus.unloadDocument(doc);
+              saved = true;
+              Benchmark.checkPoint(documentSavingStartTime,
+                      Benchmark.createBenchmarkId(Benchmark.DOCUMENT_SAVED,
+                              getBenchmarkId()), this, benchmarkFeatures);
+              deleteUnloaded(corpus, doc);
+            }
+          }
+          catch(ExecutionInterruptedException e) {
+            // stopping is not a failure of the document
+            throw e;
+          }
+          catch(Exception e) {
+            failure = e;
+          }
+          finally {
+            for(int j = 0; j < prList.size(); j++) {
+              ((LanguageAnalyser)prList.get(j)).setDocument(null);
+              ((LanguageAnalyser)prList.get(j)).setCorpus(null);
+            }
+            setBenchmarkId(savedBenchmarkId);
+          }
+
+          if(saved) {
+            unwritten.add(id);
+            if(unwritten.size() >= journalCheckpointInterval)
+              checkpoint(journal, unwritten);
+          } else if(failure == null) {
+            journal.completed(id);
+          } else {
+            int failures = journal.failed(id, failure);
+            log.error("An error occurred processing document '"
+                + corpus.getDocumentName(i) + "'. This was document " + (i + 1)
+                + " of " + corpus.size() + " in the '" + corpus.getName()
+                + "' corpus, attempt " + failures + " of " + attempts, failure);
+            if(!docWasLoaded && doc != null) discard(doc);
+            if(failures >= attempts) journal.deadLettered(id);
+          }
+        }
+      }
+    }
+    catch(IOException e) {
+      throw new ExecutionException("Could not write to the journal "
+        + journalURL, e);
+    }
+    catch(PersistenceException e) {
+      throw new ExecutionException("Could not write the processed "
+        + "documents, so they are not recorded in the journal", e);
+    }
+    finally {
+      try {
+        checkpoint(journal, unwritten);
+      }
+      catch(Exception e) {
+        log.error("Could not record the last documents in the journal "
+          + journalURL + ", so they will be processed again", e);
+      }
+      try {
+        journal.close();
+      }
+      catch(IOException e) {
+        log.error("Could not close the journal " + journalURL, e);
+      }
+    }
+  }
+
+  /**
+   * Wait for the saved documents to be written, then record them in the
+   * journal.
+   */
+  private void checkpoint(ProgressJournal journal, List<String> unwritten)
+    throws IOException, PersistenceException {
+    if(unwritten.isEmpty()) return;
+    if(corpus instanceof SerialCorpusImpl) ((SerialCorpusImpl)corpus).flush();
+    for(String id : unwritten) journal.completed(id);
+    unwritten.clear();
+  }
+
+  /**
+   * The name of a document of the corpus in the journal, found without
+   * loading the document.
+   */
+  protected String journalId(int index) {
+    if(corpus instanceof SerialCorpusImpl) {
+      Object id = ((SerialCorpusImpl)corpus).getDocumentPersistentID(index);
+      if(id != null) return id.toString();
+    }
+    return corpus.getDocumentName(index);
+  }
+
+  /**
+   * Unload a document the PRs failed on and delete it, without saving the
+   * changes they made.
+   */
+  protected void discard(Document doc) {
+    try {
+      if(corpus instanceof SerialCorpusImpl) {
+        ((SerialCorpusImpl)corpus).unloadDocument(doc, false);
+      } else {
+        corpus.unloadDocument(doc);
+      }
+    }
+    catch(RuntimeException e) {
+      log.error("Could not unload " + doc.getName(), e);
+    }
+    deleteUnloaded(corpus, doc);
+  }
+
+  /**
+   * The number of documents given to each {@link BatchLanguageAnalyser} at a
+   * time
+   */
+  protected Integer batchSize = 1;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The number of documents given at a time to "
+      + "PRs that can process several documents in one go", defaultValue = "1")
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
   /**
    * Overidden from {@link SerialController} to only allow
    * {@link LanguageAnalyser}s as components.
@@ -16,11 +16,16 @@
 
 package gate.creole;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 
 import gate.*;
+import gate.corpora.SerialCorpusImpl;
 import gate.creole.metadata.*;
 import gate.event.*;
 import gate.util.*;
@@ -45,10 +50,17 @@ public class SerialController extends AbstractController implements
   protected Map<String,Long> timeMap;
   protected Map<String, Long> prTimeMap;
 
+  /**
+   * The distribution of the time each PR takes to run, by PR name. Not saved
+   * with the controller.
+   */
+  protected transient ConcurrentMap<String, LatencyHistogram> prLatencyMap;
+
   public SerialController() {
     prList = Collections.synchronizedList(new ArrayList<ProcessingResource>());
     sListener = new InternalStatusListener();
     prTimeMap = new HashMap<String, Long>();
+    prLatencyMap = new ConcurrentHashMap<String, LatencyHistogram>();
 
     if(log.isDebugEnabled()) {
       prof = new Profiler();
@@ -139,6 +151,15 @@ public class SerialController extends AbstractController implements
   /** Run the Processing Resources in sequence. */
   @Override
   protected void executeImpl() throws ExecutionException {
+    executePRs();
+  } // executeImpl()
+
+  /**
+   * Run the Processing Resources in sequence. Controllers that run the PRs
+   * over each document of a corpus call this once the PRs have been given
+   * the document.
+   */
+  protected void executePRs() throws ExecutionException {
     // check all the PRs have the right parameters
     checkParameters();
 
@@ -176,7 +197,7 @@ public class SerialController extends AbstractController implements
     }
     fireStatusChanged("Finished running " + getName());
 
-  } // executeImpl()
+  } // executePRs()
 
   /**
    * Resets the Time taken by various PRs
@@ -192,10 +213,68 @@ public class SerialController extends AbstractController implements
     return this.prTimeMap;
   }
 
+  /**
+   * Returns the distribution of the time taken by each PR to run, by PR
+   * name. Unlike the {@link #getPrTimeMap()} totals, these are kept across
+   * runs until {@link #resetPrLatencies()} is called, and can be read while
+   * the controller is running.
+   */
+  public Map<String, LatencyHistogram> getPrLatencyMap() {
+    return Collections.unmodifiableMap(prLatencyMap);
+  }
+
+  /**
+   * Forgets the times recorded in the {@link #getPrLatencyMap()}.
+   */
+  public void resetPrLatencies() {
+    prLatencyMap.clear();
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    prLatencyMap = new ConcurrentHashMap<String, LatencyHistogram>();
+  }
+
+  /** Records how long a PR took to run. */
+  protected void recordPrLatency(ProcessingResource pr, long nanos) {
+    LatencyHistogram histogram = prLatencyMap.get(pr.getName());
+    if(histogram == null) {
+      histogram = new LatencyHistogram();
+      LatencyHistogram existing =
+        prLatencyMap.putIfAbsent(pr.getName(), histogram);
+      if(existing != null) histogram = existing;
+    }
+    histogram.record(nanos);
+  }
+
   /**
    * Executes a {@link ProcessingResource}.
    */
   protected void runComponent(int componentIndex) throws ExecutionException {
+    runComponent(componentIndex, getBenchmarkId(), benchmarkFeatures);
+  }
+
+  /**
+   * Executes a {@link ProcessingResource}, reporting it to the benchmark log
+   * under the given id and with the given features. Controllers that run
+   * several PRs at the same time use this with their own id and features for
+   * each thread.
+   */
+  protected void runComponent(int componentIndex, String benchmarkId,
+          Map<Object, Object> features) throws ExecutionException {
+    runComponent(componentIndex, prList.get(componentIndex), benchmarkId,
+            features);
+  }
+
+  /**
+   * Executes something on behalf of a {@link ProcessingResource}, such as a
+   * batch of documents given to a {@link gate.BatchLanguageAnalyser}, with
+   * the listeners and timing that running the PR itself would get.
+   */
+  protected void runComponent(int componentIndex, Executable executable,
+          String benchmarkId, Map<Object, Object> features)
+          throws ExecutionException {
     ProcessingResource currentPR =
       prList.get(componentIndex);
 
@@ -218,24 +297,28 @@ public class SerialController extends AbstractController implements
     }
     try {
 
-      benchmarkFeatures.put(Benchmark.PR_NAME_FEATURE, currentPR.getName());
+      features.put(Benchmark.PR_NAME_FEATURE, currentPR.getName());
 
       long startTime = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
       // run the thing
-      Benchmark.executeWithBenchmarking(currentPR,
+      Benchmark.executeWithBenchmarking(executable,
               Benchmark.createBenchmarkId(Benchmark.PR_PREFIX + currentPR.getName(),
-                      getBenchmarkId()), this, benchmarkFeatures);
+                      benchmarkId), this, features);
 
-      benchmarkFeatures.remove(Benchmark.PR_NAME_FEATURE);
+      features.remove(Benchmark.PR_NAME_FEATURE);
 
       // calculate the time taken by the PR
+      recordPrLatency(currentPR, System.nanoTime() - startNanos);
       long timeTakenByThePR = System.currentTimeMillis() - startTime;
-      Long time = prTimeMap.get(currentPR.getName());
-      if(time == null) {
-        time = 0L;
+      synchronized(prTimeMap) {
+        Long time = prTimeMap.get(currentPR.getName());
+        if(time == null) {
+          time = 0L;
+        }
+        time = time.longValue() + timeTakenByThePR;
+        prTimeMap.put(currentPR.getName(), time);
       }
-      time = time.longValue() + timeTakenByThePR;
-      prTimeMap.put(currentPR.getName(), time);
 
     } finally {
       // remove the listeners
@@ -248,7 +331,287 @@ public class SerialController extends AbstractController implements
                 + "\n...nothing to lose any sleep over.");
       }
     }
-  }// protected void runComponent(int componentIndex)
+  }// protected void runComponent(componentIndex, executable, benchmarkId, features)
+
+  /**
+   * Should the PR at the given index be run over the document it has been
+   * given? Always, unless a subclass has a running strategy for it.
+   */
+  protected boolean shouldRun(int componentIndex) {
+    return true;
+  }
+
+  /**
+   * Runs some of the PRs over the document they have already been given,
+   * one after the other. Controllers that can run several PRs at the same
+   * time override this.
+   *
+   * @param from the index of the first PR to run
+   * @param to the index after that of the last PR to run
+   */
+  protected void runComponents(int from, int to) throws ExecutionException {
+    for(int i = from; i < to; i++) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the "
+          + getName() + " application has been abruptly interrupted!");
+      }
+      runComponent(i);
+    }
+  }
+
+  /**
+   * Should a corpus be processed in batches of the given size? Only if the
+   * size is more than one and there is at least one
+   * {@link BatchLanguageAnalyser} to make use of it.
+   */
+  protected boolean isBatching(Integer batchSize) {
+    if(batchSize == null || batchSize.intValue() <= 1) return false;
+    for(ProcessingResource pr : prList) {
+      if(pr instanceof BatchLanguageAnalyser) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Run the PRs, which must all be {@link LanguageAnalyser}s, over a corpus
+   * a batch of documents at a time. A {@link BatchLanguageAnalyser} gets all
+   * the documents of a batch it should run over in one call, once the PRs
+   * before it have processed the whole batch. The other PRs between two
+   * batch PRs are run over each document in turn with
+   * {@link #runComponents(int, int)}. Documents that were not loaded are
+   * unloaded once the batch has been processed.
+   */
+  protected void executeBatches(Corpus corpus, int batchSize)
+    throws ExecutionException {
+    for(int start = 0; start < corpus.size(); start += batchSize) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the "
+          + getName() + " application has been abruptly interrupted!");
+      }
+      int end = Math.min(start + batchSize, corpus.size());
+      List<Document> batch = new ArrayList<Document>();
+      List<Document> toUnload = new ArrayList<Document>();
+      for(int i = start; i < end; i++) {
+        boolean docWasLoaded = corpus.isDocumentLoaded(i);
+        long documentLoadingStartTime = Benchmark.startPoint();
+        Document doc = corpus.get(i);
+        batch.add(doc);
+        if(!docWasLoaded) toUnload.add(doc);
+        benchmarkFeatures.put(Benchmark.DOCUMENT_NAME_FEATURE, doc.getName());
+        Benchmark.checkPoint(documentLoadingStartTime,
+                Benchmark.createBenchmarkId(Benchmark.DOCUMENT_LOADED,
+                        documentBenchmarkId(doc)), this, benchmarkFeatures);
+      }
+
+      int j = 0;
+      while(j < prList.size()) {
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException("The execution of the "
+            + getName() + " application has been abruptly interrupted!");
+        }
+        if(prList.get(j) instanceof BatchLanguageAnalyser) {
+          runBatch(corpus, j, batch, start);
+          j++;
+        } else {
+          // the PRs up to the next batch PR
+          int next = j + 1;
+          while(next < prList.size()
+              && !(prList.get(next) instanceof BatchLanguageAnalyser)) {
+            next++;
+          }
+          for(int k = 0; k < batch.size(); k++) {
+            runDocument(corpus, j, next, batch.get(k), start + k);
+          }
+          j = next;
+        }
+      }
+
+      for(Document doc : toUnload) {
+        long documentSavingStartTime = Benchmark.startPoint();
+        benchmarkFeatures.put(Benchmark.DOCUMENT_NAME_FEATURE, doc.getName());
+        // trigger saving
+        corpus.unloadDocument(doc);
+        Benchmark.checkPoint(documentSavingStartTime,
+                Benchmark.createBenchmarkId(Benchmark.DOCUMENT_SAVED,
+                        documentBenchmarkId(doc)), this, benchmarkFeatures);
+        // close the previously unloaded Doc
+        deleteUnloaded(corpus, doc);
+      }
+    }
+  }
+
+  /**
+   * Delete a document that has been unloaded from a corpus, unless the
+   * corpus is keeping it in memory, and so still owns it.
+   */
+  protected static void deleteUnloaded(Corpus corpus, Document doc) {
+    if(corpus instanceof SerialCorpusImpl
+            && ((SerialCorpusImpl)corpus).isDocumentCached(doc)) return;
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Run the PRs over each document of a source in turn, until the source
+   * comes to its end, handing each document back to the source once it has
+   * been processed.
+   *
+   * @param source the source of the documents
+   * @param corpus the corpus given to the PRs, which may be null
+   */
+  protected void executeSource(DocumentSource source, Corpus corpus)
+    throws ExecutionException {
+    for(int i = 1;; i++) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the "
+          + getName() + " application has been abruptly interrupted!");
+      }
+      long documentLoadingStartTime = Benchmark.startPoint();
+      Document doc;
+      try {
+        doc = source.next();
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionInterruptedException("The execution of the "
+          + getName() + " application was interrupted while waiting for "
+          + "a document", e);
+      }
+      catch(ResourceInstantiationException e) {
+        throw new ExecutionException("Could not get document " + i
+          + " from the document source", e);
+      }
+      if(doc == null) break;
+
+      String savedBenchmarkId = getBenchmarkId();
+      boolean finished = false;
+      try {
+        // include the document name in the benchmark ID for sub-events
+        setBenchmarkId(Benchmark.createBenchmarkId("doc_" + doc.getName(),
+                getBenchmarkId()));
+        // report the document loading
+        benchmarkFeatures.put(Benchmark.DOCUMENT_NAME_FEATURE, doc.getName());
+        Benchmark.checkPoint(documentLoadingStartTime,
+                Benchmark.createBenchmarkId(Benchmark.DOCUMENT_LOADED,
+                        getBenchmarkId()), this, benchmarkFeatures);
+
+        for(int j = 0; j < prList.size(); j++) {
+          ((LanguageAnalyser)prList.get(j)).setDocument(doc);
+          ((LanguageAnalyser)prList.get(j)).setCorpus(corpus);
+        }
+        executePRs();
+        finished = true;
+      }
+      finally {
+        if(!finished) {
+          log.error("An error occurred processing document '" + doc.getName()
+              + "'. This was document " + i + " from the document source. "
+              + "See the log for details");
+        }
+        // make sure we unset the doc and corpus even if we got an exception
+        for(int j = 0; j < prList.size(); j++) {
+          ((LanguageAnalyser)prList.get(j)).setDocument(null);
+          ((LanguageAnalyser)prList.get(j)).setCorpus(null);
+        }
+        setBenchmarkId(savedBenchmarkId);
+        source.release(doc);
+      }
+    }
+  }
+
+  /** Run some of the PRs over one document of a batch. */
+  private void runDocument(Corpus corpus, int from, int to, Document doc,
+    int index) throws ExecutionException {
+    String savedBenchmarkId = getBenchmarkId();
+    for(int j = from; j < to; j++) {
+      ((LanguageAnalyser)prList.get(j)).setDocument(doc);
+      ((LanguageAnalyser)prList.get(j)).setCorpus(corpus);
+    }
+    benchmarkFeatures.put(Benchmark.DOCUMENT_NAME_FEATURE, doc.getName());
+    boolean finished = false;
+    try {
+      setBenchmarkId(documentBenchmarkId(doc));
+      runComponents(from, to);
+      finished = true;
+    }
+    finally {
+      if(!finished) {
+        log.error("An error occurred processing document '" + doc.getName()
+            + "'. This was document " + (index + 1) + " of " + corpus.size()
+            + " in the '" + corpus.getName()
+            + "' corpus. See the log for details");
+      }
+      for(int j = from; j < to; j++) {
+        ((LanguageAnalyser)prList.get(j)).setDocument(null);
+        ((LanguageAnalyser)prList.get(j)).setCorpus(null);
+      }
+      setBenchmarkId(savedBenchmarkId);
+    }
+  }
+
+  /**
+   * Give one of the PRs the documents of a batch it should run over, as
+   * decided by {@link #shouldRun(int)}.
+   */
+  private void runBatch(Corpus corpus, int componentIndex,
+    List<Document> batch, int index) throws ExecutionException {
+    BatchLanguageAnalyser pr =
+      (BatchLanguageAnalyser)prList.get(componentIndex);
+    List<Document> selected = new ArrayList<Document>();
+    for(Document doc : batch) {
+      // the strategy looks at the document of the PR
+      pr.setDocument(doc);
+      if(shouldRun(componentIndex)) selected.add(doc);
+    }
+    pr.setDocument(null);
+    if(selected.isEmpty()) return;
+    pr.setCorpus(corpus);
+    benchmarkFeatures.remove(Benchmark.DOCUMENT_NAME_FEATURE);
+    boolean finished = false;
+    try {
+      runComponent(componentIndex, batchExecutable(pr, selected),
+              getBenchmarkId(), benchmarkFeatures);
+      finished = true;
+    }
+    finally {
+      if(!finished) {
+        log.error("An error occurred processing documents " + (index + 1)
+            + " to " + (index + batch.size()) + " of " + corpus.size()
+            + " in the '" + corpus.getName()
+            + "' corpus. See the log for details");
+      }
+      pr.setCorpus(null);
+    }
+  }
+
+  /**
+   * Something that runs a {@link BatchLanguageAnalyser} over a batch of
+   * documents when executed.
+   */
+  static Executable batchExecutable(final BatchLanguageAnalyser pr,
+    final List<Document> batch) {
+    return new Executable() {
+      @Override
+      public void execute() throws ExecutionException {
+        pr.executeBatch(batch);
+      }
+
+      @Override
+      public void interrupt() {
+        pr.interrupt();
+      }
+
+      @Override
+      public boolean isInterrupted() {
+        return pr.isInterrupted();
+      }
+    };
+  }
+
+  /** The benchmark ID for events about one document. */
+  protected String documentBenchmarkId(Document doc) {
+    return Benchmark.createBenchmarkId("doc_" + doc.getName(),
+            getBenchmarkId());
+  }
 
   /**
    * Cleans the internal data and prepares this object to be collected
@@ -0,0 +1,564 @@
+/*
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ *
+ */
+
+package gate.creole;
+
+import gate.Document;
+import gate.LanguageAnalyser;
+import gate.corpora.SerialCorpusImpl;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.util.Benchmark;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A corpus pipeline that splits its PRs into stages and runs each stage on
+ * its own thread, so that the first PRs can work on the next document while
+ * the later ones are still busy with the current one. The stages are
+ * connected by bounded queues: a stage that gets ahead of the next one waits
+ * until there is room in its queue, so at most a few documents per stage are
+ * loaded at any time. By default every PR is a stage of its own; set
+ * {@link #setStageBoundaries(List)} to group PRs together.
+ * <p>
+ * The documents go through the pipeline in corpus order and each PR only
+ * ever sees one document at a time, from the thread of its stage, so the PRs
+ * need not be thread safe. They do however see the next document before the
+ * later PRs have finished with the previous one, so PRs that pass information
+ * to each other other than through the document can not be run this way.
+ * <p>
+ * As with the serial controller, an error on any document stops the run: the
+ * documents before it are still processed by all the stages, the documents
+ * after it that are already in the pipeline are passed through without
+ * being processed, and the error of the first document that failed is
+ * thrown from {@link #execute()}. If a thread of the run is interrupted, all
+ * the stages stop as soon as their PRs have finished with their current
+ * documents, and the documents still in the queues are left loaded. The
+ * statistics of the stages, available from {@link #getStages()} during and
+ * after a run, show which stage holds the others up. When this controller is
+ * run as part of another corpus pipeline (i.e. with its document set) it runs
+ * its PRs in sequence over that one document only, like a serial controller,
+ * and it also runs them in sequence when run over a
+ * {@link gate.DocumentSource}. Neither processing a corpus in batches (see
+ * {@link #setBatchSize(Integer)}) nor journalling runs (see
+ * {@link #setJournalURL(java.net.URL)} and {@link #setMaxAttempts(Integer)})
+ * is supported.
+ */
+@CreoleResource(name = "Staged Corpus Pipeline",
+    comment = "A corpus pipeline that runs each of its PRs on its own thread.",
+    helpURL = "http://gate.ac.uk/userguide/sec:developer:apps")
+public class StagedCorpusController extends SerialAnalyserController {
+
+  private static final long serialVersionUID = -2271380651427983112L;
+
+  /**
+   * A group of PRs run on one thread, with the queue of documents waiting for
+   * them.
+   */
+  public static class Stage {
+
+    private final int firstPR;
+
+    private final int endPR;
+
+    private final String name;
+
+    private final BlockingQueue<Task> queue;
+
+    private int maxQueueDepth = 0;
+
+    private final AtomicInteger documentCount = new AtomicInteger();
+
+    private final AtomicLong processingTime = new AtomicLong();
+
+    private final AtomicLong waitingTime = new AtomicLong();
+
+    private final AtomicLong blockedTime = new AtomicLong();
+
+    Stage(int firstPR, int endPR, String name, int capacity) {
+      this.firstPR = firstPR;
+      this.endPR = endPR;
+      this.name = name;
+      this.queue = new ArrayBlockingQueue<Task>(capacity);
+    }
+
+    /** The names of the PRs in this stage. */
+    public String getName() {
+      return name;
+    }
+
+    /** The number of documents waiting for this stage. */
+    public int getQueueDepth() {
+      return queue.size();
+    }
+
+    /** The largest number of documents that have waited for this stage. */
+    public synchronized int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    /** The number of documents this stage has processed. */
+    public int getDocumentCount() {
+      return documentCount.get();
+    }
+
+    /** The time, in milliseconds, this stage has spent running its PRs. */
+    public long getProcessingTime() {
+      return processingTime.get();
+    }
+
+    /**
+     * The time, in milliseconds, this stage has spent waiting for a document
+     * from the previous stage.
+     */
+    public long getWaitingTime() {
+      return waitingTime.get();
+    }
+
+    /**
+     * The time, in milliseconds, this stage has spent waiting for room in the
+     * queue of the next stage.
+     */
+    public long getBlockedTime() {
+      return blockedTime.get();
+    }
+
+    /**
+     * Add a task to the queue, waiting for room unless the run is aborted.
+     *
+     * @return false if the run was aborted before there was room
+     */
+    boolean put(Task task, StagedCorpusController controller)
+        throws InterruptedException {
+      while(!queue.offer(task, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+        if(controller.aborted) return false;
+      }
+      int depth = queue.size();
+      synchronized(this) {
+        if(depth > maxQueueDepth) maxQueueDepth = depth;
+      }
+      return true;
+    }
+
+    /**
+     * Take the next task from the queue, waiting for one unless the run is
+     * aborted.
+     *
+     * @return null if the run was aborted before there was a task
+     */
+    Task take(StagedCorpusController controller)
+        throws InterruptedException {
+      while(true) {
+        Task task = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if(task != null) return task;
+        if(controller.aborted) return null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name + ": " + documentCount + " documents, queue depth "
+          + getQueueDepth() + " (max " + getMaxQueueDepth() + "), processing "
+          + processingTime + "ms, waiting " + waitingTime + "ms, blocked "
+          + blockedTime + "ms";
+    }
+  }
+
+  /** A document going through the stages. */
+  static class Task {
+    final int index;
+
+    final Document document;
+
+    final boolean docWasLoaded;
+
+    final String benchmarkId;
+
+    final Map<Object, Object> features;
+
+    /** Set when a stage failed on this document */
+    boolean failed = false;
+
+    /** Set when the run stopped before this document was processed */
+    boolean skipped = false;
+
+    Task(int index, Document document, boolean docWasLoaded,
+        String benchmarkId, Map<Object, Object> features) {
+      this.index = index;
+      this.document = document;
+      this.docWasLoaded = docWasLoaded;
+      this.benchmarkId = benchmarkId;
+      this.features = features;
+    }
+  }
+
+  /** Marks the end of the documents */
+  private static final Task END = new Task(-1, null, true, null, null);
+
+  /**
+   * How often, in milliseconds, a stage waiting on a queue checks whether
+   * the run has been aborted
+   */
+  private static final long POLL_INTERVAL = 50;
+
+  /** The indices of the PRs that start a new stage */
+  protected List<Integer> stageBoundaries;
+
+  /** The number of documents that can wait for each stage */
+  protected Integer queueCapacity = 2;
+
+  /** The stages of the current or last run */
+  protected transient volatile List<Stage> stages =
+      Collections.emptyList();
+
+  /** The error of the first document that failed in the current run */
+  private transient volatile Throwable firstError;
+
+  /**
+   * The index of the first document that failed, or -1 if the run was
+   * interrupted; the documents from this one on are not processed
+   */
+  private transient volatile int stopIndex;
+
+  /** Set when a thread of the run was interrupted, to stop all the stages */
+  private transient volatile boolean aborted;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The indices of the PRs that start a new stage. "
+      + "By default each PR is a stage of its own.",
+      collectionElementType = Integer.class)
+  public void setStageBoundaries(List<Integer> stageBoundaries) {
+    this.stageBoundaries = stageBoundaries;
+  }
+
+  public List<Integer> getStageBoundaries() {
+    return stageBoundaries;
+  }
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment = "The number of documents that can wait for "
+      + "each stage", defaultValue = "2")
+  public void setQueueCapacity(Integer queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public Integer getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /** The stages of the current run, or of the last one. */
+  public List<Stage> getStages() {
+    return stages;
+  }
+
+  /** Split the PRs into stages according to the stage boundaries. */
+  protected List<Stage> makeStages() {
+    int capacity = queueCapacity == null || queueCapacity.intValue() < 1
+        ? 1 : queueCapacity.intValue();
+    List<Integer> starts = new ArrayList<Integer>();
+    starts.add(0);
+    if(stageBoundaries == null) {
+      for(int i = 1; i < prList.size(); i++) starts.add(i);
+    } else {
+      List<Integer> boundaries = new ArrayList<Integer>(stageBoundaries);
+      Collections.sort(boundaries);
+      for(Integer boundary : boundaries) {
+        if(boundary != null && boundary > starts.get(starts.size() - 1)
+            && boundary < prList.size()) starts.add(boundary);
+      }
+    }
+    List<Stage> newStages = new ArrayList<Stage>();
+    for(int i = 0; i < starts.size(); i++) {
+      int first = starts.get(i);
+      int end = i + 1 < starts.size() ? starts.get(i + 1) : prList.size();
+      StringBuilder name = new StringBuilder();
+      for(int j = first; j < end; j++) {
+        if(j > first) name.append(", ");
+        name.append(prList.get(j).getName());
+      }
+      newStages.add(new Stage(first, end, name.toString(), capacity));
+    }
+    return Collections.unmodifiableList(newStages);
+  }
+
+  /** Run the stages over the documents of the corpus. */
+  @Override
+  protected void executeImpl() throws ExecutionException {
+    if(document != null || documentSource != null || prList.isEmpty()) {
+      // running as part of another pipeline, so only process its document,
+      // or over a document source, which is processed in sequence
+      super.executeImpl();
+      return;
+    }
+    interrupted = false;
+    if(corpus == null)
+      throw new ExecutionException("(StagedCorpusController) \"" + getName()
+        + "\":\n" + "The corpus supplied for execution was null!");
+    if(isBatching(batchSize))
+      throw new ExecutionException("(StagedCorpusController) \"" + getName()
+        + "\":\n" + "Processing the corpus in batches is not supported!");
+    if(journalURL != null)
+      throw new ExecutionException("(StagedCorpusController) \"" + getName()
+        + "\":\n" + "Journalling the progress of runs is not supported!");
+    checkParameters();
+    firstError = null;
+    stopIndex = Integer.MAX_VALUE;
+    aborted = false;
+    resetPrTimeMap();
+    benchmarkFeatures.put(Benchmark.CORPUS_NAME_FEATURE, corpus.getName());
+
+    final List<Stage> runStages = makeStages();
+    stages = runStages;
+    List<Thread> threads = new ArrayList<Thread>();
+    for(int i = 0; i < runStages.size(); i++) {
+      final Stage stage = runStages.get(i);
+      final Stage next = i + 1 < runStages.size() ? runStages.get(i + 1) : null;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runStage(stage, next);
+        }
+      }, getName() + " stage " + (i + 1));
+      threads.add(thread);
+      thread.start();
+    }
+
+    // this thread loads the documents into the first stage
+    Stage first = runStages.get(0);
+    int size = corpus.size();
+    try {
+      for(int i = 0; i < size && i < stopIndex; i++) {
+        Task task;
+        try {
+          task = loadDocument(i);
+        } catch(Throwable t) {
+          fail(t, i);
+          break;
+        }
+        if(!first.put(task, this)) break;
+      }
+      if(!aborted) first.put(END, this);
+      for(Thread thread : threads) thread.join();
+    } catch(InterruptedException e) {
+      // the stages finish with their current documents on their own
+      Thread.currentThread().interrupt();
+      abort();
+    }
+
+    benchmarkFeatures.remove(Benchmark.CORPUS_NAME_FEATURE);
+
+    Throwable thrown = firstError;
+    firstError = null;
+    if(thrown == null) return;
+    if(thrown instanceof Error) {
+      throw (Error)thrown;
+    }
+    else if(thrown instanceof RuntimeException) {
+      throw (RuntimeException)thrown;
+    }
+    else if(thrown instanceof ExecutionException) {
+      throw (ExecutionException)thrown;
+    }
+    else {
+      // we have a checked exception that isn't one executeImpl can
+      // throw. This shouldn't be possible, but just in case...
+      throw new UndeclaredThrowableException(thrown);
+    }
+  }
+
+  /**
+   * Record the error of a document, which stops the run from that document
+   * on, unless an earlier document has already failed.
+   */
+  private synchronized void fail(Throwable t, int index) {
+    if(index < stopIndex) {
+      stopIndex = index;
+      firstError = t;
+    }
+  }
+
+  /**
+   * Stop processing documents, as the run has been interrupted through
+   * {@link #interrupt()}. The documents in the queues are still passed
+   * through to be released.
+   */
+  private void interruptRun() {
+    fail(new ExecutionInterruptedException("The execution of the "
+        + getName() + " application has been abruptly interrupted!"), -1);
+  }
+
+  /**
+   * Stop all the stages at once, as a thread of the run has been
+   * interrupted.
+   */
+  private void abort() {
+    interruptRun();
+    aborted = true;
+  }
+
+  /**
+   * Load a document of the corpus. Access to the corpus is serialised, as
+   * the last stage unloads documents while the next ones are loaded.
+   */
+  protected Task loadDocument(int index) {
+    // each document is reported with its own copy of the features
+    Map<Object, Object> features =
+        new HashMap<Object, Object>(benchmarkFeatures);
+    long documentLoadingStartTime = Benchmark.startPoint();
+    boolean docWasLoaded;
+    Document doc;
+    synchronized(corpus) {
+      docWasLoaded = corpus.isDocumentLoaded(index);
+      doc = corpus.get(index);
+    }
+    String benchmarkId = Benchmark.createBenchmarkId("doc_" + doc.getName(),
+        getBenchmarkId());
+    features.put(Benchmark.DOCUMENT_NAME_FEATURE, doc.getName());
+    Benchmark.checkPoint(documentLoadingStartTime,
+        Benchmark.createBenchmarkId(Benchmark.DOCUMENT_LOADED, benchmarkId),
+        this, features);
+    return new Task(index, doc, docWasLoaded, benchmarkId, features);
+  }
+
+  /**
+   * Take documents from the queue of a stage until the end marker, run the
+   * PRs of the stage over them and pass them on to the next stage. The last
+   * stage unloads the documents that were not loaded before.
+   */
+  protected void runStage(Stage stage, Stage next) {
+    try {
+      while(true) {
+        long waitStart = System.currentTimeMillis();
+        Task task = stage.take(this);
+        if(task == null) return;
+        stage.waitingTime.addAndGet(System.currentTimeMillis() - waitStart);
+
+        if(task != END) {
+          if(isInterrupted()) interruptRun();
+          if(!task.failed && !task.skipped) {
+            if(task.index >= stopIndex) {
+              task.skipped = true;
+            } else {
+              long start = System.currentTimeMillis();
+              try {
+                runPRs(stage, task);
+                stage.documentCount.incrementAndGet();
+              } catch(Throwable t) {
+                task.failed = true;
+                log.error("An error occurred processing document '"
+                    + task.document.getName() + "'. This was document "
+                    + (task.index + 1) + " of " + corpus.size() + " in the '"
+                    + corpus.getName() + "' corpus. See the log for details");
+                fail(t, task.index);
+              }
+              stage.processingTime.addAndGet(System.currentTimeMillis()
+                  - start);
+            }
+          }
+          if(next == null) {
+            try {
+              releaseDocument(task);
+            } catch(Throwable t) {
+              // keep taking documents, or the earlier stages would block
+              fail(t, task.index);
+            }
+          }
+        }
+
+        if(next != null) {
+          long blockStart = System.currentTimeMillis();
+          if(!next.put(task, this)) return;
+          stage.blockedTime.addAndGet(System.currentTimeMillis() - blockStart);
+        }
+        if(task == END) return;
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort();
+    }
+  }
+
+  /** Run the PRs of a stage over the document of a task. */
+  protected void runPRs(Stage stage, Task task) throws ExecutionException {
+    for(int j = stage.firstPR; j < stage.endPR; j++) {
+      ((LanguageAnalyser)prList.get(j)).setDocument(task.document);
+      ((LanguageAnalyser)prList.get(j)).setCorpus(corpus);
+    }
+    try {
+      for(int j = stage.firstPR; j < stage.endPR; j++) {
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException("The execution of the "
+            + getName() + " application has been abruptly interrupted!");
+        }
+        runComponent(j, task.benchmarkId, task.features);
+      }
+    }
+    finally {
+      // make sure we unset the doc and corpus even if we got an exception
+      for(int j = stage.firstPR; j < stage.endPR; j++) {
+        ((LanguageAnalyser)prList.get(j)).setDocument(null);
+        ((LanguageAnalyser)prList.get(j)).setCorpus(null);
+      }
+    }
+  }
+
+  /**
+   * Unload and delete the document of a task if it was not loaded before the
+   * run. A document that failed is left loaded, as the serial controller
+   * does, and one that was only partly processed because the run stopped is
+   * unloaded without saving it when the corpus allows that.
+   */
+  protected void releaseDocument(Task task) {
+    if(task.docWasLoaded || task.failed) return;
+    long documentSavingStartTime = Benchmark.startPoint();
+    synchronized(corpus) {
+      if(!task.skipped) {
+        // trigger saving
+        corpus.unloadDocument(task.document);
+      } else if(corpus instanceof SerialCorpusImpl) {
+        ((SerialCorpusImpl)corpus).unloadDocument(task.document, false);
+      } else {
+        return;
+      }
+      deleteUnloaded(corpus, task.document);
+    }
+    if(!task.skipped) {
+      Benchmark.checkPoint(documentSavingStartTime,
+          Benchmark.createBenchmarkId(Benchmark.DOCUMENT_SAVED,
+              task.benchmarkId), this, task.features);
+    }
+  }
+
+  /**
+   * A fresh copy of this controller has no stages until it is run.
+   */
+  private void readObject(java.io.ObjectInputStream in)
+      throws java.io.IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    stages = Collections.emptyList();
+  }
+}
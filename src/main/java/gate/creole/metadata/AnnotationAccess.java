@@ -0,0 +1,60 @@
+/*
+ *  AnnotationAccess.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+package gate.creole.metadata;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Declares which annotations a language analyser reads and writes, so that
+ * a controller such as {@link gate.creole.DataflowCorpusController} can run
+ * PRs that do not depend on each other over the same document at the same
+ * time. A PR without this annotation is assumed to read and write
+ * everything.</p>
+ *
+ * <p>Each entry names an annotation set and optionally a type, as
+ * <code>set:Type</code> or just <code>set</code> for all the types in the
+ * set. The set is either a literal name (the empty string for the default
+ * set), <code>*</code> for any set, or <code>${param}</code> for the set named
+ * by the current value of the runtime parameter <code>param</code>. For
+ * example:</p>
+ *
+ * <pre>
+ * &#64;AnnotationAccess(reads = "${inputASName}:Token",
+ *     writes = "${outputASName}:Date")
+ * </pre>
+ *
+ * <p>The declaration must cover every annotation the PR reads or changes;
+ * PRs that also change the document content or features must not declare
+ * their accesses.</p>
+ */
+@Documented
+@Inherited
+@Target( {ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AnnotationAccess {
+  /**
+   * The annotations this PR reads.
+   */
+  String[] reads() default {};
+
+  /**
+   * The annotations this PR creates, changes or removes.
+   */
+  String[] writes() default {};
+}
@@ -2356,19 +2356,30 @@ public class MainFrame extends JFrame implements ProgressListener,
    * @return the new datastore or null if an error occurs
    */
   protected DataStore createSerialDataStore() {
+    return createSerialDataStore("gate.persist.SerialDataStore");
+  } // createSerialDataStore()
+
+  /**
+   * Create a file based datastore of the given class, in a directory chosen
+   * by the user.
+   * @param className the class of the datastore, a SerialDataStore or a
+   * subclass of it
+   * @return the new datastore or null if an error occurs
+   */
+  protected DataStore createSerialDataStore(String className) {
     DataStore ds = null;
 
     // get the URL (a file in this case)
     fileChooser.setDialogTitle("Please create a new empty directory");
     fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
     fileChooser.setFileFilter(fileChooser.getAcceptAllFileFilter());
-    fileChooser.setResource("gate.persist.SerialDataStore");
+    fileChooser.setResource(className);
     if(fileChooser.showOpenDialog(MainFrame.this)
       == JFileChooser.APPROVE_OPTION) {
       try {
         URL dsURL = fileChooser.getSelectedFile().toURI().toURL();
         ds =
-          Factory.createDataStore("gate.persist.SerialDataStore", dsURL
+          Factory.createDataStore(className, dsURL
             .toExternalForm());
       }
       catch(MalformedURLException mue) {
@@ -2384,26 +2395,37 @@ public class MainFrame extends JFrame implements ProgressListener,
     } // if
 
     return ds;
-  } // createSerialDataStore()
+  } // createSerialDataStore(className)
 
   /**
    * Method is used in OpenDSAction
    * @return the opened datastore or null if an error occurs
    */
   protected DataStore openSerialDataStore() {
+    return openSerialDataStore("gate.persist.SerialDataStore");
+  } // openSerialDataStore()
+
+  /**
+   * Open a file based datastore of the given class, from a directory chosen
+   * by the user.
+   * @param className the class of the datastore, a SerialDataStore or a
+   * subclass of it
+   * @return the opened datastore or null if an error occurs
+   */
+  protected DataStore openSerialDataStore(String className) {
     DataStore ds = null;
 
     // get the URL (a file in this case)
     fileChooser.setDialogTitle("Select the datastore directory");
     fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
     fileChooser.setFileFilter(fileChooser.getAcceptAllFileFilter());
-    fileChooser.setResource("gate.persist.SerialDataStore");
+    fileChooser.setResource(className);
     if(fileChooser.showOpenDialog(MainFrame.this)
       == JFileChooser.APPROVE_OPTION) {
       try {
         URL dsURL = fileChooser.getSelectedFile().toURI().toURL();
         ds =
-          Factory.openDataStore("gate.persist.SerialDataStore", dsURL
+          Factory.openDataStore(className, dsURL
             .toExternalForm());
       }
       catch(MalformedURLException mue) {
@@ -2419,7 +2441,7 @@ public class MainFrame extends JFrame implements ProgressListener,
     } // if
 
     return ds;
-  } // openSerialDataStore()
+  } // openSerialDataStore(className)
 
   /**
    * Method is used in ....OpenDSAction
@@ -3669,6 +3691,9 @@ public class MainFrame extends JFrame implements ProgressListener,
           if(className.equals("gate.persist.SerialDataStore")) {
             createSerialDataStore();
           }
+          else if(className.equals("gate.persist.LogStructuredDataStore")) {
+            createSerialDataStore(className);
+          }
           else if(className.equals("gate.persist.LuceneDataStoreImpl")) {
             createSearchableDataStore();
           }
@@ -4245,7 +4270,10 @@ public class MainFrame extends JFrame implements ProgressListener,
         if(answer.equals("OK") && !list.isSelectionEmpty()) {
           Gate.getUserConfig().put(MainFrame.class.getName()
             + ".datastoretype", list.getSelectedValue());
-          if(className.indexOf("SerialDataStore") != -1) {
+          if(className.indexOf("LogStructuredDataStore") != -1) {
+            openSerialDataStore(className);
+          }
+          else if(className.indexOf("SerialDataStore") != -1) {
             openSerialDataStore();
           }
           else if(className.indexOf("LuceneDataStoreImpl") != -1) {
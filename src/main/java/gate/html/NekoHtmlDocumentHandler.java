@@ -19,6 +19,7 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.GateConstants;
+import gate.annotation.AnnotationBulkLoader;
 import gate.corpora.DocumentContentImpl;
 import gate.corpora.RepositioningInfo;
 import gate.event.StatusListener;
@@ -447,13 +448,15 @@ public class NekoHtmlDocumentHandler
 
     // sort colector ascending on its id
     Collections.sort(colector);
-    // iterate through colector and construct annotations
+    // iterate through colector and construct annotations, which are
+    // added to the set in one go at the end
+    AnnotationBulkLoader loader = new AnnotationBulkLoader(basicAS);
     while(!colector.isEmpty()) {
       obj = colector.getFirst();
       colector.remove(obj);
       // Construct an annotation from this obj
       try {
-        basicAS.add(obj.getStart(), obj.getEnd(), obj.getElemName(), obj
+        loader.add(obj.getStart(), obj.getEnd(), obj.getElemName(), obj
                 .getFM());
       }
       catch(InvalidOffsetException e) {
@@ -461,6 +464,13 @@ public class NekoHtmlDocumentHandler
       }// end try
       // }// end if
     }// while
+    try {
+      loader.load();
+    }
+    catch(InvalidOffsetException e) {
+      // the offsets were checked as the annotations were queued
+      throw new XNIException(e);
+    }
 
     // notify the listener about the total amount of elements that
     // has been processed
@@ -0,0 +1,389 @@
+/*
+ *  BinaryDocumentCodec.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.persist;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.LanguageResource;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+import gate.util.InvalidOffsetException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A codec that writes documents in a compact binary form: the content, the
+ * document properties and the annotations and features are written field by
+ * field, with annotation types and feature names written once per file, and
+ * only feature values of types other than strings, numbers and booleans are
+ * serialised. Those are all written to one object stream per document, ahead
+ * of the rest, so values shared between features are still shared when read
+ * back. Reading such a document back is several times faster than
+ * deserialising it.
+ * <p>
+ * Only plain {@link DocumentImpl}s whose annotation sets hold no relations
+ * are written this way; other resources, such as corpora, are written with
+ * Java serialisation, as by the {@link JavaSerializationCodec}.
+ */
+public class BinaryDocumentCodec implements DataStoreCodec {
+
+  public static final String NAME = "binary";
+
+  /** Marks a resource written with Java serialisation */
+  private static final int SERIALIZED = 'J';
+
+  /** Marks a document written by this codec */
+  private static final int DOCUMENT = 'D';
+
+  // the types of value
+  private static final int NULL = 0;
+
+  private static final int STRING = 1;
+
+  private static final int INTEGER = 2;
+
+  private static final int LONG = 3;
+
+  private static final int DOUBLE = 4;
+
+  private static final int BOOLEAN = 5;
+
+  private static final int OBJECT = 6;
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  /** Can a resource be written field by field? */
+  protected boolean canEncode(LanguageResource lr) {
+    if(lr.getClass() != DocumentImpl.class) return false;
+    DocumentImpl doc = (DocumentImpl)lr;
+    if(doc.getContent() != null
+        && doc.getContent().getClass() != DocumentContentImpl.class)
+      return false;
+    if(!doc.getAnnotations().getRelations().isEmpty()) return false;
+    for(String name : doc.getAnnotationSetNames()) {
+      if(!doc.getAnnotations(name).getRelations().isEmpty()) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void write(LanguageResource lr, OutputStream out) throws IOException {
+    if(!canEncode(lr)) {
+      out.write(SERIALIZED);
+      new JavaSerializationCodec().write(lr, out);
+      return;
+    }
+    out.write(DOCUMENT);
+    Writer writer = new Writer();
+    writer.writeDocument((DocumentImpl)lr);
+    writer.writeTo(new DataOutputStream(out));
+  }
+
+  @Override
+  public LanguageResource read(InputStream in)
+    throws IOException, ClassNotFoundException {
+    int kind = in.read();
+    if(kind == SERIALIZED) return new JavaSerializationCodec().read(in);
+    if(kind != DOCUMENT)
+      throw new IOException("Not written by the binary document codec");
+    return new Reader(new DataInputStream(in)).readDocument();
+  }
+
+  /**
+   * Writes one document, remembering the names already written. The values
+   * that have to be serialised go to their own object stream, which is
+   * written out before the rest as it is needed to read it.
+   */
+  private static class Writer {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    final DataOutputStream out = new DataOutputStream(bytes);
+
+    final Map<String, Integer> symbols = new HashMap<String, Integer>();
+
+    ByteArrayOutputStream objectBytes;
+
+    ObjectOutputStream objects;
+
+    void writeDocument(DocumentImpl doc) throws IOException {
+      writeString(doc.getName());
+      DocumentContentImpl content = (DocumentContentImpl)doc.getContent();
+      writeString(content == null ? null : content.toString());
+      String original = content == null ? null : content.getOriginalContent();
+      if(original != null && original.equals(content.toString())) {
+        out.writeBoolean(true);
+      } else {
+        out.writeBoolean(false);
+        writeString(original);
+      }
+      writeString(doc.getEncoding());
+      writeString(doc.getMimeType());
+      writeString(doc.getStringContent());
+      writeString(doc.getSourceUrl() == null ? null : doc.getSourceUrl()
+          .toExternalForm());
+      writeValue(doc.getSourceUrlStartOffset());
+      writeValue(doc.getSourceUrlEndOffset());
+      writeValue(doc.getPreserveOriginalContent());
+      writeValue(doc.getCollectRepositioningInfo());
+      writeValue(doc.getMarkupAware());
+      out.writeBoolean(doc.getSerializeNamespaceInfo());
+      writeString(doc.getNamespaceURIFeature());
+      writeString(doc.getNamespacePrefixFeature());
+      // the mapped content threshold is a setting of all documents rather
+      // than of this one, so like Java serialisation this leaves it alone
+      writeFeatures(doc.getFeatures());
+
+      List<String> names = new ArrayList<String>(doc.getAnnotationSetNames());
+      out.writeInt(names.size() + 1);
+      writeAnnotations(null, doc.getAnnotations());
+      for(String name : names) {
+        writeAnnotations(name, doc.getAnnotations(name));
+      }
+      out.writeInt(doc.peakAtNextAnnotationId());
+    }
+
+    /** Write the object stream, then the rest of the document. */
+    void writeTo(DataOutputStream to) throws IOException {
+      if(objects == null) {
+        to.writeInt(0);
+      } else {
+        objects.close();
+        to.writeInt(objectBytes.size());
+        objectBytes.writeTo(to);
+      }
+      out.flush();
+      bytes.writeTo(to);
+      to.flush();
+    }
+
+    void writeAnnotations(String name, AnnotationSet set) throws IOException {
+      writeSymbol(name);
+      out.writeInt(set.size());
+      for(Annotation a : set) {
+        out.writeInt(a.getId());
+        out.writeLong(a.getStartNode().getOffset());
+        out.writeLong(a.getEndNode().getOffset());
+        writeSymbol(a.getType());
+        writeFeatures(a.getFeatures());
+      }
+    }
+
+    void writeFeatures(FeatureMap features) throws IOException {
+      if(features == null) {
+        out.writeInt(-1);
+        return;
+      }
+      out.writeInt(features.size());
+      for(Map.Entry<Object, Object> feature : features.entrySet()) {
+        if(feature.getKey() instanceof String) {
+          out.write(STRING);
+          writeSymbol((String)feature.getKey());
+        } else {
+          writeValue(feature.getKey());
+        }
+        writeValue(feature.getValue());
+      }
+    }
+
+    void writeValue(Object value) throws IOException {
+      if(value == null) {
+        out.write(NULL);
+      } else if(value instanceof String) {
+        out.write(STRING);
+        writeString((String)value);
+      } else if(value.getClass() == Integer.class) {
+        out.write(INTEGER);
+        out.writeInt((Integer)value);
+      } else if(value.getClass() == Long.class) {
+        out.write(LONG);
+        out.writeLong((Long)value);
+      } else if(value.getClass() == Double.class) {
+        out.write(DOUBLE);
+        out.writeDouble((Double)value);
+      } else if(value.getClass() == Boolean.class) {
+        out.write(BOOLEAN);
+        out.writeBoolean((Boolean)value);
+      } else {
+        out.write(OBJECT);
+        if(objects == null) {
+          objectBytes = new ByteArrayOutputStream();
+          objects = new ObjectOutputStream(objectBytes);
+        }
+        objects.writeObject(value);
+      }
+    }
+
+    /** Write a name, as its number if it has been written before. */
+    void writeSymbol(String symbol) throws IOException {
+      Integer index = symbol == null ? null : symbols.get(symbol);
+      if(index != null) {
+        out.writeInt(index);
+      } else {
+        out.writeInt(-1);
+        writeString(symbol);
+        if(symbol != null) symbols.put(symbol, symbols.size());
+      }
+    }
+
+    void writeString(String value) throws IOException {
+      if(value == null) {
+        out.writeInt(-1);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /** Reads one document. */
+  private static class Reader {
+    final DataInputStream in;
+
+    final List<String> symbols = new ArrayList<String>();
+
+    /** The serialised values of the document, or null if there are none */
+    ObjectInputStream objects;
+
+    Reader(DataInputStream in) {
+      this.in = in;
+    }
+
+    DocumentImpl readDocument() throws IOException, ClassNotFoundException {
+      int objectLength = in.readInt();
+      if(objectLength > 0) {
+        byte[] bytes = new byte[objectLength];
+        in.readFully(bytes);
+        objects = new GateAwareObjectInputStream(
+            new ByteArrayInputStream(bytes));
+      }
+      DocumentImpl doc = new DocumentImpl();
+      doc.setName(readString());
+      String content = readString();
+      String original = in.readBoolean() ? content : readString();
+      if(content != null)
+        doc.setContent(new DocumentContentImpl(content, original));
+      doc.setEncoding(readString());
+      doc.setMimeType(readString());
+      doc.setStringContent(readString());
+      String sourceUrl = readString();
+      if(sourceUrl != null) doc.setSourceUrl(new URL(sourceUrl));
+      doc.setSourceUrlStartOffset((Long)readValue());
+      doc.setSourceUrlEndOffset((Long)readValue());
+      doc.setPreserveOriginalContent((Boolean)readValue());
+      doc.setCollectRepositioningInfo((Boolean)readValue());
+      doc.setMarkupAware((Boolean)readValue());
+      boolean serializeNamespaceInfo = in.readBoolean();
+      doc.setNamespaceInfo(serializeNamespaceInfo, readString(), readString());
+      doc.setFeatures(readFeatures());
+
+      int sets = in.readInt();
+      for(int i = 0; i < sets; i++) {
+        String name = readSymbol();
+        AnnotationSet set =
+            i == 0 ? doc.getAnnotations() : doc.getAnnotations(name);
+        int size = in.readInt();
+        for(int j = 0; j < size; j++) {
+          int id = in.readInt();
+          long start = in.readLong();
+          long end = in.readLong();
+          String type = readSymbol();
+          try {
+            set.add(id, start, end, type, readFeatures());
+          } catch(InvalidOffsetException e) {
+            throw new IOException("Invalid annotation " + id + " in "
+                + doc.getName(), e);
+          }
+        }
+      }
+      doc.setNextAnnotationId(in.readInt());
+      return doc;
+    }
+
+    FeatureMap readFeatures() throws IOException, ClassNotFoundException {
+      int size = in.readInt();
+      if(size < 0) return null;
+      FeatureMap features = Factory.newFeatureMap();
+      for(int i = 0; i < size; i++) {
+        int kind = in.read();
+        Object key = kind == STRING ? readSymbol() : readValue(kind);
+        features.put(key, readValue());
+      }
+      return features;
+    }
+
+    Object readValue() throws IOException, ClassNotFoundException {
+      return readValue(in.read());
+    }
+
+    Object readValue(int kind) throws IOException, ClassNotFoundException {
+      switch(kind) {
+        case NULL:
+          return null;
+        case STRING:
+          return readString();
+        case INTEGER:
+          return in.readInt();
+        case LONG:
+          return in.readLong();
+        case DOUBLE:
+          return in.readDouble();
+        case BOOLEAN:
+          return in.readBoolean();
+        case OBJECT:
+          if(objects == null)
+            throw new IOException("No serialised values for the document");
+          return objects.readObject();
+        default:
+          throw new IOException("Unknown value type " + kind);
+      }
+    }
+
+    String readSymbol() throws IOException {
+      int index = in.readInt();
+      if(index >= 0) return symbols.get(index);
+      String symbol = readString();
+      if(symbol != null) symbols.add(symbol);
+      return symbol;
+    }
+
+    String readString() throws IOException {
+      int length = in.readInt();
+      if(length < 0) return null;
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *  DataStoreCodec.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.persist;
+
+import gate.LanguageResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes language resources to, and reads them back from, the files of a
+ * {@link SerialDataStore}. The codec of a data store is chosen when it is
+ * created and recorded in its version file. Besides the codecs built into
+ * GATE (see {@link DataStoreCodecs}), codecs can be provided by plugins as
+ * services, i.e. listed in a
+ * <code>META-INF/services/gate.persist.DataStoreCodec</code> file.
+ */
+public interface DataStoreCodec {
+
+  /**
+   * The name the codec is recorded under, which must not contain white
+   * space.
+   */
+  public String getName();
+
+  /**
+   * Write a resource. The stream is closed by the caller.
+   */
+  public void write(LanguageResource lr, OutputStream out) throws IOException;
+
+  /**
+   * Read a resource written by {@link #write(LanguageResource, OutputStream)}.
+   * The data store and persistence ID of the resource are set by the caller.
+   */
+  public LanguageResource read(InputStream in)
+    throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,216 @@
+/*
+ *  DataStoreCodecs.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.persist;
+
+import gate.Gate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Finds {@link DataStoreCodec}s and {@link DataStoreCompression}s by name.
+ * The codecs built in are {@link JavaSerializationCodec#NAME "java"} and
+ * {@link BinaryDocumentCodec#NAME "binary"}; the compressions built in are
+ * <code>none</code>, <code>gzip</code>, and <code>deflate-</code><i>n</i>
+ * for raw deflate at level <i>n</i>, from 1 (fastest) to 9 (smallest).
+ * Others are looked for among the services available to the GATE class
+ * loader.
+ */
+public class DataStoreCodecs {
+
+  public static final String NO_COMPRESSION = "none";
+
+  public static final String GZIP = "gzip";
+
+  public static final String DEFLATE_PREFIX = "deflate-";
+
+  private DataStoreCodecs() {
+  }
+
+  /**
+   * Get the codec with the given name.
+   *
+   * @throws PersistenceException if there is no such codec
+   */
+  public static DataStoreCodec getCodec(String name)
+    throws PersistenceException {
+    if(JavaSerializationCodec.NAME.equals(name))
+      return new JavaSerializationCodec();
+    if(BinaryDocumentCodec.NAME.equals(name)) return new BinaryDocumentCodec();
+    for(DataStoreCodec codec : ServiceLoader.load(DataStoreCodec.class,
+        Gate.getClassLoader())) {
+      if(codec.getName().equals(name)) return codec;
+    }
+    throw new PersistenceException("Unknown datastore codec " + name);
+  }
+
+  /**
+   * Get the compression with the given name.
+   *
+   * @throws PersistenceException if there is no such compression
+   */
+  public static DataStoreCompression getCompression(String name)
+    throws PersistenceException {
+    if(NO_COMPRESSION.equals(name)) return new NoCompression();
+    if(GZIP.equals(name)) return new GzipCompression();
+    if(name != null && name.startsWith(DEFLATE_PREFIX)) {
+      try {
+        int level = Integer.parseInt(name.substring(DEFLATE_PREFIX.length()));
+        if(level >= 1 && level <= 9) return new DeflateCompression(level);
+      } catch(NumberFormatException e) {
+        // not one of ours
+      }
+    }
+    for(DataStoreCompression compression : ServiceLoader.load(
+        DataStoreCompression.class, Gate.getClassLoader())) {
+      if(compression.getName().equals(name)) return compression;
+    }
+    throw new PersistenceException("Unknown datastore compression " + name);
+  }
+
+  /** Stores the files as they are. */
+  static class NoCompression implements DataStoreCompression {
+    @Override
+    public String getName() {
+      return NO_COMPRESSION;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+  }
+
+  /** The GZIP compression used by the serial data store from version 1.1. */
+  static class GzipCompression implements DataStoreCompression {
+    @Override
+    public String getName() {
+      return GZIP;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in);
+    }
+  }
+
+  /**
+   * Raw deflate at a chosen level, without the header and checksum of GZIP.
+   * Level 1 compresses several times faster than the GZIP default.
+   */
+  static class DeflateCompression implements DataStoreCompression {
+    private final int level;
+
+    DeflateCompression(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public String getName() {
+      return DEFLATE_PREFIX + level;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      final Deflater deflater = new Deflater(level, true);
+      return new DeflaterOutputStream(out, deflater, 8192) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            // free the native memory now rather than when collected
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      final Inflater inflater = new Inflater(true);
+      return new InflaterInputStream(new PaddedInputStream(in), inflater,
+          8192) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Adds a zero byte at the end of a stream, which the inflater needs to
+   * finish reading raw deflate data.
+   */
+  private static class PaddedInputStream extends InputStream {
+    private final InputStream in;
+
+    private boolean padded = false;
+
+    PaddedInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if(b < 0 && !padded) {
+        padded = true;
+        return 0;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(len == 0) return 0;
+      int n = in.read(b, off, len);
+      if(n < 0 && !padded) {
+        padded = true;
+        b[off] = 0;
+        return 1;
+      }
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
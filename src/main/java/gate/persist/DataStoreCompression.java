@@ -0,0 +1,40 @@
+/*
+ *  DataStoreCompression.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.persist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses the files of a {@link SerialDataStore}. Like the
+ * {@link DataStoreCodec}, the compression of a data store is chosen when it is
+ * created and recorded in its version file, and further compressions can be
+ * provided by plugins as services.
+ */
+public interface DataStoreCompression {
+
+  /**
+   * The name the compression is recorded under, which must not contain white
+   * space.
+   */
+  public String getName();
+
+  /** Wrap a stream so that what is written to it gets compressed. */
+  public OutputStream compress(OutputStream out) throws IOException;
+
+  /** Wrap a stream so that what is read from it gets decompressed. */
+  public InputStream decompress(InputStream in) throws IOException;
+}
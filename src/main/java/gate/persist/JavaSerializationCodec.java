@@ -0,0 +1,52 @@
+/*
+ *  JavaSerializationCodec.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.persist;
+
+import gate.LanguageResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The codec that stores resources with Java serialisation, as the
+ * {@link SerialDataStore} always has. It can store any resource.
+ */
+public class JavaSerializationCodec implements DataStoreCodec {
+
+  public static final String NAME = "java";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public void write(LanguageResource lr, OutputStream out) throws IOException {
+    ObjectOutputStream oos = new ObjectOutputStream(out);
+    oos.writeObject(lr);
+    oos.flush();
+  }
+
+  @Override
+  public LanguageResource read(InputStream in)
+    throws IOException, ClassNotFoundException {
+    // Use an input stream that is aware of the GATE classloader
+    ObjectInputStream ois = new GateAwareObjectInputStream(in);
+    return (LanguageResource)ois.readObject();
+  }
+}
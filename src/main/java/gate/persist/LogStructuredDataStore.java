@@ -0,0 +1,877 @@
+/*
+ *  LogStructuredDataStore.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.persist;
+
+import gate.LanguageResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A data store that keeps all its resources in a few large files rather
+ * than a file each. Saving a resource appends it to the current segment
+ * file, and deleting one appends a marker saying so; once a segment reaches
+ * its maximum size a new one is started. Where the latest copy of each
+ * resource is kept is held in memory, so listing and finding resources never
+ * touches the file system. When a segment is full, an index of its records
+ * is written at its end, so opening the data store only reads those indices
+ * and the records of the segment still being appended to.
+ * <p>
+ * The space taken by resources that have since been saved again or deleted
+ * is reclaimed in the background: once enough of a full segment is out of
+ * date, the resources still current in it are copied to the end of the
+ * current segment and the old segment is deleted.
+ * <p>
+ * Resources are written with the codec and compression chosen when the data
+ * store was created, as in a {@link SerialDataStore}, and the two can be
+ * used in the same way, e.g. by a {@link gate.corpora.SerialCorpusImpl}.
+ */
+public class LogStructuredDataStore extends SerialDataStore {
+
+  private static final long serialVersionUID = 5394163254958731407L;
+
+  private static final Logger log =
+      Logger.getLogger(LogStructuredDataStore.class);
+
+  /** The name of the version file, different to that of a serial store */
+  private static final String versionFileName =
+      "__GATE_LogStructuredDataStore__";
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /** Marks a record holding a resource */
+  private static final byte PUT = 'P';
+
+  /** Marks a record saying a resource has been deleted */
+  private static final byte DELETE = 'D';
+
+  /** Marks the index written at the end of a full segment */
+  private static final byte INDEX = 'I';
+
+  /** Ends the index of a full segment, after its length and checksum */
+  private static final long INDEX_MAGIC = 0x4741544549445831L;
+
+  /** The length of what follows the entries of an index */
+  private static final int INDEX_TRAILER_LENGTH = 16;
+
+  /** Where the latest copy of a resource is kept. */
+  protected static class Location {
+    final int segment;
+
+    /** Where the record starts in the segment */
+    final long offset;
+
+    /** Where the stored resource starts in the segment */
+    final long dataOffset;
+
+    final int dataLength;
+
+    /** The length of the whole record */
+    final int length;
+
+    Location(int segment, long offset, long dataOffset, int dataLength,
+        int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+      this.length = length;
+    }
+  }
+
+  /** One of the files records are appended to. */
+  protected static class Segment {
+    final int number;
+
+    final File file;
+
+    /** Open for writing while this is the current segment */
+    RandomAccessFile writer;
+
+    /** The file mapped for reading, once the segment is full */
+    MappedByteBuffer mapped;
+
+    long size;
+
+    /** The number of bytes of records still current */
+    long liveBytes;
+
+    /** The records appended while this is the current segment */
+    List<Record> records;
+
+    Segment(int number, File file) {
+      this.number = number;
+      this.file = file;
+    }
+  }
+
+  /** One record read from a segment. */
+  private static class Record {
+    byte kind;
+
+    String lrClassName;
+
+    String lrPersistenceId;
+
+    Location location;
+  }
+
+  /** The size at which a new segment is started, in bytes */
+  protected long segmentSize = 64L * 1024 * 1024;
+
+  /**
+   * The proportion of a full segment that has to be out of date before it is
+   * compacted
+   */
+  protected double compactionThreshold = 0.5;
+
+  /** Where each resource is kept, by type and then persistence ID */
+  protected transient Map<String, Map<String, Location>> index;
+
+  /** The segments, by number */
+  protected transient TreeMap<Integer, Segment> segments;
+
+  /** The segment being appended to */
+  protected transient Segment current;
+
+  /** The thread compacting segments */
+  protected transient ExecutorService compactor;
+
+  /** Is a compaction waiting to run, or running? */
+  private transient boolean compactionPending;
+
+  /**
+   * Construction requires a file protocol URL pointing to the storage
+   * directory. <B>NOTE:</B> should not be called except by GATE code.
+   */
+  public LogStructuredDataStore(String storageDirUrl)
+    throws PersistenceException {
+    super(storageDirUrl);
+  }
+
+  /**
+   * Default construction. <B>NOTE:</B> should not be called except by GATE
+   * code.
+   */
+  public LogStructuredDataStore() {
+  }
+
+  /**
+   * Set the size at which a new segment is started. Larger segments mean
+   * fewer files, but more to copy when compacting each one.
+   */
+  public void setSegmentSize(long segmentSize) {
+    if(segmentSize <= 0 || segmentSize > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Invalid segment size "
+          + segmentSize);
+    this.segmentSize = segmentSize;
+  }
+
+  public long getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Set the proportion, between 0 and 1, of a full segment that has to be
+   * taken up by resources since saved again or deleted before the segment is
+   * compacted.
+   */
+  public void setCompactionThreshold(double compactionThreshold) {
+    this.compactionThreshold = compactionThreshold;
+  }
+
+  public double getCompactionThreshold() {
+    return compactionThreshold;
+  }
+
+  @Override
+  protected File getVersionFile() throws IOException {
+    return new File(storageDir, versionFileName);
+  }
+
+  @Override
+  public void open() throws PersistenceException {
+    super.open();
+    index = new HashMap<String, Map<String, Location>>();
+    segments = new TreeMap<Integer, Segment>();
+    File[] files = storageDir.listFiles();
+    if(files != null) {
+      for(File file : files) {
+        String name = file.getName();
+        if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+          continue;
+        try {
+          int number = Integer.parseInt(name.substring(
+              SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(number, new Segment(number, file));
+        } catch(NumberFormatException e) {
+          // not one of ours
+        }
+      }
+    }
+    try {
+      for(Segment segment : segments.values()) {
+        // a full segment written before indices were kept, or whose index
+        // was cut short, is read through instead
+        if(segment.number == segments.lastKey() || !readIndex(segment))
+          scan(segment, segment.number == segments.lastKey());
+      }
+      if(segments.isEmpty()) {
+        startSegment(1);
+      } else {
+        current = segments.lastEntry().getValue();
+        current.writer = new RandomAccessFile(current.file, "rw");
+      }
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't read the segments of "
+          + storageDir + ": " + e, e);
+    }
+
+    // a daemon thread, so we don't block GATE from exiting if this data
+    // store has not been properly closed
+    compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      private ThreadFactory dtf = Executors.defaultThreadFactory();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = dtf.newThread(r);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    synchronized(this) {
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * Read the records of a segment into the index. A record cut short in the
+   * last segment, by a crash while it was being written, is removed, as is
+   * an index written at its end, as it is appended to again.
+   */
+  private void scan(Segment segment, boolean last) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment.file,
+        last ? "rw" : "r");
+    try {
+      segment.size = file.length();
+      ByteBuffer buffer;
+      if(last) {
+        // read rather than mapped, as it may have to be truncated
+        buffer = ByteBuffer.allocate((int)segment.size);
+        file.getChannel().read(buffer, 0);
+        buffer.flip();
+      } else {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+            segment.size);
+      }
+      if(last) segment.records = new ArrayList<Record>();
+      while(buffer.hasRemaining()) {
+        int start = buffer.position();
+        Record record = readRecord(segment.number, buffer);
+        if(record == null && buffer.get(start) == INDEX) {
+          // the records end where the index starts
+          if(last) file.setLength(start);
+          segment.size = start;
+          break;
+        }
+        if(record == null) {
+          if(!last)
+            throw new IOException("Corrupt record at " + start + " in "
+                + segment.file);
+          log.warn("Removing an incomplete record at " + start + " in "
+              + segment.file);
+          file.setLength(start);
+          segment.size = start;
+          break;
+        }
+        apply(record);
+        if(last) segment.records.add(record);
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  /** Record in the index what a record of a segment says. */
+  private void apply(Record record) {
+    if(record.kind == PUT) {
+      put(record.lrClassName, record.lrPersistenceId, record.location);
+    } else {
+      remove(record.lrClassName, record.lrPersistenceId);
+    }
+  }
+
+  /**
+   * Write the index of the records of a full segment at its end. This is
+   * laid out as the index marker, the number of records, and for each one
+   * its kind, type, ID and location, followed by the length of all that,
+   * its checksum and a magic number.
+   */
+  private void writeIndex(Segment segment) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(INDEX);
+    out.writeInt(segment.records.size());
+    for(Record record : segment.records) {
+      out.writeByte(record.kind);
+      writeString(out, record.lrClassName);
+      writeString(out, record.lrPersistenceId);
+      out.writeLong(record.location.offset);
+      out.writeLong(record.location.dataOffset);
+      out.writeInt(record.location.dataLength);
+      out.writeInt(record.location.length);
+    }
+    out.flush();
+    int length = bytes.size();
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeInt(length);
+    out.writeInt((int)crc.getValue());
+    out.writeLong(INDEX_MAGIC);
+    out.close();
+    segment.writer.seek(segment.size);
+    segment.writer.write(bytes.toByteArray());
+  }
+
+  /**
+   * Read the index at the end of a full segment into the index of the data
+   * store.
+   *
+   * @return false if the segment has no complete and correct index
+   */
+  private boolean readIndex(Segment segment) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+    List<Record> records = new ArrayList<Record>();
+    long start;
+    try {
+      long length = file.length();
+      if(length < INDEX_TRAILER_LENGTH) return false;
+      file.seek(length - INDEX_TRAILER_LENGTH);
+      int indexLength = file.readInt();
+      int checksum = file.readInt();
+      if(file.readLong() != INDEX_MAGIC) return false;
+      start = length - INDEX_TRAILER_LENGTH - indexLength;
+      if(indexLength <= 0 || start < 0) return false;
+      ByteBuffer buffer = ByteBuffer.allocate(indexLength);
+      file.getChannel().read(buffer, start);
+      if(buffer.hasRemaining()) return false;
+      buffer.flip();
+      CRC32 crc = new CRC32();
+      crc.update(buffer.duplicate());
+      if((int)crc.getValue() != checksum || buffer.get() != INDEX)
+        return false;
+      int count = buffer.getInt();
+      for(int i = 0; i < count; i++) {
+        Record record = new Record();
+        record.kind = buffer.get();
+        record.lrClassName = readString(buffer);
+        record.lrPersistenceId = readString(buffer);
+        record.location = new Location(segment.number, buffer.getLong(),
+            buffer.getLong(), buffer.getInt(), buffer.getInt());
+        records.add(record);
+      }
+    } catch(BufferUnderflowException e) {
+      return false;
+    } finally {
+      file.close();
+    }
+    segment.size = start;
+    for(Record record : records) apply(record);
+    return true;
+  }
+
+  /**
+   * Read the record at the position of a buffer, leaving the buffer after
+   * it, or return null if there is no complete and correct record there.
+   */
+  private static Record readRecord(int segment, ByteBuffer buffer) {
+    int start = buffer.position();
+    try {
+      Record record = new Record();
+      record.kind = buffer.get();
+      if(record.kind != PUT && record.kind != DELETE) return null;
+      record.lrClassName = readString(buffer);
+      record.lrPersistenceId = readString(buffer);
+      int dataLength = buffer.getInt();
+      int dataOffset = buffer.position();
+      if(dataLength < 0 || dataLength > buffer.remaining() - 4) return null;
+      buffer.position(dataOffset + dataLength);
+      int end = buffer.position();
+      int checksum = buffer.getInt();
+      ByteBuffer checked = buffer.duplicate();
+      checked.position(start);
+      checked.limit(end);
+      CRC32 crc = new CRC32();
+      crc.update(checked);
+      if((int)crc.getValue() != checksum) return null;
+      record.location = new Location(segment, start, dataOffset, dataLength,
+          buffer.position() - start);
+      return record;
+    } catch(BufferUnderflowException e) {
+      return null;
+    } catch(IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Lay out a record. */
+  private static byte[] record(byte kind, String lrClassName,
+    String lrPersistenceId, byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        (data == null ? 0 : data.length) + 256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(kind);
+    writeString(out, lrClassName);
+    writeString(out, lrPersistenceId);
+    out.writeInt(data == null ? 0 : data.length);
+    if(data != null) out.write(data);
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeInt((int)crc.getValue());
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+    throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Start a new segment to append to. */
+  private void startSegment(int number) throws IOException {
+    if(current != null) {
+      writeIndex(current);
+      current.writer.close();
+      current.writer = null;
+      current.records = null;
+    }
+    Segment segment = new Segment(number, new File(storageDir,
+        String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)));
+    segment.writer = new RandomAccessFile(segment.file, "rw");
+    segment.records = new ArrayList<Record>();
+    segments.put(number, segment);
+    current = segment;
+  }
+
+  /**
+   * Append a record to the current segment, starting a new one if it is
+   * full.
+   *
+   * @return where the record was written
+   */
+  private Location append(byte kind, String lrClassName,
+    String lrPersistenceId, byte[] record, int dataOffset, int dataLength)
+    throws IOException {
+    if(current.size > 0 && current.size + record.length > segmentSize)
+      startSegment(current.number + 1);
+    long offset = current.size;
+    current.writer.seek(offset);
+    current.writer.write(record);
+    current.size += record.length;
+    Record appended = new Record();
+    appended.kind = kind;
+    appended.lrClassName = lrClassName;
+    appended.lrPersistenceId = lrPersistenceId;
+    appended.location = new Location(current.number, offset,
+        offset + dataOffset, dataLength, record.length);
+    current.records.add(appended);
+    return appended.location;
+  }
+
+  /** Record in the index where a resource is kept. */
+  private void put(String lrClassName, String lrPersistenceId,
+    Location location) {
+    Map<String, Location> ids = index.get(lrClassName);
+    if(ids == null) {
+      ids = new LinkedHashMap<String, Location>();
+      index.put(lrClassName, ids);
+    }
+    Location old = ids.put(lrPersistenceId, location);
+    if(old != null) segments.get(old.segment).liveBytes -= old.length;
+    segments.get(location.segment).liveBytes += location.length;
+  }
+
+  /** Remove a resource from the index. */
+  private Location remove(String lrClassName, String lrPersistenceId) {
+    Map<String, Location> ids = index.get(lrClassName);
+    if(ids == null) return null;
+    Location old = ids.remove(lrPersistenceId);
+    if(ids.isEmpty()) index.remove(lrClassName);
+    if(old != null) segments.get(old.segment).liveBytes -= old.length;
+    return old;
+  }
+
+  private void checkOpen() throws PersistenceException {
+    if(index == null)
+      throw new PersistenceException("The data store " + storageDir
+          + " is not open");
+  }
+
+  @Override
+  protected void writeResource(String lrClassName, String lrPersistenceId,
+    byte[] encoded) throws PersistenceException {
+    // compress outside the lock, so several threads can save at once
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try {
+      compress(encoded, data);
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't write " + lrPersistenceId
+          + ": " + e.getMessage(), e);
+    }
+    appendResource(lrClassName, lrPersistenceId, data);
+  }
+
+  @Override
+  protected void writeResource(String lrClassName, String lrPersistenceId,
+    LanguageResource lr) throws PersistenceException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try {
+      compress(lr, data);
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't write " + lrPersistenceId
+          + ": " + e.getMessage(), e);
+    }
+    appendResource(lrClassName, lrPersistenceId, data);
+  }
+
+  /** Append the compressed form of a resource to the log. */
+  private void appendResource(String lrClassName, String lrPersistenceId,
+    ByteArrayOutputStream data) throws PersistenceException {
+    byte[] record;
+    int dataOffset;
+    int dataLength;
+    try {
+      dataLength = data.size();
+      record = record(PUT, lrClassName, lrPersistenceId, data.toByteArray());
+      dataOffset = record.length - dataLength - 4;
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't write " + lrPersistenceId
+          + ": " + e.getMessage(), e);
+    }
+    synchronized(this) {
+      checkOpen();
+      try {
+        put(lrClassName, lrPersistenceId, append(PUT, lrClassName,
+            lrPersistenceId, record, dataOffset, dataLength));
+      } catch(IOException e) {
+        throw new PersistenceException("Couldn't write to " + current.file
+            + ": " + e.getMessage(), e);
+      }
+      scheduleCompaction();
+    }
+  }
+
+  @Override
+  protected LanguageResource readResource(String lrClassName,
+    String lrPersistenceId) throws PersistenceException {
+    byte[] data;
+    synchronized(this) {
+      checkOpen();
+      Map<String, Location> ids = index.get(lrClassName);
+      Location location = ids == null ? null : ids.get(lrPersistenceId);
+      if(location == null)
+        throw new PersistenceException("Can't find " + lrPersistenceId
+            + " of type " + lrClassName + " in " + storageDir);
+      try {
+        data = read(location);
+      } catch(IOException e) {
+        throw new PersistenceException("Couldn't read " + lrPersistenceId
+            + ": " + e, e);
+      }
+    }
+    // decode outside the lock, so several threads can load at once
+    try {
+      return decode(new ByteArrayInputStream(data));
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't read " + lrPersistenceId
+          + ": " + e, e);
+    } catch(ClassNotFoundException e) {
+      throw new PersistenceException("Couldn't find class " + lrClassName
+          + ": " + e, e);
+    }
+  }
+
+  /** Read the stored resource at a location, holding the lock. */
+  private byte[] read(Location location) throws IOException {
+    Segment segment = segments.get(location.segment);
+    byte[] data = new byte[location.dataLength];
+    if(segment == current) {
+      current.writer.seek(location.dataOffset);
+      current.writer.readFully(data);
+    } else {
+      if(segment.mapped == null) {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        try {
+          segment.mapped = file.getChannel().map(
+              FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        } finally {
+          file.close();
+        }
+      }
+      ByteBuffer buffer = segment.mapped.duplicate();
+      buffer.position((int)location.dataOffset);
+      buffer.get(data);
+    }
+    return data;
+  }
+
+  @Override
+  protected void deleteResource(String lrClassName, String lrPersistenceId)
+    throws PersistenceException {
+    synchronized(this) {
+      checkOpen();
+      Map<String, Location> ids = index.get(lrClassName);
+      if(ids == null || !ids.containsKey(lrPersistenceId))
+        throw new PersistenceException("Can't find " + lrPersistenceId
+            + " of type " + lrClassName + " in " + storageDir);
+      try {
+        byte[] record = record(DELETE, lrClassName, lrPersistenceId, null);
+        append(DELETE, lrClassName, lrPersistenceId, record,
+            record.length - 4, 0);
+      } catch(IOException e) {
+        throw new PersistenceException("Couldn't write to " + current.file
+            + ": " + e.getMessage(), e);
+      }
+      remove(lrClassName, lrPersistenceId);
+      scheduleCompaction();
+    }
+  }
+
+  @Override
+  public synchronized List<String> getLrTypes() throws PersistenceException {
+    checkOpen();
+    return new ArrayList<String>(index.keySet());
+  }
+
+  @Override
+  public synchronized List<String> getLrIds(String lrType)
+    throws PersistenceException {
+    checkOpen();
+    Map<String, Location> ids = index.get(lrType);
+    return ids == null ? new ArrayList<String>() : new ArrayList<String>(ids
+        .keySet());
+  }
+
+  /** The full segment most in need of compaction, if any. */
+  private Segment compactionCandidate() {
+    Segment candidate = null;
+    double mostDead = compactionThreshold;
+    for(Segment segment : segments.values()) {
+      if(segment == current || segment.size == 0) continue;
+      double dead = 1 - (double)segment.liveBytes / segment.size;
+      if(dead >= mostDead) {
+        candidate = segment;
+        mostDead = dead;
+      }
+    }
+    return candidate;
+  }
+
+  /**
+   * Start compacting in the background if a segment needs it. Called
+   * holding the lock.
+   */
+  private void scheduleCompaction() {
+    if(compactionPending || compactor == null
+        || compactionCandidate() == null) return;
+    compactionPending = true;
+    compactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        } catch(Exception e) {
+          log.warn("Couldn't compact " + storageDir, e);
+        } finally {
+          synchronized(LogStructuredDataStore.this) {
+            compactionPending = false;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Compact the full segments that need it, until none do. This runs in the
+   * background, but can also be called directly.
+   */
+  public void compact() throws PersistenceException {
+    while(true) {
+      Segment segment;
+      synchronized(this) {
+        if(index == null) return;
+        segment = compactionCandidate();
+      }
+      if(segment == null) return;
+      try {
+        compact(segment);
+      } catch(IOException e) {
+        throw new PersistenceException("Couldn't compact " + segment.file
+            + ": " + e, e);
+      }
+    }
+  }
+
+  /**
+   * Copy the current records of a full segment to the end of the current
+   * segment, and delete it. The segment is only read here, and the lock is
+   * only held for one record at a time, so saving and loading can carry on
+   * meanwhile.
+   */
+  private void compact(Segment segment) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+    ByteBuffer buffer;
+    try {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          segment.size);
+    } finally {
+      file.close();
+    }
+    while(buffer.hasRemaining()) {
+      int start = buffer.position();
+      Record record = readRecord(segment.number, buffer);
+      if(record == null)
+        throw new IOException("Corrupt record at " + start);
+      synchronized(this) {
+        if(index == null) return;
+        Map<String, Location> ids = index.get(record.lrClassName);
+        Location location = ids == null ? null : ids.get(record.lrPersistenceId);
+        if(record.kind == PUT) {
+          // only copy the latest copy of the resource
+          if(location == null || location.segment != segment.number
+              || location.offset != start) continue;
+        } else {
+          // the deletion only matters while an older segment may still
+          // hold the resource, and it hasn't been saved again since
+          if(location != null || segment.number == segments.firstKey())
+            continue;
+        }
+        byte[] bytes = new byte[record.location.length];
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(start);
+        copy.get(bytes);
+        Location moved = append(record.kind, record.lrClassName,
+            record.lrPersistenceId, bytes,
+            (int)(record.location.dataOffset - start),
+            record.location.dataLength);
+        if(record.kind == PUT) {
+          put(record.lrClassName, record.lrPersistenceId, moved);
+        }
+      }
+    }
+    synchronized(this) {
+      if(index == null) return;
+      // make sure the copies are on disk before deleting the originals
+      current.writer.getFD().sync();
+      segments.remove(segment.number);
+      segment.mapped = null;
+      if(!segment.file.delete()) segment.file.deleteOnExit();
+    }
+  }
+
+  /** Stop compacting and close the segments. */
+  private void closeSegments() throws PersistenceException {
+    ExecutorService executor;
+    synchronized(this) {
+      executor = compactor;
+      compactor = null;
+    }
+    if(executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized(this) {
+      if(current != null && current.writer != null) {
+        try {
+          current.writer.close();
+        } catch(IOException e) {
+          throw new PersistenceException("Couldn't close " + current.file
+              + ": " + e, e);
+        }
+      }
+      current = null;
+      segments = null;
+      index = null;
+    }
+  }
+
+  @Override
+  public void close() throws PersistenceException {
+    try {
+      // write whatever is waiting while the segments are still open
+      stopWriters();
+    } finally {
+      closeSegments();
+      super.close();
+    }
+  }
+
+  @Override
+  public void delete() throws PersistenceException {
+    try {
+      stopWriters();
+    } catch(PersistenceException e) {
+      // being deleted anyway
+    }
+    closeSegments();
+    super.delete();
+  }
+
+  @Override
+  public String toString() {
+    return "LogStructuredDataStore: storageDir: " + storageDir;
+  }
+
+  @Override
+  public String getComment() {
+    return "GATE log-structured datastore";
+  }
+}
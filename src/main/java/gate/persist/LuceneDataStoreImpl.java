@@ -177,7 +177,8 @@ public class LuceneDataStoreImpl extends SerialDataStore implements
     BufferedReader isr = null;
     try {
       isr = new BufferedReader(new FileReader(getVersionFile()));
-      currentProtocolVersion = isr.readLine();
+      // the version line has already been read by super.open()
+      isr.readLine();
       String indexDirRelativePath = isr.readLine();
 
       if(indexDirRelativePath != null
@@ -202,10 +203,6 @@ public class LuceneDataStoreImpl extends SerialDataStore implements
     } finally {
       IOUtils.closeQuietly(isr);
     }
-    
-    if(!isValidProtocolVersion(currentProtocolVersion))
-      throw new PersistenceException("Invalid protocol version number: "
-              + currentProtocolVersion);
 
     // Lets create a separate indexer thread which keeps running in the
     // background
@@ -452,7 +449,7 @@ public class LuceneDataStoreImpl extends SerialDataStore implements
       File versionFile = getVersionFile();
       OutputStreamWriter osw =
               new OutputStreamWriter(new FileOutputStream(versionFile));
-      osw.write(versionNumber + Strings.getNl());
+      osw.write(versionLine() + Strings.getNl());
       String indexDirRelativePath =
               PersistenceManager.getRelativePath(storageDir.toURI().toURL(),
                       indexURL);
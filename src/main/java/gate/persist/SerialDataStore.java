@@ -36,14 +36,14 @@ import gate.util.Strings;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
@@ -55,11 +55,27 @@ import java.util.Date;
 import java.util.List;
 import java.util.Random;
 import java.util.Vector;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
 
 /**
- * A data store based on Java serialisation.
+ * A data store based on Java serialisation. Each resource is stored in a
+ * file of its own, written by a {@link DataStoreCodec} through a
+ * {@link DataStoreCompression}; both are chosen when the data store is
+ * created and recorded in its version file. By default resources are
+ * serialised and compressed with GZIP.
  */
 public class SerialDataStore
 extends AbstractFeatureBearer implements DataStore {
@@ -69,6 +85,8 @@ extends AbstractFeatureBearer implements DataStore {
   /** Debug flag */
   private static final boolean DEBUG = false;
 
+  private static final Logger log = Logger.getLogger(SerialDataStore.class);
+
   /** The name of the datastore */
   protected String name;
 
@@ -146,6 +164,10 @@ extends AbstractFeatureBearer implements DataStore {
     if(storageDir == null)
       throw new PersistenceException("null storage directory: cannot create");
 
+    // fail before creating anything if the codec or compression is unknown
+    DataStoreCodecs.getCodec(codecName);
+    DataStoreCodecs.getCompression(compressionName);
+
     if(! storageDir.exists()) { // if doesn't exist create it
       
       if(! storageDir.mkdir())
@@ -165,13 +187,99 @@ extends AbstractFeatureBearer implements DataStore {
       OutputStreamWriter osw = new OutputStreamWriter(
         new FileOutputStream(versionFile)
       );
-      osw.write(versionNumber + Strings.getNl());
+      osw.write(versionLine() + Strings.getNl());
       osw.close();
     } catch(IOException e) {
       throw new PersistenceException("couldn't write version file: " + e);
     }
   } // create()
 
+  /** The name of the system property giving the default codec */
+  public static final String CODEC_PROPERTY =
+    "gate.persist.SerialDataStore.codec";
+
+  /** The name of the system property giving the default compression */
+  public static final String COMPRESSION_PROPERTY =
+    "gate.persist.SerialDataStore.compression";
+
+  /** The name of the codec used to write resources */
+  protected String codecName =
+    System.getProperty(CODEC_PROPERTY, JavaSerializationCodec.NAME);
+
+  /** The name of the compression used for the resource files */
+  protected String compressionName =
+    System.getProperty(COMPRESSION_PROPERTY, DataStoreCodecs.GZIP);
+
+  /** The codec of the currently open data store */
+  protected transient DataStoreCodec codec;
+
+  /** The compression of the currently open data store */
+  protected transient DataStoreCompression compression;
+
+  /**
+   * Set the codec used to write resources, by name (see
+   * {@link DataStoreCodecs}). This only has an effect before the data store
+   * is created; afterwards the codec recorded in the data store is used.
+   */
+  public void setCodecName(String codecName) { this.codecName = codecName; }
+
+  /** Get the name of the codec used to write resources. */
+  public String getCodecName() { return codecName; }
+
+  /**
+   * Set the compression used for the resource files, by name (see
+   * {@link DataStoreCodecs}). This only has an effect before the data store
+   * is created; afterwards the compression recorded in the data store is
+   * used.
+   */
+  public void setCompressionName(String compressionName) {
+    this.compressionName = compressionName;
+  }
+
+  /** Get the name of the compression used for the resource files. */
+  public String getCompressionName() { return compressionName; }
+
+  /**
+   * The first line of the version file: the protocol version, followed for
+   * protocol 1.2 by the names of the codec and compression.
+   */
+  protected String versionLine() {
+    if(JavaSerializationCodec.NAME.equals(codecName)
+        && DataStoreCodecs.GZIP.equals(compressionName))
+      // the same as before codecs could be chosen, so older versions of
+      // GATE can still read it
+      return versionNumber;
+    return codecVersionNumber + " " + codecName + " " + compressionName;
+  } // versionLine()
+
+  /**
+   * Read the first line of the version file, setting the protocol version
+   * and the codec and compression of the data store.
+   */
+  protected void readVersionLine(String line) throws PersistenceException {
+    String[] fields = line == null ? new String[0] : line.trim().split(" +");
+    currentProtocolVersion = fields.length == 0 ? null : fields[0];
+    if(! isValidProtocolVersion(currentProtocolVersion))
+      throw new PersistenceException(
+        "Invalid protocol version number: " + currentProtocolVersion
+      );
+
+    if(currentProtocolVersion.equals("1.0")) {
+      codecName = JavaSerializationCodec.NAME;
+      compressionName = DataStoreCodecs.NO_COMPRESSION;
+    } else if(currentProtocolVersion.equals("1.1")) {
+      codecName = JavaSerializationCodec.NAME;
+      compressionName = DataStoreCodecs.GZIP;
+    } else {
+      if(fields.length != 3)
+        throw new PersistenceException("Invalid version file: " + line);
+      codecName = fields[1];
+      compressionName = fields[2];
+    }
+    codec = DataStoreCodecs.getCodec(codecName);
+    compression = DataStoreCodecs.getCompression(compressionName);
+  } // readVersionLine(String)
+
   /** The name of the version file */
   private static String versionFileName = "__GATE_SerialDataStore__";
 
@@ -193,16 +301,24 @@ extends AbstractFeatureBearer implements DataStore {
    * the line "1.0".
    * <LI>
    * 1.1: has a version file. Uses GZIP compression.
+   * <LI>
+   * 1.2: the version line also names the codec and compression used, e.g.
+   * "1.2 binary deflate-1". Only written when these are not Java
+   * serialisation and GZIP, which are written as 1.1.
    * </UL>
    * This variable stores the version of the current level of the
    * protocol, NOT the level in use in the currently open data store.
    */
   protected static final String versionNumber = "1.1";
 
+  /** The version number written when a codec or compression is chosen. */
+  protected static final String codecVersionNumber = "1.2";
+
   /** List of valid protocol version numbers. */
   protected static final String[] protocolVersionNumbers = {
     "1.0",
-    "1.1"
+    "1.1",
+    "1.2"
   }; // protocolVersionNumbers
 
   /** Check a version number for validity. */
@@ -221,6 +337,11 @@ extends AbstractFeatureBearer implements DataStore {
     */
   @Override
   public void delete() throws PersistenceException {
+    try {
+      stopWriters();
+    } catch(PersistenceException e) {
+      // being deleted anyway
+    }
     if(storageDir == null || ! Files.rmdir(storageDir))
       throw new PersistenceException("couldn't delete " + storageDir);
 
@@ -231,6 +352,39 @@ extends AbstractFeatureBearer implements DataStore {
     */
   @Override
   public void delete(String lrClassName, Object lrPersistenceId)
+  throws PersistenceException {
+    ExecutorService[] writers;
+    synchronized(this) {
+      writers = this.writers;
+    }
+    if(writers == null) {
+      deleteResource(lrClassName, lrPersistenceId.toString());
+    } else {
+      // forget any write still waiting, and make sure none is under way
+      String key = pendingKey(lrClassName, lrPersistenceId.toString());
+      synchronized(writer(writers, key)) {
+        boolean pending = pendingWrites.remove(key) != null;
+        failedWrites.remove(key);
+        try {
+          deleteResource(lrClassName, lrPersistenceId.toString());
+        } catch(PersistenceException e) {
+          // it may never have been written
+          if(! pending) throw e;
+        }
+      }
+    }
+    cancelReadAhead(lrClassName, lrPersistenceId);
+
+    //let the world know about it
+    fireResourceDeleted(
+      new DatastoreEvent(
+        this, DatastoreEvent.RESOURCE_DELETED, null, lrPersistenceId
+      )
+    );
+  } // delete(lr)
+
+  /** Delete the stored form of a resource. */
+  protected void deleteResource(String lrClassName, String lrPersistenceId)
   throws PersistenceException {
 
     // find the subdirectory for resources of this type
@@ -243,7 +397,7 @@ extends AbstractFeatureBearer implements DataStore {
     }
 
     // create a File to representing the resource storage file
-    File resourceFile = new File(resourceTypeDirectory, (String)lrPersistenceId);
+    File resourceFile = new File(resourceTypeDirectory, lrPersistenceId);
     if(! resourceFile.exists() || ! resourceFile.isFile())
       throw new PersistenceException("Can't find file " + resourceFile);
 
@@ -255,14 +409,7 @@ extends AbstractFeatureBearer implements DataStore {
     if(filterIgnoredFileNames(resourceTypeDirectory.list()).length == 0)
       if(! resourceTypeDirectory.delete())
         throw new PersistenceException("Can't delete " + resourceTypeDirectory);
-
-    //let the world know about it
-    fireResourceDeleted(
-      new DatastoreEvent(
-        this, DatastoreEvent.RESOURCE_DELETED, null, lrPersistenceId
-      )
-    );
-  } // delete(lr)
+  } // deleteResource(lrClassName, lrPersistenceId)
   
   /** Adopt a resource for persistence. */  
   @Override
@@ -327,28 +474,31 @@ extends AbstractFeatureBearer implements DataStore {
 // if we want to support old style:
 // String versionInVersionFile = "1.0";
 // (but this means it will open *any* directory)
+    String versionLine;
     try {
       FileReader fis = new FileReader(getVersionFile());
       BufferedReader isr = new BufferedReader(fis);
-      currentProtocolVersion = isr.readLine();
-      if(DEBUG) Out.prln("opening SDS version " + currentProtocolVersion);
+      versionLine = isr.readLine();
+      if(DEBUG) Out.prln("opening SDS version " + versionLine);
       isr.close();
     } catch(IOException e) {
       throw new PersistenceException(
         "Invalid storage directory: " + e
       );
     }
-    if(! isValidProtocolVersion(currentProtocolVersion))
-      throw new PersistenceException(
-        "Invalid protocol version number: " + currentProtocolVersion
-      );
+    readVersionLine(versionLine);
 
   } // open()
 
   /** Close the data store. */
   @Override
   public void close() throws PersistenceException {
-    Gate.getDataStoreRegister().remove(this);
+    try {
+      stopWriters();
+    } finally {
+      cancelReadAheads();
+      Gate.getDataStoreRegister().remove(this);
+    }
   } // close()
 
   /** Save: synchonise the in-memory image of the LR with the persistent
@@ -368,20 +518,6 @@ extends AbstractFeatureBearer implements DataStore {
     ResourceData lrData =
       Gate.getCreoleRegister().get(lr.getClass().getName());
 
-    // create a subdirectory for resources of this type if none exists
-    File resourceTypeDirectory = new File(storageDir, lrData.getClassName());
-    if(
-      (! resourceTypeDirectory.exists()) ||
-      (! resourceTypeDirectory.isDirectory())
-    ) {
-      // try to create the directory, throw an exception if it does not
-      // exist after this attempt.  It is possible for mkdir to fail and exists
-      // still to return true if another thread managed to sneak in and
-      // create the directory in the meantime
-      if(! resourceTypeDirectory.mkdir() && ! resourceTypeDirectory.exists())
-        throw new PersistenceException("Can't write " + resourceTypeDirectory);
-    }
-
     // create an indentifier for this resource
     String lrName = null;
     Object lrPersistenceId = null;
@@ -445,25 +581,22 @@ extends AbstractFeatureBearer implements DataStore {
       }//for loop through documents
     }
 
-    // create a File to store the resource in
-    File resourceFile = new File(resourceTypeDirectory, (String) lrPersistenceId);
-
-    // dump the LR into the new File
-    try {
-      OutputStream os = new FileOutputStream(resourceFile);
-
-      // after 1.1 the serialised files are compressed
-      if(! currentProtocolVersion.equals("1.0"))
-        os = new GZIPOutputStream(os);
-
-      os=new BufferedOutputStream(os);
-      
-      ObjectOutputStream oos = new ObjectOutputStream(os);
-      oos.writeObject(lr);
-      oos.close();
-    } catch(IOException e) {
-      throw new PersistenceException("Couldn't write to storage file: " + e.getMessage(),e);
+    if(writeBehindThreads > 0) {
+      // encode the LR now, as it may be changed or unloaded as soon as this
+      // returns, and write it in the background
+      byte[] encoded;
+      try {
+        encoded = encode(lr);
+      } catch(IOException e) {
+        throw new PersistenceException("Couldn't encode " + lrName + ": "
+          + e.getMessage(), e);
+      }
+      writeBehind(lrData.getClassName(), lrPersistenceId.toString(), encoded);
+    } else {
+      writeResource(lrData.getClassName(), lrPersistenceId.toString(), lr);
     }
+    // anything read ahead is now out of date
+    cancelReadAhead(lrData.getClassName(), lrPersistenceId);
 
     // let the world know about it
     fireResourceWritten(
@@ -473,6 +606,376 @@ extends AbstractFeatureBearer implements DataStore {
     );
   } // sync(LR)
 
+  /**
+   * Write the stored form of a resource, replacing any earlier one. This,
+   * {@link #readResource} and {@link #deleteResource} are all that decide
+   * where resources are kept, and are overridden by data stores that don't
+   * keep each in a file of its own.
+   */
+  protected void writeResource(String lrClassName, String lrPersistenceId,
+    byte[] encoded) throws PersistenceException {
+    // dump the LR into its File
+    try {
+      compress(encoded, new FileOutputStream(
+        resourceFile(lrClassName, lrPersistenceId)));
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't write to storage file: " + e.getMessage(),e);
+    }
+  } // writeResource(lrClassName, lrPersistenceId, encoded)
+
+  /**
+   * Write a resource as it is now, replacing any earlier stored form. It is
+   * encoded straight into the compression, without being held in memory in
+   * the meantime.
+   */
+  protected void writeResource(String lrClassName, String lrPersistenceId,
+    LanguageResource lr) throws PersistenceException {
+    try {
+      compress(lr, new FileOutputStream(
+        resourceFile(lrClassName, lrPersistenceId)));
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't write to storage file: " + e.getMessage(),e);
+    }
+  } // writeResource(lrClassName, lrPersistenceId, lr)
+
+  /** The file a resource is kept in, creating its directory if need be. */
+  private File resourceFile(String lrClassName, String lrPersistenceId)
+  throws PersistenceException {
+    // create a subdirectory for resources of this type if none exists
+    File resourceTypeDirectory = new File(storageDir, lrClassName);
+    if(
+      (! resourceTypeDirectory.exists()) ||
+      (! resourceTypeDirectory.isDirectory())
+    ) {
+      // try to create the directory, throw an exception if it does not
+      // exist after this attempt.  It is possible for mkdir to fail and exists
+      // still to return true if another thread managed to sneak in and
+      // create the directory in the meantime
+      if(! resourceTypeDirectory.mkdir() && ! resourceTypeDirectory.exists())
+        throw new PersistenceException("Can't write " + resourceTypeDirectory);
+    }
+
+    // create a File to store the resource in
+    return new File(resourceTypeDirectory, lrPersistenceId);
+  } // resourceFile(lrClassName, lrPersistenceId)
+
+  /** Encode a resource with the codec of the data store. */
+  protected byte[] encode(LanguageResource lr) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.write(lr, out);
+    return out.toByteArray();
+  } // encode(lr)
+
+  /**
+   * Write an encoded resource to a stream with the compression of the data
+   * store, closing the stream.
+   */
+  protected void compress(byte[] encoded, OutputStream out)
+  throws IOException {
+    OutputStream os = new BufferedOutputStream(compression.compress(out));
+    try {
+      os.write(encoded);
+    } finally {
+      os.close();
+    }
+  } // compress(encoded, out)
+
+  /**
+   * Write a resource to a stream with the codec and compression of the data
+   * store, closing the stream.
+   */
+  protected void compress(LanguageResource lr, OutputStream out)
+  throws IOException {
+    OutputStream os = new BufferedOutputStream(compression.compress(out));
+    try {
+      codec.write(lr, os);
+    } finally {
+      os.close();
+    }
+  } // compress(lr, out)
+
+  /**
+   * Read a resource from a stream with the codec and compression of the data
+   * store, closing the stream.
+   */
+  protected LanguageResource decode(InputStream in)
+  throws IOException, ClassNotFoundException {
+    InputStream is = new BufferedInputStream(compression.decompress(in));
+    try {
+      return codec.read(is);
+    } finally {
+      is.close();
+    }
+  } // decode(in)
+
+  /** Decode a resource encoded by {@link #encode(LanguageResource)}. */
+  protected LanguageResource decode(byte[] encoded)
+  throws IOException, ClassNotFoundException {
+    return codec.read(new ByteArrayInputStream(encoded));
+  } // decode(encoded)
+
+  /**
+   * The number of threads writing resources in the background, or 0 to
+   * write them as they are synced.
+   */
+  protected int writeBehindThreads = 0;
+
+  /** The number of resources that may be waiting to be written. */
+  protected int writeBehindQueueSize = 64;
+
+  /**
+   * The threads writing resources in the background. The writes of each
+   * resource are always made by the same thread, in the order they were
+   * synced.
+   */
+  protected transient ExecutorService[] writers;
+
+  /** Taken for each resource waiting to be written */
+  protected transient Semaphore writeSlots;
+
+  /**
+   * The latest encoding of each resource waiting to be written, by type
+   * and ID, so that loading it again before it is written gets the latest
+   * version.
+   */
+  protected transient ConcurrentMap<String, byte[]> pendingWrites;
+
+  /**
+   * The background writes that failed, by type and ID. Their encodings are kept in {@link #pendingWrites}, so that they
+   * can still be read, until {@link #flush()} manages to write them.
+   */
+  protected transient ConcurrentMap<String, FailedWrite> failedWrites;
+
+  /** A resource that could not be written in the background. */
+  protected static class FailedWrite {
+    final String lrClassName;
+
+    final String lrPersistenceId;
+
+    final byte[] encoded;
+
+    FailedWrite(String lrClassName, String lrPersistenceId, byte[] encoded) {
+      this.lrClassName = lrClassName;
+      this.lrPersistenceId = lrPersistenceId;
+      this.encoded = encoded;
+    }
+  }
+
+  /**
+   * Write synced resources in the background. Syncing a resource then only
+   * encodes it, leaving the compressing and writing to other threads, so
+   * the thread that synced it can carry on. Syncing waits if there are
+   * already <code>queueSize</code> resources waiting to be written. Use
+   * {@link #flush()} to wait for the resources to be written; closing the
+   * data store also does this. A resource that could not be written is kept
+   * in memory and written again by the next flush, which fails if it still
+   * cannot be written.
+   *
+   * @param threads the number of threads writing, or 0 to write resources
+   *          as they are synced, as by default
+   * @param queueSize the number of resources that may be waiting
+   */
+  public void setWriteBehind(int threads, int queueSize)
+  throws PersistenceException {
+    if(queueSize < 1)
+      throw new IllegalArgumentException("Invalid queue size " + queueSize);
+    stopWriters();
+    this.writeBehindThreads = threads;
+    this.writeBehindQueueSize = queueSize;
+  } // setWriteBehind(threads, queueSize)
+
+  /** The number of threads writing resources in the background. */
+  public int getWriteBehindThreads() { return writeBehindThreads; }
+
+  /** The number of resources that may be waiting to be written. */
+  public int getWriteBehindQueueSize() { return writeBehindQueueSize; }
+
+  private static String pendingKey(String lrClassName, String lrPersistenceId) {
+    return lrClassName + "/" + lrPersistenceId;
+  } // pendingKey
+
+  /** Start the threads writing in the background, if not already started. */
+  protected synchronized ExecutorService[] writers() {
+    if(writers == null) {
+      writeSlots = new Semaphore(writeBehindQueueSize);
+      if(failedWrites == null)
+        failedWrites = new ConcurrentHashMap<String, FailedWrite>();
+      pendingWrites = new ConcurrentHashMap<String, byte[]>();
+      writers = new ExecutorService[writeBehindThreads];
+      // daemon threads, so we don't block GATE from exiting if this data
+      // store has not been properly closed
+      ThreadFactory threadFactory = new ThreadFactory() {
+        private ThreadFactory dtf = Executors.defaultThreadFactory();
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = dtf.newThread(r);
+          t.setDaemon(true);
+          return t;
+        }
+      };
+      for(int i = 0; i < writers.length; i++)
+        writers[i] = Executors.newSingleThreadExecutor(threadFactory);
+    }
+    return writers;
+  } // writers()
+
+  /** The thread writing a resource, always the same one for each. */
+  private ExecutorService writer(ExecutorService[] writers, String key) {
+    return writers[(key.hashCode() & Integer.MAX_VALUE) % writers.length];
+  } // writer(writers, key)
+
+  /** Queue an encoded resource to be written in the background. */
+  protected void writeBehind(final String lrClassName,
+    final String lrPersistenceId, final byte[] encoded)
+  throws PersistenceException {
+    ExecutorService[] writers = writers();
+    final String key = pendingKey(lrClassName, lrPersistenceId);
+    final ExecutorService writer = writer(writers, key);
+    try {
+      writeSlots.acquire();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException("Interrupted while waiting to write "
+        + lrPersistenceId, e);
+    }
+    final Semaphore slots = writeSlots;
+    pendingWrites.put(key, encoded);
+    // an earlier version that could not be written no longer matters
+    failedWrites.remove(key);
+    try {
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            // the writer is locked while writing, so a resource can't be
+            // deleted while being written
+            synchronized(writer) {
+              // if it has been synced again, or deleted, since, there is
+              // nothing to do here
+              if(pendingWrites.get(key) != encoded) return;
+              writeResource(lrClassName, lrPersistenceId, encoded);
+              pendingWrites.remove(key, encoded);
+            }
+          } catch(Exception e) {
+            // kept waiting, so it can still be read, and tried again when
+            // flushed
+            log.warn("Couldn't write " + lrPersistenceId
+              + " in the background, it will be tried again when flushed", e);
+            failedWrites.put(key,
+              new FailedWrite(lrClassName, lrPersistenceId, encoded));
+          } finally {
+            slots.release();
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      pendingWrites.remove(key, encoded);
+      slots.release();
+      throw new PersistenceException("The data store has been closed", e);
+    }
+  } // writeBehind(lrClassName, lrPersistenceId, encoded)
+
+  /**
+   * Write again the resources whose background writes failed, and throw if
+   * any of them still cannot be written. Those are kept, to be tried again
+   * by the next call.
+   */
+  protected void retryFailedWrites(ExecutorService[] writers)
+  throws PersistenceException {
+    if(failedWrites == null || failedWrites.isEmpty()) return;
+    PersistenceException failure = null;
+    for(FailedWrite failed : failedWrites.values()) {
+      String key = pendingKey(failed.lrClassName, failed.lrPersistenceId);
+      synchronized(writer(writers, key)) {
+        // synced again, or deleted, since
+        if(pendingWrites.get(key) != failed.encoded) {
+          failedWrites.remove(key, failed);
+          continue;
+        }
+        try {
+          writeResource(failed.lrClassName, failed.lrPersistenceId,
+            failed.encoded);
+          pendingWrites.remove(key, failed.encoded);
+          failedWrites.remove(key, failed);
+        } catch(PersistenceException e) {
+          if(failure == null) {
+            failure = new PersistenceException("Couldn't write "
+              + failed.lrPersistenceId + " in the background: "
+              + e.getMessage(), e);
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if(failure != null) throw failure;
+  } // retryFailedWrites(writers)
+
+  /**
+   * Wait until all the resources synced so far have been written. This does
+   * nothing unless resources are written in the background.
+   *
+   * @throws PersistenceException if a resource could not be written
+   */
+  public void flush() throws PersistenceException {
+    ExecutorService[] writers;
+    synchronized(this) {
+      writers = this.writers;
+    }
+    if(writers != null) {
+      // each thread writes in order, so once it has run a task queued now,
+      // it has finished everything queued before
+      List<Future<?>> barriers = new ArrayList<Future<?>>();
+      for(ExecutorService writer : writers) {
+        try {
+          barriers.add(writer.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+          }));
+        } catch(RejectedExecutionException e) {
+          // already stopped, so finished
+        }
+      }
+      for(Future<?> barrier : barriers) {
+        try {
+          barrier.get();
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new PersistenceException("Interrupted while flushing", e);
+        } catch(ExecutionException e) {
+          // cannot happen, the barrier does nothing
+        }
+      }
+      retryFailedWrites(writers);
+    }
+  } // flush()
+
+  /**
+   * Write everything waiting to be written and stop the writers. Resources
+   * that still cannot be written are given up, after being reported by the
+   * exception thrown.
+   */
+  protected void stopWriters() throws PersistenceException {
+    try {
+      flush();
+    } finally {
+      synchronized(this) {
+        if(writers != null) {
+          for(ExecutorService writer : writers) writer.shutdown();
+        }
+        writers = null;
+        if(failedWrites != null) {
+          for(FailedWrite failed : failedWrites.values()) {
+            pendingWrites.remove(pendingKey(failed.lrClassName,
+              failed.lrPersistenceId), failed.encoded);
+          }
+          failedWrites.clear();
+        }
+      }
+    }
+  } // stopWriters()
+
   /** Create a persistent store Id from the name of a resource. */
   protected String constructPersistenceId(String lrName) {
     // change the persistence ID so that it can be used as a filename
@@ -485,6 +988,118 @@ extends AbstractFeatureBearer implements DataStore {
   @Override
   public LanguageResource getLr(String lrClassName, Object lrPersistenceId)
   throws PersistenceException,SecurityException {
+    LanguageResource lr = null;
+    Future<LanguageResource> readAhead = readAheads == null ? null
+      : readAheads.remove(pendingKey(lrClassName, lrPersistenceId.toString()));
+    if(readAhead != null && ! readAhead.isCancelled()) {
+      try {
+        lr = readAhead.get();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch(ExecutionException e) {
+        // read it again below, to report the failure on this thread
+      }
+    }
+    if(lr == null) lr = read(lrClassName, lrPersistenceId.toString());
+
+    // set the dataStore property of the LR (which is transient and therefore
+    // not serialised)
+    lr.setDataStore(this);
+    lr.setLRPersistenceId(lrPersistenceId);
+
+    if (DEBUG) Out.prln("LR read in memory: " + lr);
+
+    return lr;
+  } // getLr(id)
+
+  /**
+   * Read a resource, from the latest encoding waiting to be written if
+   * there is one, without making it known to the data store or to CREOLE.
+   */
+  protected LanguageResource read(String lrClassName, String lrPersistenceId)
+  throws PersistenceException {
+    byte[] pending = pendingWrites == null ? null
+      : pendingWrites.get(pendingKey(lrClassName, lrPersistenceId));
+    if(pending == null) return readResource(lrClassName, lrPersistenceId);
+    // synced but not yet written
+    try {
+      return decode(pending);
+    } catch(IOException e) {
+      throw new PersistenceException("Couldn't read " + lrPersistenceId
+        + ": " + e, e);
+    } catch(ClassNotFoundException e) {
+      throw new PersistenceException("Couldn't find class " + lrClassName
+        + ": " + e, e);
+    }
+  } // read(lrClassName, lrPersistenceId)
+
+  /**
+   * Resources being read ahead, by type and ID, until they are got or the
+   * read is cancelled.
+   */
+  protected transient ConcurrentMap<String, Future<LanguageResource>>
+    readAheads;
+
+  /**
+   * Start reading a resource that is expected to be wanted soon, so that
+   * {@link #getLr} will return it without waiting for it to be read. The
+   * resource is only read and decoded by the executor; it becomes known to
+   * the data store and to CREOLE when it is got. A resource that is synced
+   * or deleted meanwhile is read again when it is got.
+   *
+   * @param executor runs the read
+   * @return the read under way, which is the one already started if the
+   *         resource is already being read ahead
+   */
+  public Future<LanguageResource> readAhead(final String lrClassName,
+    final Object lrPersistenceId, Executor executor) {
+    synchronized(this) {
+      if(readAheads == null)
+        readAheads =
+          new ConcurrentHashMap<String, Future<LanguageResource>>();
+    }
+    String key = pendingKey(lrClassName, lrPersistenceId.toString());
+    FutureTask<LanguageResource> task = new FutureTask<LanguageResource>(
+      new Callable<LanguageResource>() {
+        @Override
+        public LanguageResource call() throws PersistenceException {
+          return read(lrClassName, lrPersistenceId.toString());
+        }
+      });
+    Future<LanguageResource> existing = readAheads.putIfAbsent(key, task);
+    if(existing != null) return existing;
+    try {
+      executor.execute(task);
+    } catch(RejectedExecutionException e) {
+      readAheads.remove(key, task);
+      task.cancel(false);
+    }
+    return task;
+  } // readAhead(lrClassName, lrPersistenceId, executor)
+
+  /**
+   * Forget a resource being read ahead, if it is, stopping the read if it
+   * has not started.
+   */
+  public void cancelReadAhead(String lrClassName, Object lrPersistenceId) {
+    Future<LanguageResource> readAhead = readAheads == null ? null
+      : readAheads.remove(pendingKey(lrClassName, lrPersistenceId.toString()));
+    // not interrupted, as that would close any channel being read
+    if(readAhead != null) readAhead.cancel(false);
+  } // cancelReadAhead(lrClassName, lrPersistenceId)
+
+  /** Forget all the resources being read ahead. */
+  protected void cancelReadAheads() {
+    if(readAheads == null) return;
+    for(String key : readAheads.keySet()) {
+      Future<LanguageResource> readAhead = readAheads.remove(key);
+      if(readAhead != null) readAhead.cancel(false);
+    }
+  } // cancelReadAheads()
+
+  /** Read the stored form of a resource. */
+  protected LanguageResource readResource(String lrClassName,
+    String lrPersistenceId) throws PersistenceException {
 
     // find the subdirectory for resources of this type
     File resourceTypeDirectory = new File(storageDir, lrClassName);
@@ -496,25 +1111,13 @@ extends AbstractFeatureBearer implements DataStore {
     }
 
     // create a File to representing the resource storage file
-    File resourceFile = new File(resourceTypeDirectory, lrPersistenceId.toString());
+    File resourceFile = new File(resourceTypeDirectory, lrPersistenceId);
     if(! resourceFile.exists() || ! resourceFile.isFile())
       throw new PersistenceException("Can't find file " + resourceFile);
 
     // try and read the file and deserialise it
-    LanguageResource lr = null;
     try {
-      InputStream is = new FileInputStream(resourceFile);
-
-      // after 1.1 the serialised files are compressed
-      if(! currentProtocolVersion.equals("1.0"))
-        is = new GZIPInputStream(is);
-
-      is=new BufferedInputStream(is);
-      
-      // Use an input stream that is aware of the GATE classloader
-      ObjectInputStream ois = new GateAwareObjectInputStream(is);
-      lr = (LanguageResource) ois.readObject();
-      ois.close();
+      return decode(new FileInputStream(resourceFile));
     } catch(IOException e) {
       throw
         new PersistenceException("Couldn't read file "+resourceFile+": "+e);
@@ -522,16 +1125,7 @@ extends AbstractFeatureBearer implements DataStore {
       throw
         new PersistenceException("Couldn't find class "+lrClassName+": "+ee);
     }
-
-    // set the dataStore property of the LR (which is transient and therefore
-    // not serialised)
-    lr.setDataStore(this);
-    lr.setLRPersistenceId(lrPersistenceId);
-
-    if (DEBUG) Out.prln("LR read in memory: " + lr);
-
-    return lr;
-  } // getLr(id)
+  } // readResource(lrClassName, lrPersistenceId)
 
   /** Get a list of the types of LR that are present in the data store. */
   @Override
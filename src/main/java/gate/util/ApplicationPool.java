@@ -0,0 +1,333 @@
+/*
+ *  ApplicationPool.java
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import gate.Controller;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.creole.AbstractProcessingResource;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of copies of an application (or of any other resource), for code
+ * that runs the same application from several threads. The copies are made
+ * with {@link Factory#duplicate(Resource)}, so resources that implement
+ * {@link gate.creole.CustomDuplication} or have
+ * {@link gate.creole.metadata.Sharable} parameters share their data between
+ * the copies exactly as when duplicating by hand. The application given to
+ * the pool is only used as the model for the copies and is never lent out.
+ * <p>
+ * A copy is taken from the pool with {@link #borrow()} or
+ * {@link #borrow(long, TimeUnit)} and must be given back with
+ * {@link #release(Resource)} once it is no longer in use. When it is given
+ * back, the runtime parameters of the copy and of all the PRs it contains are
+ * set back to the values the application had when the pool was created, and
+ * the document and corpus of language analysers are unset.
+ * <p>
+ * The pool starts with <code>minSize</code> copies, made up front, and makes
+ * more as needed up to <code>maxSize</code>, after which borrowers wait for a
+ * copy to be given back. Copies beyond <code>minSize</code> that have not
+ * been used for the idle timeout are deleted the next time a copy is
+ * borrowed or given back, or when {@link #evictIdle()} is called.
+ */
+public class ApplicationPool<T extends Resource> {
+
+  private static final Logger log = Logger.getLogger(ApplicationPool.class);
+
+  /** The application the copies are made from */
+  private final T template;
+
+  /** The runtime parameters of the PRs of the template, in tree order */
+  private final List<FeatureMap> templateParameters;
+
+  private final int minSize;
+
+  private final int maxSize;
+
+  /** How long, in milliseconds, a surplus copy can stay unused */
+  private long idleTimeout = 60000;
+
+  /** The copies that are not lent out, most recently used first */
+  private final Deque<Idle<T>> idle = new ArrayDeque<Idle<T>>();
+
+  /** The copies that are lent out */
+  private final Set<T> borrowed =
+      Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+
+  /** The number of copies, including those being made */
+  private int size = 0;
+
+  private boolean closed = false;
+
+  private static class Idle<T> {
+    final T resource;
+
+    final long since = System.currentTimeMillis();
+
+    Idle(T resource) {
+      this.resource = resource;
+    }
+  }
+
+  /**
+   * Create a pool of copies of an application.
+   *
+   * @param template the application to copy
+   * @param minSize the number of copies to make straight away and to keep
+   *          even when they are not used
+   * @param maxSize the largest number of copies
+   */
+  public ApplicationPool(T template, int minSize, int maxSize)
+      throws ResourceInstantiationException {
+    if(minSize < 0 || maxSize < 1 || minSize > maxSize)
+      throw new IllegalArgumentException("Invalid pool sizes " + minSize
+          + ", " + maxSize);
+    this.template = template;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    templateParameters = new ArrayList<FeatureMap>();
+    for(ProcessingResource pr : processingResources(template)) {
+      templateParameters.add(runtimeParameters(pr));
+    }
+    try {
+      for(int i = 0; i < minSize; i++) {
+        size++;
+        idle.add(new Idle<T>(duplicate()));
+      }
+    } catch(ResourceInstantiationException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Set how long, in milliseconds, a copy beyond the minimum number can
+   * stay unused before it is deleted. Defaults to a minute.
+   */
+  public synchronized void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  public synchronized long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /** The number of copies, whether lent out or not. */
+  public synchronized int getSize() {
+    return size;
+  }
+
+  /** The number of copies that are lent out. */
+  public synchronized int getBorrowedCount() {
+    return borrowed.size();
+  }
+
+  /**
+   * Borrow a copy of the application, waiting as long as it takes for one
+   * to be available.
+   */
+  public T borrow() throws ResourceInstantiationException,
+      InterruptedException {
+    return borrow(-1, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrow a copy of the application, waiting at most the given time for one
+   * to be available.
+   *
+   * @param timeout how long to wait, or a negative value to wait as long as
+   *          it takes
+   * @return the copy, or null if none became available in time
+   * @throws ResourceInstantiationException if a new copy was needed and could
+   *           not be made
+   */
+  public T borrow(long timeout, TimeUnit unit)
+      throws ResourceInstantiationException, InterruptedException {
+    long deadline = timeout < 0 ? Long.MAX_VALUE
+        : System.currentTimeMillis() + unit.toMillis(timeout);
+    synchronized(this) {
+      evictIdle();
+      while(true) {
+        if(closed) throw new GateRuntimeException("The pool has been closed");
+        if(!idle.isEmpty()) {
+          T resource = idle.removeFirst().resource;
+          borrowed.add(resource);
+          return resource;
+        }
+        if(size < maxSize) {
+          // make a new copy, outside the lock
+          size++;
+          break;
+        }
+        long wait = deadline - System.currentTimeMillis();
+        if(wait <= 0) return null;
+        wait(deadline == Long.MAX_VALUE ? 0 : wait);
+      }
+    }
+    T resource = null;
+    try {
+      resource = duplicate();
+    } finally {
+      synchronized(this) {
+        if(resource == null) {
+          size--;
+          notifyAll();
+        } else if(closed) {
+          size--;
+          Factory.deleteResource(resource);
+          throw new GateRuntimeException("The pool has been closed");
+        } else {
+          borrowed.add(resource);
+        }
+      }
+    }
+    return resource;
+  }
+
+  /**
+   * Give back a copy borrowed from this pool, so that it can be lent out
+   * again.
+   */
+  public void release(T resource) {
+    synchronized(this) {
+      if(!borrowed.remove(resource))
+        throw new IllegalArgumentException(resource.getName()
+            + " was not borrowed from this pool");
+      if(closed) {
+        size--;
+        Factory.deleteResource(resource);
+        return;
+      }
+    }
+    boolean reset = false;
+    try {
+      reset(resource);
+      reset = true;
+    } catch(ResourceInstantiationException e) {
+      log.warn("Could not reset " + resource.getName()
+          + ", deleting it from the pool", e);
+    }
+    synchronized(this) {
+      if(reset && !closed) {
+        idle.addFirst(new Idle<T>(resource));
+      } else {
+        size--;
+        Factory.deleteResource(resource);
+      }
+      evictIdle();
+      notifyAll();
+    }
+  }
+
+  /**
+   * Delete the copies that are not lent out; those that are will be deleted
+   * when they are given back. The application the copies were made from is
+   * left alone.
+   */
+  public synchronized void close() {
+    closed = true;
+    for(Idle<T> entry : idle) {
+      size--;
+      Factory.deleteResource(entry.resource);
+    }
+    idle.clear();
+    notifyAll();
+  }
+
+  /**
+   * Delete the copies beyond the minimum that have been idle too long. This
+   * is done whenever a copy is borrowed or given back, so only needs calling
+   * to shrink a pool that is not being used at all.
+   */
+  public synchronized void evictIdle() {
+    long limit = System.currentTimeMillis() - idleTimeout;
+    Iterator<Idle<T>> oldest = idle.descendingIterator();
+    while(size > minSize && oldest.hasNext()) {
+      Idle<T> entry = oldest.next();
+      if(entry.since > limit) break;
+      oldest.remove();
+      size--;
+      Factory.deleteResource(entry.resource);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private T duplicate() throws ResourceInstantiationException {
+    return (T)Factory.duplicate(template);
+  }
+
+  /**
+   * Set the runtime parameters of a copy and of its PRs back to those of the
+   * template.
+   */
+  protected void reset(T resource) throws ResourceInstantiationException {
+    List<ProcessingResource> prs = processingResources(resource);
+    if(prs.size() != templateParameters.size())
+      throw new ResourceInstantiationException(
+          "The PRs of the application have changed");
+    for(int i = 0; i < prs.size(); i++) {
+      ProcessingResource pr = prs.get(i);
+      if(pr instanceof LanguageAnalyser) {
+        ((LanguageAnalyser)pr).setDocument(null);
+        ((LanguageAnalyser)pr).setCorpus(null);
+      }
+      pr.setParameterValues(templateParameters.get(i));
+    }
+  }
+
+  /**
+   * The runtime parameters of a PR other than its document and corpus, which
+   * are unset when the PR is reset rather than copied from the template.
+   */
+  private static FeatureMap runtimeParameters(ProcessingResource pr)
+      throws ResourceInstantiationException {
+    FeatureMap parameters =
+        AbstractProcessingResource.getRuntimeParameterValues(pr);
+    if(pr instanceof LanguageAnalyser) {
+      parameters.remove("document");
+      parameters.remove("corpus");
+    }
+    return parameters;
+  }
+
+  /** A resource and, if it is a controller, all the PRs it contains. */
+  private static List<ProcessingResource> processingResources(
+      Resource resource) {
+    List<ProcessingResource> prs = new ArrayList<ProcessingResource>();
+    if(resource instanceof ProcessingResource) {
+      prs.add((ProcessingResource)resource);
+    }
+    if(resource instanceof Controller) {
+      for(ProcessingResource pr : ((Controller)resource).getPRs()) {
+        prs.addAll(processingResources(pr));
+      }
+    }
+    return prs;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ *  ControllerStatistics.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import gate.creole.SerialController;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes the time taken by the PRs of a controller, as kept in
+ * {@link SerialController#getPrLatencyMap()}: the number of documents each PR
+ * has processed, how many it processes per second, and the median, 99th and
+ * 99.9th percentile and longest times it took. The figures can be published
+ * as an MXBean, registered with the platform MBean server by
+ * {@link #register()} under the name
+ * <code>gate:type=Controller,name=</code><i>controller name</i>, and logged at
+ * regular intervals with {@link #startLogging(long)}.
+ */
+public class ControllerStatistics implements ControllerStatisticsMXBean {
+
+  private static final Logger log = Logger.getLogger(ControllerStatistics.class);
+
+  /** The statistics of one PR at one time. */
+  public static class PRStatistics {
+    private final String name;
+
+    private final long documentCount;
+
+    private final double documentsPerSecond;
+
+    private final double meanMillis;
+
+    private final double p50Millis;
+
+    private final double p99Millis;
+
+    private final double p999Millis;
+
+    private final double maxMillis;
+
+    @ConstructorProperties({"name", "documentCount", "documentsPerSecond",
+        "meanMillis", "p50Millis", "p99Millis", "p999Millis", "maxMillis"})
+    public PRStatistics(String name, long documentCount,
+        double documentsPerSecond, double meanMillis, double p50Millis,
+        double p99Millis, double p999Millis, double maxMillis) {
+      this.name = name;
+      this.documentCount = documentCount;
+      this.documentsPerSecond = documentsPerSecond;
+      this.meanMillis = meanMillis;
+      this.p50Millis = p50Millis;
+      this.p99Millis = p99Millis;
+      this.p999Millis = p999Millis;
+      this.maxMillis = maxMillis;
+    }
+
+    PRStatistics(String name, LatencyHistogram histogram) {
+      this(name, histogram.getCount(), histogram.getRate(),
+          histogram.getMean() / 1e6, histogram.getPercentile(0.5) / 1e6,
+          histogram.getPercentile(0.99) / 1e6,
+          histogram.getPercentile(0.999) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    /** The name of the PR. */
+    public String getName() {
+      return name;
+    }
+
+    /** The number of times the PR has run. */
+    public long getDocumentCount() {
+      return documentCount;
+    }
+
+    /** The number of times the PR has run per second. */
+    public double getDocumentsPerSecond() {
+      return documentsPerSecond;
+    }
+
+    public double getMeanMillis() {
+      return meanMillis;
+    }
+
+    public double getP50Millis() {
+      return p50Millis;
+    }
+
+    public double getP99Millis() {
+      return p99Millis;
+    }
+
+    public double getP999Millis() {
+      return p999Millis;
+    }
+
+    public double getMaxMillis() {
+      return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d docs, %.1f docs/s, mean %.2fms, "
+          + "p50 %.2fms, p99 %.2fms, p999 %.2fms, max %.2fms", name,
+          documentCount, documentsPerSecond, meanMillis, p50Millis, p99Millis,
+          p999Millis, maxMillis);
+    }
+  }
+
+  private final SerialController controller;
+
+  private ObjectName objectName;
+
+  private ScheduledExecutorService logging;
+
+  public ControllerStatistics(SerialController controller) {
+    this.controller = controller;
+  }
+
+  @Override
+  public String getControllerName() {
+    return controller.getName();
+  }
+
+  @Override
+  public List<PRStatistics> getProcessingResources() {
+    Map<String, LatencyHistogram> latencies =
+        new TreeMap<String, LatencyHistogram>(controller.getPrLatencyMap());
+    List<PRStatistics> statistics = new ArrayList<PRStatistics>();
+    for(Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      statistics.add(new PRStatistics(entry.getKey(), entry.getValue()));
+    }
+    return statistics;
+  }
+
+  @Override
+  public void reset() {
+    controller.resetPrLatencies();
+  }
+
+  /**
+   * Register with the platform MBean server, if not already done.
+   *
+   * @return the name registered under
+   */
+  public synchronized ObjectName register() throws JMException {
+    if(objectName == null) {
+      ObjectName name = new ObjectName("gate:type=Controller,name="
+          + ObjectName.quote(controller.getName()));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      objectName = name;
+    }
+    return objectName;
+  }
+
+  /** Unregister from the platform MBean server, if registered. */
+  public synchronized void unregister() {
+    if(objectName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        server.unregisterMBean(objectName);
+      } catch(JMException e) {
+        log.warn("Could not unregister " + objectName, e);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * Log the statistics at the given interval, on a background thread, until
+   * {@link #stopLogging()} is called.
+   */
+  public synchronized void startLogging(long periodMillis) {
+    stopLogging();
+    // a daemon thread, so we don't block GATE from exiting if logging is
+    // never stopped
+    logging = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      private ThreadFactory dtf = Executors.defaultThreadFactory();
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = dtf.newThread(r);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    logging.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        log.info(ControllerStatistics.this.toString());
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stopLogging() {
+    if(logging != null) {
+      logging.shutdownNow();
+      logging = null;
+    }
+  }
+
+  /** Stop logging and unregister. */
+  public void close() {
+    stopLogging();
+    unregister();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder(controller.getName());
+    for(PRStatistics pr : getProcessingResources()) {
+      text.append("\n  ").append(pr);
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ *  ControllerStatisticsMXBean.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import java.util.List;
+
+/**
+ * The management interface of {@link ControllerStatistics}, through which
+ * the time taken by the PRs of a controller can be watched with JMX tools.
+ */
+public interface ControllerStatisticsMXBean {
+
+  /** The name of the controller. */
+  public String getControllerName();
+
+  /** The statistics of each PR that has run, at the time of the call. */
+  public List<ControllerStatistics.PRStatistics> getProcessingResources();
+
+  /** Start counting afresh. */
+  public void reset();
+}
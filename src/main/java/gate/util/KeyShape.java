@@ -0,0 +1,114 @@
+/*
+ *  KeyShape.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable, ordered list of keys shared by all the {@link SimpleMapImpl}s
+ * that hold the same keys in the same order. Maps created for annotations of
+ * one type nearly always end up with the same keys (e.g. <tt>string</tt>,
+ * <tt>kind</tt>, <tt>length</tt>, <tt>orth</tt> for tokens), so rather than
+ * each map keeping its own key array it points at the shape for its keys and
+ * only keeps the values.
+ * <p>
+ * Shapes form a tree rooted at {@link #EMPTY}: adding a key to a map moves it
+ * to the child shape for that key, which is created the first time it is
+ * needed and reused afterwards. The keys held in shapes are the canonical
+ * instances from {@link SimpleMapImpl#theKeysHere} so they can be compared by
+ * reference.
+ */
+final class KeyShape {
+
+  /**
+   * Maps with more keys than this stop sharing their keys and go back to
+   * keeping their own key array, so that the occasional large map (e.g. the
+   * features of a document) does not fill the shape tree with long chains
+   * of shapes that will never be reused.
+   */
+  static final int MAX_SHARED_KEYS = 32;
+
+  /** The shape of maps with no keys */
+  static final KeyShape EMPTY = new KeyShape(new Object[0]);
+
+  /** The keys, in the order they were added */
+  final Object[] keys;
+
+  /** The shapes with one more key than this, by the added key */
+  private volatile ConcurrentMap<Object, KeyShape> transitions;
+
+  private KeyShape(Object[] keys) {
+    this.keys = keys;
+  }
+
+  /** The number of keys in this shape */
+  int size() {
+    return keys.length;
+  }
+
+  /**
+   * The position of the given canonical key in this shape, or -1 if it is not
+   * part of the shape.
+   */
+  int indexOf(Object key) {
+    for(int i = 0; i < keys.length; i++) {
+      if(keys[i] == key) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * The shape holding the keys of this shape followed by the given canonical
+   * key, or null if that shape would have more than {@link #MAX_SHARED_KEYS}
+   * keys.
+   */
+  KeyShape with(Object key) {
+    if(keys.length >= MAX_SHARED_KEYS) return null;
+    ConcurrentMap<Object, KeyShape> next = transitions;
+    if(next == null) {
+      synchronized(this) {
+        next = transitions;
+        if(next == null) {
+          next = new ConcurrentHashMap<Object, KeyShape>(4);
+          transitions = next;
+        }
+      }
+    }
+    KeyShape child = next.get(key);
+    if(child == null) {
+      Object[] childKeys = new Object[keys.length + 1];
+      System.arraycopy(keys, 0, childKeys, 0, keys.length);
+      childKeys[keys.length] = key;
+      child = new KeyShape(childKeys);
+      KeyShape existing = next.putIfAbsent(key, child);
+      if(existing != null) child = existing;
+    }
+    return child;
+  }
+
+  /**
+   * The shape for the given canonical keys, in order, or null if there are
+   * too many of them to be shared.
+   */
+  static KeyShape forKeys(Object[] keys, int count) {
+    if(count > MAX_SHARED_KEYS) return null;
+    KeyShape shape = EMPTY;
+    for(int i = 0; i < count; i++) {
+      shape = shape.with(keys[i]);
+    }
+    return shape;
+  }
+}
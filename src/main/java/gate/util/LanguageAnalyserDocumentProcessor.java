@@ -19,6 +19,7 @@ import gate.Corpus;
 import gate.LanguageAnalyser;
 import gate.Document;
 import gate.Factory;
+import gate.creole.ResourceInstantiationException;
 
 /**
  * {@link DocumentProcessor} that processes documents using a
@@ -50,11 +51,22 @@ public class LanguageAnalyserDocumentProcessor implements DocumentProcessor {
     return analyser;
   }
 
-  @Override
-  public synchronized void processDocument(Document doc) throws GateException {
+  /**
+   * Create the corpus used to hold the document being processed, if not
+   * already done. This is done by the first call to
+   * {@link #processDocument(Document)}, but callers that process documents
+   * on other threads should call it first, as creating resources is not
+   * thread safe.
+   */
+  public synchronized void init() throws ResourceInstantiationException {
     if(corpus == null) {
       corpus = Factory.newCorpus("DocumentProcessor corpus");
     }
+  }
+
+  @Override
+  public synchronized void processDocument(Document doc) throws GateException {
+    init();
     try {
       corpus.add(doc);
       analyser.setCorpus(corpus);
@@ -0,0 +1,149 @@
+/*
+ *  LatencyHistogram.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A histogram of durations, which can be added to from several threads at
+ * once without locking. Durations are counted in buckets whose width grows
+ * with the duration (eight buckets for each power of two), so percentiles are
+ * accurate to within an eighth of their value whatever the range, with a
+ * fixed and small memory use.
+ */
+public class LatencyHistogram implements Serializable {
+
+  private static final long serialVersionUID = 2404383245516221858L;
+
+  /** The number of bits of precision within each power of two */
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final AtomicLongArray buckets =
+      new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder total = new LongAdder();
+
+  private final LongAccumulator max = new LongAccumulator(
+      (LongBinaryOperator & Serializable)Math::max, 0);
+
+  /** When counting started, from {@link System#currentTimeMillis()} */
+  private volatile long since = System.currentTimeMillis();
+
+  /** Add a duration, in nanoseconds. */
+  public void record(long nanos) {
+    if(nanos < 0) nanos = 0;
+    buckets.incrementAndGet(bucket(nanos));
+    count.increment();
+    total.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  private static int bucket(long value) {
+    if(value < SUB_BUCKETS) return (int)value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** The largest value that falls in a bucket. */
+  private static long highestValue(int bucket) {
+    if(bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    return lowest + (1L << (exponent - SUB_BITS)) - 1;
+  }
+
+  /** The number of durations recorded. */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /** The sum of the durations recorded, in nanoseconds. */
+  public long getTotal() {
+    return total.sum();
+  }
+
+  /** The longest duration recorded, in nanoseconds. */
+  public long getMax() {
+    return max.get();
+  }
+
+  /** The mean duration, in nanoseconds, or 0 if there are none. */
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double)total.sum() / n;
+  }
+
+  /**
+   * The duration, in nanoseconds, that the given proportion of the durations
+   * recorded do not exceed, or 0 if there are none.
+   *
+   * @param proportion between 0 and 1, e.g. 0.99 for the 99th percentile
+   */
+  public long getPercentile(double proportion) {
+    long n = 0;
+    long[] counts = new long[buckets.length()];
+    for(int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+      n += counts[i];
+    }
+    if(n == 0) return 0;
+    long rank = (long)Math.ceil(proportion * n);
+    if(rank < 1) rank = 1;
+    long seen = 0;
+    for(int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if(seen >= rank) return Math.min(highestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  /**
+   * The number of durations recorded per second since the histogram was
+   * created or reset.
+   */
+  public double getRate() {
+    long elapsed = System.currentTimeMillis() - since;
+    return elapsed <= 0 ? 0 : getCount() * 1000.0 / elapsed;
+  }
+
+  /** When counting started, from {@link System#currentTimeMillis()}. */
+  public long getSince() {
+    return since;
+  }
+
+  /**
+   * Forget the durations recorded so far. Durations recorded while resetting
+   * may be partly kept.
+   */
+  public void reset() {
+    since = System.currentTimeMillis();
+    for(int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+    total.reset();
+    max.reset();
+  }
+}
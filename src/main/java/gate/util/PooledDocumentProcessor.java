@@ -0,0 +1,290 @@
+/*
+ *  PooledDocumentProcessor.java
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DocumentProcessor} that processes several documents at once, each
+ * with its own copy of a {@link LanguageAnalyser} (typically a corpus
+ * controller), made with {@link Factory#duplicate(gate.Resource)}. Documents
+ * can be submitted with {@link #submit(Document)}, which returns straight
+ * away with a future that completes once the document has been processed, or
+ * processed with {@link #processDocument(Document)}, which waits for the
+ * result.
+ * <p>
+ * The number of documents accepted but not yet processed is limited to
+ * <code>maxInFlight</code>: beyond that {@link #submit(Document)} fails the
+ * returned future straight away with a {@link RejectedExecutionException},
+ * so that a busy service can turn requests away rather than queue them up
+ * indefinitely, while {@link #processDocument(Document)} waits for room.
+ * <p>
+ * The copies of the analyser, and the corpora they use, are made when the
+ * first document is submitted, so the pool size and in-flight limit must be
+ * set before that.
+ */
+public class PooledDocumentProcessor implements DocumentProcessor {
+
+  /**
+   * The analyser used to process documents, and from which the copies are
+   * made.
+   */
+  protected LanguageAnalyser analyser;
+
+  /**
+   * The number of copies of the analyser, and so of documents processed at
+   * the same time. 0 means the number of processors.
+   */
+  protected int poolSize = 0;
+
+  /**
+   * The number of documents that can be waiting or being processed. 0 means
+   * twice the pool size.
+   */
+  protected int maxInFlight = 0;
+
+  /** The processors using the analyser and its copies that are not in use */
+  private BlockingQueue<LanguageAnalyserDocumentProcessor> idle;
+
+  /** All the processors, for cleaning up */
+  private List<LanguageAnalyserDocumentProcessor> processors;
+
+  /** Runs the documents */
+  private ExecutorService executor;
+
+  /** Limits the number of documents in flight */
+  private Semaphore inFlight;
+
+  public PooledDocumentProcessor() {
+  }
+
+  /**
+   * Set the controller used to process documents.
+   */
+  public void setAnalyser(LanguageAnalyser a) {
+    this.analyser = a;
+  }
+
+  public LanguageAnalyser getAnalyser() {
+    return analyser;
+  }
+
+  /**
+   * Set the number of documents processed at the same time, which is also
+   * the number of copies of the analyser used. Defaults to the number of
+   * processors.
+   */
+  public void setPoolSize(int poolSize) {
+    this.poolSize = poolSize;
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Set the number of documents that can be waiting or being processed at
+   * any time. Defaults to twice the pool size.
+   */
+  public void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Make the copies of the analyser and start the threads, if not already
+   * done.
+   */
+  protected synchronized void init() throws ResourceInstantiationException {
+    if(executor != null) return;
+    if(analyser == null)
+      throw new ResourceInstantiationException("No analyser has been set");
+    int size = poolSize > 0 ? poolSize
+        : Runtime.getRuntime().availableProcessors();
+    List<LanguageAnalyserDocumentProcessor> newProcessors =
+        new ArrayList<LanguageAnalyserDocumentProcessor>();
+    try {
+      for(int i = 0; i < size; i++) {
+        LanguageAnalyserDocumentProcessor processor =
+            new LanguageAnalyserDocumentProcessor();
+        processor.setAnalyser(i == 0 ? analyser
+            : (LanguageAnalyser)Factory.duplicate(analyser));
+        newProcessors.add(processor);
+        // the corpus too, so the threads don't create resources
+        processor.init();
+      }
+    } catch(ResourceInstantiationException e) {
+      // delete the copies made so far, but not the analyser itself
+      for(int i = 1; i < newProcessors.size(); i++) {
+        newProcessors.get(i).cleanup();
+      }
+      throw e;
+    }
+    processors = newProcessors;
+    idle = new LinkedBlockingQueue<LanguageAnalyserDocumentProcessor>(
+        newProcessors);
+    inFlight = new Semaphore(maxInFlight > 0 ? maxInFlight : size * 2);
+    // daemon threads, so we don't block GATE from exiting if this processor
+    // has not been cleaned up
+    executor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+      private ThreadFactory dtf = Executors.defaultThreadFactory();
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = dtf.newThread(r);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Submit a document for processing.
+   *
+   * @return a future that completes with the document once it has been
+   *         processed, or exceptionally with the exception thrown while
+   *         processing it, or with a {@link RejectedExecutionException} if
+   *         there are already too many documents in flight.
+   */
+  public CompletableFuture<Document> submit(Document doc) {
+    try {
+      init();
+    } catch(ResourceInstantiationException e) {
+      CompletableFuture<Document> failed = new CompletableFuture<Document>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    if(!inFlight.tryAcquire()) {
+      CompletableFuture<Document> rejected = new CompletableFuture<Document>();
+      rejected.completeExceptionally(new RejectedExecutionException(
+          "Too many documents are being processed"));
+      return rejected;
+    }
+    return start(doc);
+  }
+
+  /**
+   * Process a document with the first copy of the analyser that becomes
+   * free, waiting for room if there are too many documents in flight.
+   */
+  @Override
+  public void processDocument(Document doc) throws GateException {
+    init();
+    try {
+      inFlight.acquire();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GateException("Interrupted while waiting to process "
+          + doc.getName(), e);
+    }
+    try {
+      start(doc).get();
+    } catch(InterruptedException e) {
+      // the document is still processed, we just don't wait for it
+      Thread.currentThread().interrupt();
+      throw new GateException("Interrupted while processing "
+          + doc.getName(), e);
+    } catch(java.util.concurrent.ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof GateException) throw (GateException)cause;
+      if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if(cause instanceof Error) throw (Error)cause;
+      throw new GateException(cause);
+    }
+  }
+
+  /** Run a document for which a permit has been acquired. */
+  private CompletableFuture<Document> start(final Document doc) {
+    final CompletableFuture<Document> result =
+        new CompletableFuture<Document>();
+    ExecutorService running;
+    final BlockingQueue<LanguageAnalyserDocumentProcessor> free;
+    synchronized(this) {
+      running = executor;
+      free = idle;
+    }
+    try {
+      if(running == null)
+        throw new RejectedExecutionException("The processor has been cleaned up");
+      running.execute(new Runnable() {
+        @Override
+        public void run() {
+          // there is one processor per thread, so one is always free
+          LanguageAnalyserDocumentProcessor processor = free.poll();
+          Throwable thrown = null;
+          try {
+            processor.processDocument(doc);
+          } catch(Throwable t) {
+            thrown = t;
+          } finally {
+            free.add(processor);
+            inFlight.release();
+          }
+          // only once there is room for another document
+          if(thrown == null)
+            result.complete(doc);
+          else result.completeExceptionally(thrown);
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      // cleaned up in the meantime
+      inFlight.release();
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  /**
+   * Clean up resources, including the analyser and its copies, waiting for
+   * the documents being processed to finish. Should be called when this
+   * processor is no longer required. The analyser is deleted, so a new one
+   * must be set before this processor can be used again.
+   */
+  public synchronized void cleanup() {
+    if(executor != null) {
+      executor.shutdown();
+      try {
+        while(!executor.awaitTermination(1, TimeUnit.MINUTES));
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for(LanguageAnalyserDocumentProcessor processor : processors) {
+        processor.cleanup();
+      }
+      executor = null;
+      processors = null;
+      idle = null;
+    } else if(analyser != null) {
+      Factory.deleteResource(analyser);
+    }
+    analyser = null;
+  }
+}
@@ -107,8 +107,9 @@ public class SimpleFeatureMapImpl
 //            return false;
 //          }
 //        } else {
-          /* processing without ontology awareness */
-          if (!keyValueFromThis.equals(keyValueFromAFeatureMap)) return false;
+          /* processing without ontology awareness, comparing primitive
+             values without boxing them */
+          if (!valueEquals(v, sfm, i)) return false;
 //        }  // else
       } // if
     } // for
@@ -146,11 +147,11 @@ public class SimpleFeatureMapImpl
 
     for (int i = 0; i < sfm.count; i++) {
       key = sfm.theKeys[i];
-      keyValueFromAFeatureMap = sfm.theValues[i];
+      keyValueFromAFeatureMap = sfm.valueAt(i);
       int v = super.getSubsumeKey(key);
       if (v < 0)
         return false;
-      keyValueFromThis = theValues[v]; //was: get(key);
+      keyValueFromThis = valueAt(v); //was: get(key);
 
       if ( (keyValueFromThis == null && keyValueFromAFeatureMap != null) ||
           (keyValueFromThis != null && keyValueFromAFeatureMap == null)
@@ -269,7 +270,7 @@ public class SimpleFeatureMapImpl
       if (!aFeatureNamesSet.contains(key))
         continue;
 
-      keyValueFromAFeatureMap = sfm.theValues[i];
+      keyValueFromAFeatureMap = sfm.valueAt(i);
         keyValueFromThis = get(key);
 
       if  ( (keyValueFromThis == null && keyValueFromAFeatureMap != null) ||
@@ -332,6 +333,83 @@ public class SimpleFeatureMapImpl
     return result;
   } // remove
 
+  /**
+   * Puts an int value in the map without boxing it. Reading the value through
+   * the Map methods returns an Integer.
+   */
+  public void putInt(Object key, int value) {
+    putPrimitive(key, INT_SLOT, value);
+    this.fireMapUpdatedEvent();
+  } // putInt
+
+  /**
+   * Puts a long value in the map without boxing it. Reading the value through
+   * the Map methods returns a Long.
+   */
+  public void putLong(Object key, long value) {
+    putPrimitive(key, LONG_SLOT, value);
+    this.fireMapUpdatedEvent();
+  } // putLong
+
+  /**
+   * Puts a double value in the map without boxing it. Reading the value
+   * through the Map methods returns a Double.
+   */
+  public void putDouble(Object key, double value) {
+    putPrimitive(key, DOUBLE_SLOT, Double.doubleToLongBits(value));
+    this.fireMapUpdatedEvent();
+  } // putDouble
+
+  /**
+   * Gets the value of a numeric feature as an int, without boxing it if it
+   * was put as a primitive.
+   *
+   * @return the value, or defaultValue if the feature is missing or null
+   * @throws ClassCastException if the value is not a {@link Number}
+   */
+  public int getInt(Object key, int defaultValue) {
+    int pos = getPostionByKey(key);
+    if (pos == -1) return defaultValue;
+    Object value = theValues[pos];
+    if (value == INT_SLOT || value == LONG_SLOT) return (int)primitives[pos];
+    if (value == DOUBLE_SLOT)
+      return (int)Double.longBitsToDouble(primitives[pos]);
+    return (value == null) ? defaultValue : ((Number)value).intValue();
+  } // getInt
+
+  /**
+   * Gets the value of a numeric feature as a long, without boxing it if it
+   * was put as a primitive.
+   *
+   * @return the value, or defaultValue if the feature is missing or null
+   * @throws ClassCastException if the value is not a {@link Number}
+   */
+  public long getLong(Object key, long defaultValue) {
+    int pos = getPostionByKey(key);
+    if (pos == -1) return defaultValue;
+    Object value = theValues[pos];
+    if (value == INT_SLOT || value == LONG_SLOT) return primitives[pos];
+    if (value == DOUBLE_SLOT)
+      return (long)Double.longBitsToDouble(primitives[pos]);
+    return (value == null) ? defaultValue : ((Number)value).longValue();
+  } // getLong
+
+  /**
+   * Gets the value of a numeric feature as a double, without boxing it if it
+   * was put as a primitive.
+   *
+   * @return the value, or defaultValue if the feature is missing or null
+   * @throws ClassCastException if the value is not a {@link Number}
+   */
+  public double getDouble(Object key, double defaultValue) {
+    int pos = getPostionByKey(key);
+    if (pos == -1) return defaultValue;
+    Object value = theValues[pos];
+    if (value == INT_SLOT || value == LONG_SLOT) return primitives[pos];
+    if (value == DOUBLE_SLOT) return Double.longBitsToDouble(primitives[pos]);
+    return (value == null) ? defaultValue : ((Number)value).doubleValue();
+  } // getDouble
+
   @Override
   public void clear() {
     super.clear();
@@ -17,6 +17,7 @@ package gate.util;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,11 +25,39 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Implements Map interface in using less memory. Very simple but usefull
  * for small number of items on it.
+ * <p>
+ * Maps that hold the same keys in the same order share a single key array,
+ * held by a {@link KeyShape}, so each map only needs its own array of values.
+ * Maps that grow beyond {@link KeyShape#MAX_SHARED_KEYS} keys keep their own
+ * key array instead.
  */
 
 class SimpleMapImpl implements Map<Object, Object>,
       java.lang.Cloneable, java.io.Serializable {
   
+  /**
+   * Marker stored in the values array for values that are kept in the
+   * primitives array. There is one instance per primitive type.
+   */
+  static final class PrimitiveSlot implements Serializable {
+    private static final long serialVersionUID = -1733564930446370432L;
+
+    private PrimitiveSlot() {
+    }
+  }
+
+  /** Marks an Integer value kept in the primitives array */
+  static final PrimitiveSlot INT_SLOT = new PrimitiveSlot();
+
+  /** Marks a Long value kept in the primitives array */
+  static final PrimitiveSlot LONG_SLOT = new PrimitiveSlot();
+
+  /**
+   * Marks a Double value kept in the primitives array, as returned by
+   * {@link Double#doubleToLongBits(double)}
+   */
+  static final PrimitiveSlot DOUBLE_SLOT = new PrimitiveSlot();
+
   /**
    * Special marker class used to represent null in the keys array.
    */
@@ -52,16 +81,30 @@ class SimpleMapImpl implements Map<Object, Object>,
   /**
    * Array keeping the keys of the entries in the map. It is "synchrnized"
    * with the values array - the Nth position in both arrays correspond
-   * to one and the same entry
+   * to one and the same entry. If the map has a shape this is the (shared)
+   * key array of the shape and must not be modified.
    */
   Object theKeys[];
 
+  /**
+   * The shape holding the keys of this map, or null if the map has too many
+   * keys to share them and theKeys belongs to this map alone.
+   */
+  transient KeyShape shape;
+
   /**
    * Array keeping the values of the entries in the map. It is "synchrnized"
    * with the keys array - the Nth position in both arrays correspond
    * to one and the same entry
    */
   Object theValues[];
+
+  /**
+   * The values that were put into the map as primitives, at the same
+   * positions as the {@link PrimitiveSlot} markers in the values array that
+   * say how to interpret them. Only allocated once such a value is put.
+   */
+  transient long primitives[];
   
   /** Freeze the serialization UID. */
   static final long serialVersionUID = -6747241616127229116L;
@@ -82,7 +125,8 @@ class SimpleMapImpl implements Map<Object, Object>,
    * Constructor
    */
   public SimpleMapImpl() {
-    theKeys = new Object[capacity];
+    shape = KeyShape.EMPTY;
+    theKeys = shape.keys;
     theValues = new Object[capacity];
   } // SimpleMapImpl()
 
@@ -137,10 +181,11 @@ class SimpleMapImpl implements Map<Object, Object>,
   public void clear()
   {
     for (int i = 0; i < count; i++) {
-      theKeys[i] = null;
       theValues[i] = null;
     } // for
     count = 0;
+    shape = KeyShape.EMPTY;
+    theKeys = shape.keys;
   } // clear
 
   /**
@@ -166,15 +211,68 @@ class SimpleMapImpl implements Map<Object, Object>,
   @Override
   public Object get(Object key) {
     int pos = getPostionByKey(key);
-    return (pos == -1) ? null : theValues[pos];
+    return (pos == -1) ? null : valueAt(pos);
   } // get
 
+  /**
+   * return the value at the given position, boxing it if it is held in the
+   * primitives array.
+   */
+  Object valueAt(int pos) {
+    Object value = theValues[pos];
+    if (value instanceof PrimitiveSlot) {
+      if (value == INT_SLOT)
+        return Integer.valueOf((int)primitives[pos]);
+      if (value == LONG_SLOT)
+        return Long.valueOf(primitives[pos]);
+      return Double.valueOf(Double.longBitsToDouble(primitives[pos]));
+    }
+    return value;
+  } // valueAt
+
+  /**
+   * return true if the value at position pos in this map is equal to the
+   * value at position otherPos in the other map. Values held as primitives
+   * of the same type in both maps are compared without boxing them.
+   */
+  boolean valueEquals(int pos, SimpleMapImpl other, int otherPos) {
+    Object value = theValues[pos];
+    if (value instanceof PrimitiveSlot && value == other.theValues[otherPos])
+      return primitives[pos] == other.primitives[otherPos];
+    value = valueAt(pos);
+    Object otherValue = other.valueAt(otherPos);
+    return (value == null) ? otherValue == null : value.equals(otherValue);
+  } // valueEquals
+
   /**
    * put a value in the map using the given key. If the key exist in the map
    * the value is replaced and the old one is returned.
    */
   @Override
   public Object put(Object key, Object value) {
+    int pos = positionForPut(key);
+    Object oldVal = valueAt(pos);
+    theValues[pos] = value;
+    return oldVal;
+  } // put
+
+  /**
+   * put a primitive value in the map using the given key. The slot says how
+   * the bits are to be interpreted when the value is read back.
+   */
+  void putPrimitive(Object key, PrimitiveSlot slot, long bits) {
+    int pos = positionForPut(key);
+    if (primitives == null)
+      primitives = new long[capacity];
+    theValues[pos] = slot;
+    primitives[pos] = bits;
+  } // putPrimitive
+
+  /**
+   * return the position of the key in the map, adding it with a null value
+   * first if it is not there yet.
+   */
+  private int positionForPut(Object key) {
     Object gKey;
     if (key == null) {
       key = nullKey;
@@ -186,10 +284,8 @@ class SimpleMapImpl implements Map<Object, Object>,
     if (gKey != null) {
       for (int i = 0; i < count; i++) {
         if (gKey == theKeys[i]) {
-          // we found the reference - return the value
-          Object oldVal = theValues[i];
-          theValues[i] = value;
-          return oldVal;
+          // we found the reference - return its position
+          return i;
         }
       } // for
     } else {// if(gKey != null)
@@ -200,12 +296,26 @@ class SimpleMapImpl implements Map<Object, Object>,
     if (count == capacity)
       increaseCapacity();
 
-    // put the key and value to the map
-    theKeys[count] = gKey;
-    theValues[count] = value;
-    count++;
-    return null;
-  } // put
+    // move to the shape with the new key, or store the key ourselves if the
+    // map has become too big to share its keys
+    KeyShape next = (shape == null) ? null : shape.with(gKey);
+    if (next != null) {
+      shape = next;
+      theKeys = next.keys;
+    } else {
+      if (shape != null) {
+        Object oldKeys[] = theKeys;
+        theKeys = new Object[capacity];
+        System.arraycopy(oldKeys, 0, theKeys, 0, count);
+        shape = null;
+      }
+      theKeys[count] = gKey;
+    }
+
+    // the value is set by the caller
+    theValues[count] = null;
+    return count++;
+  } // positionForPut
 
   /**
    * remove value from the map using it's key.
@@ -217,15 +327,30 @@ class SimpleMapImpl implements Map<Object, Object>,
         return null;
 
     // save the value to return it at the end
-    Object oldVal = theValues[pos];
+    Object oldVal = valueAt(pos);
     count--;
-    // move the last element key and value removing the element
-    if (count != 0) {
+    if (shape != null) {
+      // the keys are shared so move to the shape for the remaining keys,
+      // ordered as if the last key had been moved into the gap
+      Object newKeys[] = new Object[count];
+      System.arraycopy(theKeys, 0, newKeys, 0, count);
+      if (pos != count)
+        newKeys[pos] = theKeys[count];
+      shape = KeyShape.forKeys(newKeys, count);
+      theKeys = shape.keys;
+    } else {
+      // move the last key into the gap and clear the last position
+      if (count != 0)
         theKeys[pos] = theKeys[count];
+      theKeys[count] = null;
+    }
+    // move the last value removing the element
+    if (count != 0) {
         theValues[pos] = theValues[count];
+        if (primitives != null)
+          primitives[pos] = primitives[count];
     }
     // clear the last position
-    theKeys[count] = null;
     theValues[count] = null;
 
     // return the value
@@ -249,7 +374,7 @@ class SimpleMapImpl implements Map<Object, Object>,
       Object key;
       for (int i = 0; i < sfm.count; i++) {
         key = sfm.theKeys[i];
-        put(key, sfm.theValues[i]);
+        put(key, sfm.valueAt(i));
       } //for
     } else { // if (t instanceof SimpleMapImpl)
       Iterator<?> entries = t.entrySet().iterator();
@@ -265,7 +390,7 @@ class SimpleMapImpl implements Map<Object, Object>,
    * return positive value as index of the key in the map.
    * Negative value means that the key is not present in the map
    */
-  private int getPostionByKey(Object key) {
+  int getPostionByKey(Object key) {
     if (key == null)
       key = nullKey;
     // check the 'all keys' map for the very first key occurence
@@ -298,7 +423,7 @@ class SimpleMapImpl implements Map<Object, Object>,
   private int getPostionByValue(Object value) {
     Object av;
     for (int i = 0; i < count; i++) {
-      av = theValues[i];
+      av = valueAt(i);
       if (value == null) {
         if (av == null)
           return i;
@@ -315,14 +440,23 @@ class SimpleMapImpl implements Map<Object, Object>,
   private void increaseCapacity() {
     int oldCapacity = capacity;
     capacity *= 2;
-    Object oldKeys[] = theKeys;
-    theKeys = new Object[capacity];
+    // shared key arrays are replaced rather than grown
+    if (shape == null) {
+      Object oldKeys[] = theKeys;
+      theKeys = new Object[capacity];
+      System.arraycopy(oldKeys, 0, theKeys, 0, oldCapacity);
+    }
 
     Object oldValues[] = theValues;
     theValues = new Object[capacity];
 
-    System.arraycopy(oldKeys, 0, theKeys, 0, oldCapacity);
     System.arraycopy(oldValues, 0, theValues, 0, oldCapacity);
+
+    if (primitives != null) {
+      long oldPrimitives[] = primitives;
+      primitives = new long[capacity];
+      System.arraycopy(oldPrimitives, 0, primitives, 0, oldCapacity);
+    }
   } // increaseCapacity
 
   /**
@@ -389,7 +523,7 @@ class SimpleMapImpl implements Map<Object, Object>,
     Object k;
     for (int i = 0; i < count; i++) {
       k = theKeys[i];
-      s.add(new Entry(k.hashCode(), ((k==nullKey)?null:k), theValues[i]));
+      s.add(new Entry(k.hashCode(), ((k==nullKey)?null:k), valueAt(i)));
     } //for
     return s;
   } // entrySet
@@ -412,10 +546,10 @@ class SimpleMapImpl implements Map<Object, Object>,
       k = theKeys[i];
       v = m.get(k);
       if (v==null) {
-        if (theValues[i]!=null)
+        if (valueAt(i)!=null)
           return false;
       }
-      else if (!v.equals(theValues[i])){
+      else if (!v.equals(valueAt(i))){
         return false;
       }
     } // for
@@ -448,12 +582,18 @@ class SimpleMapImpl implements Map<Object, Object>,
     }
 
     newMap.count = count;
-    newMap.theKeys = new Object[capacity];
-    System.arraycopy(theKeys, 0, newMap.theKeys, 0, capacity);
+    // a shared key array can be shared with the copy as well
+    if (shape == null) {
+      newMap.theKeys = new Object[capacity];
+      System.arraycopy(theKeys, 0, newMap.theKeys, 0, capacity);
+    }
 
     newMap.theValues = new Object[capacity];
     System.arraycopy(theValues, 0, newMap.theValues, 0, capacity);
 
+    if (primitives != null)
+      newMap.primitives = primitives.clone();
+
     return newMap;
   } // clone
 
@@ -474,6 +614,29 @@ class SimpleMapImpl implements Map<Object, Object>,
     return buf.toString();
   } // toString
 
+  /**
+   * writeObject - primitive values are written out boxed, so that the
+   * serialised form does not depend on how the values were put in the map.
+   *
+   * @serialData Write serializable fields. No optional data written.
+   */
+  private void writeObject(ObjectOutputStream s) throws IOException {
+    if (primitives == null) {
+      s.defaultWriteObject();
+      return;
+    }
+    Object values[] = new Object[capacity];
+    for (int i = 0; i < count; i++) {
+      values[i] = valueAt(i);
+    }
+    ObjectOutputStream.PutField fields = s.putFields();
+    fields.put("capacity", capacity);
+    fields.put("count", count);
+    fields.put("theKeys", theKeys);
+    fields.put("theValues", values);
+    s.writeFields();
+  }//writeObject
+
   /**
    * readObject - calls the default readObject() and then initialises the
    * transient data
@@ -483,17 +646,22 @@ class SimpleMapImpl implements Map<Object, Object>,
   private void readObject(ObjectInputStream s)
       throws IOException, ClassNotFoundException {
     s.defaultReadObject();
-        
-    for (int i = 0; i < theKeys.length; i++) {
+
+    // the key array may be shared with other maps read from the same stream
+    // so the canonical keys are collected into a new one
+    Object keys[] = new Object[capacity];
+    for (int i = 0; i < count; i++) {
       if(theKeys[i] instanceof NullKey) {
-        theKeys[i] = nullKey;
+        keys[i] = nullKey;
       }
-      else if(theKeys[i] != null) {
+      else {
         // check if the key is in the 'all keys' map, adding it if not
         Object o = theKeysHere.putIfAbsent(theKeys[i], theKeys[i]);
-        if (o != null) // yes - so reuse the reference
-          theKeys[i] = o;
+        // if it was, reuse the reference
+        keys[i] = (o != null) ? o : theKeys[i];
       }
     }//for
+    shape = KeyShape.forKeys(keys, count);
+    theKeys = (shape != null) ? shape.keys : keys;
   }//readObject
 } //SimpleMapImpl
@@ -20,6 +20,7 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.GateConstants;
+import gate.annotation.AnnotationBulkLoader;
 import gate.corpora.DocumentContentImpl;
 import gate.corpora.RepositioningInfo;
 import gate.event.StatusListener;
@@ -208,6 +209,8 @@ public class XmlDocumentHandler extends XmlPositionCorrectionHandler {
 
     // sort colector ascending on its id
     Collections.sort(colector);
+    // the annotations are added to the set in one go at the end
+    AnnotationBulkLoader loader = new AnnotationBulkLoader(basicAS);
     Set<Integer> testIdsSet = new HashSet<Integer>();
     // create all the annotations (on this new document) from the collector
     while (!colector.isEmpty()) {
@@ -225,7 +228,7 @@ public class XmlDocumentHandler extends XmlPositionCorrectionHandler {
         // the annotation type will be conforming with markupElementsMap
         //add the annotation to the Annotation Set
         if (markupElementsMap == null) {
-          basicAS.add(obj.getId(),
+          loader.add(obj.getId(),
                   obj.getStart(),
                   obj.getEnd(),
                   obj.getElemName(),
@@ -234,7 +237,7 @@ public class XmlDocumentHandler extends XmlPositionCorrectionHandler {
           // get the type of the annotation from Map
           String annotationType = markupElementsMap.get(obj.getElemName());
           if (annotationType != null) {
-            basicAS.add(obj.getId(),
+            loader.add(obj.getId(),
                     obj.getStart(),
                     obj.getEnd(),
                     annotationType,
@@ -247,6 +250,12 @@ public class XmlDocumentHandler extends XmlPositionCorrectionHandler {
       }// End try
       colector.remove(obj);
     }// End while
+    try {
+      loader.load();
+    } catch (gate.util.InvalidOffsetException e) {
+      // the offsets were checked as the annotations were queued
+      throw new GateSaxException(e);
+    }// End try
   }// endDocument();
 
 
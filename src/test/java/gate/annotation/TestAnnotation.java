@@ -23,7 +23,10 @@ import junit.framework.*;
 
 import gate.*;
 import gate.corpora.TestDocument;
+import gate.corpora.DocumentImpl;
 import gate.event.AnnotationListener;
+import gate.event.AnnotationSetEvent;
+import gate.event.AnnotationSetListener;
 import gate.util.*;
 
 /** Tests for the Annotation classes
@@ -544,6 +547,364 @@ public class TestAnnotation extends TestCase
 
   } // testGetCovering()
 
+  /**
+   * Test the range queries answered by the interval index against a brute
+   * force check, including sets with a long annotation covering the whole
+   * document, after removals and after the document has been edited.
+   */
+  public void testIntervalIndex() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 500; i++) text.append("abcd ");
+    Document doc = Factory.newDocument(text.toString());
+    AnnotationSet as = doc.getAnnotations();
+    Random random = new Random(42);
+    long size = doc.getContent().size();
+
+    as.add(0l, size, "Section", Factory.newFeatureMap());
+    for(int i = 0; i < 300; i++) {
+      long start = random.nextInt((int)size);
+      long end = Math.min(size, start + random.nextInt(20));
+      as.add(start, end, random.nextBoolean() ? "Token" : "Sentence",
+              Factory.newFeatureMap());
+    }
+    checkRangeQueries(as, random);
+
+    List<Annotation> all = new ArrayList<Annotation>(as);
+    for(int i = 0; i < all.size(); i += 3) {
+      as.remove(all.get(i));
+    }
+    checkRangeQueries(as, random);
+
+    doc.edit(100l, 250l, null);
+    doc.edit(40l, 40l, new gate.corpora.DocumentContentImpl("inserted"));
+    checkRangeQueries(as, random);
+
+    // edits that make annotations longer, by inserting text inside them or
+    // by moving their start back, without an annotation as long as the
+    // document
+    doc = Factory.newDocument(text.toString());
+    as = doc.getAnnotations();
+    for(int i = 0; i < 300; i++) {
+      long start = random.nextInt((int)size);
+      long end = Math.min(size, start + random.nextInt(20));
+      as.add(start, end, random.nextBoolean() ? "Token" : "Sentence",
+              Factory.newFeatureMap());
+    }
+    Integer id = as.add(9l, 20l, "A", Factory.newFeatureMap());
+    doc.edit(0l, 10l, new gate.corpora.DocumentContentImpl("0123456789"));
+    doc.edit(500l, 500l, new gate.corpora.DocumentContentImpl(
+            "a long insertion inside the annotations"));
+    doc.edit(1000l, 1030l, new gate.corpora.DocumentContentImpl(
+            "thirty characters replaced...."));
+    checkRangeQueries(as, random);
+    AnnotationSet covering = as.getCovering("A", 0l, 20l);
+    assertEquals(1, covering.size());
+    assertEquals(id, covering.iterator().next().getId());
+  } // testIntervalIndex()
+
+  private void checkRangeQueries(AnnotationSet as, Random random) {
+    long size = as.getDocument().getContent().size();
+    for(int i = 0; i < 200; i++) {
+      long start = random.nextInt((int)size);
+      long end = Math.min(size, start + random.nextInt(40));
+      String type = random.nextBoolean() ? "Token" : null;
+      Set<Annotation> overlapping = new HashSet<Annotation>();
+      Set<Annotation> covering = new HashSet<Annotation>();
+      Set<Annotation> contained = new HashSet<Annotation>();
+      Set<Annotation> typedContained = new HashSet<Annotation>();
+      for(Annotation a : as) {
+        long s = a.getStartNode().getOffset();
+        long e = a.getEndNode().getOffset();
+        boolean typeOk = type == null || type.equals(a.getType());
+        if(typeOk && ((s < start && e > start) || (s >= start && s < end)))
+          overlapping.add(a);
+        if(typeOk && s <= start && e >= end) covering.add(a);
+        if(s >= start && s < end && e <= end) {
+          contained.add(a);
+          if(typeOk) typedContained.add(a);
+        }
+      }
+      assertEquals(overlapping, new HashSet<Annotation>(as.get(type, start,
+              end)));
+      assertEquals(covering, new HashSet<Annotation>(as.getCovering(type,
+              start, end)));
+      assertEquals(contained, new HashSet<Annotation>(as.getContained(start,
+              end)));
+      assertEquals(typedContained, new HashSet<Annotation>(
+              ((AnnotationSetImpl)as).getContained(type, start, end)));
+    }
+  } // checkRangeQueries()
+
+  /**
+   * Test that the results of queries behave like immutable snapshots, and
+   * that chained queries on them give the same answers as the equivalent
+   * query on the whole set.
+   */
+  public void testResultViews() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 200; i++) text.append("abcd ");
+    Document doc = Factory.newDocument(text.toString());
+    AnnotationSet as = doc.getAnnotations();
+    Random random = new Random(3);
+    for(int i = 0; i < 300; i++) {
+      long start = random.nextInt(990);
+      as.add(start, start + random.nextInt(10), random.nextBoolean()
+              ? "Token"
+              : "Sentence", Factory.newFeatureMap());
+    }
+
+    AnnotationSet tokens = as.get("Token");
+    AnnotationSet contained = as.getContained(100l, 300l);
+    assertEquals(new HashSet<Annotation>(as.getContained(150l, 250l)),
+            new HashSet<Annotation>(contained.getContained(150l, 250l)));
+    assertEquals(new HashSet<Annotation>(as.get("Token", 100l, 200l)),
+            new HashSet<Annotation>(tokens.get(100l, 200l)));
+    assertEquals(new HashSet<Annotation>(((AnnotationSetImpl)as).getContained(
+            "Token", 100l, 300l)), new HashSet<Annotation>(contained
+            .get("Token")));
+    assertEquals(0, tokens.get("Sentence").size());
+
+    // the views are snapshots and ignore later changes to the set
+    int tokenCount = tokens.size();
+    Annotation first = tokens.iterator().next();
+    assertTrue(tokens.contains(first));
+    assertEquals(first, tokens.get(first.getId()));
+    as.add(150l, 160l, "Token", Factory.newFeatureMap());
+    as.remove(first);
+    assertEquals(tokenCount, tokens.size());
+    assertTrue(tokens.contains(first));
+    assertFalse(as.contains(first));
+    assertTrue(tokens.get(100l, 200l).size() > 0);
+    for(Annotation a : tokens.get(100l, 200l)) {
+      assertTrue(tokens.contains(a));
+    }
+    assertEquals(tokens, tokens.get());
+    try {
+      tokens.add(0l, 1l, "Token", Factory.newFeatureMap());
+      fail("Query results should be immutable");
+    } catch(UnsupportedOperationException e) {
+      // expected
+    }
+  } // testResultViews()
+
+  /**
+   * Test that get(type, constraints) gives the same results with the feature
+   * value index as without it, as annotations and their features change.
+   */
+  public void testFeatureValueIndex() throws Exception {
+    boolean wasIndexing = AnnotationSetImpl.isFeatureValueIndex();
+    AnnotationSetImpl.setFeatureValueIndex(true);
+    try {
+      Document doc = Factory.newDocument("some text to annotate");
+      AnnotationSet as = doc.getAnnotations();
+      String[] majorTypes = {"location", "person", "organization", null};
+      Random random = new Random(11);
+      for(int i = 0; i < 200; i++) {
+        FeatureMap fm = Factory.newFeatureMap();
+        String majorType = majorTypes[random.nextInt(majorTypes.length)];
+        if(majorType != null) fm.put("majorType", majorType);
+        fm.put("minorType", random.nextBoolean() ? "city" : "country");
+        as.add(0l, 4l, random.nextBoolean() ? "Lookup" : "Token", fm);
+      }
+      checkFeatureQueries(as);
+
+      List<Annotation> lookups = new ArrayList<Annotation>(as.get("Lookup"));
+      for(int i = 0; i + 3 < lookups.size(); i += 4) {
+        lookups.get(i).getFeatures().put("majorType", "location");
+        as.remove(lookups.get(i + 1));
+        FeatureMap fm = Factory.newFeatureMap();
+        fm.put("majorType", "person");
+        lookups.get(i + 2).setFeatures(fm);
+        lookups.get(i + 3).getFeatures().remove("minorType");
+      }
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put("majorType", "location");
+      fm.put("minorType", "city");
+      as.add(5l, 9l, "Lookup", fm);
+      checkFeatureQueries(as);
+
+      as.get("Lookup").iterator().next().getFeatures().clear();
+      for(Annotation lookup : new ArrayList<Annotation>(as.get("Lookup")))
+        as.remove(lookup);
+      checkFeatureQueries(as);
+
+      // clearing the set drops the indices, and they are built again
+      as.clear();
+      assertNull(((AnnotationSetImpl)as).featureIndexByType);
+      as.add(0l, 4l, "Lookup", fm);
+      checkFeatureQueries(as);
+    } finally {
+      AnnotationSetImpl.setFeatureValueIndex(wasIndexing);
+    }
+  } // testFeatureValueIndex()
+
+  private void checkFeatureQueries(AnnotationSet as) {
+    String[] majorTypes = {"location", "person", "organization", "date"};
+    for(String majorType : majorTypes) {
+      for(String minorType : new String[] {"city", null}) {
+        FeatureMap constraints = Factory.newFeatureMap();
+        constraints.put("majorType", majorType);
+        if(minorType != null) constraints.put("minorType", minorType);
+        Set<Annotation> expected = new HashSet<Annotation>();
+        for(Annotation a : as) {
+          if(a.getType().equals("Lookup")
+                  && a.getFeatures().subsumes(constraints)) expected.add(a);
+        }
+        assertEquals(expected, new HashSet<Annotation>(as.get("Lookup",
+                constraints)));
+        assertEquals(expected, new HashSet<Annotation>(as.get().get("Lookup",
+                constraints)));
+      }
+    }
+  } // checkFeatureQueries()
+
+  /**
+   * Test that the bulk loader gives the same annotations, ids and nodes as
+   * adding the annotations one at a time.
+   */
+  public void testBulkLoader() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 500; i++) text.append("word ");
+    Document bulk = Factory.newDocument(text.toString());
+    Document single = Factory.newDocument(text.toString());
+    // an existing annotation that will be replaced, and one that won't
+    for(Document doc : new Document[] {bulk, single}) {
+      doc.getAnnotations().add(7, 0l, 4l, "Old", Factory.newFeatureMap());
+      doc.getAnnotations().add(10l, 14l, "Old", Factory.newFeatureMap());
+    }
+    final List<Annotation> added = new ArrayList<Annotation>();
+    bulk.getAnnotations().addAnnotationSetListener(new AnnotationSetListener() {
+      @Override
+      public void annotationAdded(AnnotationSetEvent e) {
+        added.add(e.getAnnotation());
+      }
+
+      @Override
+      public void annotationRemoved(AnnotationSetEvent e) {
+      }
+    });
+
+    AnnotationBulkLoader loader =
+            new AnnotationBulkLoader(bulk.getAnnotations());
+    Random random = new Random(17);
+    for(int i = 0; i < 1000; i++) {
+      long start = random.nextInt(text.length());
+      long end = Math.min(text.length(), start + random.nextInt(50));
+      Integer id = random.nextInt(4) == 0 ? Integer.valueOf(i * 3) : null;
+      String type = random.nextBoolean() ? "Token" : "Sentence";
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put("n", i);
+      loader.add(id, start, end, type, fm);
+      if(id == null) {
+        single.getAnnotations().add(start, end, type, fm);
+      } else {
+        single.getAnnotations().add(id, start, end, type, fm);
+      }
+    }
+    // replaces the existing annotation with the same id
+    loader.add(7, 20, 30, "Token", null);
+    single.getAnnotations().add(7, 20l, 30l, "Token", null);
+    try {
+      loader.add(0, text.length() + 1, "Token", null);
+      fail("Offsets past the end should be rejected");
+    } catch(InvalidOffsetException e) {
+      // expected
+    }
+    assertEquals(1001, loader.size());
+    loader.load();
+    assertEquals(0, loader.size());
+
+    AnnotationSet expected = single.getAnnotations();
+    AnnotationSet actual = bulk.getAnnotations();
+    assertEquals(expected.size(), actual.size());
+    assertEquals(1001, added.size());
+    assertEquals(((DocumentImpl)single).peakAtNextAnnotationId(),
+            ((DocumentImpl)bulk).peakAtNextAnnotationId());
+    for(Annotation a : expected) {
+      Annotation b = actual.get(a.getId());
+      assertNotNull(b);
+      assertEquals(a.getType(), b.getType());
+      assertEquals(a.getFeatures(), b.getFeatures());
+      assertEquals(a.getStartNode().getOffset(), b.getStartNode().getOffset());
+      assertEquals(a.getEndNode().getOffset(), b.getEndNode().getOffset());
+    }
+    // the offset and type queries see the new annotations, and annotations
+    // share the nodes at the same offsets
+    for(long offset = 0; offset < text.length(); offset += 37) {
+      assertEquals(expected.get(offset, offset + 20).size(),
+              actual.get(offset, offset + 20).size());
+      assertEquals(expected.get("Token", offset, offset + 20).size(),
+              actual.get("Token", offset, offset + 20).size());
+      for(Annotation a : actual.get(offset)) {
+        for(Annotation b : actual.get(offset)) {
+          assertSame(a.getStartNode(), b.getStartNode());
+        }
+      }
+    }
+  } // testBulkLoader()
+
+  /**
+   * Test the primitive node index against a TreeMap, then rerun the
+   * positional tests with the primitive indices selected.
+   */
+  public void testPrimitiveNodeIndex() throws Exception {
+    NodeOffsetIndex index = new PrimitiveNodeOffsetIndex();
+    TreeMap<Long, Node> expected = new TreeMap<Long, Node>();
+    Random random = new Random(7);
+    for(int i = 0; i < 20000; i++) {
+      long offset = random.nextInt(5000);
+      if(random.nextInt(3) == 0) {
+        assertEquals(expected.remove(offset), index.remove(offset));
+      } else {
+        Node node = new NodeImpl(i, offset);
+        expected.put(offset, node);
+        index.put(offset, node);
+      }
+      if(i % 500 == 0) {
+        long to = offset + random.nextInt(300);
+        assertEquals(new ArrayList<Node>(expected.subMap(offset, to).values()),
+                new ArrayList<Node>(index.values(offset, to)));
+        assertEquals(new ArrayList<Node>(expected.tailMap(offset).values()),
+                new ArrayList<Node>(index.valuesFrom(offset)));
+        Map.Entry<Long, Node> next = expected.ceilingEntry(offset);
+        assertEquals(next == null ? null : next.getValue(),
+                index.getNextOf(offset));
+        assertEquals(expected.get(offset), index.get(offset));
+      }
+    }
+    assertEquals(new ArrayList<Node>(expected.values()),
+            new ArrayList<Node>(index.copy().values()));
+    assertEquals(expected.firstEntry().getValue(), index.firstNode());
+    assertEquals(expected.lastEntry().getValue(), index.lastNode());
+
+    Map<Integer, Object> byId = new IntKeyedHashMap<Object>(0);
+    Map<Integer, Object> expectedById = new HashMap<Integer, Object>();
+    for(int i = 0; i < 20000; i++) {
+      Integer key = random.nextInt(3000);
+      if(random.nextBoolean()) {
+        assertEquals(expectedById.remove(key), byId.remove(key));
+      } else {
+        assertEquals(expectedById.put(key, i), byId.put(key, i));
+      }
+    }
+    assertEquals(expectedById, byId);
+
+    boolean wasPrimitive = AnnotationSetImpl.isPrimitiveNodeIndex();
+    AnnotationSetImpl.setPrimitiveNodeIndex(true);
+    try {
+      setUp();
+      testNodesByOffset();
+      setUp();
+      testGetStringLongLong();
+      setUp();
+      testRemove();
+      testIntervalIndex();
+      testDocumentOrder();
+    } finally {
+      AnnotationSetImpl.setPrimitiveNodeIndex(wasPrimitive);
+    }
+  } // testPrimitiveNodeIndex()
+
   /**
    * Test that the nodesByOffset map inside AnnotationSetImpl gets updated
    * correctly as annotations are added and removed from the annotation set.
@@ -79,6 +79,201 @@ public class TestDocument extends TestCase
     }
   }
 
+  /** Test the rope used for edited content against a StringBuilder */
+  public void testRope() throws Exception {
+    Random random = new Random(5);
+    StringBuilder expected = new StringBuilder();
+    for(int i = 0; i < 5000; i++) expected.append((char)('a' + random.nextInt(26)));
+    Rope rope = Rope.valueOf(expected.toString());
+    for(int i = 0; i < 5000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(20));
+      String replacement = random.nextInt(3) == 0 ? "" : Integer.toString(i);
+      expected.replace(start, end, replacement);
+      rope = rope.replace(start, end, replacement);
+      if(i % 100 == 0) {
+        assertEquals(expected.length(), rope.length());
+        int from = random.nextInt(expected.length());
+        assertEquals(expected.substring(from, expected.length()),
+                rope.substring(from, rope.length()));
+        assertEquals(expected.charAt(from), rope.charAt(from));
+      }
+    }
+    assertEquals(expected.toString(), rope.toString());
+  } // testRope()
+
+  /**
+   * Test that a batch of edits gives the same content and annotations as the
+   * same edits made one at a time.
+   */
+  public void testBatchedEdits() throws Exception {
+    Random random = new Random(9);
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 2000; i++) text.append((char)('a' + random.nextInt(26)));
+    Document batched = Factory.newDocument(text.toString());
+    Document oneByOne = Factory.newDocument(text.toString());
+    for(int i = 0; i < 500; i++) {
+      long start = random.nextInt(text.length());
+      long end = Math.min(text.length(), start + random.nextInt(30));
+      String set = random.nextBoolean() ? "" : "other";
+      batched.getAnnotations(set).add(start, end, "Test",
+              Factory.newFeatureMap());
+      oneByOne.getAnnotations(set).add(start, end, "Test",
+              Factory.newFeatureMap());
+    }
+
+    int count = 100;
+    long[] starts = new long[count];
+    long[] ends = new long[count];
+    DocumentContent[] replacements = new DocumentContent[count];
+    long offset = 0;
+    for(int i = 0; i < count; i++) {
+      starts[i] = offset + 1 + random.nextInt(5);
+      ends[i] = starts[i] + random.nextInt(10);
+      offset = ends[i];
+      int kind = random.nextInt(3);
+      replacements[i] = kind == 0 ? null : new DocumentContentImpl(
+              kind == 1 ? "x" : "inserted text");
+    }
+    // two edits that touch, given in reverse order, are combined
+    starts[count - 1] = ends[count - 2];
+    // and the order of the edits doesn't matter
+    Collections.reverse(Arrays.asList(replacements));
+    reverse(starts);
+    reverse(ends);
+
+    ((DocumentImpl)batched).edit(starts, ends, replacements);
+    // one at a time, from the end of the document
+    oneByOne.edit(starts[1], ends[0], new DocumentContentImpl(
+            (replacements[1] == null ? "" : replacements[1].toString())
+                    + (replacements[0] == null ? "" : replacements[0]
+                            .toString())));
+    for(int i = 2; i < count; i++) {
+      oneByOne.edit(starts[i], ends[i], replacements[i]);
+    }
+    assertEquals(oneByOne.getContent().toString(), batched.getContent()
+            .toString());
+    for(String set : new String[] {"", "other"}) {
+      AnnotationSet expected = oneByOne.getAnnotations(set);
+      AnnotationSet actual = batched.getAnnotations(set);
+      assertEquals(expected.size(), actual.size());
+      for(Annotation a : expected) {
+        Annotation b = actual.get(a.getId());
+        assertNotNull(b);
+        assertEquals(a.getStartNode().getOffset(), b.getStartNode().getOffset());
+        assertEquals(a.getEndNode().getOffset(), b.getEndNode().getOffset());
+      }
+    }
+  } // testBatchedEdits()
+
+  /**
+   * Test that an annotation made longer by an edit, which moves its start
+   * back, is still found by a later edit removing its end.
+   */
+  public void testEditsLengtheningAnnotations() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 100; i++) text.append((char)('a' + i % 26));
+    Document doc = Factory.newDocument(text.toString());
+    AnnotationSet as = doc.getAnnotations();
+    Integer a = as.add(9L, 20L, "A", Factory.newFeatureMap());
+    as.add(15L, 16L, "D", Factory.newFeatureMap());
+    doc.edit(0L, 10L, new DocumentContentImpl("0123456789"));
+    assertEquals(0L, as.get(a).getStartNode().getOffset().longValue());
+    assertEquals(20L, as.get(a).getEndNode().getOffset().longValue());
+    doc.edit(14L, 20L, null);
+    assertEquals(94L, doc.getContent().size().longValue());
+    assertEquals(0L, as.get(a).getStartNode().getOffset().longValue());
+    assertEquals(14L, as.get(a).getEndNode().getOffset().longValue());
+    assertEquals(0, as.get("D").size());
+  } // testEditsLengtheningAnnotations()
+
+  /**
+   * Test that content read as a whole between edits keeps up with the edits
+   * made to it.
+   */
+  public void testReadsBetweenEdits() throws Exception {
+    Random random = new Random(3);
+    StringBuilder expected = new StringBuilder();
+    for(int i = 0; i < 1000; i++) expected.append((char)('a' + random.nextInt(26)));
+    DocumentContentImpl content = new DocumentContentImpl(expected.toString());
+    for(int i = 0; i < 200; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(10));
+      expected.replace(start, end, Integer.toString(i));
+      content.edit((long)start, (long)end,
+              new DocumentContentImpl(Integer.toString(i)));
+      assertEquals(expected.toString(), content.toString());
+      assertEquals(expected.length(), content.size().intValue());
+    }
+  } // testReadsBetweenEdits()
+
+  private static void reverse(long[] values) {
+    for(int i = 0, j = values.length - 1; i < j; i++, j--) {
+      long value = values[i];
+      values[i] = values[j];
+      values[j] = value;
+    }
+  }
+
+  /** Test memory mapped content against the same text read into a String */
+  public void testMappedContent() throws Exception {
+    // enough text for several chunks, with multi-byte characters and
+    // surrogate pairs that may fall on chunk boundaries
+    Random random = new Random(13);
+    StringBuilder text = new StringBuilder();
+    while(text.length() < 3 * MappedDocumentContentImpl.CHUNK_SIZE) {
+      switch(random.nextInt(4)){
+        case 0: text.append('é'); break;
+        case 1: text.append("😀"); break;
+        default: text.append((char)('a' + random.nextInt(26)));
+      }
+    }
+    File file = File.createTempFile("mapped", ".txt");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      // with a byte order mark, which should be skipped
+      out.write(new byte[] {(byte)0xef, (byte)0xbb, (byte)0xbf});
+      out.write(text.toString().getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    DocumentContentImpl mapped =
+            new MappedDocumentContentImpl(file, "UTF-8", null, null);
+    assertEquals(text.length(), mapped.size().longValue());
+    for(int i = 0; i < 200; i++) {
+      int start = random.nextInt(text.length());
+      int end = Math.min(text.length(), start + random.nextInt(100000));
+      assertEquals(text.substring(start, end),
+              mapped.getContent((long)start, (long)end).toString());
+    }
+
+    DocumentContentImpl part =
+            new MappedDocumentContentImpl(file, "UTF-8", 1000L, 150000L);
+    assertEquals(text.substring(1000, 150000), part.toString());
+    part.edit(0L, 10L, new DocumentContentImpl("edited"));
+    assertEquals("edited" + text.substring(1010, 150000), part.toString());
+    assertEquals(text.substring(1000, 150000), part.getOriginalContent());
+
+    // documents only map files above the threshold
+    long threshold = DocumentImpl.getMappedContentThreshold();
+    try {
+      DocumentImpl.setMappedContentThreshold(file.length());
+      FeatureMap params = Factory.newFeatureMap();
+      params.put(Document.DOCUMENT_URL_PARAMETER_NAME, file.toURI().toURL());
+      params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, "UTF-8");
+      params.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.FALSE);
+      Document doc = (Document)Factory.createResource(
+              "gate.corpora.DocumentImpl", params);
+      assertTrue(doc.getContent() instanceof MappedDocumentContentImpl);
+      assertEquals(text.toString(), doc.getContent().toString());
+      Factory.deleteResource(doc);
+    } finally {
+      DocumentImpl.setMappedContentThreshold(threshold);
+    }
+  } // testMappedContent()
+
   /** Test ordering */
   public void testCompareTo() throws Exception{
     Document doc1 = null;
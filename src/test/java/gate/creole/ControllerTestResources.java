@@ -0,0 +1,263 @@
+/*
+ *  ControllerTestResources.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.AnnotationSet;
+import gate.BatchLanguageAnalyser;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.Resource;
+import gate.Utils;
+import gate.creole.metadata.AnnotationAccess;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.creole.metadata.Sharable;
+import gate.util.GateException;
+
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing resources used by the controller tests, and a few helpers to
+ * set them up. Not a test case itself.
+ */
+public class ControllerTestResources {
+
+  /**
+   * Records the thread it ran on and itself as the "thread" and "pr"
+   * features of each document, and the number of times it has run over the
+   * document as its "runs" feature. Fails on a document named "fail", and runs
+   * until it is cancelled on a document named "slow", recording how long
+   * that took as its "cancelledAfter" feature.
+   */
+  @CreoleResource(name = "Recording test PR")
+  public static class RecordingResource extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void execute() throws ExecutionException {
+      if("fail".equals(document.getName()))
+        throw new ExecutionException("Failed on " + document.getName());
+      long start = System.currentTimeMillis();
+      while("slow".equals(document.getName())) {
+        if(CancellationToken.current().isCancelled()) {
+          document.getFeatures().put("cancelledAfter",
+            System.currentTimeMillis() - start);
+          CancellationToken.current().checkCancelled();
+        }
+        try {
+          Thread.sleep(10);
+        } catch(InterruptedException e) {
+          // check the token again
+        }
+      }
+      document.getFeatures().put("thread", Thread.currentThread().getName());
+      document.getFeatures().put("pr", this);
+      Integer runs = (Integer)document.getFeatures().get("runs");
+      document.getFeatures().put("runs", runs == null ? 1 : runs + 1);
+    }
+  }
+
+  /** Takes a while over each document, to hold up the PRs before it */
+  @CreoleResource(name = "Slow test PR")
+  public static class SlowResource extends RecordingResource {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void execute() throws ExecutionException {
+      try {
+        Thread.sleep(5);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionInterruptedException("Interrupted");
+      }
+      super.execute();
+    }
+  }
+
+  /** Adds a mark per annotation in its input set to its output set */
+  @CreoleResource(name = "Marking test PR")
+  @AnnotationAccess(reads = "${inputASName}", writes = "${outputASName}:Mark")
+  public static class MarkingResource extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+
+    private String inputASName;
+
+    private String outputASName;
+
+    @RunTime
+    @Optional
+    @CreoleParameter
+    public void setInputASName(String inputASName) {
+      this.inputASName = inputASName;
+    }
+
+    public String getInputASName() {
+      return inputASName;
+    }
+
+    @RunTime
+    @Optional
+    @CreoleParameter
+    public void setOutputASName(String outputASName) {
+      this.outputASName = outputASName;
+    }
+
+    public String getOutputASName() {
+      return outputASName;
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+      int count = document.getAnnotations(inputASName).size();
+      AnnotationSet output = document.getAnnotations(outputASName);
+      for(int i = 0; i < count; i++) {
+        Utils.addAnn(output, i % 10, i % 10 + 1, "Mark", Utils.featureMap(
+          "thread", Thread.currentThread().getName()));
+      }
+    }
+  }
+
+  /**
+   * Waits for the other PRs of its kind to start on the same document before
+   * finishing, for at most a few seconds, and records whether they all did
+   * as the "met" feature of a Met annotation in its output set. Set {@link #meeting} to a latch counting the PRs
+   * before running them.
+   */
+  @CreoleResource(name = "Meeting test PR")
+  @AnnotationAccess(writes = "${outputASName}:Met")
+  public static class MeetingResource extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+
+    public static volatile CountDownLatch meeting;
+
+    private String outputASName;
+
+    @RunTime
+    @Optional
+    @CreoleParameter
+    public void setOutputASName(String outputASName) {
+      this.outputASName = outputASName;
+    }
+
+    public String getOutputASName() {
+      return outputASName;
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+      meeting.countDown();
+      boolean met;
+      try {
+        met = meeting.await(5, TimeUnit.SECONDS);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionInterruptedException("Interrupted");
+      }
+      Utils.addAnn(document.getAnnotations(outputASName), 0, 0, "Met",
+        Utils.featureMap("met", met));
+    }
+  }
+
+  /** Records the size of the batch each document was processed in */
+  @CreoleResource(name = "Batching test PR")
+  public static class BatchingResource extends AbstractLanguageAnalyser
+      implements BatchLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void execute() throws ExecutionException {
+      document.getFeatures().put("batch", 1);
+    }
+
+    @Override
+    public void executeBatch(List<Document> documents)
+        throws ExecutionException {
+      for(Document doc : documents) {
+        // the PRs before this one have processed the whole batch
+        if(doc.getFeatures().get("pr") == null)
+          throw new ExecutionException("Not processed: " + doc.getName());
+        doc.getFeatures().put("batch", documents.size());
+      }
+    }
+  }
+
+  /** Builds a table when it is created, unless it is given one to share */
+  @CreoleResource(name = "Sharing test PR")
+  public static class SharingResource extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, String> table;
+
+    @Sharable
+    public void setTable(Map<String, String> table) {
+      this.table = table;
+    }
+
+    public Map<String, String> getTable() {
+      return table;
+    }
+
+    @Override
+    public Resource init() throws ResourceInstantiationException {
+      if(table == null) table = new HashMap<String, String>();
+      return this;
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+    }
+  }
+
+  /** Initialises GATE if need be and registers the test PRs */
+  public static void register() throws GateException, MalformedURLException {
+    if(!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+    Gate.getCreoleRegister().registerPlugin(
+      new Plugin.Component(RecordingResource.class));
+    Gate.getCreoleRegister().registerPlugin(
+      new Plugin.Component(SlowResource.class));
+    Gate.getCreoleRegister().registerPlugin(
+      new Plugin.Component(MarkingResource.class));
+    Gate.getCreoleRegister().registerPlugin(
+      new Plugin.Component(BatchingResource.class));
+    Gate.getCreoleRegister().registerPlugin(
+      new Plugin.Component(SharingResource.class));
+    Gate.getCreoleRegister().registerPlugin(
+      new Plugin.Component(MeetingResource.class));
+  }
+
+  /** A new corpus of documents named "doc0", "doc1", ... */
+  public static Corpus newCorpus(String name, int size)
+      throws ResourceInstantiationException {
+    Corpus corpus = Factory.newCorpus(name);
+    for(int i = 0; i < size; i++) {
+      Document doc = Factory.newDocument("Document number " + i);
+      doc.setName("doc" + i);
+      corpus.add(doc);
+    }
+    return corpus;
+  }
+}
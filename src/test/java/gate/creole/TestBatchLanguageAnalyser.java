@@ -0,0 +1,157 @@
+/*
+ *  TestBatchLanguageAnalyser.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources.BatchingResource;
+import gate.creole.ControllerTestResources.MeetingResource;
+import gate.creole.ControllerTestResources.RecordingResource;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for running batch language analysers in the serial controllers */
+public class TestBatchLanguageAnalyser extends TestCase {
+
+  /** Construction */
+  public TestBatchLanguageAnalyser(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test that a batch PR is given the documents in batches */
+  public void testBatchLanguageAnalyser() throws Exception {
+    Corpus corpus = ControllerTestResources.newCorpus("batchTestCorpus", 5);
+    for(int i = 0; i < 5; i++) {
+      corpus.get(i).getFeatures().put("run", i == 1 ? "no" : "yes");
+    }
+
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    controller.add((ProcessingResource)Factory.createResource(
+      BatchingResource.class.getName()));
+    controller.setCorpus(corpus);
+    // one document at a time by default
+    controller.execute();
+    for(Document doc : corpus) {
+      assertEquals(1, doc.getFeatures().get("batch"));
+    }
+    controller.setBatchSize(2);
+    controller.execute();
+    int[] expected = {2, 2, 2, 2, 1};
+    for(int i = 0; i < 5; i++) {
+      assertEquals(expected[i], corpus.get(i).getFeatures().get("batch"));
+    }
+    Factory.deleteResource(controller);
+
+    // the conditional pipeline only gives the PR the documents it should run
+    // over
+    ConditionalSerialAnalyserController conditional =
+      (ConditionalSerialAnalyserController)Factory.createResource(
+        ConditionalSerialAnalyserController.class.getName());
+    conditional.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    LanguageAnalyser batching = (LanguageAnalyser)Factory.createResource(
+      BatchingResource.class.getName());
+    conditional.add(batching);
+    conditional.setRunningStrategy(1, new AnalyserRunningStrategy(batching,
+      RunningStrategy.RUN_CONDITIONAL, "run", "yes"));
+    conditional.setCorpus(corpus);
+    conditional.setBatchSize(3);
+    for(Document doc : corpus) doc.getFeatures().remove("batch");
+    conditional.execute();
+    expected = new int[] {2, 0, 2, 2, 2};
+    for(int i = 0; i < 5; i++) {
+      Object batch = corpus.get(i).getFeatures().get("batch");
+      assertEquals(expected[i], batch == null ? 0 : batch);
+    }
+    Factory.deleteResource(conditional);
+  } // testBatchLanguageAnalyser()
+
+  /**
+   * Test that the dataflow controller still runs independent PRs at the same
+   * time between batch PRs.
+   */
+  public void testDataflowBatches() throws Exception {
+    DataflowCorpusController controller = (DataflowCorpusController)
+      Factory.createResource(DataflowCorpusController.class.getName());
+    controller.setThreadCount(2);
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    for(String output : new String[] {"a", "b"}) {
+      ProcessingResource pr = (ProcessingResource)Factory.createResource(
+        MeetingResource.class.getName());
+      pr.setParameterValue("outputASName", output);
+      controller.add(pr);
+    }
+    controller.add((ProcessingResource)Factory.createResource(
+      BatchingResource.class.getName()));
+    Corpus corpus = ControllerTestResources.newCorpus("batchTestCorpus", 1);
+    controller.setCorpus(corpus);
+    controller.setBatchSize(2);
+    MeetingResource.meeting = new CountDownLatch(2);
+    controller.execute();
+    Document doc = corpus.get(0);
+    assertEquals(1, doc.getFeatures().get("batch"));
+    for(String output : new String[] {"a", "b"}) {
+      assertEquals(Boolean.TRUE, doc.getAnnotations(output).iterator().next()
+        .getFeatures().get("met"));
+    }
+    Factory.deleteResource(controller);
+  } // testDataflowBatches()
+
+  /** Test that controllers that can't process batches say so */
+  public void testBatchesNotSupported() throws Exception {
+    ParallelCorpusController controller = (ParallelCorpusController)
+      Factory.createResource(ParallelCorpusController.class.getName());
+    controller.add((ProcessingResource)Factory.createResource(
+      BatchingResource.class.getName()));
+    controller.setCorpus(ControllerTestResources.newCorpus("batchTestCorpus",
+      2));
+    controller.setBatchSize(2);
+    try {
+      controller.execute();
+      fail("batches should not be supported");
+    } catch(ExecutionException e) {
+      assertTrue(e.getMessage().endsWith(
+        "Processing the corpus in batches is not supported!"));
+    }
+    // but the batch size does no harm without batch PRs
+    controller.remove(0);
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    controller.execute();
+    Factory.deleteResource(controller);
+  } // testBatchesNotSupported()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestBatchLanguageAnalyser.class);
+  } // suite
+}
@@ -0,0 +1,86 @@
+/*
+ *  TestConcurrentRealtimeCorpusController.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources.RecordingResource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the concurrent realtime corpus controller */
+public class TestConcurrentRealtimeCorpusController extends TestCase {
+
+  /** Construction */
+  public TestConcurrentRealtimeCorpusController(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test that a document that runs too long is given up */
+  public void testConcurrentRealtimeCorpusController() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("timeout", 200L);
+    ConcurrentRealtimeCorpusController controller =
+      (ConcurrentRealtimeCorpusController)Factory.createResource(
+        ConcurrentRealtimeCorpusController.class.getName(), params);
+    controller.add((ProcessingResource)
+      Factory.createResource(RecordingResource.class.getName()));
+    controller.setThreadCount(2);
+    Corpus corpus = ControllerTestResources.newCorpus("realtimeTestCorpus", 10);
+    corpus.get(3).setName("slow");
+    controller.setCorpus(corpus);
+    long start = System.currentTimeMillis();
+    controller.execute();
+    assertTrue(System.currentTimeMillis() - start < 10000);
+
+    // the slow document was given up, and the others processed
+    for(Document doc : corpus) {
+      assertEquals(!"slow".equals(doc.getName()),
+        doc.getFeatures().containsKey("thread"));
+    }
+    // the PR working on it saw the cancellation once its time was up (the
+    // clock starts a little before the PR does)
+    Long cancelledAfter = (Long)corpus.get(3).getFeatures().get(
+      "cancelledAfter");
+    assertNotNull(cancelledAfter);
+    assertTrue(cancelledAfter >= 180);
+
+    controller.setSuppressExceptions(false);
+    try {
+      controller.execute();
+      fail("the timeout should have been rethrown");
+    } catch(ExecutionException e) {
+      assertEquals("Execution timeout occurred on document slow",
+        e.getMessage());
+    }
+    Factory.deleteResource(controller);
+  } // testConcurrentRealtimeCorpusController()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestConcurrentRealtimeCorpusController.class);
+  } // suite
+}
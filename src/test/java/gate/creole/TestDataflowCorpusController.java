@@ -0,0 +1,141 @@
+/*
+ *  TestDataflowCorpusController.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.annotation.SynchronizedAnnotationSet;
+import gate.corpora.DocumentImpl;
+import gate.creole.ControllerTestResources.MarkingResource;
+import gate.creole.ControllerTestResources.MeetingResource;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the dataflow corpus controller */
+public class TestDataflowCorpusController extends TestCase {
+
+  /** Construction */
+  public TestDataflowCorpusController(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test that PRs run in the order their annotation sets need */
+  public void testDataflowCorpusController() throws Exception {
+    DataflowCorpusController controller = (DataflowCorpusController)
+      Factory.createResource(DataflowCorpusController.class.getName());
+    controller.setThreadCount(3);
+    String[][] sets = {{"tokens", "a"}, {"tokens", "b"}, {"a", "c"},
+        {"b", ""}};
+    for(String[] inOut : sets) {
+      ProcessingResource pr = (ProcessingResource)Factory.createResource(
+        MarkingResource.class.getName());
+      pr.setParameterValue("inputASName", inOut[0]);
+      pr.setParameterValue("outputASName", inOut[1]);
+      controller.add(pr);
+    }
+    Corpus corpus = Factory.newCorpus("dataflowTestCorpus");
+    for(int i = 0; i < 5; i++) {
+      Document doc = Factory.newDocument("Document number " + i);
+      for(int j = 0; j < 50; j++) {
+        doc.getAnnotations("tokens").add((long)j % 10, (long)j % 10 + 1,
+          "Token", Factory.newFeatureMap());
+      }
+      corpus.add(doc);
+    }
+    controller.setCorpus(corpus);
+    controller.execute();
+
+    for(Document doc : corpus) {
+      // the PRs that depended on others ran after them
+      Set<Integer> ids = new HashSet<Integer>();
+      for(String name : new String[] {"tokens", "a", "b", "c", ""}) {
+        AnnotationSet set = doc.getAnnotations(name);
+        assertEquals(50, set.size());
+        assertFalse(set instanceof SynchronizedAnnotationSet);
+        for(Annotation a : set) ids.add(a.getId());
+      }
+      // and the ids are unique although the sets were filled at once
+      assertEquals(250, ids.size());
+    }
+    Factory.deleteResource(controller);
+  } // testDataflowCorpusController()
+
+  /** Test that PRs that don't depend on each other run at the same time */
+  public void testParallelPRs() throws Exception {
+    DataflowCorpusController controller = (DataflowCorpusController)
+      Factory.createResource(DataflowCorpusController.class.getName());
+    controller.setThreadCount(3);
+    for(String output : new String[] {"a", "b", "c"}) {
+      ProcessingResource pr = (ProcessingResource)Factory.createResource(
+        MeetingResource.class.getName());
+      pr.setParameterValue("outputASName", output);
+      controller.add(pr);
+    }
+    Corpus corpus = Factory.newCorpus("dataflowTestCorpus");
+    Document doc = Factory.newDocument("The only document");
+    corpus.add(doc);
+    controller.setCorpus(corpus);
+    MeetingResource.meeting = new CountDownLatch(3);
+    controller.execute();
+    // each PR was still running when the last one started
+    for(String output : new String[] {"a", "b", "c"}) {
+      AnnotationSet set = doc.getAnnotations(output);
+      assertEquals(1, set.size());
+      assertEquals(Boolean.TRUE, set.iterator().next().getFeatures().get(
+        "met"));
+    }
+    Factory.deleteResource(controller);
+  } // testParallelPRs()
+
+  /** Test the annotation sets handed out while they are synchronized */
+  public void testSynchronizedAnnotationSets() throws Exception {
+    DocumentImpl doc = (DocumentImpl)Factory.newDocument("A document");
+    doc.getAnnotations("a").add(0L, 1L, "Test", Factory.newFeatureMap());
+    doc.setSynchronizedAnnotationSets(true);
+    // the same wrapper every time
+    AnnotationSet set = doc.getAnnotations("a");
+    assertTrue(set instanceof SynchronizedAnnotationSet);
+    assertSame(set, doc.getAnnotations("a"));
+    assertSame(doc.getAnnotations(), doc.getAnnotations());
+    // including for all the named sets at once
+    assertSame(set, doc.getNamedAnnotationSets().get("a"));
+    doc.setSynchronizedAnnotationSets(false);
+    assertFalse(doc.getAnnotations("a") instanceof SynchronizedAnnotationSet);
+    assertFalse(doc.getNamedAnnotationSets().get("a")
+      instanceof SynchronizedAnnotationSet);
+    Factory.deleteResource(doc);
+  } // testSynchronizedAnnotationSets()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestDataflowCorpusController.class);
+  } // suite
+}
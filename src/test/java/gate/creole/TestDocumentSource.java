@@ -0,0 +1,219 @@
+/*
+ *  TestDocumentSource.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.corpora.DirectoryDocumentSource;
+import gate.corpora.QueueDocumentSource;
+import gate.creole.ControllerTestResources.RecordingResource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for running the serial controllers over a stream of documents */
+public class TestDocumentSource extends TestCase {
+
+  /** Construction */
+  public TestDocumentSource(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test processing documents from a queue as they are put on it */
+  public void testQueueDocumentSource() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    final List<Document> processed = new ArrayList<Document>();
+    final QueueDocumentSource source = new QueueDocumentSource(2,
+      new QueueDocumentSource.ProcessedListener() {
+        @Override
+        public void documentProcessed(Document document) {
+          processed.add(document);
+        }
+      });
+    final String[] names = {"doc1", "doc2", "doc3", "doc4", "fail", "doc5"};
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for(String name : names) {
+            Document doc = Factory.newDocument("Streamed document");
+            doc.setName(name);
+            // waits while two documents are waiting
+            source.put(doc);
+          }
+        } catch(Exception e) {
+          // closed by the test
+        }
+      }
+    };
+    producer.start();
+    try {
+      controller.execute(source);
+      fail("the error should have been rethrown");
+    } catch(ExecutionException e) {
+      assertEquals("Failed on fail", e.getMessage());
+    }
+    // the failed document is handed back too
+    assertEquals(5, processed.size());
+    for(int i = 0; i < 4; i++) {
+      assertNotNull(processed.get(i).getFeatures().get("thread"));
+    }
+    assertEquals("fail", processed.get(4).getName());
+
+    // the rest of the stream is processed by the next run
+    producer.join();
+    source.finish();
+    controller.execute(source);
+    assertEquals(6, processed.size());
+    assertEquals("doc5", processed.get(5).getName());
+    assertNull(source.next());
+    for(Document doc : processed) Factory.deleteResource(doc);
+    Factory.deleteResource(controller);
+  } // testQueueDocumentSource()
+
+  /** Test that producers are held back while the queue is full */
+  public void testBackpressure() throws Exception {
+    final QueueDocumentSource source = new QueueDocumentSource(2);
+    assertTrue(source.offer(Factory.newDocument("One"), 0,
+      TimeUnit.MILLISECONDS));
+    assertTrue(source.offer(Factory.newDocument("Two"), 0,
+      TimeUnit.MILLISECONDS));
+    // no room for a third
+    assertFalse(source.offer(Factory.newDocument("Three"), 50,
+      TimeUnit.MILLISECONDS));
+    assertEquals(2, source.size());
+
+    // a producer waits until a document is taken
+    final Document last = Factory.newDocument("Four");
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          source.put(last);
+        } catch(InterruptedException e) {
+          // the test fails below
+        }
+      }
+    };
+    producer.start();
+    producer.join(100);
+    assertTrue(producer.isAlive());
+    assertEquals(2, source.size());
+    source.release(source.next());
+    producer.join(5000);
+    assertFalse(producer.isAlive());
+    assertEquals(2, source.size());
+
+    // and a producer waiting when the source is closed gives up
+    producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          source.put(last);
+          fail("there should be no room");
+        } catch(IllegalStateException e) {
+          // expected
+        } catch(InterruptedException e) {
+          // the test fails below
+        }
+      }
+    };
+    producer.start();
+    producer.join(100);
+    assertTrue(producer.isAlive());
+    source.close();
+    producer.join(5000);
+    assertFalse(producer.isAlive());
+    assertEquals(0, source.size());
+    assertNull(source.next());
+  } // testBackpressure()
+
+  /** Test processing the files of a directory, skipping those unreadable */
+  public void testDirectoryDocumentSource() throws Exception {
+    File directory = Files.createTempDirectory("documentSource").toFile();
+    String[] names = {"doc1.txt", "doc2.txt", "doc3.txt"};
+    for(String name : names) {
+      Files.write(new File(directory, name).toPath(),
+        ("The text of " + name).getBytes(StandardCharsets.UTF_8));
+    }
+    final File bad = new File(directory, "bad.txt");
+    Files.write(bad.toPath(), "Unreadable".getBytes(StandardCharsets.UTF_8));
+    new File(directory, "subdirectory").mkdir();
+    try {
+      // every readable file is made into a document, whatever the order
+      DirectoryDocumentSource source =
+        new DirectoryDocumentSource(directory, "UTF-8") {
+          @Override
+          protected Document createDocument(File file)
+            throws ResourceInstantiationException {
+            if(file.equals(bad))
+              throw new ResourceInstantiationException("Cannot read " + file);
+            return super.createDocument(file);
+          }
+        };
+      List<String> texts = new ArrayList<String>();
+      Document doc;
+      while((doc = source.next()) != null) {
+        texts.add(doc.getContent().toString());
+        source.release(doc);
+      }
+      Collections.sort(texts);
+      assertEquals(3, texts.size());
+      for(int i = 0; i < names.length; i++) {
+        assertEquals("The text of " + names[i], texts.get(i));
+      }
+      assertEquals(Collections.singletonList(bad), source.getSkippedFiles());
+      assertNull(source.next());
+
+      // and the controller gets through the lot, here without the failure
+      SerialAnalyserController controller = (SerialAnalyserController)
+        Factory.createResource(SerialAnalyserController.class.getName());
+      controller.add((ProcessingResource)Factory.createResource(
+        RecordingResource.class.getName()));
+      source = new DirectoryDocumentSource(directory, null);
+      controller.execute(source);
+      assertTrue(source.getSkippedFiles().isEmpty());
+      source.close();
+      Factory.deleteResource(controller);
+    } finally {
+      for(File file : directory.listFiles()) file.delete();
+      directory.delete();
+    }
+  } // testDirectoryDocumentSource()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestDocumentSource.class);
+  } // suite
+}
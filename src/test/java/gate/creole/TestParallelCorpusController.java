@@ -0,0 +1,97 @@
+/*
+ *  TestParallelCorpusController.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources.MeetingResource;
+import gate.creole.ControllerTestResources.RecordingResource;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the parallel corpus controller */
+public class TestParallelCorpusController extends TestCase {
+
+  /** Construction */
+  public TestParallelCorpusController(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test that the documents are shared out between copies of the PRs */
+  public void testParallelCorpusController() throws Exception {
+    ParallelCorpusController controller = (ParallelCorpusController)
+      Factory.createResource(ParallelCorpusController.class.getName());
+    controller.add((ProcessingResource)
+      Factory.createResource(RecordingResource.class.getName()));
+    // the first document processed waits for another copy to start on a
+    // second one
+    controller.add((ProcessingResource)
+      Factory.createResource(MeetingResource.class.getName()));
+    controller.setThreadCount(3);
+    Corpus corpus = ControllerTestResources.newCorpus("parallelTestCorpus", 30);
+    controller.setCorpus(corpus);
+    MeetingResource.meeting = new CountDownLatch(2);
+    controller.execute();
+    // each document was processed once, by more than one copy
+    Set<Object> prs = new HashSet<Object>();
+    for(Document doc : corpus) {
+      assertEquals(1, doc.getFeatures().get("runs"));
+      assertEquals(Boolean.TRUE, doc.getAnnotations().get("Met").iterator()
+        .next().getFeatures().get("met"));
+      prs.add(doc.getFeatures().get("pr"));
+    }
+    assertTrue(prs.size() > 1);
+    // the second run reuses the copies of the pipeline
+    controller.execute();
+
+    for(Document doc : corpus) {
+      assertNotNull(doc.getFeatures().get("thread"));
+      assertEquals(2, doc.getFeatures().get("runs"));
+      prs.add(doc.getFeatures().get("pr"));
+    }
+    assertTrue(prs.size() <= 3);
+
+    // an error on one document stops the run and is rethrown
+    Document bad = Factory.newDocument("This one fails.");
+    bad.setName("fail");
+    corpus.add(15, bad);
+    try {
+      controller.execute();
+      fail("the error should have been rethrown");
+    } catch(ExecutionException e) {
+      assertEquals("Failed on fail", e.getMessage());
+    }
+    Factory.deleteResource(controller);
+  } // testParallelCorpusController()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestParallelCorpusController.class);
+  } // suite
+}
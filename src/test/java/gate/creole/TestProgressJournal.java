@@ -0,0 +1,196 @@
+/*
+ *  TestProgressJournal.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.corpora.CorpusImpl;
+import gate.creole.ControllerTestResources.RecordingResource;
+import gate.util.GateRuntimeException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for resuming a journalled corpus run */
+public class TestProgressJournal extends TestCase {
+
+  /** Construction */
+  public TestProgressJournal(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** A journal file name that does not exist yet */
+  static File newJournalFile() throws Exception {
+    File journalFile = File.createTempFile("journal", ".txt");
+    journalFile.delete();
+    journalFile.deleteOnExit();
+    return journalFile;
+  }
+
+  /** Test that a rerun skips the documents already done */
+  public void testProgressJournal() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    Corpus corpus = ControllerTestResources.newCorpus("journalTestCorpus", 6);
+    corpus.get(3).setName("fail");
+    File journalFile = newJournalFile();
+    controller.setCorpus(corpus);
+    controller.setJournalURL(journalFile.toURI().toURL());
+    controller.setMaxAttempts(2);
+
+    // the failing document does not stop the run
+    controller.execute();
+    for(Document doc : corpus) {
+      assertEquals(!doc.getName().equals("fail"),
+        doc.getFeatures().containsKey("thread"));
+      doc.getFeatures().clear();
+    }
+
+    // nothing is left to do the second time
+    controller.execute();
+    for(Document doc : corpus) {
+      assertTrue(doc.getFeatures().isEmpty());
+    }
+    ProgressJournal journal = new ProgressJournal(journalFile,
+      ProgressJournal.fingerprint(controller));
+    assertTrue(journal.isCompleted("doc5"));
+    assertEquals(2, journal.getFailureCount("fail"));
+    assertTrue(journal.getDeadLetters().contains("fail"));
+    journal.close();
+
+    // but everything is done again by different PRs
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    controller.execute();
+    assertTrue(corpus.get(0).getFeatures().containsKey("thread"));
+    Factory.deleteResource(controller);
+  } // testProgressJournal()
+
+  /** Test that a document that cannot be loaded is tried and given up */
+  public void testLoadFailure() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName()));
+    final int[] loads = new int[1];
+    Corpus corpus = new CorpusImpl() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Document get(int index) {
+        if(getDocumentName(index).equals("unloadable")) {
+          loads[0]++;
+          throw new GateRuntimeException("Could not load " + index);
+        }
+        return super.get(index);
+      }
+    };
+    for(int i = 0; i < 3; i++) {
+      Document doc = Factory.newDocument("Document number " + i);
+      doc.setName(i == 1 ? "unloadable" : "doc" + i);
+      corpus.add(doc);
+    }
+    File journalFile = newJournalFile();
+    controller.setCorpus(corpus);
+    controller.setJournalURL(journalFile.toURI().toURL());
+    controller.setMaxAttempts(2);
+    controller.execute();
+    assertEquals(2, loads[0]);
+    assertNotNull(corpus.get(2).getFeatures().get("thread"));
+    ProgressJournal journal = new ProgressJournal(journalFile,
+      ProgressJournal.fingerprint(controller));
+    assertEquals(2, journal.getFailureCount("unloadable"));
+    assertTrue(journal.getDeadLetters().contains("unloadable"));
+    journal.close();
+
+    // and it is not tried again
+    controller.execute();
+    assertEquals(2, loads[0]);
+    Factory.deleteResource(controller);
+  } // testLoadFailure()
+
+  /** Test that a line cut short by a crash is dropped */
+  public void testIncompleteLine() throws Exception {
+    File journalFile = newJournalFile();
+    ProgressJournal journal = new ProgressJournal(journalFile, "fingerprint");
+    journal.completed("doc0");
+    journal.close();
+    // the process died while writing the next line
+    OutputStream out = new FileOutputStream(journalFile, true);
+    out.write("DONE\tfingerprint\tdo".getBytes(StandardCharsets.UTF_8));
+    out.close();
+
+    journal = new ProgressJournal(journalFile, "fingerprint");
+    assertTrue(journal.isCompleted("doc0"));
+    assertFalse(journal.isCompleted("do"));
+    // and the next line starts on a line of its own
+    journal.completed("doc1");
+    journal.close();
+    List<String> lines = Files.readAllLines(journalFile.toPath(),
+      StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    journal = new ProgressJournal(journalFile, "fingerprint");
+    assertTrue(journal.isCompleted("doc1"));
+    journal.close();
+  } // testIncompleteLine()
+
+  /** Test that the controllers that cannot keep a journal say so */
+  public void testJournalNotSupported() throws Exception {
+    String[] controllers = {ParallelCorpusController.class.getName(),
+      StagedCorpusController.class.getName(),
+      RealtimeCorpusController.class.getName(),
+      ConcurrentRealtimeCorpusController.class.getName()};
+    for(String className : controllers) {
+      SerialAnalyserController controller =
+        (SerialAnalyserController)Factory.createResource(className);
+      controller.add((ProcessingResource)Factory.createResource(
+        RecordingResource.class.getName()));
+      controller.setCorpus(ControllerTestResources.newCorpus(
+        "journalTestCorpus", 2));
+      controller.setJournalURL(newJournalFile().toURI().toURL());
+      try {
+        controller.execute();
+        fail(className + " should not accept a journal");
+      } catch(ExecutionException e) {
+        assertTrue(e.getMessage().endsWith(
+          "Journalling the progress of runs is not supported!"));
+      }
+      Factory.deleteResource(controller);
+    }
+  } // testJournalNotSupported()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestProgressJournal.class);
+  } // suite
+}
@@ -0,0 +1,96 @@
+/*
+ *  TestStagedCorpusController.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.creole;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources.RecordingResource;
+import gate.creole.ControllerTestResources.SlowResource;
+
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the staged corpus controller */
+public class TestStagedCorpusController extends TestCase {
+
+  /** Construction */
+  public TestStagedCorpusController(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test that each stage runs its PRs on its own thread */
+  public void testStagedCorpusController() throws Exception {
+    StagedCorpusController controller = (StagedCorpusController)
+      Factory.createResource(StagedCorpusController.class.getName());
+    controller.add((ProcessingResource)
+      Factory.createResource(RecordingResource.class.getName()));
+    controller.add((ProcessingResource)
+      Factory.createResource(SlowResource.class.getName()));
+    controller.setQueueCapacity(1);
+    Corpus corpus = ControllerTestResources.newCorpus("stagedTestCorpus", 20);
+    controller.setCorpus(corpus);
+    controller.execute();
+
+    // the last PR ran on the thread of the second stage
+    for(Document doc : corpus) {
+      assertEquals(controller.getName() + " stage 2",
+        doc.getFeatures().get("thread"));
+      assertSame(controller.getPRs().get(1), doc.getFeatures().get("pr"));
+    }
+    assertEquals(2, controller.getStages().size());
+    for(StagedCorpusController.Stage stage : controller.getStages()) {
+      assertEquals(20, stage.getDocumentCount());
+    }
+    // the slow second stage filled its queue and held up the first
+    assertEquals(1, controller.getStages().get(1).getMaxQueueDepth());
+    assertTrue(controller.getStages().get(0).getBlockedTime() > 0);
+
+    // both PRs in one stage
+    controller.setStageBoundaries(new ArrayList<Integer>());
+    controller.execute();
+    assertEquals(1, controller.getStages().size());
+
+    // an error on one document stops the run and is rethrown
+    Document bad = Factory.newDocument("This one fails.");
+    bad.setName("fail");
+    corpus.add(10, bad);
+    controller.setStageBoundaries(null);
+    try {
+      controller.execute();
+      fail("the error should have been rethrown");
+    } catch(ExecutionException e) {
+      assertEquals("Failed on fail", e.getMessage());
+    }
+    // the documents before it were still processed by both stages
+    assertEquals(10, controller.getStages().get(1).getDocumentCount());
+    Factory.deleteResource(controller);
+  } // testStagedCorpusController()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestStagedCorpusController.class);
+  } // suite
+}
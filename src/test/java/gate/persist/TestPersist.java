@@ -24,18 +24,31 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.LanguageResource;
+import gate.ProcessingResource;
 import gate.Resource;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+import gate.corpora.SerialCorpusImpl;
 import gate.corpora.TestDocument;
+import gate.creole.ControllerTestResources;
+import gate.creole.ControllerTestResources.RecordingResource;
+import gate.creole.SerialAnalyserController;
 import gate.util.Err;
 import gate.util.GateException;
 import gate.util.Out;
 import gate.util.TestEqual;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -149,6 +162,88 @@ public class TestPersist extends TestCase {
     }
   } // testSaveRestore()
 
+  /** Test saving and restoring with the binary codec and raw deflate */
+  public void testBinaryCodec() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    SerialDataStore sds =
+            new SerialDataStore(storageDir.toURI().toURL().toString());
+    sds.setCodecName(BinaryDocumentCodec.NAME);
+    sds.setCompressionName("deflate-1");
+    sds.create();
+    sds.open();
+
+    Document doc = Factory.newDocument("Some text to annotate");
+    doc.setName("Binary Document");
+    doc.getFeatures().put("count", 42);
+    doc.getFeatures().put("list", new ArrayList<String>());
+    FeatureMap features = Factory.newFeatureMap();
+    features.put("kind", "word");
+    doc.getAnnotations().add(0L, 4L, "Token", features);
+    doc.getAnnotations("Key").add(5L, 9L, "Token", Factory.newFeatureMap());
+    Integer gone = doc.getAnnotations("Key").add(0L, 4L, "Gone",
+            Factory.newFeatureMap());
+    doc.getAnnotations("Key").remove(doc.getAnnotations("Key").get(gone));
+
+    try {
+      Document persDoc = (Document)sds.adopt(doc);
+      sds.sync(persDoc);
+      Object lrPersistenceId = persDoc.getLRPersistenceId();
+      sds.close();
+
+      SerialDataStore reopened =
+              new SerialDataStore(storageDir.toURI().toURL().toString());
+      reopened.open();
+      assertEquals(BinaryDocumentCodec.NAME, reopened.getCodecName());
+      assertEquals("deflate-1", reopened.getCompressionName());
+      Document doc2 = (Document)reopened.getLr("gate.corpora.DocumentImpl",
+              lrPersistenceId);
+      assertTrue(TestEqual.message, TestEqual.documentsEqual(persDoc, doc2));
+      assertEquals(
+              ((gate.corpora.DocumentImpl)persDoc).peakAtNextAnnotationId(),
+              ((gate.corpora.DocumentImpl)doc2).peakAtNextAnnotationId());
+    } finally {
+      sds.delete();
+    }
+  } // testBinaryCodec()
+
+  /** Test that the binary codec keeps the state Java serialisation keeps */
+  public void testBinaryCodecRoundTrip() throws Exception {
+    DocumentImpl doc = (DocumentImpl)Factory.newDocument("Some text to edit");
+    doc.edit(0L, 4L, new DocumentContentImpl("More"));
+    doc.setNamespaceInfo(true, "uri", "prefix");
+    List<String> shared = new ArrayList<String>();
+    shared.add("value");
+    doc.getFeatures().put("first", shared);
+    doc.getFeatures().put("second", shared);
+    FeatureMap features = Factory.newFeatureMap();
+    features.put("third", shared);
+    doc.getAnnotations().add(0L, 4L, "Token", features);
+
+    BinaryDocumentCodec codec = new BinaryDocumentCodec();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.write(doc, out);
+    DocumentImpl doc2 = (DocumentImpl)codec.read(
+            new ByteArrayInputStream(out.toByteArray()));
+
+    assertTrue(TestEqual.message, TestEqual.documentsEqual(doc, doc2));
+    DocumentContentImpl content = (DocumentContentImpl)doc2.getContent();
+    assertEquals("More text to edit", content.toString());
+    assertEquals("Some text to edit", content.getOriginalContent());
+    assertTrue(doc2.getSerializeNamespaceInfo());
+    assertEquals("uri", doc2.getNamespaceURIFeature());
+    assertEquals("prefix", doc2.getNamespacePrefixFeature());
+    // one value shared by several features is still one value
+    Object first = doc2.getFeatures().get("first");
+    assertEquals(shared, first);
+    assertSame(first, doc2.getFeatures().get("second"));
+    assertSame(first, doc2.getAnnotations().iterator().next().getFeatures()
+            .get("third"));
+    Factory.deleteResource(doc);
+    Factory.deleteResource(doc2);
+  } // testBinaryCodecRoundTrip()
+
   /** Simple test */
   public void testSimple() throws Exception {
     // create a temporary directory; because File.createTempFile actually
@@ -284,6 +379,439 @@ public class TestPersist extends TestCase {
     sds.delete();
   } // testMultipleLrs()
 
+  /** Test a corpus in a log-structured data store, with compaction */
+  public void testLogStructured() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    LogStructuredDataStore lds = (LogStructuredDataStore)Factory
+            .createDataStore("gate.persist.LogStructuredDataStore",
+                    storageDir.toURI().toURL().toString());
+    lds.setSegmentSize(2048);
+    // only compact when asked to
+    lds.setCompactionThreshold(2);
+
+    Corpus corp = Factory.newCorpus("Log corpus");
+    for(int i = 0; i < 10; i++) {
+      Document doc = Factory.newDocument("Document number " + i);
+      doc.setName("Log document " + i);
+      doc.getAnnotations().add(0L, 8L, "Word", Factory.newFeatureMap());
+      corp.add(doc);
+    }
+    Corpus persCorpus = (Corpus)lds.adopt(corp);
+    lds.sync(persCorpus);
+    // save everything again, leaving the first copies out of date
+    for(Document doc : persCorpus) {
+      doc.getFeatures().put("saved", "again");
+      lds.sync(doc);
+    }
+    String firstId = (String)persCorpus.get(0).getLRPersistenceId();
+    persCorpus.remove(0);
+    lds.delete("gate.corpora.DocumentImpl", firstId);
+    lds.sync(persCorpus);
+    Object corpusId = persCorpus.getLRPersistenceId();
+    Factory.deleteResource(persCorpus);
+
+    int before = storageDir.list().length;
+    lds.setCompactionThreshold(0.5);
+    lds.compact();
+    assertTrue("no segments compacted", storageDir.list().length < before);
+    lds.close();
+
+    LogStructuredDataStore reopened = (LogStructuredDataStore)Factory
+            .openDataStore("gate.persist.LogStructuredDataStore",
+                    storageDir.toURI().toURL().toString());
+    try {
+      assertEquals(9, reopened.getLrIds("gate.corpora.DocumentImpl").size());
+      assertFalse(reopened.getLrIds("gate.corpora.DocumentImpl").contains(
+              firstId));
+      FeatureMap features = Factory.newFeatureMap();
+      features.put(DataStore.DATASTORE_FEATURE_NAME, reopened);
+      features.put(DataStore.LR_ID_FEATURE_NAME, corpusId);
+      Corpus diskCorp = (Corpus)Factory.createResource(
+              "gate.corpora.SerialCorpusImpl", features);
+      assertEquals(9, diskCorp.size());
+      Document diskDoc = diskCorp.get(0);
+      assertEquals("Log document 1", diskDoc.getName());
+      assertEquals("Document number 1",
+              diskDoc.getContent().toString());
+      assertEquals("again", diskDoc.getFeatures().get("saved"));
+      assertEquals(1, diskDoc.getAnnotations().get("Word").size());
+      Factory.deleteResource(diskCorp);
+    } finally {
+      reopened.delete();
+    }
+  } // testLogStructured()
+
+  /**
+   * Test that full segments of a log-structured data store end with an index
+   * of their records, and that a store whose full segments have none can
+   * still be opened.
+   */
+  public void testLogStructuredIndex() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    LogStructuredDataStore lds = (LogStructuredDataStore)Factory
+            .createDataStore("gate.persist.LogStructuredDataStore",
+                    storageDir.toURI().toURL().toString());
+    lds.setSegmentSize(1024);
+    lds.setCompactionThreshold(2);
+    Corpus corp = Factory.newCorpus("Indexed corpus");
+    for(int i = 0; i < 10; i++) {
+      corp.add(Factory.newDocument("Document number " + i));
+    }
+    Corpus persCorpus = (Corpus)lds.adopt(corp);
+    lds.sync(persCorpus);
+    String firstId = (String)persCorpus.get(0).getLRPersistenceId();
+    persCorpus.remove(0);
+    lds.delete("gate.corpora.DocumentImpl", firstId);
+    lds.sync(persCorpus);
+    Factory.deleteResource(persCorpus);
+    lds.close();
+
+    FilenameFilter segmentFiles = new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("segment-");
+      }
+    };
+    assertTrue("only one segment",
+            storageDir.list(segmentFiles).length > 2);
+    for(int round = 0; round < 2; round++) {
+      // opening compacts the segments in the background, and the segments
+      // it fills are indexed in turn
+      LogStructuredDataStore reopened = (LogStructuredDataStore)Factory
+              .openDataStore("gate.persist.LogStructuredDataStore",
+                      storageDir.toURI().toURL().toString());
+      try {
+        List<String> ids = reopened.getLrIds("gate.corpora.DocumentImpl");
+        assertEquals(9, ids.size());
+        assertFalse(ids.contains(firstId));
+        assertEquals(1, reopened.getLrIds("gate.corpora.SerialCorpusImpl")
+                .size());
+        Document doc = (Document)reopened.getLr("gate.corpora.DocumentImpl",
+                ids.get(0));
+        assertTrue(doc.getContent().toString().startsWith("Document number"));
+        Factory.deleteResource(doc);
+      } finally {
+        reopened.close();
+      }
+      if(round == 1) break;
+      // cut the indices off the full segments, as in a store written before
+      // they were kept, which is read through instead
+      File[] segments = storageDir.listFiles(segmentFiles);
+      Arrays.sort(segments);
+      for(int i = 0; i < segments.length - 1; i++) {
+        RandomAccessFile file = new RandomAccessFile(segments[i], "rw");
+        try {
+          long length = file.length();
+          file.seek(length - 16);
+          int indexLength = file.readInt();
+          // skip the checksum
+          file.readInt();
+          assertEquals(0x4741544549445831L, file.readLong());
+          file.setLength(length - 16 - indexLength);
+        } finally {
+          file.close();
+        }
+      }
+    }
+    Factory.openDataStore("gate.persist.LogStructuredDataStore",
+            storageDir.toURI().toURL().toString()).delete();
+  } // testLogStructuredIndex()
+
+  /** Test unloading documents with the data store writing behind */
+  public void testWriteBehind() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    SerialDataStore sds = (SerialDataStore)Factory.createDataStore(
+            "gate.persist.SerialDataStore",
+            storageDir.toURI().toURL().toString());
+    sds.setWriteBehind(2, 3);
+
+    Corpus corp = Factory.newCorpus("Write behind corpus");
+    for(int i = 0; i < 10; i++) {
+      corp.add(Factory.newDocument("Document number " + i));
+    }
+    SerialCorpusImpl persCorpus = (SerialCorpusImpl)sds.adopt(corp);
+    sds.sync(persCorpus);
+    Object corpusId = persCorpus.getLRPersistenceId();
+
+    for(int i = 0; i < persCorpus.size(); i++) {
+      Document doc = persCorpus.get(i);
+      doc.getFeatures().put("processed", i);
+      doc.getAnnotations().add(0L, 8L, "Word", Factory.newFeatureMap());
+      persCorpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+      // loading it again straight away gets the version just saved
+      doc = persCorpus.get(i);
+      assertEquals(i, doc.getFeatures().get("processed"));
+      assertEquals(1, doc.getAnnotations().size());
+      persCorpus.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+    }
+    persCorpus.flush();
+    Factory.deleteResource(persCorpus);
+    sds.close();
+
+    SerialDataStore reopened = (SerialDataStore)Factory.openDataStore(
+            "gate.persist.SerialDataStore",
+            storageDir.toURI().toURL().toString());
+    try {
+      FeatureMap features = Factory.newFeatureMap();
+      features.put(DataStore.DATASTORE_FEATURE_NAME, reopened);
+      features.put(DataStore.LR_ID_FEATURE_NAME, corpusId);
+      Corpus diskCorp = (Corpus)Factory.createResource(
+              "gate.corpora.SerialCorpusImpl", features);
+      assertEquals(10, diskCorp.size());
+      for(int i = 0; i < diskCorp.size(); i++) {
+        Document doc = diskCorp.get(i);
+        assertEquals(i, doc.getFeatures().get("processed"));
+        assertEquals(1, doc.getAnnotations().size());
+      }
+      Factory.deleteResource(diskCorp);
+    } finally {
+      reopened.delete();
+    }
+  } // testWriteBehind()
+
+  /** Test that a background write that failed is tried again by flushing */
+  public void testWriteBehindFailure() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+    final int[] failures = new int[1];
+    SerialDataStore sds =
+            new SerialDataStore(storageDir.toURI().toURL().toString()) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void writeResource(String lrClassName, String lrPersistenceId,
+              byte[] encoded) throws PersistenceException {
+        if(failures[0] > 0) {
+          failures[0]--;
+          throw new PersistenceException("Disk full");
+        }
+        super.writeResource(lrClassName, lrPersistenceId, encoded);
+      }
+    };
+    sds.create();
+    sds.open();
+    try {
+      sds.setWriteBehind(1, 4);
+      Document doc = (Document)sds.adopt(
+              Factory.newDocument("Document to write"));
+
+      // fails in the background, but is written again when flushed
+      failures[0] = 1;
+      doc.getFeatures().put("version", 1);
+      sds.sync(doc);
+      Object id = doc.getLRPersistenceId();
+      sds.flush();
+      assertEquals(0, failures[0]);
+
+      // if it still can't be written, every flush says so, and it can still
+      // be read meanwhile
+      failures[0] = 3;
+      doc.getFeatures().put("version", 2);
+      sds.sync(doc);
+      for(int i = 0; i < 2; i++) {
+        try {
+          sds.flush();
+          fail("the write should have failed");
+        } catch(PersistenceException e) {
+          assertTrue(e.getMessage().contains("Disk full"));
+        }
+      }
+      Document read = (Document)sds.getLr("gate.corpora.DocumentImpl", id);
+      assertEquals(2, read.getFeatures().get("version"));
+      Factory.deleteResource(read);
+      sds.flush();
+      Factory.deleteResource(doc);
+    } finally {
+      sds.delete();
+    }
+  } // testWriteBehindFailure()
+
+  /** Test reading documents ahead as a corpus is processed */
+  public void testReadAhead() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    SerialDataStore sds = (SerialDataStore)Factory.createDataStore(
+            "gate.persist.SerialDataStore",
+            storageDir.toURI().toURL().toString());
+    try {
+      Corpus corp = Factory.newCorpus("Read ahead corpus");
+      for(int i = 0; i < 10; i++) {
+        corp.add(Factory.newDocument("Document number " + i));
+      }
+      SerialCorpusImpl persCorpus = (SerialCorpusImpl)sds.adopt(corp);
+      sds.sync(persCorpus);
+      for(int i = 0; i < persCorpus.size(); i++) {
+        Document doc = persCorpus.get(i);
+        persCorpus.unloadDocument(doc, false);
+        Factory.deleteResource(doc);
+      }
+
+      persCorpus.setReadAhead(3, Long.MAX_VALUE);
+      Document doc = persCorpus.get(0);
+      assertEquals("Document number 0", doc.getContent().toString());
+      assertEquals(3, sds.readAheads.size());
+
+      // a document removed stops being read ahead
+      persCorpus.remove(1);
+      assertEquals(2, sds.readAheads.size());
+
+      // a document got is handed over, and those skipped are cancelled
+      doc = persCorpus.get(4);
+      assertEquals("Document number 5", doc.getContent().toString());
+      assertEquals(3, sds.readAheads.size());
+      for(Future<LanguageResource> readAhead : sds.readAheads.values())
+        readAhead.get();
+      for(int i = 5; i < persCorpus.size(); i++) {
+        doc = persCorpus.get(i);
+        assertEquals("Document number " + (i + 1),
+                doc.getContent().toString());
+        assertTrue(doc.getDataStore() == sds);
+      }
+      assertEquals(0, sds.readAheads.size());
+
+      // no more are read ahead once those read are over the budget, those
+      // not read yet being taken to be the size of the one loaded at first
+      for(int i = 0; i < persCorpus.size(); i++)
+        persCorpus.unloadDocument(i, false);
+      persCorpus.setReadAhead(3, 1);
+      persCorpus.get(0);
+      assertEquals(1, sds.readAheads.size());
+      persCorpus.unloadDocument(0, false);
+      long size = SerialCorpusImpl.estimateSize(persCorpus.get(0));
+      persCorpus.unloadDocument(0, false);
+      persCorpus.setReadAhead(3, size * 3 / 2);
+      persCorpus.get(0);
+      assertEquals(2, sds.readAheads.size());
+      for(Future<LanguageResource> readAhead : sds.readAheads.values())
+        readAhead.get();
+      persCorpus.get(1);
+      assertEquals(2, sds.readAheads.size());
+
+      Factory.deleteResource(persCorpus);
+    } finally {
+      sds.delete();
+    }
+  } // testReadAhead()
+
+  /** Test keeping unloaded documents in memory */
+  public void testDocumentCache() throws Exception {
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    SerialDataStore sds = (SerialDataStore)Factory.createDataStore(
+            "gate.persist.SerialDataStore",
+            storageDir.toURI().toURL().toString());
+    try {
+      Corpus corp = Factory.newCorpus("Cached corpus");
+      for(int i = 0; i < 5; i++) {
+        corp.add(Factory.newDocument("Document number " + i));
+      }
+      SerialCorpusImpl persCorpus = (SerialCorpusImpl)sds.adopt(corp);
+      sds.sync(persCorpus);
+      long docSize = SerialCorpusImpl.estimateSize(persCorpus.get(0));
+      for(int i = 0; i < persCorpus.size(); i++) {
+        Document doc = persCorpus.get(i);
+        persCorpus.unloadDocument(doc, false);
+        Factory.deleteResource(doc);
+      }
+
+      // room for two documents
+      persCorpus.setCacheBudget(docSize * 2);
+      Document doc0 = persCorpus.get(0);
+      doc0.getFeatures().put("seen", Boolean.TRUE);
+      persCorpus.unloadDocument(doc0);
+      assertFalse(persCorpus.isDocumentLoaded(0));
+      assertTrue(doc0 == persCorpus.get(0));
+      assertEquals(1, persCorpus.getCacheHits());
+      assertEquals(1, persCorpus.getCacheMisses());
+
+      // the least recently used are dropped when over the budget
+      persCorpus.unloadDocument(0);
+      persCorpus.unloadDocument(persCorpus.get(1));
+      persCorpus.unloadDocument(persCorpus.get(2));
+      assertEquals(1, persCorpus.getCacheEvictions());
+      assertEquals(docSize * 2, persCorpus.getCacheSize());
+      Document doc = persCorpus.get(0);
+      assertTrue(doc != doc0);
+      assertEquals(Boolean.TRUE, doc.getFeatures().get("seen"));
+      assertEquals(1, persCorpus.getCacheHits());
+      assertEquals(4, persCorpus.getCacheMisses());
+
+      // documents deleted by someone else are no longer kept
+      doc = persCorpus.get(1);
+      persCorpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+      assertEquals(docSize, persCorpus.getCacheSize());
+      assertTrue(doc != persCorpus.get(1));
+
+      persCorpus.setCacheBudget(0);
+      assertEquals(0, persCorpus.getCacheSize());
+      Factory.deleteResource(persCorpus);
+    } finally {
+      sds.delete();
+    }
+  } // testDocumentCache()
+
+  /** Test that the documents a controller unloads are kept */
+  public void testControllerCache() throws Exception {
+    ControllerTestResources.register();
+    File storageDir = File.createTempFile("TestPersist__", "__StorageDir");
+    storageDir.delete();
+
+    SerialDataStore sds = (SerialDataStore)Factory.createDataStore(
+            "gate.persist.SerialDataStore",
+            storageDir.toURI().toURL().toString());
+    try {
+      Corpus corp = Factory.newCorpus("Cached corpus");
+      for(int i = 0; i < 5; i++) {
+        corp.add(Factory.newDocument("Document number " + i));
+      }
+      SerialCorpusImpl persCorpus = (SerialCorpusImpl)sds.adopt(corp);
+      sds.sync(persCorpus);
+      for(int i = 0; i < persCorpus.size(); i++) {
+        Document doc = persCorpus.get(i);
+        persCorpus.unloadDocument(doc, false);
+        Factory.deleteResource(doc);
+      }
+      persCorpus.setCacheBudget(Long.MAX_VALUE);
+
+      SerialAnalyserController controller = (SerialAnalyserController)
+        Factory.createResource(SerialAnalyserController.class.getName());
+      controller.add((ProcessingResource)Factory.createResource(
+        RecordingResource.class.getName()));
+      controller.setCorpus(persCorpus);
+      controller.execute();
+      assertEquals(0, persCorpus.getCacheHits());
+      // the second run gets the documents the first one unloaded
+      controller.execute();
+      assertTrue(persCorpus.getCacheHits() > 0);
+      assertEquals(persCorpus.size(), persCorpus.getCacheHits());
+      for(int i = 0; i < persCorpus.size(); i++)
+        assertFalse(persCorpus.isDocumentLoaded(i));
+      assertEquals(0, persCorpus.getCacheEvictions());
+      Factory.deleteResource(controller);
+
+      // the documents kept are saved when they are dropped
+      persCorpus.setCacheBudget(0);
+      assertEquals(0, persCorpus.getCacheSize());
+      Document doc = persCorpus.get(0);
+      assertFalse(persCorpus.isDocumentCached(doc));
+      assertNotNull(doc.getFeatures().get("thread"));
+      Factory.deleteResource(persCorpus);
+    } finally {
+      sds.delete();
+    }
+  } // testControllerCache()
+
   /** Test LR deletion */
   public void testDelete() throws Exception {
     // create a temporary directory; because File.createTempFile actually
@@ -0,0 +1,151 @@
+/*
+ *  TestApplicationPool.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import gate.Corpus;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources;
+import gate.creole.ControllerTestResources.RecordingResource;
+import gate.creole.ControllerTestResources.SharingResource;
+import gate.creole.SerialAnalyserController;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the application pool */
+public class TestApplicationPool extends TestCase {
+
+  /** Construction */
+  public TestApplicationPool(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test borrowing, resetting and evicting copies of an application */
+  public void testApplicationPool() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    ProcessingResource testResource = (ProcessingResource)
+      Factory.createResource(RecordingResource.class.getName());
+    controller.add(testResource);
+    ApplicationPool<SerialAnalyserController> pool =
+      new ApplicationPool<SerialAnalyserController>(controller, 1, 2);
+    assertEquals(1, pool.getSize());
+
+    SerialAnalyserController first = pool.borrow();
+    SerialAnalyserController second = pool.borrow();
+    assertNotSame(controller, first);
+    assertNotSame(first, second);
+    assertNotSame(testResource, first.getPRs().get(0));
+    assertEquals(2, pool.getSize());
+    // the pool is exhausted
+    assertNull(pool.borrow(50, TimeUnit.MILLISECONDS));
+
+    // the state of a copy is reset when it is given back
+    Corpus corpus = Factory.newCorpus("poolTestCorpus");
+    first.setCorpus(corpus);
+    ((LanguageAnalyser)first.getPRs().get(0)).setCorpus(corpus);
+    pool.release(first);
+    assertSame(first, pool.borrow());
+    assertNull(first.getCorpus());
+    assertNull(((LanguageAnalyser)first.getPRs().get(0)).getCorpus());
+
+    // idle copies beyond the minimum are deleted
+    pool.setIdleTimeout(0);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(1, pool.getSize());
+    assertEquals(0, pool.getBorrowedCount());
+    pool.close();
+    assertEquals(0, pool.getSize());
+    Factory.deleteResource(controller);
+  } // testApplicationPool()
+
+  /** Test that the copies share the data of sharable PRs */
+  public void testSharableParameters() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    SharingResource sharing = (SharingResource)Factory.createResource(
+      SharingResource.class.getName());
+    controller.add(sharing);
+    ApplicationPool<SerialAnalyserController> pool =
+      new ApplicationPool<SerialAnalyserController>(controller, 0, 2);
+    SerialAnalyserController first = pool.borrow();
+    SerialAnalyserController second = pool.borrow();
+    SharingResource firstCopy = (SharingResource)first.getPRs().get(0);
+    SharingResource secondCopy = (SharingResource)second.getPRs().get(0);
+    assertNotSame(sharing, firstCopy);
+    assertSame(sharing.getTable(), firstCopy.getTable());
+    assertSame(sharing.getTable(), secondCopy.getTable());
+
+    // and the shared data is not reset when the copy is given back
+    pool.release(first);
+    assertSame(first, pool.borrow());
+    assertSame(sharing.getTable(), firstCopy.getTable());
+    pool.release(first);
+    pool.release(second);
+    pool.close();
+    Factory.deleteResource(controller);
+  } // testSharableParameters()
+
+  /** Test that idle copies are deleted when the pool is next used */
+  public void testEvictionOnBorrow() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)
+      Factory.createResource(RecordingResource.class.getName()));
+    ApplicationPool<SerialAnalyserController> pool =
+      new ApplicationPool<SerialAnalyserController>(controller, 0, 3);
+    SerialAnalyserController first = pool.borrow();
+    SerialAnalyserController second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+    assertEquals(2, pool.getSize());
+
+    // no copy is given back, but borrowing deletes those idle too long
+    pool.setIdleTimeout(0);
+    Thread.sleep(5);
+    SerialAnalyserController third = pool.borrow();
+    assertEquals(1, pool.getSize());
+    assertNotSame(first, third);
+    assertNotSame(second, third);
+
+    // or the pool can be shrunk without being used
+    pool.setIdleTimeout(60000);
+    pool.release(third);
+    assertEquals(1, pool.getSize());
+    Thread.sleep(5);
+    pool.setIdleTimeout(1);
+    pool.evictIdle();
+    assertEquals(0, pool.getSize());
+    pool.close();
+    Factory.deleteResource(controller);
+  } // testEvictionOnBorrow()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestApplicationPool.class);
+  } // suite
+}
@@ -0,0 +1,119 @@
+/*
+ *  TestControllerStatistics.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources;
+import gate.creole.ConcurrentRealtimeCorpusController;
+import gate.creole.ControllerTestResources.RecordingResource;
+import gate.creole.ParallelCorpusController;
+import gate.creole.SerialAnalyserController;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the latency histogram and the controller statistics MXBean */
+public class TestControllerStatistics extends TestCase {
+
+  /** Construction */
+  public TestControllerStatistics(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test the percentiles of the histogram */
+  public void testLatencyHistogram() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for(int i = 1; i <= 1000; i++) histogram.record(i * 1000L);
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000L, histogram.getMax());
+    assertTrue(Math.abs(histogram.getPercentile(0.5) - 500000) <= 500000 / 8);
+    assertTrue(Math.abs(histogram.getPercentile(0.99) - 990000) <= 990000 / 8);
+  } // testLatencyHistogram()
+
+  /** Test that the statistics of a controller are published */
+  public void testControllerStatistics() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    ProcessingResource pr = (ProcessingResource)Factory.createResource(
+      RecordingResource.class.getName());
+    controller.add(pr);
+    controller.setCorpus(ControllerTestResources.newCorpus(
+      "statisticsTestCorpus", 5));
+    controller.execute();
+    controller.execute();
+
+    ControllerStatistics statistics = new ControllerStatistics(controller);
+    ObjectName name = statistics.register();
+    try {
+      CompositeData[] prs = (CompositeData[])ManagementFactory
+        .getPlatformMBeanServer().getAttribute(name, "ProcessingResources");
+      assertEquals(1, prs.length);
+      assertEquals(pr.getName(), prs[0].get("name"));
+      // kept across runs
+      assertEquals(10L, prs[0].get("documentCount"));
+    } finally {
+      statistics.close();
+    }
+    Factory.deleteResource(controller);
+  } // testControllerStatistics()
+
+  /**
+   * Test that the times of the PRs run by the workers of the parallel
+   * controllers are kept by the controller itself.
+   */
+  public void testParallelStatistics() throws Exception {
+    String[] controllers = {ParallelCorpusController.class.getName(),
+      ConcurrentRealtimeCorpusController.class.getName()};
+    for(String className : controllers) {
+      ParallelCorpusController controller = (ParallelCorpusController)
+        Factory.createResource(className);
+      controller.setThreadCount(3);
+      ProcessingResource pr = (ProcessingResource)Factory.createResource(
+        RecordingResource.class.getName());
+      controller.add(pr);
+      controller.setCorpus(ControllerTestResources.newCorpus(
+        "statisticsTestCorpus", 6));
+      controller.execute();
+
+      ControllerStatistics statistics = new ControllerStatistics(controller);
+      assertEquals(1, statistics.getProcessingResources().size());
+      ControllerStatistics.PRStatistics prStatistics =
+        statistics.getProcessingResources().get(0);
+      assertEquals(pr.getName(), prStatistics.getName());
+      assertEquals(className, 6L, prStatistics.getDocumentCount());
+      assertEquals(1, controller.getPrTimeMap().size());
+      assertTrue(controller.getPrTimeMap().containsKey(pr.getName()));
+      Factory.deleteResource(controller);
+    }
+  } // testParallelStatistics()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestControllerStatistics.class);
+  } // suite
+}
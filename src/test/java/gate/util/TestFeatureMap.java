@@ -119,4 +119,118 @@ public class TestFeatureMap extends TestCase {
          assertTrue(map.subsumes(map2, map2.keySet()));
          assertTrue(map2.subsumes(map, map2.keySet()));
     } // testSubsume()
+
+    /** Test that maps with the same keys share them, and stay independent. */
+    public void testSharedKeys() throws Exception {
+        SimpleFeatureMapImpl map = new SimpleFeatureMapImpl();
+        SimpleFeatureMapImpl map2 = new SimpleFeatureMapImpl();
+        map.put("string", "the");
+        map.put("kind", "word");
+        map.put("length", 3);
+        map2.put("string", "cat");
+        map2.put("kind", "word");
+        map2.put("length", 3);
+        assertSame(map.shape, map2.shape);
+        assertSame(map.theKeys, map2.theKeys);
+        assertEquals("the", map.get("string"));
+        assertEquals("cat", map2.get("string"));
+
+        // changing the keys of one map must not affect the other
+        map2.remove("string");
+        map2.put(null, "null key");
+        assertEquals(3, map.size());
+        assertEquals("the", map.get("string"));
+        assertNull(map2.get("string"));
+        assertEquals("null key", map2.get(null));
+        assertEquals(3, map2.get("length"));
+
+        SimpleFeatureMapImpl copy = (SimpleFeatureMapImpl)map.clone();
+        copy.put("orth", "lowercase");
+        assertEquals(3, map.size());
+        assertEquals(4, copy.size());
+        assertTrue(copy.subsumes(map));
+        assertFalse(map.subsumes(copy));
+
+        // large maps go back to keeping their own keys
+        SimpleFeatureMapImpl big = new SimpleFeatureMapImpl();
+        for (int i = 0; i < KeyShape.MAX_SHARED_KEYS * 2; i++)
+          big.put("key" + i, i);
+        assertNull(big.shape);
+        for (int i = 0; i < KeyShape.MAX_SHARED_KEYS * 2; i += 2)
+          big.remove("key" + i);
+        assertEquals(KeyShape.MAX_SHARED_KEYS, big.size());
+        assertEquals(5, big.get("key5"));
+        assertNull(big.get("key4"));
+
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+        out.writeObject(map);
+        out.writeObject(big);
+        out.close();
+        java.io.ObjectInputStream in = new java.io.ObjectInputStream(
+            new java.io.ByteArrayInputStream(bytes.toByteArray()));
+        SimpleFeatureMapImpl restored = (SimpleFeatureMapImpl)in.readObject();
+        SimpleFeatureMapImpl restoredBig = (SimpleFeatureMapImpl)in.readObject();
+        assertEquals(map, restored);
+        assertSame(map.shape, restored.shape);
+        assertEquals(big, restoredBig);
+        restoredBig.put("another", "value");
+        assertEquals("value", restoredBig.get("another"));
+    } // testSharedKeys()
+
+    /** Test the primitive valued accessors. */
+    public void testPrimitiveValues() throws Exception {
+        SimpleFeatureMapImpl map = new SimpleFeatureMapImpl();
+        map.putInt("length", 3);
+        map.putLong("start", 12345678901L);
+        map.putDouble("score", 0.25);
+        map.put("string", "cat");
+        assertEquals(Integer.valueOf(3), map.get("length"));
+        assertEquals(Long.valueOf(12345678901L), map.get("start"));
+        assertEquals(Double.valueOf(0.25), map.get("score"));
+        assertEquals(3, map.getInt("length", -1));
+        assertEquals(3L, map.getLong("length", -1));
+        assertEquals(0.25, map.getDouble("score", -1), 0);
+        assertEquals(-1, map.getInt("missing", -1));
+        map.put("boxed", 7L);
+        assertEquals(7, map.getInt("boxed", -1));
+        try {
+          map.getInt("string", -1);
+          fail("Strings are not numbers");
+        } catch (ClassCastException e) {
+          // expected
+        }
+
+        // the Map view sees boxed values
+        SimpleFeatureMapImpl boxed = new SimpleFeatureMapImpl();
+        boxed.put("length", 3);
+        boxed.put("score", 0.25);
+        assertTrue(map.subsumes(boxed));
+        boxed.putDouble("score", 0.5);
+        assertFalse(map.subsumes(boxed));
+        boxed.putDouble("score", 0.25);
+        assertTrue(map.subsumes(boxed));
+        boxed.put("length", 3L);
+        assertFalse(map.subsumes(boxed));
+        assertTrue(map.containsValue(0.25));
+
+        // replacing and removing keep the primitives in step with the keys
+        map.put("length", "three");
+        assertEquals("three", map.get("length"));
+        assertEquals(Long.valueOf(12345678901L), map.remove("start"));
+        assertEquals(0.25, map.getDouble("score", -1), 0);
+        SimpleFeatureMapImpl copy = (SimpleFeatureMapImpl)map.clone();
+        copy.putDouble("score", 1.0);
+        assertEquals(0.25, map.getDouble("score", -1), 0);
+        assertEquals(copy.keySet(), map.keySet());
+
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+        out.writeObject(map);
+        out.close();
+        Object restored = new java.io.ObjectInputStream(
+            new java.io.ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(map, restored);
+        assertEquals(Double.valueOf(0.25), ((SimpleFeatureMapImpl)restored).get("score"));
+    } // testPrimitiveValues()
 } // TestFeatureMap
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ *  TestPooledDocumentProcessor.java
+ *
+ *  Copyright (c) 1995-2012, The University of Sheffield. See the file
+ *  COPYRIGHT.txt in the software or at http://gate.ac.uk/gate/COPYRIGHT.txt
+ *
+ *  This file is part of GATE (see http://gate.ac.uk/), and is free
+ *  software, licenced under the GNU Library General Public License,
+ *  Version 2, June 1991 (in the distribution as file licence.html,
+ *  and also available at http://gate.ac.uk/gate/licence.html).
+ *
+ *  $Id$
+ */
+
+package gate.util;
+
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.creole.ControllerTestResources;
+import gate.creole.ControllerTestResources.RecordingResource;
+import gate.creole.ControllerTestResources.SlowResource;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.SerialAnalyserController;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/** Tests for the pooled document processor */
+public class TestPooledDocumentProcessor extends TestCase {
+
+  /** Construction */
+  public TestPooledDocumentProcessor(String name) {
+    super(name);
+  }
+
+  /** Fixture set up */
+  @Override
+  public void setUp() throws Exception {
+    ControllerTestResources.register();
+  } // setUp
+
+  /** Test that documents are processed by a bounded pool of copies */
+  public void testPooledDocumentProcessor() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)
+      Factory.createResource(RecordingResource.class.getName()));
+    PooledDocumentProcessor processor = new PooledDocumentProcessor();
+    processor.setAnalyser(controller);
+    processor.setPoolSize(3);
+    processor.setMaxInFlight(50);
+
+    List<CompletableFuture<Document>> futures =
+      new ArrayList<CompletableFuture<Document>>();
+    Set<Object> prs = new HashSet<Object>();
+    for(int i = 0; i < 20; i++) {
+      futures.add(processor.submit(Factory.newDocument("Document " + i)));
+    }
+    for(CompletableFuture<Document> future : futures) {
+      Document doc = future.get();
+      assertNotNull(doc.getFeatures().get("thread"));
+      prs.add(doc.getFeatures().get("pr"));
+    }
+    assertTrue(prs.size() <= 3);
+
+    Document bad = Factory.newDocument("This one fails.");
+    bad.setName("fail");
+    try {
+      processor.processDocument(bad);
+      fail("the error should have been rethrown");
+    } catch(ExecutionException e) {
+      assertEquals("Failed on fail", e.getMessage());
+    }
+    processor.cleanup();
+  } // testPooledDocumentProcessor()
+
+  /** Test that documents beyond the in-flight limit are turned away */
+  public void testRejectedDocuments() throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+      Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add((ProcessingResource)
+      Factory.createResource(SlowResource.class.getName()));
+    PooledDocumentProcessor processor = new PooledDocumentProcessor();
+    processor.setAnalyser(controller);
+    processor.setPoolSize(1);
+    processor.setMaxInFlight(1);
+
+    List<CompletableFuture<Document>> futures =
+      new ArrayList<CompletableFuture<Document>>();
+    for(int i = 0; i < 10; i++) {
+      futures.add(processor.submit(Factory.newDocument("Document " + i)));
+    }
+    // the first is accepted, and the next is submitted long before it has
+    // been processed
+    assertNotNull(futures.get(0).get().getFeatures().get("thread"));
+    try {
+      futures.get(1).get();
+      fail("the second document should have been rejected");
+    } catch(java.util.concurrent.ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    // once the first is done there is room again
+    Document doc = Factory.newDocument("Document after");
+    assertSame(doc, processor.submit(doc).get());
+
+    processor.cleanup();
+    // and cleaning up twice does no harm
+    processor.cleanup();
+    assertNull(processor.getAnalyser());
+    try {
+      processor.submit(doc).get();
+      fail("the processor should have no analyser left");
+    } catch(java.util.concurrent.ExecutionException e) {
+      assertTrue(e.getCause() instanceof ResourceInstantiationException);
+    }
+  } // testRejectedDocuments()
+
+  /** Test suite routine for the test runner */
+  public static Test suite() {
+    return new TestSuite(TestPooledDocumentProcessor.class);
+  } // suite
+}